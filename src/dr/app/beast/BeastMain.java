@@ -32,9 +32,13 @@ import dr.app.plugin.Plugin;
 import dr.app.plugin.PluginLoader;
 import dr.app.util.Arguments;
 import dr.app.util.Utils;
+import dr.inference.markovchain.MarkovChainMetrics;
 import dr.inference.mcmc.MCMC;
 import dr.inference.mcmcmc.MCMCMC;
 import dr.inference.mcmcmc.MCMCMCOptions;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.smc.SMC;
 import dr.math.MathUtils;
 import dr.util.ErrorLogHandler;
 import dr.util.MessageLogHandler;
@@ -82,6 +86,14 @@ public class BeastMain {
     public BeastMain(File inputFile, BeastConsoleApp consoleApp, int maxErrorCount, final boolean verbose,
                      boolean parserWarning, boolean strictXML, List<String> additionalParsers,
                      boolean useMC3, double[] chainTemperatures, int swapChainsEvery) {
+        this(inputFile, consoleApp, maxErrorCount, verbose, parserWarning, strictXML, additionalParsers,
+                useMC3, chainTemperatures, swapChainsEvery, false, false);
+    }
+
+    public BeastMain(File inputFile, BeastConsoleApp consoleApp, int maxErrorCount, final boolean verbose,
+                     boolean parserWarning, boolean strictXML, List<String> additionalParsers,
+                     boolean useMC3, double[] chainTemperatures, int swapChainsEvery,
+                     boolean asynchronousMC3, boolean adaptMC3Temperatures) {
 
         if (inputFile == null) {
             throw new RuntimeException("Error: no input file specified");
@@ -159,7 +171,63 @@ public class BeastMain {
             // appropriate savers and loaders according to the user's options.
             new BeastCheckpointer();
 
-            if (!useMC3) {
+            int particleThreadCount = 1;
+            if (System.getProperty("smc.particle_folder") != null && System.getProperty("smc.thread_count") != null) {
+                particleThreadCount = Integer.parseInt(System.getProperty("smc.thread_count"));
+            }
+
+            if (!useMC3 && particleThreadCount > 1) {
+                // parse the file once for each particle thread so each has its own copy of the model
+                // and then run the SMC of the first one with the chains of the others
+                SMC smc = (SMC) parser.parse(fileReader, SMC.class);
+                if (smc == null) {
+                    throw new dr.xml.XMLParseException("BEAST XML file is missing an MCMC element");
+                }
+                fileReader.close();
+
+                logger.setLevel(Level.OFF);
+
+                List<Parameter> copyParameters = new ArrayList<Parameter>();
+                List<Model> copyModels = new ArrayList<Model>();
+                for (int i = 1; i < particleThreadCount; i++) {
+                    Set<Parameter> parametersBefore = new HashSet<Parameter>(Parameter.CONNECTED_PARAMETER_SET);
+                    Set<Model> modelsBefore = new HashSet<Model>(Model.CONNECTED_MODEL_SET);
+
+                    fileReader = new FileReader(inputFile);
+                    parser = new BeastParser(new String[]{fileName}, additionalParsers, verbose, parserWarning, strictXML, version);
+                    SMC copy = (SMC) parser.parse(fileReader, SMC.class);
+                    fileReader.close();
+
+                    // the parameters and models of this copy are those that were connected while parsing it
+                    List<Parameter> parameters = new ArrayList<Parameter>();
+                    for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+                        if (!parametersBefore.contains(parameter)) {
+                            if (!parameter.isImmutable()) {
+                                parameters.add(parameter);
+                            }
+                            copyParameters.add(parameter);
+                        }
+                    }
+                    List<Model> models = new ArrayList<Model>();
+                    for (Model model : Model.CONNECTED_MODEL_SET) {
+                        if (!modelsBefore.contains(model)) {
+                            models.add(model);
+                        }
+                    }
+                    smc.addParticleChain(copy.getMarkovChain(), parameters, models);
+
+                    copyModels.addAll(models);
+                }
+
+                // leave just the first copy connected for the loading and saving of the particle files
+                Parameter.CONNECTED_PARAMETER_SET.removeAll(copyParameters);
+                Model.CONNECTED_MODEL_SET.removeAll(copyModels);
+
+                logger.setLevel(Level.ALL);
+
+                smc.run();
+
+            } else if (!useMC3) {
                 // just parse the file running all threads...
 
                 parser.parse(fileReader, true);
@@ -167,7 +235,8 @@ public class BeastMain {
             } else {
                 int chainCount = chainTemperatures.length;
                 MCMC[] chains = new MCMC[chainCount];
-                MCMCMCOptions options = new MCMCMCOptions(chainTemperatures, swapChainsEvery);
+                MCMCMCOptions options = new MCMCMCOptions(chainTemperatures, swapChainsEvery,
+                        asynchronousMC3, adaptMC3Temperatures);
 
                 Logger.getLogger("dr.apps.beast").info("Starting cold chain plus hot chains with temperatures: ");
                 for (int i = 1; i < chainTemperatures.length; i++) {
@@ -205,9 +274,9 @@ public class BeastMain {
                 // restart messages
                 logger.setLevel(Level.ALL);
 
+                // run in this thread (as the single chain analysis is) so it completes before main exits
                 MCMCMC mc3 = new MCMCMC(chains, options);
-                Thread thread = new Thread(mc3);
-                thread.start();
+                mc3.run();
             }
 
         } catch (java.io.IOException ioe) {
@@ -364,24 +433,34 @@ public class BeastMain {
                                 false, "BEAGLE: specify scaling scheme to use"),
                         new Arguments.Option("beagle_delay_scaling_off", "BEAGLE: don't wait until underflow for scaling option"),
                         new Arguments.LongOption("beagle_rescale", "BEAGLE: frequency of rescaling (dynamic scaling only)"),
+                        new Arguments.IntegerOption("beagle_matrix_cache", 0, Integer.MAX_VALUE, "BEAGLE: number of transition matrices to cache by model state and branch length"),
                         new Arguments.Option("mpi", "Use MPI rank to label output"),
 
                         new Arguments.StringOption("particles", "FOLDER", "Specify a folder of particle start states"),
+                        new Arguments.IntegerOption("particle_threads", 1, Integer.MAX_VALUE, "number of threads (each with its own copy of the model) to run the particles on (not reproducible with more than one)"),
+                        new Arguments.RealOption("particle_resample", 0.0, 1.0, "resample the particles if their ESS falls below this proportion of their number"),
 
                         new Arguments.IntegerOption("mc3_chains", 1, Integer.MAX_VALUE, "number of chains"),
                         new Arguments.RealOption("mc3_delta", 0.0, Double.MAX_VALUE, "temperature increment parameter"),
                         new Arguments.RealArrayOption("mc3_temperatures", -1, "a comma-separated list of the hot chain temperatures"),
                         new Arguments.IntegerOption("mc3_swap", 1, Integer.MAX_VALUE, "frequency at which chains temperatures will be swapped"),
+                        new Arguments.Option("mc3_async", "run each chain on its own thread, only swapping between neighbouring temperatures"),
+                        new Arguments.Option("mc3_adapt", "adapt the hot chain temperatures during the run (with -mc3_async)"),
 
                         new Arguments.StringOption("load_state", "FILENAME", "Specify a filename to load a saved state from"),
                         new Arguments.StringOption("save_stem", "FILENAME", "Specify a stem for the filenames to save states to"),
                         new Arguments.LongOption("save_at", "Specify a state at which to save a state file"),
                         new Arguments.LongOption("save_every", "Specify a frequency to save the state file"),
                         new Arguments.StringOption("save_state", "FILENAME", "Specify a filename to save state to"),
+                        new Arguments.Option("save_binary", "Save states in a binary format with incremental updates"),
                         new Arguments.Option("force_resume", "Force resuming from a saved state"),
 
                         new Arguments.StringOption("citations_file", "FILENAME", "Specify a filename to write a citation list to"),
 
+                        new Arguments.StringOption("metrics", "FILENAME", "Specify a filename to write live operator and likelihood metrics to"),
+                        new Arguments.LongOption("metrics_every", 1, Long.MAX_VALUE, "the number of seconds between writes of the metrics file (default 60)"),
+                        new Arguments.Option("metrics_jmx", "Make live operator and likelihood metrics available through JMX"),
+
                         new Arguments.Option("version", "Print the version and credits and stop"),
                         new Arguments.Option("help", "Print this information and stop"),
                 });
@@ -454,12 +533,21 @@ public class BeastMain {
         boolean usingMC3 = false;
         double[] chainTemperatures = null;
         int swapChainsEvery = DEFAULT_SWAP_CHAIN_EVERY;
+        boolean asynchronousMC3 = false;
+        boolean adaptMC3Temperatures = false;
 
         if (arguments.hasOption("particles")) {
             System.setProperty("smc.particle_folder", arguments.getStringOption("particles"));
             usingSMC = true;
 
             System.setProperty("mcmc.evaluation.count", Long.toString(0));
+
+            if (arguments.hasOption("particle_threads")) {
+                System.setProperty("smc.thread_count", Integer.toString(arguments.getIntegerOption("particle_threads")));
+            }
+            if (arguments.hasOption("particle_resample")) {
+                System.setProperty("smc.resample_threshold", Double.toString(arguments.getRealOption("particle_resample")));
+            }
         }
 
         // smc option is always run without GUI.
@@ -522,6 +610,15 @@ public class BeastMain {
                 swapChainsEvery = arguments.getIntegerOption("mc3_swap");
             }
 
+            asynchronousMC3 = arguments.hasOption("mc3_async");
+            adaptMC3Temperatures = arguments.hasOption("mc3_adapt");
+            if (adaptMC3Temperatures && !asynchronousMC3) {
+                System.err.println("The -mc3_adapt option requires -mc3_async");
+                System.err.println();
+                printUsage(arguments);
+                System.exit(1);
+            }
+
             usingMC3 = chainCount > 1;
         }
 
@@ -591,6 +688,10 @@ public class BeastMain {
             System.setProperty("beagle.rescale", Long.toString(arguments.getLongOption("beagle_rescale")));
         }
 
+        if (arguments.hasOption("beagle_matrix_cache")) {
+            System.setProperty("beagle.matrix.cache", Integer.toString(arguments.getIntegerOption("beagle_matrix_cache")));
+        }
+
         if (arguments.hasOption("beagle_multipartition")) {
             // attempt to force the use/non-use of the multipartition extensions, otherwise auto
             if (arguments.getStringOption("beagle_multipartition").toLowerCase().equals("on")) {
@@ -656,6 +757,10 @@ public class BeastMain {
                 System.setProperty(BeastCheckpointer.SAVE_STEM, stemName);
             }
 
+            if (arguments.hasOption("save_binary")) {
+                System.setProperty(BeastCheckpointer.SAVE_STATE_BINARY, Boolean.TRUE.toString());
+            }
+
             if (arguments.hasOption("force_resume")) {
                 System.setProperty("force.resume", Boolean.TRUE.toString());
             }
@@ -665,6 +770,18 @@ public class BeastMain {
                 System.setProperty("citations.filename", debugStateFile);
             }
 
+            if (arguments.hasOption("metrics")) {
+                System.setProperty(MarkovChainMetrics.METRICS_FILE, arguments.getStringOption("metrics"));
+            }
+
+            if (arguments.hasOption("metrics_every")) {
+                System.setProperty(MarkovChainMetrics.METRICS_EVERY, Long.toString(arguments.getLongOption("metrics_every")));
+            }
+
+            if (arguments.hasOption("metrics_jmx")) {
+                System.setProperty(MarkovChainMetrics.METRICS_JMX, Boolean.TRUE.toString());
+            }
+
             if (useMPI) {
                 String[] nullArgs = new String[0];
                 try {
@@ -875,7 +992,7 @@ public class BeastMain {
 
         try {
             new BeastMain(inputFile, consoleApp, maxErrorCount, verbose, warnings, strictXML, additionalParsers,
-                    usingMC3, chainTemperatures, swapChainsEvery);
+                    usingMC3, chainTemperatures, swapChainsEvery, asynchronousMC3, adaptMC3Temperatures);
         } catch (RuntimeException rte) {
             // The stack trace here is not useful
 //            rte.printStackTrace(System.err);
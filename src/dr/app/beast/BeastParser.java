@@ -89,8 +89,16 @@ public class BeastParser extends XMLParser {
                 this.parserWarnings = true; // if dev, then auto turn on, otherwise default to turn off
             }
 
-            // always load release_parsers.properties !!!
-            loadProperties(this.getClass(), RELEASE + PARSER_PROPERTIES_SUFFIX, verbose, this.parserWarnings, false);
+            // use the index built with BEAST (if it is up to date) to create only the parsers the XML uses
+            ParserIndex index = null;
+            if (!verbose && Boolean.parseBoolean(System.getProperty(ParserIndex.USE_PARSER_INDEX, "true"))) {
+                index = ParserIndex.read(this.getClass(), parsers);
+            }
+
+            if (index == null) {
+                // always load release_parsers.properties !!!
+                loadProperties(this.getClass(), RELEASE + PARSER_PROPERTIES_SUFFIX, verbose, this.parserWarnings, false);
+            }
 
             // suppose to load developement_parsers.properties
             if (parsers != null && (!parsers.equalsIgnoreCase(RELEASE))) {
@@ -99,7 +107,13 @@ public class BeastParser extends XMLParser {
                     System.out.println("Loading additional development parsers from " + parsers + PARSER_PROPERTIES_SUFFIX
                             + ", which is additional set of parsers only available for development version ...");
                 }
-                loadProperties(this.getClass(), parsers + PARSER_PROPERTIES_SUFFIX, verbose, this.parserWarnings, true);
+                if (index == null) {
+                    loadProperties(this.getClass(), parsers + PARSER_PROPERTIES_SUFFIX, verbose, this.parserWarnings, true);
+                }
+            }
+
+            if (index != null) {
+                index.addParserLoaders(this);
             }
             // load additional parsers
             if (additionalParsers != null) {
@@ -155,7 +169,9 @@ public class BeastParser extends XMLParser {
                     Class parser = Class.forName(line);
                     if (XMLObjectParser.class.isAssignableFrom(parser)) {
                         // if this class is an XMLObjectParser then create an instance
-                        boolean replaced = addXMLObjectParser((XMLObjectParser) parser.newInstance(), canReplace);
+                        XMLObjectParser instance = (XMLObjectParser) parser.newInstance();
+                        parserSources.put(instance, parser.getName());
+                        boolean replaced = addXMLObjectParser(instance, canReplace);
                         if (verbose) {
                             System.out.println((replaced ? "Replaced" : "Loaded") + " parser: " + parser.getName());
                         } else if (parserWarning && replaced) {
@@ -169,7 +185,9 @@ public class BeastParser extends XMLParser {
                         for (Field field : fields) {
                             if (XMLObjectParser.class.isAssignableFrom(field.getType())) {
                                 try {
-                                    boolean replaced = addXMLObjectParser((XMLObjectParser) field.get(null), canReplace);
+                                    XMLObjectParser instance = (XMLObjectParser) field.get(null);
+                                    parserSources.put(instance, parser.getName() + ParserIndex.FIELD_SEPARATOR + field.getName());
+                                    boolean replaced = addXMLObjectParser(instance, canReplace);
                                     if (verbose) {
                                         System.out.println((replaced ? "Replaced" : "Loaded") + " parser: "
                                                 + parser.getName() + "." + field.getName());
@@ -203,6 +221,14 @@ public class BeastParser extends XMLParser {
         }
     }
 
+    /**
+     * @return the class (and static field) a parser loaded from a properties file came from or null for
+     * any other parser
+     */
+    String getParserSource(XMLObjectParser parser) {
+        return parserSources.get(parser);
+    }
+
     @Override
     protected void executingRunnable() {
         Logger.getLogger("dr.apps.beast").info("\nCitations for this analysis: ");
@@ -262,5 +288,7 @@ public class BeastParser extends XMLParser {
 
         //**************** all other parsers are read at runtime from property lists *********************
     }
+
+    private final Map<XMLObjectParser, String> parserSources = new IdentityHashMap<XMLObjectParser, String>();
 }
 
@@ -0,0 +1,231 @@
+/*
+ * ParserIndex.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beast;
+
+import dr.xml.XMLObjectParser;
+import dr.xml.XMLParser;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * An index from element names to the parser classes (or static parser fields) listed in the parser
+ * properties files, written whenever BEAST is compiled (by the compile-all target of build.xml). With it
+ * BeastParser creates only the parsers an XML file uses instead of loading every parser class at start
+ * up.
+ *
+ * There is one index for each choice of the 'parsers' property (release or development) and it records
+ * a checksum of the properties files it was made from; if any of them has changed since, the index is
+ * ignored and the parsers are loaded from the properties files as before. The checksum doesn't cover
+ * the parsers themselves, which is why the index is written again by every compile rather than only for
+ * a release, so that a renamed element isn't missing from it. It is also ignored if the system property
+ * beast.parser_index is false.
+ */
+public class ParserIndex {
+
+    public static final String USE_PARSER_INDEX = "beast.parser_index";
+    public static final String PARSER_INDEX_SUFFIX = "_parsers.index";
+    public static final String FIELD_SEPARATOR = "#";
+
+    private static final String CHECKSUM = "#checksum";
+
+    private ParserIndex(Map<String, String> sources) {
+        this.sources = sources;
+    }
+
+    /**
+     * Adds a loader for every parser in the index (one for each class or field, shared by its names).
+     */
+    public void addParserLoaders(XMLParser parser) {
+        Map<String, XMLParser.ParserLoader> loaders = new HashMap<String, XMLParser.ParserLoader>();
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
+            XMLParser.ParserLoader loader = loaders.get(entry.getValue());
+            if (loader == null) {
+                loader = new SourceLoader(entry.getValue());
+                loaders.put(entry.getValue(), loader);
+            }
+            parser.addXMLObjectParserLoader(entry.getKey(), loader);
+        }
+    }
+
+    public int getParserNameCount() {
+        return sources.size();
+    }
+
+    /**
+     * @return the class name (followed by FIELD_SEPARATOR and the field name for a static parser) of the
+     * parser for an element name or null if there is none
+     */
+    public String getSource(String parserName) {
+        return sources.get(parserName);
+    }
+
+    /**
+     * Reads the index for the given choice of parsers.
+     *
+     * @return the index or null if there is none, it is out of date or it can't be read
+     */
+    public static ParserIndex read(Class c, String parsers) {
+        final InputStream stream = c.getResourceAsStream(parsers + PARSER_INDEX_SUFFIX);
+        if (stream == null) {
+            return null;
+        }
+
+        Map<String, String> sources = new LinkedHashMap<String, String>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+            String line = reader.readLine();
+            while (line != null) {
+                String[] fields = line.split("\t");
+                if (fields[0].equals(CHECKSUM)) {
+                    if (fields.length != 3 || !Long.toString(getChecksum(c, fields[1])).equals(fields[2])) {
+                        return null;
+                    }
+                } else if (fields.length == 2) {
+                    sources.put(fields[0], fields[1]);
+                }
+                line = reader.readLine();
+            }
+            reader.close();
+        } catch (IOException ioe) {
+            return null;
+        }
+        return new ParserIndex(sources);
+    }
+
+    /**
+     * Writes the index of the parsers a BeastParser has loaded from the properties files.
+     */
+    static void write(BeastParser parser, String parsers, PrintWriter writer) throws IOException {
+        writer.println(CHECKSUM + "\t" + BeastParser.RELEASE + BeastParser.PARSER_PROPERTIES_SUFFIX + "\t" +
+                getChecksum(parser.getClass(), BeastParser.RELEASE + BeastParser.PARSER_PROPERTIES_SUFFIX));
+        if (!parsers.equalsIgnoreCase(BeastParser.RELEASE)) {
+            writer.println(CHECKSUM + "\t" + parsers + BeastParser.PARSER_PROPERTIES_SUFFIX + "\t" +
+                    getChecksum(parser.getClass(), parsers + BeastParser.PARSER_PROPERTIES_SUFFIX));
+        }
+
+        Iterator iterator = parser.getParserNames();
+        while (iterator.hasNext()) {
+            String parserName = (String) iterator.next();
+            String source = parser.getParserSource(parser.getParser(parserName));
+            if (source != null) {
+                writer.println(parserName + "\t" + source);
+            }
+        }
+    }
+
+    // a checksum of a properties file (or -1 if it is missing)
+    private static long getChecksum(Class c, String fileName) throws IOException {
+        final InputStream stream = c.getResourceAsStream(fileName);
+        if (stream == null) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        try {
+            int count = stream.read(buffer);
+            while (count >= 0) {
+                crc.update(buffer, 0, count);
+                count = stream.read(buffer);
+            }
+        } finally {
+            stream.close();
+        }
+        return crc.getValue();
+    }
+
+    private static class SourceLoader implements XMLParser.ParserLoader {
+
+        SourceLoader(String source) {
+            this.source = source;
+        }
+
+        public XMLObjectParser loadParser() {
+            try {
+                int index = source.indexOf(FIELD_SEPARATOR);
+                if (index < 0) {
+                    return (XMLObjectParser) Class.forName(source).newInstance();
+                } else {
+                    Class parser = Class.forName(source.substring(0, index));
+                    return (XMLObjectParser) parser.getDeclaredField(source.substring(index + 1)).get(null);
+                }
+            } catch (Exception e) {
+                System.err.println("\nFailed to load parser: " + e.getMessage());
+                System.err.println("source = " + source + "\n");
+                return null;
+            }
+        }
+
+        private final String source;
+    }
+
+    private final Map<String, String> sources;
+
+    /**
+     * Writes the index for each choice of parsers given (after the output directory) or, given -time and an
+     * XML file, reports how long it takes to create a BeastParser and parse (but not run) the file, and the
+     * number of classes loaded in doing so. The latter is for comparing start up times with and without
+     * the index (-Dbeast.parser_index=false) in separate runs. Any log files of the XML are overwritten.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("-time")) {
+            // the loggers open their files as they are parsed
+            System.setProperty("log.allow.overwrite", "true");
+
+            long start = System.currentTimeMillis();
+            BeastParser parser = new BeastParser(new String[]{args[1]}, null, false, false, false, BeastVersion.INSTANCE);
+            long created = System.currentTimeMillis();
+            parser.parse(new FileReader(args[1]), false);
+            long parsed = System.currentTimeMillis();
+
+            System.out.println("Created parser in " + (created - start) + "ms, parsed " + args[1] + " in " +
+                    (parsed - created) + "ms, " + ManagementFactory.getClassLoadingMXBean().getLoadedClassCount() +
+                    " classes loaded");
+            System.exit(0);
+        }
+
+        if (args.length < 2) {
+            System.err.println("Usage: ParserIndex <output directory> <parsers> [<parsers> ...]");
+            System.err.println("       ParserIndex -time <xml file>");
+            System.exit(1);
+        }
+
+        System.setProperty(USE_PARSER_INDEX, "false");
+        for (int i = 1; i < args.length; i++) {
+            System.setProperty("parsers", args[i]);
+            BeastParser parser = new BeastParser(new String[0], null, false, true, false, BeastVersion.INSTANCE);
+
+            File file = new File(args[0], args[i] + PARSER_INDEX_SUFFIX);
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            write(parser, args[i], writer);
+            writer.close();
+            System.out.println("Wrote " + file);
+        }
+        System.exit(0);
+    }
+}
@@ -60,6 +60,8 @@ public class BeastCheckpointer implements StateLoaderSaver {
     public final static String SAVE_STATE_AT = "save.state.at";
     public final static String SAVE_STATE_EVERY = "save.state.every";
     public final static String SAVE_STEM = "save.state.stem";
+    public final static String SAVE_STATE_BINARY = "save.state.binary";
+    public final static String SAVE_STATE_SNAPSHOT_EVERY = "save.state.snapshot.every";
 
     public final static String FORCE_RESUME = "force.resume";
 
@@ -70,21 +72,39 @@ public class BeastCheckpointer implements StateLoaderSaver {
 
     private boolean forceResume = false;
 
+    // writes the states in the binary snapshot + delta format if requested
+    private final BinaryCheckpointWriter binaryWriter;
+
     public BeastCheckpointer() {
         loadStateFileName = System.getProperty(LOAD_STATE_FILE, null);
         saveStateFileName = System.getProperty(SAVE_STATE_FILE, null);
 
         stemFileName = System.getProperty(SAVE_STEM, null);
 
+        if (Boolean.parseBoolean(System.getProperty(SAVE_STATE_BINARY))) {
+            int snapshotEvery = Integer.parseInt(System.getProperty(SAVE_STATE_SNAPSHOT_EVERY, "100"));
+            binaryWriter = new BinaryCheckpointWriter(snapshotEvery);
+            // the writing is done in the background so make sure the last state gets to the disk
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    if (!binaryWriter.close()) {
+                        System.err.println("Unable to write the last checkpoint");
+                    }
+                }
+            });
+        } else {
+            binaryWriter = null;
+        }
+
         final List<MarkovChainListener> listeners = new ArrayList<MarkovChainListener>();
 
         if (System.getProperty(SAVE_STATE_AT) != null) {
             final long saveStateAt = Long.parseLong(System.getProperty(SAVE_STATE_AT));
-            listeners.add(new StateSaverChainListener(BeastCheckpointer.this, saveStateAt,false));
+            listeners.add(createStateSaverChainListener(saveStateAt, false));
         }
         if (System.getProperty(SAVE_STATE_EVERY) != null) {
             final long saveStateEvery = Long.parseLong(System.getProperty(SAVE_STATE_EVERY));
-            listeners.add(new StateSaverChainListener(BeastCheckpointer.this, saveStateEvery,true));
+            listeners.add(createStateSaverChainListener(saveStateEvery, true));
         }
 
         Factory.INSTANCE = new Factory() {
@@ -122,10 +142,43 @@ public class BeastCheckpointer implements StateLoaderSaver {
                     }
                 };
             }
+
+            @Override
+            public StateCopier getStateCopier(List<Parameter> parameters, List<Model> models) {
+                final List<Parameter> copierParameters =
+                        (parameters != null ? parameters : CheckpointState.getParameters());
+                final List<Model> copierModels =
+                        (models != null ? models : new ArrayList<Model>(Model.CONNECTED_MODEL_SET));
+
+                return new StateCopier() {
+                    @Override
+                    public SavedState saveState(MarkovChain markovChain, long state, double lnL) {
+                        return CheckpointState.capture(state, lnL, markovChain, copierParameters, copierModels);
+                    }
+
+                    @Override
+                    public void loadState(MarkovChain markovChain, SavedState savedState) {
+                        ((CheckpointState) savedState).restore(markovChain, copierParameters, copierModels);
+                    }
+                };
+            }
         };
 
     }
 
+    private StateSaverChainListener createStateSaverChainListener(long writeState, boolean isRepeating) {
+        return new StateSaverChainListener(this, writeState, isRepeating) {
+            @Override
+            public void finished(long chainLength, MarkovChain markovChain) {
+                super.finished(chainLength, markovChain);
+                // the last state is written in the background so wait for it to know that it got to the disk
+                if (binaryWriter != null && !binaryWriter.flush()) {
+                    System.err.println("Unable to write the final checkpoint at state " + chainLength);
+                }
+            }
+        };
+    }
+
     private BeastCheckpointer getStateLoaderObject() {
         return this;
     }
@@ -218,6 +271,11 @@ public class BeastCheckpointer implements StateLoaderSaver {
     }
 
     protected boolean writeStateToFile(File file, long state, double lnL, MarkovChain markovChain) {
+        if (binaryWriter != null) {
+            // only the copying of the state is done on the chain thread
+            return binaryWriter.write(file, CheckpointState.capture(state, lnL, markovChain));
+        }
+
         OperatorSchedule operatorSchedule = markovChain.getSchedule();
 
         OutputStream fileOut = null;
@@ -362,6 +420,14 @@ public class BeastCheckpointer implements StateLoaderSaver {
     }
 
     protected long readStateFromFile(File file, MarkovChain markovChain, double[] lnL) {
+        try {
+            if (BinaryCheckpointReader.isBinaryCheckpoint(file)) {
+                return readBinaryStateFromFile(file, markovChain, lnL);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read file: " + ioe.getMessage());
+        }
+
         OperatorSchedule operatorSchedule = markovChain.getSchedule();
 
         long state = -1;
@@ -661,4 +727,28 @@ public class BeastCheckpointer implements StateLoaderSaver {
         return state;
     }
 
+    /**
+     * Loads a state saved with the binary format by replaying the snapshot and deltas.
+     */
+    protected long readBinaryStateFromFile(File file, MarkovChain markovChain, double[] lnL) {
+        CheckpointState checkpoint;
+        try {
+            checkpoint = BinaryCheckpointReader.read(file);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read file: " + ioe.getMessage());
+        }
+
+        if (lnL != null) {
+            lnL[0] = checkpoint.getLnL();
+        }
+
+        checkpoint.restore(markovChain, CheckpointState.getParameters(), new ArrayList<Model>(Model.CONNECTED_MODEL_SET));
+
+        if (checkpoint.getRngState() != null) {
+            MathUtils.setRandomState(checkpoint.getRngState());
+        }
+
+        return checkpoint.getState();
+    }
+
 }
@@ -0,0 +1,233 @@
+/*
+ * BinaryCheckpointReader.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.checkpoint;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Reads a checkpoint written by BinaryCheckpointWriter by replaying the snapshot and all the deltas
+ * that follow it. A final record that was only partly written is ignored.
+ */
+public class BinaryCheckpointReader {
+
+    /**
+     * @return true if the file starts with the binary checkpoint magic number
+     */
+    public static boolean isBinaryCheckpoint(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] magic = new byte[BinaryCheckpointWriter.MAGIC.length];
+            in.readFully(magic);
+            return Arrays.equals(magic, BinaryCheckpointWriter.MAGIC);
+        } catch (EOFException eofe) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static CheckpointState read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            byte[] magic = new byte[BinaryCheckpointWriter.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, BinaryCheckpointWriter.MAGIC)) {
+                throw new IOException("not a binary checkpoint file");
+            }
+            int version = in.readInt();
+            if (version != BinaryCheckpointWriter.VERSION) {
+                throw new IOException("unsupported binary checkpoint version: " + version);
+            }
+
+            BinaryCheckpointReader reader = new BinaryCheckpointReader();
+            int recordCount = 0;
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException eofe) {
+                    // either the end of the file or an incomplete record from an interrupted save
+                    break;
+                }
+                reader.readRecord(new DataInputStream(new ByteArrayInputStream(record)), recordCount == 0);
+                recordCount++;
+            }
+
+            if (recordCount == 0) {
+                throw new IOException("no complete state in binary checkpoint file");
+            }
+
+            return reader.getState();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readRecord(DataInputStream in, boolean isFirst) throws IOException {
+        byte type = in.readByte();
+        if (isFirst && type != BinaryCheckpointWriter.SNAPSHOT) {
+            throw new IOException("binary checkpoint file doesn't start with a snapshot");
+        }
+
+        readHeader(in);
+
+        if (type == BinaryCheckpointWriter.SNAPSHOT) {
+            int parameterCount = in.readInt();
+            parameterNames = new String[parameterCount];
+            parameterValues = new double[parameterCount][];
+            for (int i = 0; i < parameterCount; i++) {
+                parameterNames[i] = in.readUTF();
+                parameterValues[i] = readValues(in);
+            }
+
+            int treeCount = in.readInt();
+            treeNames = new String[treeCount];
+            taxa = new String[treeCount][];
+            parents = new int[treeCount][];
+            childOrder = new int[treeCount][];
+            heights = new double[treeCount][];
+            traitValues = new double[treeCount][][];
+            for (int i = 0; i < treeCount; i++) {
+                treeNames[i] = in.readUTF();
+                int nodeCount = in.readInt();
+                int traitCount = in.readInt();
+                taxa[i] = new String[in.readInt()];
+                for (int j = 0; j < taxa[i].length; j++) {
+                    taxa[i][j] = in.readUTF();
+                }
+                parents[i] = new int[nodeCount];
+                childOrder[i] = new int[nodeCount];
+                heights[i] = new double[nodeCount];
+                traitValues[i] = new double[traitCount][nodeCount];
+                for (int node = 0; node < nodeCount; node++) {
+                    readNode(in, i, node);
+                }
+            }
+
+        } else if (type == BinaryCheckpointWriter.DELTA) {
+            int changedParameters = in.readInt();
+            for (int k = 0; k < changedParameters; k++) {
+                int i = in.readInt();
+                byte encoding = in.readByte();
+                if (encoding == BinaryCheckpointWriter.CHANGED_VALUES) {
+                    int changes = in.readInt();
+                    for (int j = 0; j < changes; j++) {
+                        int dim = in.readInt();
+                        parameterValues[i][dim] = in.readDouble();
+                    }
+                } else {
+                    parameterValues[i] = readValues(in);
+                }
+            }
+
+            for (int i = 0; i < treeNames.length; i++) {
+                int changedNodes = in.readInt();
+                for (int k = 0; k < changedNodes; k++) {
+                    readNode(in, i, in.readInt());
+                }
+            }
+        } else {
+            throw new IOException("unknown record type in binary checkpoint file: " + type);
+        }
+    }
+
+    private void readHeader(DataInputStream in) throws IOException {
+        state = in.readLong();
+        lnL = in.readDouble();
+
+        int rngLength = in.readInt();
+        if (rngLength >= 0) {
+            rngState = new int[rngLength];
+            for (int i = 0; i < rngLength; i++) {
+                rngState[i] = in.readInt();
+            }
+        } else {
+            rngState = null;
+        }
+
+        int operatorCount = in.readInt();
+        operatorNames = new String[operatorCount];
+        acceptCounts = new long[operatorCount];
+        rejectCounts = new long[operatorCount];
+        adaptableParameters = new double[operatorCount];
+        for (int i = 0; i < operatorCount; i++) {
+            operatorNames[i] = in.readUTF();
+            acceptCounts[i] = in.readLong();
+            rejectCounts[i] = in.readLong();
+            adaptableParameters[i] = in.readDouble();
+        }
+    }
+
+    private static double[] readValues(DataInputStream in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    private void readNode(DataInputStream in, int tree, int node) throws IOException {
+        parents[tree][node] = in.readInt();
+        childOrder[tree][node] = in.readByte();
+        heights[tree][node] = in.readDouble();
+        for (int j = 0; j < traitValues[tree].length; j++) {
+            traitValues[tree][j][node] = in.readDouble();
+        }
+    }
+
+    private CheckpointState getState() {
+        CheckpointState.TreeState[] trees = new CheckpointState.TreeState[treeNames.length];
+        for (int i = 0; i < trees.length; i++) {
+            trees[i] = new CheckpointState.TreeState(treeNames[i], taxa[i], parents[i], childOrder[i], heights[i],
+                    traitValues[i]);
+        }
+        return new CheckpointState(state, lnL, rngState, operatorNames, acceptCounts, rejectCounts,
+                adaptableParameters, parameterNames, parameterValues, trees);
+    }
+
+    private long state;
+    private double lnL;
+    private int[] rngState;
+
+    private String[] operatorNames;
+    private long[] acceptCounts;
+    private long[] rejectCounts;
+    private double[] adaptableParameters;
+
+    private String[] parameterNames;
+    private double[][] parameterValues;
+
+    private String[] treeNames;
+    private String[][] taxa;
+    private int[][] parents;
+    private int[][] childOrder;
+    private double[][] heights;
+    private double[][][] traitValues;
+}
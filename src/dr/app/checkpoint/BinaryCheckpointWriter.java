@@ -0,0 +1,356 @@
+/*
+ * BinaryCheckpointWriter.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.checkpoint;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.*;
+
+/**
+ * Writes checkpoints in a binary format made up of a full snapshot followed by append-only deltas
+ * containing only the parameter values and tree nodes that changed since the previous save.
+ *
+ * The file starts with a magic number and version and then a sequence of length-prefixed records, so
+ * a record that was only partly written (e.g., the job was killed) is ignored when loading. A new
+ * snapshot is written (to a temporary file that then replaces the old one) when saving to a different
+ * file, when the shape of the state has changed, or every snapshotEvery saves to bound the replay.
+ *
+ * The encoding and I/O happen on a background thread. Only one write is ever pending: a save waits for
+ * the previous one to finish so the memory used is bounded to two copies of the state.
+ */
+public class BinaryCheckpointWriter {
+
+    static final byte[] MAGIC = { 'B', 'E', 'A', 'S', 'T', 'C', 'K', 'P' };
+    static final int VERSION = 1;
+
+    static final byte SNAPSHOT = 1;
+    static final byte DELTA = 2;
+
+    static final byte ALL_VALUES = 0;
+    static final byte CHANGED_VALUES = 1;
+
+    public BinaryCheckpointWriter(int snapshotEvery) {
+        this.snapshotEvery = snapshotEvery;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "checkpoint-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues the state to be written to the file. Whether this write succeeds is only known once it has
+     * finished, which is reported by the next call to write, flush or close.
+     * @return false if the previous write failed
+     */
+    public boolean write(final File file, final CheckpointState state) {
+        boolean success = flush();
+
+        pending = executor.submit(new Callable<Boolean>() {
+            public Boolean call() {
+                try {
+                    writeState(file, state);
+                    return true;
+                } catch (IOException ioe) {
+                    System.err.println("Unable to write file: " + ioe.getMessage());
+                    // start again with a snapshot next time
+                    previousFile = null;
+                    previousState = null;
+                    return false;
+                }
+            }
+        });
+
+        return success;
+    }
+
+    /**
+     * Waits for any pending write to finish.
+     * @return false if it failed
+     */
+    public boolean flush() {
+        if (pending != null) {
+            try {
+                return pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                System.err.println("Unable to write checkpoint: " + e.getCause().getMessage());
+                return false;
+            } finally {
+                pending = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for any pending write to finish and stops the background thread.
+     * @return false if the pending write failed
+     */
+    public boolean close() {
+        boolean success = flush();
+        executor.shutdown();
+        return success;
+    }
+
+    private void writeState(File file, CheckpointState state) throws IOException {
+        if (file.equals(previousFile) && previousState != null && savesSinceSnapshot < snapshotEvery &&
+                isCompatible(previousState, state)) {
+            byte[] record = encodeDelta(previousState, state);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            writeRecord(out, record);
+            out.close();
+            savesSinceSnapshot++;
+        } else {
+            byte[] record = encodeSnapshot(state);
+            File tempFile = new File(file.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            writeRecord(out, record);
+            out.close();
+            replaceFile(tempFile, file);
+            savesSinceSnapshot = 0;
+        }
+        previousFile = file;
+        previousState = state;
+    }
+
+    /**
+     * Moves the new file over the old one in one step where the file system allows, so that a crash
+     * leaves either the old checkpoint or the new one and never neither.
+     */
+    private static void replaceFile(File source, File target) throws IOException {
+        try {
+            try {
+                Files.move(source.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ioe) {
+            throw new IOException("unable to replace " + target.getName() + " with " + source.getName() +
+                    ": " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.write(record);
+    }
+
+    private static boolean isCompatible(CheckpointState previous, CheckpointState state) {
+        if (previous.getParameterCount() != state.getParameterCount() ||
+                previous.getOperatorCount() != state.getOperatorCount() ||
+                previous.getTreeCount() != state.getTreeCount()) {
+            return false;
+        }
+        for (int i = 0; i < state.getTreeCount(); i++) {
+            if (previous.getTree(i).getNodeCount() != state.getTree(i).getNodeCount() ||
+                    previous.getTree(i).getTraitCount() != state.getTree(i).getTraitCount()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] encodeSnapshot(CheckpointState state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(SNAPSHOT);
+        writeHeader(out, state);
+
+        out.writeInt(state.getParameterCount());
+        for (int i = 0; i < state.getParameterCount(); i++) {
+            out.writeUTF(state.getParameterName(i));
+            writeValues(out, state.getParameterValues(i));
+        }
+
+        out.writeInt(state.getTreeCount());
+        for (int i = 0; i < state.getTreeCount(); i++) {
+            CheckpointState.TreeState tree = state.getTree(i);
+            out.writeUTF(tree.getName());
+            out.writeInt(tree.getNodeCount());
+            out.writeInt(tree.getTraitCount());
+            out.writeInt(tree.getTaxa().length);
+            for (String taxon : tree.getTaxa()) {
+                out.writeUTF(taxon);
+            }
+            for (int node = 0; node < tree.getNodeCount(); node++) {
+                writeNode(out, tree, node);
+            }
+        }
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static byte[] encodeDelta(CheckpointState previous, CheckpointState state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeByte(DELTA);
+        writeHeader(out, state);
+
+        int changedParameters = 0;
+        for (int i = 0; i < state.getParameterCount(); i++) {
+            if (countChanges(previous.getParameterValues(i), state.getParameterValues(i)) > 0) {
+                changedParameters++;
+            }
+        }
+        out.writeInt(changedParameters);
+        for (int i = 0; i < state.getParameterCount(); i++) {
+            double[] oldValues = previous.getParameterValues(i);
+            double[] values = state.getParameterValues(i);
+            int changes = countChanges(oldValues, values);
+            if (changes > 0) {
+                out.writeInt(i);
+                // a (dimension, value) pair takes 12 bytes so only worth it if few have changed
+                if (oldValues.length == values.length && changes * 12 < values.length * 8) {
+                    out.writeByte(CHANGED_VALUES);
+                    out.writeInt(changes);
+                    for (int dim = 0; dim < values.length; dim++) {
+                        if (!isSame(oldValues[dim], values[dim])) {
+                            out.writeInt(dim);
+                            out.writeDouble(values[dim]);
+                        }
+                    }
+                } else {
+                    out.writeByte(ALL_VALUES);
+                    writeValues(out, values);
+                }
+            }
+        }
+
+        for (int i = 0; i < state.getTreeCount(); i++) {
+            CheckpointState.TreeState oldTree = previous.getTree(i);
+            CheckpointState.TreeState tree = state.getTree(i);
+
+            int changedNodes = 0;
+            for (int node = 0; node < tree.getNodeCount(); node++) {
+                if (hasNodeChanged(oldTree, tree, node)) {
+                    changedNodes++;
+                }
+            }
+            out.writeInt(changedNodes);
+            for (int node = 0; node < tree.getNodeCount(); node++) {
+                if (hasNodeChanged(oldTree, tree, node)) {
+                    out.writeInt(node);
+                    writeNode(out, tree, node);
+                }
+            }
+        }
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeHeader(DataOutputStream out, CheckpointState state) throws IOException {
+        out.writeLong(state.getState());
+        out.writeDouble(state.getLnL());
+
+        int[] rngState = state.getRngState();
+        out.writeInt(rngState != null ? rngState.length : -1);
+        if (rngState != null) {
+            for (int value : rngState) {
+                out.writeInt(value);
+            }
+        }
+
+        // the operators are few and most of their counts will have changed so they are always written
+        out.writeInt(state.getOperatorCount());
+        for (int i = 0; i < state.getOperatorCount(); i++) {
+            out.writeUTF(state.getOperatorName(i));
+            out.writeLong(state.getAcceptCount(i));
+            out.writeLong(state.getRejectCount(i));
+            out.writeDouble(state.getAdaptableParameter(i));
+        }
+    }
+
+    private static void writeValues(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static void writeNode(DataOutputStream out, CheckpointState.TreeState tree, int node) throws IOException {
+        out.writeInt(tree.getParents()[node]);
+        out.writeByte(tree.getChildOrder()[node]);
+        out.writeDouble(tree.getHeights()[node]);
+        for (double[] traitValues : tree.getTraitValues()) {
+            out.writeDouble(traitValues[node]);
+        }
+    }
+
+    private static int countChanges(double[] oldValues, double[] values) {
+        if (oldValues.length != values.length) {
+            return values.length;
+        }
+        int changes = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (!isSame(oldValues[i], values[i])) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    private static boolean hasNodeChanged(CheckpointState.TreeState oldTree, CheckpointState.TreeState tree, int node) {
+        if (oldTree.getParents()[node] != tree.getParents()[node] ||
+                oldTree.getChildOrder()[node] != tree.getChildOrder()[node] ||
+                !isSame(oldTree.getHeights()[node], tree.getHeights()[node])) {
+            return true;
+        }
+        for (int j = 0; j < tree.getTraitCount(); j++) {
+            if (!isSame(oldTree.getTraitValues()[j][node], tree.getTraitValues()[j][node])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // compare the bits so that NaNs don't count as changes
+    private static boolean isSame(double value1, double value2) {
+        return Double.doubleToLongBits(value1) == Double.doubleToLongBits(value2);
+    }
+
+    private final int snapshotEvery;
+    private final ExecutorService executor;
+    private Future<Boolean> pending = null;
+
+    // only accessed from the writer thread
+    private File previousFile = null;
+    private CheckpointState previousState = null;
+    private int savesSinceSnapshot = 0;
+}
@@ -0,0 +1,396 @@
+/*
+ * CheckpointState.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.checkpoint;
+
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodel.tree.TreeParameterModel;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.operators.AdaptableMCMCOperator;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.state.SavedState;
+import dr.math.MathUtils;
+
+import java.util.*;
+
+/**
+ * A copy of everything that is written to a checkpoint: the random number generator, the operators,
+ * all the parameters and the tree structures. Capturing this is a plain copy of primitive arrays so
+ * it can be done quickly on the chain thread and written out elsewhere.
+ */
+public class CheckpointState implements SavedState {
+
+    public CheckpointState(long state, double lnL, int[] rngState,
+                           String[] operatorNames, long[] acceptCounts, long[] rejectCounts,
+                           double[] adaptableParameters,
+                           String[] parameterNames, double[][] parameterValues,
+                           TreeState[] trees) {
+        this.state = state;
+        this.lnL = lnL;
+        this.rngState = rngState;
+        this.operatorNames = operatorNames;
+        this.acceptCounts = acceptCounts;
+        this.rejectCounts = rejectCounts;
+        this.adaptableParameters = adaptableParameters;
+        this.parameterNames = parameterNames;
+        this.parameterValues = parameterValues;
+        this.trees = trees;
+    }
+
+    /**
+     * Copies the current state of the chain. The parameters, operators and trees are taken in the same
+     * order as BeastCheckpointer uses for the tab-delimited format.
+     */
+    public static CheckpointState capture(long state, double lnL, MarkovChain markovChain) {
+        return capture(state, lnL, markovChain, getParameters(), new ArrayList<Model>(Model.CONNECTED_MODEL_SET));
+    }
+
+    /**
+     * Copies the current state of the chain given the parameters and models that make up its model.
+     */
+    public static CheckpointState capture(long state, double lnL, MarkovChain markovChain,
+                                          List<Parameter> parameters, Collection<Model> models) {
+        OperatorSchedule schedule = markovChain.getSchedule();
+
+        int operatorCount = schedule.getOperatorCount();
+        String[] operatorNames = new String[operatorCount];
+        long[] acceptCounts = new long[operatorCount];
+        long[] rejectCounts = new long[operatorCount];
+        double[] adaptableParameters = new double[operatorCount];
+        for (int i = 0; i < operatorCount; i++) {
+            MCMCOperator operator = schedule.getOperator(i);
+            operatorNames[i] = operator.getOperatorName();
+            acceptCounts[i] = operator.getAcceptCount();
+            rejectCounts[i] = operator.getRejectCount();
+            adaptableParameters[i] = operator instanceof AdaptableMCMCOperator ?
+                    ((AdaptableMCMCOperator) operator).getAdaptableParameter() : Double.NaN;
+        }
+
+        String[] parameterNames = new String[parameters.size()];
+        double[][] parameterValues = new double[parameters.size()][];
+        for (int i = 0; i < parameterNames.length; i++) {
+            Parameter parameter = parameters.get(i);
+            parameterNames[i] = parameter.getParameterName();
+            // copied value by value as some parameters hand out their own storage
+            double[] values = new double[parameter.getDimension()];
+            for (int dim = 0; dim < values.length; dim++) {
+                values[dim] = parameter.getParameterValue(dim);
+            }
+            parameterValues[i] = values;
+        }
+
+        List<TreeState> trees = new ArrayList<TreeState>();
+        for (Model model : models) {
+            if (model instanceof TreeModel) {
+                trees.add(TreeState.capture((TreeModel) model, getTraitModels((TreeModel) model, models)));
+            }
+        }
+
+        return new CheckpointState(state, lnL, MathUtils.getRandomState(),
+                operatorNames, acceptCounts, rejectCounts, adaptableParameters,
+                parameterNames, parameterValues, trees.toArray(new TreeState[trees.size()]));
+    }
+
+    /**
+     * @return the parameters that are stored in a checkpoint (all the mutable connected ones)
+     */
+    public static List<Parameter> getParameters() {
+        List<Parameter> parameters = new ArrayList<Parameter>();
+        for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+            if (!parameter.isImmutable()) {
+                parameters.add(parameter);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * @return the TreeParameterModels that belong to the given tree
+     */
+    public static ArrayList<TreeParameterModel> getTraitModels(TreeModel treeModel) {
+        return getTraitModels(treeModel, Model.CONNECTED_MODEL_SET);
+    }
+
+    /**
+     * @return the TreeParameterModels amongst the models that belong to the given tree
+     */
+    public static ArrayList<TreeParameterModel> getTraitModels(TreeModel treeModel, Collection<Model> models) {
+        ArrayList<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+        for (Model model : models) {
+            if (model instanceof TreeParameterModel && ((TreeParameterModel) model).getTreeModel() == treeModel) {
+                traitModels.add((TreeParameterModel) model);
+            }
+        }
+        return traitModels;
+    }
+
+    /**
+     * Sets the parameters, operators and trees of the chain to this state (but not the random number
+     * generator). The parameters must be in the same order as when it was captured and the trees are
+     * matched by name.
+     */
+    public void restore(MarkovChain markovChain, List<Parameter> parameters, Collection<Model> models) {
+        if (parameters.size() != getParameterCount()) {
+            throw new RuntimeException("Unable to match state parameters: found " + getParameterCount() +
+                    ", expecting " + parameters.size());
+        }
+        for (int i = 0; i < parameters.size(); i++) {
+            Parameter parameter = parameters.get(i);
+            double[] values = getParameterValues(i);
+            if (values.length != parameter.getDimension()) {
+                System.err.println("Unable to match state parameter dimension: " + values.length + ", expecting " +
+                        parameter.getDimension() + " for parameter: " + parameter.getParameterName());
+            }
+            if (parameter.getParameterName().equals("branchRates.categories.rootNodeNumber")) {
+                parameter.setParameterValue(0, values[0]);
+            } else {
+                for (int dim = 0; dim < Math.min(values.length, parameter.getDimension()); dim++) {
+                    parameter.setParameterValue(dim, values[dim]);
+                }
+            }
+        }
+
+        OperatorSchedule operatorSchedule = markovChain.getSchedule();
+        if (operatorSchedule.getOperatorCount() != getOperatorCount()) {
+            throw new RuntimeException("Unable to match operators: found " + getOperatorCount() +
+                    ", expecting " + operatorSchedule.getOperatorCount());
+        }
+        for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            if (!getOperatorName(i).equals(operator.getOperatorName())) {
+                throw new RuntimeException("Unable to match operator: " + getOperatorName(i));
+            }
+            operator.setAcceptCount(getAcceptCount(i));
+            operator.setRejectCount(getRejectCount(i));
+            if (operator instanceof AdaptableMCMCOperator) {
+                ((AdaptableMCMCOperator)operator).setAdaptableParameter(getAdaptableParameter(i));
+            }
+        }
+
+        // load the tree models last as we get the node heights from the tree (not the parameters which
+        // which may not be associated with the right node
+        Set<String> expectedTreeModelNames = new HashSet<String>();
+        for (Model model : models) {
+            if (model instanceof TreeModel) {
+                expectedTreeModelNames.add(model.getModelName());
+            }
+        }
+
+        for (int i = 0; i < getTreeCount(); i++) {
+            TreeState tree = getTree(i);
+            for (Model model : models) {
+                if (model instanceof TreeModel && tree.getName().equals(model.getModelName())) {
+                    TreeModel treeModel = (TreeModel) model;
+                    ArrayList<TreeParameterModel> traitModels = getTraitModels(treeModel, models);
+
+                    treeModel.beginTreeEdit();
+                    treeModel.adoptTreeStructure(tree.getParents(), tree.getHeights(), tree.getChildOrder(), tree.getTaxa());
+                    if (traitModels.size() > 0) {
+                        treeModel.adoptTraitData(tree.getParents(), traitModels, tree.getTraitValues(), tree.getTaxa());
+                    }
+                    treeModel.endTreeEdit();
+
+                    expectedTreeModelNames.remove(model.getModelName());
+                }
+            }
+        }
+
+        if (expectedTreeModelNames.size() > 0) {
+            StringBuilder sb = new StringBuilder();
+            for (String notFoundName : expectedTreeModelNames) {
+                sb.append("Expecting, but unable to match state parameter:" + notFoundName + "\n");
+            }
+            throw new RuntimeException("\n" + sb.toString());
+        }
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    public double getLnL() {
+        return lnL;
+    }
+
+    public int[] getRngState() {
+        return rngState;
+    }
+
+    public int getOperatorCount() {
+        return operatorNames.length;
+    }
+
+    public String getOperatorName(int i) {
+        return operatorNames[i];
+    }
+
+    public long getAcceptCount(int i) {
+        return acceptCounts[i];
+    }
+
+    public long getRejectCount(int i) {
+        return rejectCounts[i];
+    }
+
+    /**
+     * @return the adaptable parameter of the operator or NaN if it is not adaptable
+     */
+    public double getAdaptableParameter(int i) {
+        return adaptableParameters[i];
+    }
+
+    public int getParameterCount() {
+        return parameterNames.length;
+    }
+
+    public String getParameterName(int i) {
+        return parameterNames[i];
+    }
+
+    public double[] getParameterValues(int i) {
+        return parameterValues[i];
+    }
+
+    public int getTreeCount() {
+        return trees.length;
+    }
+
+    public TreeState getTree(int i) {
+        return trees[i];
+    }
+
+    /**
+     * The structure of a tree as parent indices, child order, node heights and the values of the
+     * TreeParameterModels associated with the tree.
+     */
+    public static class TreeState {
+
+        public TreeState(String name, String[] taxa, int[] parents, int[] childOrder, double[] heights,
+                         double[][] traitValues) {
+            this.name = name;
+            this.taxa = taxa;
+            this.parents = parents;
+            this.childOrder = childOrder;
+            this.heights = heights;
+            this.traitValues = traitValues;
+        }
+
+        static TreeState capture(TreeModel tree, List<TreeParameterModel> traitModels) {
+            int nodeCount = tree.getNodeCount();
+
+            String[] taxa = new String[tree.getExternalNodeCount()];
+            int[] parents = new int[nodeCount];
+            int[] childOrder = new int[nodeCount];
+            double[] heights = new double[nodeCount];
+            double[][] traitValues = new double[traitModels.size()][nodeCount];
+
+            for (int i = 0; i < nodeCount; i++) {
+                NodeRef node = tree.getNode(i);
+                int number = node.getNumber();
+                heights[number] = tree.getNodeHeight(node);
+                if (tree.isExternal(node)) {
+                    taxa[number] = tree.getNodeTaxon(node).getId();
+                }
+
+                NodeRef parent = tree.getParent(node);
+                if (parent != null) {
+                    parents[number] = parent.getNumber();
+                    if (tree.getChild(parent, 0) == node) {
+                        childOrder[number] = 0;
+                    } else if (tree.getChild(parent, 1) == node) {
+                        childOrder[number] = 1;
+                    } else {
+                        throw new RuntimeException("Operation currently only supported for nodes with 2 children.");
+                    }
+                    for (int j = 0; j < traitModels.size(); j++) {
+                        traitValues[j][number] = traitModels.get(j).getNodeValue(tree, node);
+                    }
+                } else {
+                    parents[number] = -1;
+                    childOrder[number] = -1;
+                }
+            }
+
+            return new TreeState(tree.getModelName(), taxa, parents, childOrder, heights, traitValues);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getNodeCount() {
+            return heights.length;
+        }
+
+        public String[] getTaxa() {
+            return taxa;
+        }
+
+        public int[] getParents() {
+            return parents;
+        }
+
+        public int[] getChildOrder() {
+            return childOrder;
+        }
+
+        public double[] getHeights() {
+            return heights;
+        }
+
+        public int getTraitCount() {
+            return traitValues.length;
+        }
+
+        public double[][] getTraitValues() {
+            return traitValues;
+        }
+
+        private final String name;
+        private final String[] taxa;
+        private final int[] parents;
+        private final int[] childOrder;
+        private final double[] heights;
+        private final double[][] traitValues;
+    }
+
+    private final long state;
+    private final double lnL;
+    private final int[] rngState;
+
+    private final String[] operatorNames;
+    private final long[] acceptCounts;
+    private final long[] rejectCounts;
+    private final double[] adaptableParameters;
+
+    private final String[] parameterNames;
+    private final double[][] parameterValues;
+
+    private final TreeState[] trees;
+}
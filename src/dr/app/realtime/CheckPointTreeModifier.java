@@ -41,6 +41,8 @@ import dr.inference.model.Likelihood;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Guy Baele
@@ -416,11 +418,21 @@ public class CheckPointTreeModifier {
         //set the patterns for the distance matrix computations
         choice.setPatterns(patterns);
 
+        //index the current taxa and find the closest of them to each new taxon, in parallel
+        int[] newTaxaIndices = new int[newTaxaNodes.size()];
+        for (int i = 0; i < newTaxaIndices.length; i++) {
+            newTaxaIndices[i] = choice.getMatrix().getTaxonIndex(treeModel.getNodeTaxon(newTaxaNodes.get(i)));
+        }
+        int[] closestCurrentTaxa = getClosestTaxa(choice.createIndex(patterns, currentTaxa), newTaxaIndices);
+        //the new taxa are indexed as they are added
+        NearestTaxonIndex addedTaxaIndex = choice.createIndex(patterns, new ArrayList<Taxon>());
+
         //add new taxa one at a time
         System.out.println("Adding " + newTaxaNodes.size() + " taxa ...");
 
         if (CURRENT_APPROACH) {
-            for (NodeRef newTaxon : newTaxaNodes) {
+            for (int newTaxonNumber = 0; newTaxonNumber < newTaxaNodes.size(); newTaxonNumber++) {
+                NodeRef newTaxon = newTaxaNodes.get(newTaxonNumber);
                 treeModel.setNodeHeight(newTaxon, treeModel.getNodeTaxon(newTaxon).getHeight());
                 System.out.println("\nadding Taxon: " + newTaxon + " (height = " + treeModel.getNodeHeight(newTaxon) + ")");
                 //check if this taxon has a more recent sampling date than all other nodes in the current TreeModel
@@ -440,8 +452,22 @@ public class CheckPointTreeModifier {
                     }
                 }
                 //get the closest Taxon to the Taxon that needs to be added
-                //take into account which taxa can currently be chosen
-                Taxon closest = choice.getClosestTaxon(treeModel.getNodeTaxon(newTaxon), currentTaxa);
+                //take into account which taxa can currently be chosen (the current taxa and those added so far)
+                int taxonIndex = newTaxaIndices[newTaxonNumber];
+                int closestIndex = closestCurrentTaxa[newTaxonNumber];
+                int closestAdded = addedTaxaIndex.getClosest(taxonIndex);
+                if (closestAdded >= 0) {
+                    if (closestIndex < 0) {
+                        closestIndex = closestAdded;
+                    } else {
+                        double currentDistance = addedTaxaIndex.getDistance(taxonIndex, closestIndex);
+                        double addedDistance = addedTaxaIndex.getDistance(taxonIndex, closestAdded);
+                        if (addedDistance < currentDistance || (addedDistance == currentDistance && closestAdded < closestIndex)) {
+                            closestIndex = closestAdded;
+                        }
+                    }
+                }
+                Taxon closest = choice.getMatrix().getTaxon(closestIndex < 0 ? 0 : closestIndex);
                 System.out.println("\nclosest Taxon: " + closest + " with original height: " + closest.getHeight());
                 //get the distance between these two taxa
                 double distance = choice.getDistance(treeModel.getNodeTaxon(newTaxon), closest);
@@ -524,6 +550,7 @@ public class CheckPointTreeModifier {
                 System.out.println("\nTree after adding taxon " + newTaxon + ":\n" + treeModel.toString());
                 //add newly added Taxon to list of current taxa
                 currentTaxa.add(treeModel.getNodeTaxon(newTaxon));
+                addedTaxaIndex.add(taxonIndex);
             }
         } else {
 
@@ -537,6 +564,52 @@ public class CheckPointTreeModifier {
         return newTaxaNodes;
     }
 
+    /**
+     * Finds the closest taxon in an index to each of the given taxa, on as many threads as there are processors.
+     * @param index The index of the taxa to choose from
+     * @param taxa The indices of the taxa to find the closest to
+     * @return The index of the closest taxon to each (or -1 if the index has none)
+     */
+    private int[] getClosestTaxa(final NearestTaxonIndex index, final int[] taxa) {
+        final int[] closest = new int[taxa.length];
+        final int threadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), taxa.length));
+        if (threadCount == 1) {
+            for (int i = 0; i < taxa.length; i++) {
+                closest[i] = index.getClosest(taxa[i]);
+            }
+            return closest;
+        }
+
+        final AtomicInteger next = new AtomicInteger(0);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int t = 0; t < threadCount; t++) {
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    int i = next.getAndIncrement();
+                    while (i < taxa.length) {
+                        closest[i] = index.getClosest(taxa[i]);
+                        i = next.getAndIncrement();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (Future<Object> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while finding the closest taxa");
+        } catch (ExecutionException ee) {
+            throw new RuntimeException("Failed to find the closest taxa: " + ee.getCause().getMessage(), ee.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return closest;
+    }
+
     /**
      * Add a given offset to all node height (both internal and external) of a tree
      * @param offset The offset to add to the node height
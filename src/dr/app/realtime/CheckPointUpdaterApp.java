@@ -61,7 +61,18 @@ public class CheckPointUpdaterApp {
     private final boolean STRICT_XML = false;
 
     public enum UpdateChoice {
-        JC69DISTANCE("JC69Distance", new JukesCantorDistanceMatrix()), F84DISTANCE("F84Distance", new F84DistanceMatrix()), SIMPLE("Simple", new SimpleDistanceMatrix());
+        JC69DISTANCE("JC69Distance", new JukesCantorDistanceMatrix()) {
+            public double getDistanceLowerBound(double mismatchProportion) {
+                return ((JukesCantorDistanceMatrix) getMatrix()).getCorrectedDistance(mismatchProportion);
+            }
+        },
+        F84DISTANCE("F84Distance", new F84DistanceMatrix()),
+        SIMPLE("Simple", new SimpleDistanceMatrix()) {
+            public double getDistanceLowerBound(double mismatchProportion) {
+                // the proportion of the sites at which neither is gapped is at most one
+                return mismatchProportion;
+            }
+        };
 
         private String name;
         private DistanceMatrix matrix;
@@ -84,8 +95,9 @@ public class CheckPointUpdaterApp {
             double minimumDistance = Double.MAX_VALUE;
             for (int i = 0; i < matrix.getColumnCount(); i++) {
                 if (i != taxonIndex) {
-                    if (matrix.getElement(taxonIndex, i) < minimumDistance) {
-                        minimumDistance = matrix.getElement(taxonIndex, i);
+                    double distance = matrix.getPairwiseDistance(taxonIndex, i);
+                    if (distance < minimumDistance) {
+                        minimumDistance = distance;
                         closestIndex = i;
                     }
                 }
@@ -97,13 +109,15 @@ public class CheckPointUpdaterApp {
             if (matrix == null) {
                 throw new RuntimeException("Patterns need to be set first.");
             }
+            Set<Taxon> taxonSet = new HashSet<Taxon>(taxa);
             int taxonIndex = matrix.getTaxonIndex(taxon);
             int closestIndex = 0;
             double minimumDistance = Double.MAX_VALUE;
             for (int i = 0; i < matrix.getColumnCount(); i++) {
-                if (i != taxonIndex) {
-                    if ((matrix.getElement(taxonIndex, i) < minimumDistance) && (taxa.contains(matrix.getTaxon(i)))) {
-                        minimumDistance = matrix.getElement(taxonIndex, i);
+                if (i != taxonIndex && taxonSet.contains(matrix.getTaxon(i))) {
+                    double distance = matrix.getPairwiseDistance(taxonIndex, i);
+                    if (distance < minimumDistance) {
+                        minimumDistance = distance;
                         closestIndex = i;
                     }
                 }
@@ -111,10 +125,34 @@ public class CheckPointUpdaterApp {
             return matrix.getTaxon(closestIndex);
         }
 
+        /**
+         * @return an index of the given taxa for finding the closest of them to another (the patterns must be
+         * set first)
+         */
+        public NearestTaxonIndex createIndex(PatternList patterns, List<Taxon> taxa) {
+            if (matrix == null) {
+                throw new RuntimeException("Patterns need to be set first.");
+            }
+            NearestTaxonIndex index = new NearestTaxonIndex(this, patterns);
+            for (Taxon taxon : taxa) {
+                index.add(matrix.getTaxonIndex(taxon));
+            }
+            return index;
+        }
+
+        /**
+         * A lower bound on the distance between two taxa given a lower bound on the proportion of all the sites
+         * (by weight) at which they have different, unambiguous states. Without one (returning 0) an index of the
+         * taxa has to compare with each of them.
+         */
+        public double getDistanceLowerBound(double mismatchProportion) {
+            return 0.0;
+        }
+
         public double getDistance(Taxon taxonOne, Taxon taxonTwo) {
             System.out.println("taxon 1: " + taxonOne + " (" + matrix.getTaxonIndex(taxonOne) + ")");
             System.out.println("taxon 2: " + taxonTwo + " (" + matrix.getTaxonIndex(taxonTwo) + ")");
-            return matrix.getElement(matrix.getTaxonIndex(taxonOne), matrix.getTaxonIndex(taxonTwo));
+            return matrix.getPairwiseDistance(matrix.getTaxonIndex(taxonOne), matrix.getTaxonIndex(taxonTwo));
         }
 
         public String getName() {
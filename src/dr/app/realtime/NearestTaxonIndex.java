@@ -0,0 +1,373 @@
+/*
+ * NearestTaxonIndex.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+
+package dr.app.realtime;
+
+import dr.evolution.alignment.PatternList;
+import dr.evolution.datatype.DataType;
+
+import java.util.*;
+
+/**
+ * An index of taxa for finding the one closest to another under the distance of an update choice, without
+ * computing the whole distance matrix and comparing with every taxon.
+ *
+ * The taxa are kept in a vantage point tree under the (weighted) Hamming distance between their states, which is
+ * a metric. The proportion of sites at which two taxa have different, unambiguous states is at least their
+ * Hamming distance less the weight of the sites at which either is gapped or ambiguous, over the total weight,
+ * so the update choice's lower bound of that proportion bounds the distance of every taxon in a subtree and the
+ * subtrees that can't hold a closer taxon are skipped. The search is exact: it gives the taxon with the smallest
+ * distance, and of those the one that comes first in the distance matrix, as a scan of the matrix does. For a
+ * distance with no lower bound it visits every taxon.
+ *
+ * Taxa with identical states share a single entry in the tree, which holds the two lowest of their indices, so
+ * large numbers of identical sequences neither deepen the tree nor slow the search.
+ *
+ * Taxa can be added at any time. Searches may run in parallel with each other but not with adding.
+ */
+public class NearestTaxonIndex {
+
+    // the most taxa a leaf holds before it is split around a vantage point
+    private static final int LEAF_SIZE = 16;
+
+    /**
+     * @param choice   the update choice giving the distances (whose patterns must have been set)
+     * @param patterns the patterns the distances are calculated from
+     */
+    public NearestTaxonIndex(CheckPointUpdaterApp.UpdateChoice choice, PatternList patterns) {
+        this.choice = choice;
+
+        final DataType dataType = patterns.getDataType();
+        final int taxonCount = patterns.getTaxonCount();
+        final int patternCount = patterns.getPatternCount();
+
+        weights = patterns.getPatternWeights();
+        double totalWeight = 0.0;
+        for (double weight : weights) {
+            totalWeight += weight;
+        }
+        this.totalWeight = totalWeight;
+
+        // only whether states are equal matters so each is stored as a byte code
+        Map<Integer, Byte> codes = new HashMap<Integer, Byte>();
+        states = new byte[taxonCount][patternCount];
+        uncertainWeights = new double[taxonCount];
+        for (int i = 0; i < patternCount; i++) {
+            int[] pattern = patterns.getPattern(i);
+            for (int taxon = 0; taxon < taxonCount; taxon++) {
+                final int state = pattern[taxon];
+                Byte code = codes.get(state);
+                if (code == null) {
+                    if (codes.size() > 255) {
+                        throw new IllegalArgumentException("The patterns have more than 256 different states");
+                    }
+                    code = (byte) codes.size();
+                    codes.put(state, code);
+                }
+                states[taxon][i] = code;
+                if (dataType.isAmbiguousState(state) || dataType.isGapState(state)) {
+                    uncertainWeights[taxon] += weights[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a taxon (by its index in the patterns and distance matrix).
+     */
+    public void add(int taxon) {
+        size++;
+
+        Sequence key = new Sequence(states[taxon]);
+        Bucket bucket = buckets.get(key);
+        if (bucket != null) {
+            bucket.add(taxon);
+            return;
+        }
+        bucket = new Bucket(taxon);
+        buckets.put(key, bucket);
+
+        if (root == null) {
+            root = new Node();
+        }
+
+        Node node = root;
+        while (true) {
+            node.maxUncertainWeight = Math.max(node.maxUncertainWeight, uncertainWeights[taxon]);
+            if (node.isLeaf()) {
+                break;
+            }
+            node = (getHammingDistance(node.vantage.taxon, taxon) <= node.radius ? node.inside : node.outside);
+        }
+
+        node.taxa.add(bucket);
+        if (node.taxa.size() > node.splitSize) {
+            split(node);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the index of the closest taxon in the index to the given one (other than itself) or -1 if there is
+     * none with a distance
+     */
+    public int getClosest(int taxon) {
+        Search search = new Search(taxon);
+        if (root != null) {
+            search.search();
+        }
+        return search.closest;
+    }
+
+    /**
+     * @return the distance of the update choice between two taxa
+     */
+    public double getDistance(int taxon1, int taxon2) {
+        return choice.getMatrix().getPairwiseDistance(taxon1, taxon2);
+    }
+
+    // makes a leaf that has too many taxa into a vantage point with two leaves split at the median distance from
+    // it, trying a few of the taxa as the vantage point. If none separates the taxa (when they are all at the same
+    // distance from each) the leaf is left as it is until it has grown to twice the size.
+    private void split(Node node) {
+        final int count = node.taxa.size();
+        final int[] candidates = {0, count / 2, count - 1};
+        final double[] distances = new double[count];
+
+        for (int candidate : candidates) {
+            final Bucket vantage = node.taxa.get(candidate);
+            for (int k = 0; k < count; k++) {
+                distances[k] = getHammingDistance(vantage.taxon, node.taxa.get(k).taxon);
+            }
+            double[] sorted = distances.clone();
+            Arrays.sort(sorted);
+
+            // the median, or if the farthest taxa are all at or below it the largest distance below theirs
+            double radius = sorted[count / 2];
+            if (radius >= sorted[count - 1]) {
+                int k = count - 1;
+                while (k >= 0 && sorted[k] >= sorted[count - 1]) {
+                    k--;
+                }
+                if (k < 0) {
+                    continue;
+                }
+                radius = sorted[k];
+            }
+
+            node.vantage = vantage;
+            node.radius = radius;
+            node.inside = new Node();
+            node.outside = new Node();
+            for (int k = 0; k < count; k++) {
+                final Bucket bucket = node.taxa.get(k);
+                Node child = (distances[k] <= radius ? node.inside : node.outside);
+                child.taxa.add(bucket);
+                child.maxUncertainWeight = Math.max(child.maxUncertainWeight, uncertainWeights[bucket.taxon]);
+            }
+            node.taxa = null;
+            return;
+        }
+
+        node.splitSize = 2 * count;
+    }
+
+    private double getHammingDistance(int taxon1, int taxon2) {
+        final byte[] states1 = states[taxon1];
+        final byte[] states2 = states[taxon2];
+        double distance = 0.0;
+        for (int i = 0; i < states1.length; i++) {
+            if (states1[i] != states2[i]) {
+                distance += weights[i];
+            }
+        }
+        return distance;
+    }
+
+    private class Search {
+
+        Search(int taxon) {
+            this.taxon = taxon;
+        }
+
+        // a depth-first search, kept on a stack rather than by recursion so that the depth of the tree is not
+        // limited by that of the thread's stack
+        void search() {
+            push(root, 0.0);
+
+            while (stackSize > 0) {
+                stackSize--;
+                final Node node = nodeStack[stackSize];
+                if (getLowerBound(boundStack[stackSize], node.maxUncertainWeight) > distance) {
+                    continue;
+                }
+
+                if (node.isLeaf()) {
+                    for (Bucket bucket : node.taxa) {
+                        final int other = bucket.getOther(taxon);
+                        if (other >= 0 && getLowerBound(getHammingDistance(taxon, bucket.taxon), uncertainWeights[other]) <= distance) {
+                            consider(other, getDistance(taxon, other));
+                        }
+                    }
+                    continue;
+                }
+
+                // the triangle inequality bounds the Hamming distance to the taxa on each side
+                final double d = getHammingDistance(taxon, node.vantage.taxon);
+                final double insideBound = Math.max(0.0, d - node.radius);
+                final double outsideBound = Math.max(0.0, node.radius - d);
+
+                // the nearer side is pushed last so it is searched first
+                if (d <= node.radius) {
+                    push(node.outside, outsideBound);
+                    push(node.inside, insideBound);
+                } else {
+                    push(node.inside, insideBound);
+                    push(node.outside, outsideBound);
+                }
+            }
+        }
+
+        private void push(Node node, double hammingBound) {
+            if (stackSize == nodeStack.length) {
+                nodeStack = Arrays.copyOf(nodeStack, 2 * stackSize);
+                boundStack = Arrays.copyOf(boundStack, 2 * stackSize);
+            }
+            nodeStack[stackSize] = node;
+            boundStack[stackSize] = hammingBound;
+            stackSize++;
+        }
+
+        // a lower bound on the distance from the taxon to one with the given Hamming distance and uncertain weight
+        private double getLowerBound(double hammingDistance, double uncertainWeight) {
+            if (totalWeight <= 0.0) {
+                return 0.0;
+            }
+            final double mismatches = hammingDistance - uncertainWeights[taxon] - uncertainWeight;
+            return choice.getDistanceLowerBound(Math.max(0.0, mismatches) / totalWeight);
+        }
+
+        private void consider(int other, double otherDistance) {
+            if (otherDistance < distance || (otherDistance == distance && other < closest)) {
+                distance = otherDistance;
+                closest = other;
+            }
+        }
+
+        private final int taxon;
+        private int closest = -1;
+        private double distance = Double.POSITIVE_INFINITY;
+
+        private Node[] nodeStack = new Node[32];
+        private double[] boundStack = new double[32];
+        private int stackSize = 0;
+    }
+
+    /**
+     * The taxa with one set of states. Their distances to any other taxon are the same, so only the lowest index
+     * can be the closest, or the second lowest when the lowest is the taxon being searched for.
+     */
+    private static class Bucket {
+
+        Bucket(int taxon) {
+            this.taxon = taxon;
+        }
+
+        void add(int other) {
+            if (other < taxon) {
+                second = taxon;
+                taxon = other;
+            } else if (second < 0 || other < second) {
+                second = other;
+            }
+        }
+
+        int getOther(int query) {
+            return (taxon != query ? taxon : second);
+        }
+
+        // the lowest index and the next lowest (or -1)
+        int taxon;
+        int second = -1;
+    }
+
+    // the states of a taxon as a hash key
+    private static class Sequence {
+
+        Sequence(byte[] states) {
+            this.states = states;
+            this.hashCode = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof Sequence && Arrays.equals(states, ((Sequence) object).states);
+        }
+
+        private final byte[] states;
+        private final int hashCode;
+    }
+
+    private static class Node {
+
+        boolean isLeaf() {
+            return taxa != null;
+        }
+
+        // a leaf and the number of entries above which it is split
+        List<Bucket> taxa = new ArrayList<Bucket>();
+        int splitSize = LEAF_SIZE;
+
+        // a vantage point with the taxa within radius of it inside and the others outside
+        Bucket vantage;
+        double radius;
+        Node inside;
+        Node outside;
+
+        // the most weight of gapped or ambiguous sites of any taxon below
+        double maxUncertainWeight = 0.0;
+    }
+
+    private final CheckPointUpdaterApp.UpdateChoice choice;
+
+    private final double[] weights;
+    private final double totalWeight;
+    private final byte[][] states;
+    private final double[] uncertainWeights;
+
+    private final Map<Sequence, Bucket> buckets = new HashMap<Sequence, Bucket>();
+
+    private Node root = null;
+    private int size = 0;
+}
@@ -0,0 +1,252 @@
+/*
+ * CladeFingerprintTable.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.tools;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.TaxonList;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * An open-addressing hash table from 128-bit clade fingerprints to positive int values (such as the
+ * number of times the clade has been seen), held in primitive arrays.
+ *
+ * The fingerprint of a clade is the sum of two random 64-bit keys given to each of its taxa so it can
+ * be computed for every node of a tree in a single post-order pass without allocating anything. Two
+ * different clades share a fingerprint with negligible probability (about 2^-128 per pair).
+ */
+public class CladeFingerprintTable {
+
+    public CladeFingerprintTable() {
+        this(1024);
+    }
+
+    public CladeFingerprintTable(int initialCapacity) {
+        int capacity = 16;
+        while (capacity < initialCapacity * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return the value for the fingerprint or 0 if it is not in the table
+     */
+    public int get(long high, long low) {
+        int slot = find(high, low);
+        return values[slot];
+    }
+
+    /**
+     * Sets the value for the fingerprint which must be positive.
+     */
+    public void put(long high, long low, int value) {
+        int slot = find(high, low);
+        if (values[slot] == 0) {
+            insert(slot, high, low, value);
+        } else {
+            values[slot] = value;
+        }
+    }
+
+    /**
+     * Adds to the value for the fingerprint (starting from 0 if it is not in the table).
+     */
+    public void increment(long high, long low, int amount) {
+        int slot = find(high, low);
+        if (values[slot] == 0) {
+            insert(slot, high, low, amount);
+        } else {
+            values[slot] += amount;
+        }
+    }
+
+    /**
+     * Adds all the values of the other table to this one.
+     */
+    public void addAll(CladeFingerprintTable other) {
+        for (int slot = 0; slot < other.values.length; slot++) {
+            if (other.values[slot] != 0) {
+                increment(other.highs[slot], other.lows[slot], other.values[slot]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of fingerprints in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    // a slot is empty when its value is 0, which is why values must be positive
+    private int find(long high, long low) {
+        int slot = (int) mix(high ^ (low * 0x9E3779B97F4A7C15L)) & mask;
+        while (values[slot] != 0 && (highs[slot] != high || lows[slot] != low)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int slot, long high, long low, int value) {
+        highs[slot] = high;
+        lows[slot] = low;
+        values[slot] = value;
+        size++;
+        if (size * 2 > values.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        int[] oldValues = values;
+        allocate(oldValues.length * 2);
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != 0) {
+                int newSlot = find(oldHighs[slot], oldLows[slot]);
+                highs[newSlot] = oldHighs[slot];
+                lows[newSlot] = oldLows[slot];
+                values[newSlot] = oldValues[slot];
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        highs = new long[capacity];
+        lows = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    // the finalizer of MurmurHash3 to spread the bits
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private long[] highs;
+    private long[] lows;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * Computes the fingerprints of all the clades of trees over a fixed set of taxa. An instance holds
+     * arrays that are reused from tree to tree so each thread should have its own (sharing the keys).
+     */
+    public static class Fingerprinter {
+
+        public Fingerprinter(TaxonList taxa) {
+            taxonIndices = new HashMap<String, Integer>();
+            highKeys = new long[taxa.getTaxonCount()];
+            lowKeys = new long[taxa.getTaxonCount()];
+
+            // a fixed seed so the fingerprints are the same from run to run
+            Random random = new Random(taxa.getTaxonCount());
+            for (int i = 0; i < taxa.getTaxonCount(); i++) {
+                taxonIndices.put(taxa.getTaxonId(i), i);
+                highKeys[i] = random.nextLong();
+                lowKeys[i] = random.nextLong();
+            }
+        }
+
+        private Fingerprinter(Fingerprinter fingerprinter) {
+            taxonIndices = fingerprinter.taxonIndices;
+            highKeys = fingerprinter.highKeys;
+            lowKeys = fingerprinter.lowKeys;
+        }
+
+        /**
+         * @return a fingerprinter with the same keys and its own working arrays
+         */
+        public Fingerprinter copy() {
+            return new Fingerprinter(this);
+        }
+
+        /**
+         * Computes the fingerprint of the clade below every node of the tree. These are then available
+         * from getHigh and getLow by node number until the next call.
+         */
+        public void fingerprint(Tree tree) {
+            int nodeCount = tree.getNodeCount();
+            if (highs == null || highs.length < nodeCount) {
+                highs = new long[nodeCount];
+                lows = new long[nodeCount];
+            }
+            fingerprint(tree, tree.getRoot());
+        }
+
+        private void fingerprint(Tree tree, NodeRef node) {
+            int number = node.getNumber();
+            if (tree.isExternal(node)) {
+                String id = tree.getNodeTaxon(node).getId();
+                Integer index = taxonIndices.get(id);
+                if (index == null) {
+                    throw new IllegalArgumentException("Taxon, " + id + ", not found in target tree");
+                }
+                highs[number] = highKeys[index];
+                lows[number] = lowKeys[index];
+            } else {
+                long high = 0;
+                long low = 0;
+                for (int i = 0; i < tree.getChildCount(node); i++) {
+                    NodeRef child = tree.getChild(node, i);
+                    fingerprint(tree, child);
+                    high += highs[child.getNumber()];
+                    low += lows[child.getNumber()];
+                }
+                highs[number] = high;
+                lows[number] = low;
+            }
+        }
+
+        public long getHigh(NodeRef node) {
+            return highs[node.getNumber()];
+        }
+
+        public long getLow(NodeRef node) {
+            return lows[node.getNumber()];
+        }
+
+        private final Map<String, Integer> taxonIndices;
+        private final long[] highKeys;
+        private final long[] lowKeys;
+
+        private long[] highs = null;
+        private long[] lows = null;
+    }
+}
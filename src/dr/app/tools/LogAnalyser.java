@@ -36,6 +36,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 public class LogAnalyser {
@@ -46,6 +48,14 @@ public class LogAnalyser {
     public LogAnalyser(int burnin, String inputFileName, String outputFileName, boolean verbose,
                        boolean hpds, boolean ess, boolean stdErr,
                        String marginalLikelihood) throws java.io.IOException, TraceException {
+        this(burnin, inputFileName, outputFileName, verbose, hpds, ess, stdErr, marginalLikelihood, null);
+    }
+
+    public LogAnalyser(int burnin, String inputFileName, String outputFileName, boolean verbose,
+                       boolean hpds, boolean ess, boolean stdErr,
+                       String marginalLikelihood, List<String> traceNames) throws java.io.IOException, TraceException {
+
+        this.traceNames = traceNames;
 
         File parentFile = new File(inputFileName);
 
@@ -89,6 +99,9 @@ public class LogAnalyser {
     }
 //
     private static File openDefaultDirectory = null;
+
+    // the traces to analyse in a full report, or null for all of them
+    private List<String> traceNames = null;
 //
 //    private void setDefaultDir(File file) {
 //        final String s = file.getAbsolutePath();
@@ -120,7 +133,7 @@ public class LogAnalyser {
 
                 String name = file.getCanonicalPath();
                 if (verbose) {
-                    TraceAnalysis.report(name, burnin, marginalLikelihood);
+                    TraceAnalysis.report(name, burnin, marginalLikelihood, true, traceNames);
                 } else {
                     TraceAnalysis.shortReport(name, burnin, drawHeader[0], hpds, ess, stdErr, marginalLikelihood);
                     drawHeader[0] = false;
@@ -197,6 +210,8 @@ public class LogAnalyser {
                         new Arguments.Option("ess", "use this option to produce ESSs for each trace"),
                         new Arguments.Option("stdErr", "use this option to produce standard Error"),
                         new Arguments.StringOption("marginal", "trace_name", "specify the trace to use to calculate the marginal likelihood"),
+                        new Arguments.StringOption("traces", "trace_names", "a comma separated list of the traces to analyse " +
+                                "(only these columns are read from a binary log)"),
 //				new Arguments.Option("html", "format output as html"),
 //				new Arguments.Option("svg", "generate svg graphics"),
                         new Arguments.Option("help", "option to print this message")
@@ -230,6 +245,11 @@ public class LogAnalyser {
             marginalLikelihood = arguments.getStringOption("marginal");
         }
 
+        List<String> traceNames = null;
+        if (arguments.hasOption("traces")) {
+            traceNames = Arrays.asList(arguments.getStringOption("traces").split(","));
+        }
+
         String inputFileName = null;
         String outputFileName = null;
 
@@ -258,7 +278,8 @@ public class LogAnalyser {
 
         } else {
 
-            new LogAnalyser(burnin, inputFileName, outputFileName, !shortReport, hpds, ess, stdErr, marginalLikelihood);
+            new LogAnalyser(burnin, inputFileName, outputFileName, !shortReport, hpds, ess, stdErr, marginalLikelihood,
+                    traceNames);
         }
 
         System.exit(0);
@@ -34,6 +34,8 @@ import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.Taxon;
+import dr.inference.trace.BinaryLogReader;
+import dr.inference.trace.TraceException;
 import dr.util.Version;
 import jam.console.ConsoleApplication;
 
@@ -41,10 +43,8 @@ import javax.swing.*;
 import java.io.*;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Locale;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,6 +60,27 @@ public class LogCombiner {
     public LogCombiner(long[] burnins, long resample, String[] inputFileNames, String outputFileName, boolean treeFiles,
                        boolean convertToDecimal, boolean stripAnnotations,
                        boolean renumberOutput, boolean useScale, double scale) throws IOException {
+        this(burnins, resample, inputFileNames, outputFileName, treeFiles, convertToDecimal, stripAnnotations,
+                renumberOutput, useScale, scale, 1);
+    }
+
+    /**
+     * If threadCount is more than one the input files are read and parsed concurrently (with the burn-in
+     * removed and the resampling done as they are read) and the output written in order by this thread.
+     * Only a bounded number of lines (or trees) of each file wait to be written so the files are never
+     * held in memory.
+     */
+    public LogCombiner(long[] burnins, long resample, String[] inputFileNames, String outputFileName, boolean treeFiles,
+                       boolean convertToDecimal, boolean stripAnnotations,
+                       boolean renumberOutput, boolean useScale, double scale, int threadCount) throws IOException {
+
+        this.resample = resample;
+        this.treeFiles = treeFiles;
+        this.convertToDecimal = convertToDecimal;
+        this.stripAnnotations = stripAnnotations;
+        this.renumberOutput = renumberOutput;
+        this.useScale = useScale;
+        this.scale = scale;
 
         System.out.println("Creating combined " + (treeFiles ? "tree" : "log") + " file: '" + outputFileName + "'");
 
@@ -83,6 +104,16 @@ public class LogCombiner {
 
         PrintWriter writer = new PrintWriter(new FileOutputStream(outputFileName));
 
+        if (threadCount > 1) {
+            System.out.println("Reading files with " + threadCount + " threads.");
+            try {
+                combineConcurrently(burnins, inputFileNames, writer, threadCount);
+            } finally {
+                writer.close();
+            }
+            return;
+        }
+
         boolean firstFile = true;
         boolean firstTree = true;
         long stateCount = (renumberOutput ? -1 : 0);
@@ -195,7 +226,18 @@ public class LogCombiner {
                 }
 
             } else {
-                BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+                BufferedReader reader;
+                if (BinaryLogReader.isBinaryLog(inputFile)) {
+                    // binary logs are combined as if they were tab-delimited text
+                    try {
+                        reader = new BufferedReader(new BinaryLogReader(inputFile).getTextReader());
+                    } catch (TraceException te) {
+                        System.err.println("Error reading binary log file, " + inputFileNames[i] + ": " + te.getMessage());
+                        return;
+                    }
+                } else {
+                    reader = new BufferedReader(new FileReader(inputFile));
+                }
                 //int lineCount = 1;
                 String line = reader.readLine();
 
@@ -301,21 +343,7 @@ public class LogCombiner {
 
                                 if (logThis) {
                                     writer.print(stateLineEntry);
-                                    for (int j = 1; j < parts.length; j++) {
-                                        String value = parts[j];
-
-                                        if (useScale) {
-                                            if (titles[j].equals("clock.rate") || titles[j].startsWith("skyline.popSize")) {
-                                                value = reformatNumbers(value, convertToDecimal, true, 1.0 / scale);
-                                            } else if (titles[j].equals("treeModel.rootHeight")) {
-                                                value = reformatNumbers(value, convertToDecimal, true, scale);
-                                            }
-                                        } else  if (convertToDecimal) {
-                                            value = reformatNumbers(value, convertToDecimal, false, 1.0);
-                                        }
-                                        writer.print("\t" + value);
-                                    }
-                                    writer.println();
+                                    writer.println(formatValues(parts, titles, convertToDecimal, useScale, scale));
                                 }
                             }
 
@@ -335,6 +363,463 @@ public class LogCombiner {
         writer.close();
     }
 
+    // the number of lines (or trees) of each file that can be waiting to be written
+    private static final int QUEUE_LENGTH = 1024;
+
+    private static final String TREE_PREFIX = "tree STATE_";
+
+    private void combineConcurrently(long[] burnins, String[] inputFileNames, PrintWriter writer, int threadCount)
+            throws IOException {
+
+        final int fileCount = inputFileNames.length;
+        final File[] inputFiles = new File[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            inputFiles[i] = new File(inputFileNames[i]);
+            if (!inputFiles[i].exists()) {
+                System.err.println(inputFileNames[i] + " does not exist!");
+                return;
+            } else if (inputFiles[i].isDirectory()) {
+                System.err.println(inputFileNames[i] + " is a directory.");
+                return;
+            }
+        }
+
+        // The sampling frequency is the first state after 0 and, as for the files read in turn, only the states
+        // from there on are counted (and for logs only lines with as many columns as that state's are kept).
+        String[] titles = null;
+        long stateStep = -1;
+        int columnCount = 0;
+        int stepFile = fileCount;
+        long stepRecord = 0;
+        for (int i = 0; i < fileCount && stateStep < 0; i++) {
+            if (treeFiles) {
+                BufferedReader reader = new BufferedReader(new FileReader(inputFiles[i]));
+                long record = 0;
+                String line = reader.readLine();
+                while (line != null && stateStep < 0) {
+                    long state = getTreeState(line);
+                    if (state != NOT_A_TREE) {
+                        if (state > 0) {
+                            stateStep = state;
+                            stepFile = i;
+                            stepRecord = record;
+                        }
+                        record++;
+                    }
+                    line = reader.readLine();
+                }
+                reader.close();
+            } else {
+                BufferedReader reader = openLog(inputFiles[i]);
+                String line = readTitles(reader);
+                if (i == 0 && line != null) {
+                    titles = line.split("\t");
+                    writer.println(line);
+                }
+                long record = 0;
+                line = (line != null ? reader.readLine() : null);
+                while (line != null && stateStep < 0) {
+                    String[] parts = line.split("\t");
+                    try {
+                        long state = Long.parseLong(parts[0]);
+                        if (state > 0) {
+                            stateStep = state;
+                            columnCount = parts.length;
+                            stepFile = i;
+                            stepRecord = record;
+                        }
+                    } catch (NumberFormatException nfe) {
+                        // not a state
+                    }
+                    record++;
+                    line = reader.readLine();
+                }
+                reader.close();
+            }
+        }
+
+        if (resample >= 0 && resample % stateStep != 0) {
+            System.err.println("ERROR: Resampling frequency is not a multiple of existing sampling frequency");
+            return;
+        }
+
+        if (treeFiles) {
+            for (int i = 0; i < fileCount; i++) {
+                TreeImporter importer = new NexusImporter(new FileReader(inputFiles[i]), stripAnnotations);
+                try {
+                    if (importer.hasTree()) {
+                        startLog(importer.importNextTree(), writer);
+                        break;
+                    }
+                } catch (Importer.ImportException e) {
+                    System.err.println("Error Parsing Input Tree: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        final long firstStateCount = (renumberOutput ? -1 : 0);
+        final long stateIncrement = (renumberOutput ? 1 : stateStep);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            FileCombiner[] combiners = new FileCombiner[fileCount];
+            for (int i = 0; i < fileCount; i++) {
+                long burnin = burnins[0];
+                if (burnins.length > i) {
+                    burnin = burnins[i];
+                }
+                combiners[i] = new FileCombiner(inputFiles[i], burnin, i < stepFile ? Long.MAX_VALUE :
+                        (i == stepFile ? stepRecord : 0), stateStep, columnCount, titles);
+            }
+
+            if (resample >= 0) {
+                // count the states each file keeps so that each knows the state count it starts from and
+                // can resample as it goes
+                List<Future<Long>> counts = executor.invokeAll(Arrays.asList(combiners));
+                long stateCount = firstStateCount;
+                for (int i = 0; i < fileCount; i++) {
+                    combiners[i].firstStateCount = stateCount;
+                    stateCount += counts.get(i).get() * stateIncrement;
+                    combiners[i].counting = false;
+                }
+            }
+
+            for (FileCombiner combiner : combiners) {
+                executor.submit((Callable<Long>) combiner);
+            }
+
+            long stateCount = firstStateCount;
+            for (int i = 0; i < fileCount; i++) {
+                if (combiners[i].burnin > 0) {
+                    System.out.print("Combining file: '" + inputFileNames[i] + "' removing burnin: " + combiners[i].burnin);
+                } else {
+                    System.out.print("Combining file: '" + inputFileNames[i] + "' without removing burnin");
+                }
+                if (resample > 0) {
+                    System.out.print(", resampling with frequency: " + resample);
+                }
+                if (useScale) {
+                    System.out.println(", rescaling by: " + scale);
+                } else {
+                    System.out.println();
+                }
+
+                CombinedLine line = combiners[i].lines.take();
+                while (line != END_OF_FILE) {
+                    if (line.error != null) {
+                        System.err.println(line.error);
+                        return;
+                    }
+                    stateCount += line.stateCount * stateIncrement;
+                    if (line.text != null) {
+                        long stateLineEntry;
+                        if (!renumberOutput) {
+                            stateLineEntry = stateCount;
+                        } else {
+                            stateLineEntry = stateCount / (resample / stateStep);
+                        }
+                        if (treeFiles) {
+                            writer.println(TREE_PREFIX + stateLineEntry + line.text);
+                        } else {
+                            writer.print(stateLineEntry);
+                            writer.println(line.text);
+                        }
+                    }
+                    line = combiners[i].lines.take();
+                }
+            }
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            System.err.println("Error reading file: " + ee.getCause().getMessage());
+            return;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (treeFiles) {
+            stopLog(writer);
+        }
+    }
+
+    private static final long NOT_A_TREE = Long.MIN_VALUE;
+
+    // the state of a tree in a line of a tree log
+    private static long getTreeState(String line) {
+        String trimmed = line.trim();
+        if (trimmed.length() < 5 || !trimmed.substring(0, 5).equalsIgnoreCase("tree ")) {
+            return NOT_A_TREE;
+        }
+        String name = trimmed.substring(5).trim();
+        int end = 0;
+        while (end < name.length() && !Character.isWhitespace(name.charAt(end)) &&
+                name.charAt(end) != '=' && name.charAt(end) != '[') {
+            end++;
+        }
+        // split on underscore in STATE_xxxx
+        String[] bits = name.substring(0, end).split("_");
+        if (bits.length < 2) {
+            throw new NumberFormatException("Trees do not give state numbers as tree attributes.");
+        }
+        return Long.parseLong(bits[1]);
+    }
+
+    private static BufferedReader openLog(File inputFile) throws IOException {
+        if (BinaryLogReader.isBinaryLog(inputFile)) {
+            // binary logs are combined as if they were tab-delimited text
+            try {
+                return new BufferedReader(new BinaryLogReader(inputFile).getTextReader());
+            } catch (TraceException te) {
+                throw new IOException("Error reading binary log file, " + inputFile + ": " + te.getMessage());
+            }
+        }
+        return new BufferedReader(new FileReader(inputFile));
+    }
+
+    // the line of column headings (skipping any comments before it)
+    private static String readTitles(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+
+        // lines starting with [ are ignored, assuming comments in MrBayes file
+        // lines starting with # are ignored, assuming comments in Migrate or BEAST file
+        while (line != null && (line.startsWith("[") || line.startsWith("#"))) {
+            line = reader.readLine();
+        }
+        return line;
+    }
+
+    private static boolean hasNumericValues(String[] parts) {
+        for (int j = 1; j < parts.length; j++) {
+            // complex log values start with a curly bracket - otherwise attempt to parse
+            // it as a number. If it fails, skip the line as a possible corruption.
+            if (!parts[j].startsWith("{")) {
+                try {
+                    Double.valueOf(parts[j]);
+                } catch (NumberFormatException nfe) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A line of the output (without its state number) and the number of states counted since the last one.
+     */
+    private static final class CombinedLine {
+        CombinedLine(long stateCount, String text, String error) {
+            this.stateCount = stateCount;
+            this.text = text;
+            this.error = error;
+        }
+
+        final long stateCount;
+        final String text;
+        final String error;
+    }
+
+    private static final CombinedLine END_OF_FILE = new CombinedLine(0, null, null);
+
+    /**
+     * Reads one file either counting the states kept (after the burn-in) or queuing the lines to write.
+     */
+    private final class FileCombiner implements Callable<Long> {
+
+        FileCombiner(File inputFile, long burnin, long firstCountedRecord, long stateStep, int columnCount,
+                     String[] titles) {
+            this.inputFile = inputFile;
+            this.burnin = burnin;
+            this.firstCountedRecord = firstCountedRecord;
+            this.stateStep = stateStep;
+            this.columnCount = columnCount;
+            this.titles = titles;
+        }
+
+        public Long call() throws Exception {
+            try {
+                long keptCount = (treeFiles ? combineTrees() : combineLog());
+                if (!counting) {
+                    lines.put(END_OF_FILE);
+                }
+                return keptCount;
+            } catch (InterruptedException ie) {
+                // the combining has been abandoned
+                return -1L;
+            } catch (Exception e) {
+                if (counting) {
+                    throw e;
+                }
+                String message = e.getMessage();
+                if (e instanceof Importer.ImportException) {
+                    message = "Error Parsing Input Tree: " + message;
+                } else if (e instanceof NumberFormatException) {
+                    message = "ERROR: " + message;
+                }
+                lines.put(new CombinedLine(0, null, message));
+                return -1L;
+            } catch (Error e) {
+                if (!counting) {
+                    lines.put(new CombinedLine(0, null, "Error combining file, " + inputFile + ": " + e));
+                }
+                throw e;
+            }
+        }
+
+        private long combineTrees() throws IOException, Importer.ImportException, InterruptedException {
+            long keptCount = 0;
+            long record = 0;
+
+            if (counting) {
+                BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+                try {
+                    String line = reader.readLine();
+                    while (line != null) {
+                        long state = getTreeState(line);
+                        if (state != NOT_A_TREE) {
+                            if (state >= burnin && record >= firstCountedRecord) {
+                                keptCount++;
+                            }
+                            record++;
+                        }
+                        line = reader.readLine();
+                    }
+                } finally {
+                    reader.close();
+                }
+                return keptCount;
+            }
+
+            TreeImporter importer = new NexusImporter(new FileReader(inputFile), stripAnnotations);
+            long stateCount = firstStateCount;
+            while (importer.hasTree()) {
+                Tree tree = importer.importNextTree();
+
+                String name = tree.getId();
+                if (name == null) {
+                    throw new NumberFormatException("Trees do not give state numbers as tree attributes.");
+                }
+
+                // split on underscore in STATE_xxxx
+                String[] bits = name.split("_");
+                long state = Long.parseLong(bits[1]);
+
+                if (state >= burnin) {
+                    if (record >= firstCountedRecord) {
+                        stateCount += (renumberOutput ? 1 : stateStep);
+                        keptCount++;
+                        pendingCount++;
+                    }
+                    if (isResampled(stateCount)) {
+                        queue(formatTree(tree, convertToDecimal));
+                    }
+                }
+                record++;
+            }
+            queue(null);
+            return keptCount;
+        }
+
+        private long combineLog() throws IOException, InterruptedException {
+            long keptCount = 0;
+            long record = 0;
+
+            BufferedReader reader = openLog(inputFile);
+            try {
+                String line = readTitles(reader);
+                if (line == null) {
+                    throw new IOException("No column headings in file, " + inputFile);
+                }
+                if (!counting) {
+                    String[] newTitles = line.split("\t");
+                    if (newTitles.length != titles.length) {
+                        throw new IOException("ERROR: The number of columns in file, " + inputFile + ", does not match that of the first file");
+                    }
+                    for (int k = 0; k < newTitles.length; k++) {
+                        if (!newTitles[k].equals(titles[k])) {
+                            System.err.println("WARNING: The column heading, " + newTitles[k] + " in file, " + inputFile + ", does not match the first file's heading, " + titles[k]);
+                        }
+                    }
+                }
+
+                long stateCount = firstStateCount;
+                line = reader.readLine();
+                while (line != null) {
+                    String[] parts = line.split("\t");
+
+                    long state = -1;
+                    boolean skip = false;
+                    try {
+                        state = Long.parseLong(parts[0]);
+                    } catch (NumberFormatException nfe) {
+                        skip = true;
+                    }
+
+                    // if the columnCount is not the same then perhaps the line is corrupt so skip it.
+                    if (!skip && record >= firstCountedRecord && state >= burnin && parts.length == columnCount &&
+                            hasNumericValues(parts)) {
+                        keptCount++;
+                        if (!counting) {
+                            stateCount += (renumberOutput ? 1 : stateStep);
+                            pendingCount++;
+                            if (isResampled(stateCount)) {
+                                queue(formatValues(parts, titles, convertToDecimal, useScale, scale));
+                            }
+                        }
+                    }
+                    record++;
+                    line = reader.readLine();
+                }
+            } finally {
+                reader.close();
+            }
+            if (!counting) {
+                queue(null);
+            }
+            return keptCount;
+        }
+
+        // when not resampling the state counts will not be known so every line is kept
+        private boolean isResampled(long stateCount) {
+            if (resample < 0) {
+                return true;
+            } else if (!renumberOutput) {
+                return (stateCount % resample == 0);
+            } else {
+                return ((stateCount * stateStep) % resample == 0);
+            }
+        }
+
+        // queues a line (or at the end of the file, just the states counted since the last line)
+        private void queue(String text) throws InterruptedException {
+            if (text != null || pendingCount > 0) {
+                lines.put(new CombinedLine(pendingCount, text, null));
+                pendingCount = 0;
+            }
+        }
+
+        private final File inputFile;
+        private final long burnin;
+        private final long firstCountedRecord;
+        private final long stateStep;
+        private final int columnCount;
+        private final String[] titles;
+
+        private final BlockingQueue<CombinedLine> lines = new ArrayBlockingQueue<CombinedLine>(QUEUE_LENGTH);
+        private long pendingCount = 0;
+
+        boolean counting = (resample >= 0);
+        long firstStateCount;
+    }
+
+    private final long resample;
+    private final boolean treeFiles;
+    private final boolean convertToDecimal;
+    private final boolean stripAnnotations;
+    private final boolean renumberOutput;
+    private final boolean useScale;
+    private final double scale;
+
     private void rescaleTree(Tree tree, double scale) {
         if (tree instanceof MutableTree) {
             MutableTree mutableTree = (MutableTree) tree;
@@ -389,10 +874,34 @@ public class LogCombiner {
         writer.println("\t\t;");
     }
 
+    // the values of a line of a log (after the state) each preceded by a tab
+    private String formatValues(String[] parts, String[] titles, boolean convertToDecimal, boolean useScale, double scale) {
+        StringBuilder buffer = new StringBuilder();
+        for (int j = 1; j < parts.length; j++) {
+            String value = parts[j];
+
+            if (useScale) {
+                if (titles[j].equals("clock.rate") || titles[j].startsWith("skyline.popSize")) {
+                    value = reformatNumbers(value, convertToDecimal, true, 1.0 / scale);
+                } else if (titles[j].equals("treeModel.rootHeight")) {
+                    value = reformatNumbers(value, convertToDecimal, true, scale);
+                }
+            } else  if (convertToDecimal) {
+                value = reformatNumbers(value, convertToDecimal, false, 1.0);
+            }
+            buffer.append("\t").append(value);
+        }
+        return buffer.toString();
+    }
+
     private void writeTree(long state, Tree tree, boolean convertToDecimal, PrintWriter writer) {
+        writer.println(TREE_PREFIX + state + formatTree(tree, convertToDecimal));
+    }
 
-        StringBuffer buffer = new StringBuffer("tree STATE_");
-        buffer.append(state);
+    // a tree as written to the log after its state number
+    private String formatTree(Tree tree, boolean convertToDecimal) {
+
+        StringBuffer buffer = new StringBuffer();
 //        Double lnP = (Double) tree.getAttribute("lnP");
 //        if (lnP != null) {
 //            buffer.append(" [&lnP=").append(lnP).append("]");
@@ -423,7 +932,7 @@ public class LogCombiner {
         writeTree(tree, tree.getRoot(), taxonMap, convertToDecimal, buffer);
 
         buffer.append(";");
-        writer.println(buffer.toString());
+        return buffer.toString();
     }
 
     private String formatValue(Object value) {
@@ -484,7 +993,7 @@ public class LogCombiner {
         if (parent != null) {
             buffer.append(":");
             double length = tree.getBranchLength(node);
-            buffer.append(convertToDecimal ? decimalFormatter.format(length) : scientificFormatter.format(length));
+            buffer.append(convertToDecimal ? decimalFormatter.get().format(length) : scientificFormatter.get().format(length));
         }
     }
 
@@ -492,14 +1001,24 @@ public class LogCombiner {
         writer.println("End;");
     }
 
-    private static final DecimalFormat decimalFormatter = new DecimalFormat("#.############", new DecimalFormatSymbols(Locale.US));
-    private static final DecimalFormat scientificFormatter = new DecimalFormat("#.############E0", new DecimalFormatSymbols(Locale.US));
+    // formats are not thread safe so each thread combining files has its own
+    private static final ThreadLocal<DecimalFormat> decimalFormatter = new ThreadLocal<DecimalFormat>() {
+        protected DecimalFormat initialValue() {
+            return new DecimalFormat("#.############", new DecimalFormatSymbols(Locale.US));
+        }
+    };
+    private static final ThreadLocal<DecimalFormat> scientificFormatter = new ThreadLocal<DecimalFormat>() {
+        protected DecimalFormat initialValue() {
+            return new DecimalFormat("#.############E0", new DecimalFormatSymbols(Locale.US));
+        }
+    };
+
+    private static final Pattern NUMBER_PATTERN = Pattern.compile("\\d+\\.\\d+(E[\\-\\d\\.]+)?");
 
     private String reformatNumbers(String line, boolean convertDecimal, boolean useScale, double scale) {
         StringBuffer outLine = new StringBuffer();
 
-        Pattern pattern = Pattern.compile("\\d+\\.\\d+(E[\\-\\d\\.]+)?");
-        Matcher matcher = pattern.matcher(line);
+        Matcher matcher = NUMBER_PATTERN.matcher(line);
 
         int lastEnd = 0;
         while (matcher.find()) {
@@ -509,7 +1028,7 @@ public class LogCombiner {
             if (useScale) {
                 value *= scale;
             }
-            String outToken = (convertDecimal ? decimalFormatter.format(value) : scientificFormatter.format(value));
+            String outToken = (convertDecimal ? decimalFormatter.get().format(value) : scientificFormatter.get().format(value));
 
             outLine.append(line.substring(lastEnd, start));
             outLine.append(outToken);
@@ -655,6 +1174,7 @@ public class LogCombiner {
                             new Arguments.RealOption("scale", "a scaling factor that will multiply any time units by this value"),
                             new Arguments.Option("strip", "strip out all annotations (trees only)"),
                             new Arguments.Option("renumber", "this option renumbers output states consecutively"),
+                            new Arguments.IntegerOption("threads", "read and parse this many input files at once"),
                             new Arguments.Option("help", "option to print this message")
                     });
 
@@ -696,6 +1216,11 @@ public class LogCombiner {
                 useScale = true;
             }
 
+            int threadCount = 1;
+            if (arguments.hasOption("threads")) {
+                threadCount = arguments.getIntegerOption("threads");
+            }
+
             String[] args2 = arguments.getLeftoverArguments();
 
             if (args2.length < 2) {
@@ -710,7 +1235,7 @@ public class LogCombiner {
             String outputFileName = args2[args2.length - 1];
 
             new LogCombiner(new long[]{burnin}, resample, inputFileNames, outputFileName, treeFiles, convertToDecimal,
-                    stripAnnotations, renumberOutput, useScale, scale);
+                    stripAnnotations, renumberOutput, useScale, scale, threadCount);
 
             System.out.println("Finished.");
         }
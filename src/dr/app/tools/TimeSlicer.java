@@ -52,6 +52,8 @@ import java.awt.geom.Point2D;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author Marc A. Suchard
@@ -132,6 +134,8 @@ public class TimeSlicer {
     public static final boolean GREATCIRCLEDISTANCE = true;
     public static final String SUBSTITUTION = "N";
     public static final String DESCENDENTS = "descendents";
+    public static final String THREADS = "threads";
+    public static final String MAX_SAMPLES = "maxSamples";
 
     public static final String[] falseTrue = {"false", "true"};
 
@@ -143,8 +147,26 @@ public class TimeSlicer {
                       final boolean summarizeRoot, final boolean summarizeTips, Normalization normalize, boolean getSDR, boolean getSNR,
                       String progress, boolean branchNormalization, BranchSet branchset, Set taxaSet, int grid,
                       double latMin, double latMax, double longMin, double longMax, Set descendentTaxaSet, String rateString) {
+        this(treeFileName, burnin, skipEvery, traits, sliceHeights, impute, trueNoise, mrsd, contourMode, sliceMode,
+                summarizeRoot, summarizeTips, normalize, getSDR, getSNR, progress, branchNormalization, branchset, taxaSet,
+                grid, latMin, latMax, longMin, longMax, descendentTaxaSet, rateString, 1, 0);
+    }
+
+    /**
+     * @param threadCount the number of threads analysing batches of trees (the trees are still read in turn)
+     * @param maxSamples  if greater than zero, the most values kept for each slice, root or tip and trait; beyond
+     *                    this a uniform sample of the values is kept (chosen the same way for any number of threads)
+     */
+    public TimeSlicer(String treeFileName, int burnin, int skipEvery, String[] traits, double[] sliceHeights, boolean impute,
+                      boolean trueNoise, double mrsd, ContourMode contourMode, SliceMode sliceMode,
+                      final boolean summarizeRoot, final boolean summarizeTips, Normalization normalize, boolean getSDR, boolean getSNR,
+                      String progress, boolean branchNormalization, BranchSet branchset, Set taxaSet, int grid,
+                      double latMin, double latMax, double longMin, double longMax, Set descendentTaxaSet, String rateString,
+                      int threadCount, int maxSamples) {
 
         this.traits = traits;
+        this.threadCount = Math.max(1, threadCount);
+        this.maxSamples = maxSamples;
         traitCount = traits.length;
 
         sliceCount = 1;
@@ -197,14 +219,14 @@ public class TimeSlicer {
             List<List<Trait>> thisSlice = new ArrayList<List<Trait>>(traitCount);
             values.add(thisSlice);
             for (int j = 0; j < traitCount; j++) {
-                List<Trait> thisTraitSlice = new ArrayList<Trait>();
+                List<Trait> thisTraitSlice = new TraitSample();
                 thisSlice.add(thisTraitSlice);
             }
         }
         if (summarizeRoot) {
             rootValues = new ArrayList<List<Trait>>(traitCount);
             for (int k = 0; k < traitCount; k++) {
-                List<Trait> thisTrait = new ArrayList<Trait>();
+                List<Trait> thisTrait = new TraitSample();
                 rootValues.add(thisTrait);
             }
         }
@@ -652,19 +674,19 @@ public class TimeSlicer {
         }
     }
 
-    enum Normalization {
+    public enum Normalization {
         LENGTH,
         HEIGHT,
         NONE
     }
 
-    enum OutputFormat {
+    public enum OutputFormat {
         TAB,
         KML,
         XML
     }
 
-    enum BranchSet {
+    public enum BranchSet {
         ALL,
         INT,
         EXT,
@@ -672,7 +694,7 @@ public class TimeSlicer {
         CLADE
     }
 
-    enum SliceMode {
+    public enum SliceMode {
         BRANCHES,
         NODES,
     }
@@ -1514,12 +1536,24 @@ public class TimeSlicer {
         }
         totalTrees = 0;
 
+        // The trees are read in turn and analysed in batches, by a pool of threads if there is more than one. The
+        // values from each batch are added in the order the batches were read so the results don't depend on the
+        // number of threads, and only a few batches per thread are held at once.
+        ExecutorService pool = (threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null);
+        Deque<Future<TreeValues>> pending = new ArrayDeque<Future<TreeValues>>();
+        List<Tree> batch = new ArrayList<Tree>(TREE_BATCH_SIZE);
+
         while (importer1.hasTree()) {
             Tree treeTime = importer1.importNextTree();
             if (totalTrees % skipEvery == 0) {
                 treesRead++;
                 if (totalTrees >= burnin) {
-                    analyzeTree(treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchLength, branchset, taxaSet);
+                    batch.add(treeTime);
+                    if (batch.size() == TREE_BATCH_SIZE) {
+                        analyzeBatch(new BatchAnalysis(batch, traits, slices, impute, trueNoise, normalize,
+                                divideByBranchLength, branchset, taxaSet), pool, pending);
+                        batch = new ArrayList<Tree>(TREE_BATCH_SIZE);
+                    }
                 }
             }
             if (totalTrees > 0 && totalTrees % stepSize == 0) {
@@ -1531,9 +1565,200 @@ public class TimeSlicer {
             }
             totalTrees++;
         }
+
+        if (batch.size() > 0) {
+            analyzeBatch(new BatchAnalysis(batch, traits, slices, impute, trueNoise, normalize,
+                    divideByBranchLength, branchset, taxaSet), pool, pending);
+        }
+        if (pool != null) {
+            while (!pending.isEmpty()) {
+                addTreeValues(getTreeValues(pending.remove()));
+            }
+            pool.shutdown();
+        }
         progressStream.print("\n");
     }
 
+    // analyses a batch in this thread if there is no pool, otherwise submits it and adds the values of the
+    // oldest batches once too many are pending
+    private void analyzeBatch(BatchAnalysis analysis, ExecutorService pool, Deque<Future<TreeValues>> pending) {
+        if (pool == null) {
+            addTreeValues(analysis.call());
+        } else {
+            pending.add(pool.submit(analysis));
+            if (pending.size() > PENDING_BATCHES_PER_THREAD * threadCount) {
+                addTreeValues(getTreeValues(pending.remove()));
+            }
+        }
+    }
+
+    private class BatchAnalysis implements Callable<TreeValues> {
+
+        BatchAnalysis(List<Tree> trees, String[] traits, double[] slices, boolean impute, boolean trueNoise,
+                      Normalization normalize, boolean divideByBranchLength, BranchSet branchset, Set taxaSet) {
+            this.trees = trees;
+            this.traits = traits;
+            this.slices = slices;
+            this.impute = impute;
+            this.trueNoise = trueNoise;
+            this.normalize = normalize;
+            this.divideByBranchLength = divideByBranchLength;
+            this.branchset = branchset;
+            this.taxaSet = taxaSet;
+        }
+
+        public TreeValues call() {
+            TreeValues treeValues = new TreeValues();
+            for (Tree tree : trees) {
+                analyzeTree(tree, traits, slices, impute, trueNoise, normalize, divideByBranchLength, branchset, taxaSet, treeValues);
+            }
+            return treeValues;
+        }
+
+        private final List<Tree> trees;
+        private final String[] traits;
+        private final double[] slices;
+        private final boolean impute;
+        private final boolean trueNoise;
+        private final Normalization normalize;
+        private final boolean divideByBranchLength;
+        private final BranchSet branchset;
+        private final Set taxaSet;
+    }
+
+    private TreeValues getTreeValues(Future<TreeValues> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // adds the values from a batch of trees to those of the trees before it
+    private void addTreeValues(TreeValues treeValues) {
+        for (int i = 0; i < sliceCount; i++) {
+            for (int j = 0; j < traitCount; j++) {
+                ((TraitSample) values.get(i).get(j)).addAllValues(treeValues.values.get(i).get(j));
+            }
+        }
+        if (rootValues != null) {
+            for (int j = 0; j < traitCount; j++) {
+                ((TraitSample) rootValues.get(j)).addAllValues(treeValues.rootValues.get(j));
+            }
+        }
+        if (tipValues != null && treeValues.tipValues.size() > 0) {
+            if (tipValues.size() == 0) {
+                // these are the first trees so initialize the tip value lists
+                for (int i = 0; i < treeValues.tipValues.size(); i++) {
+                    List<List<Trait>> thisTip = new ArrayList<List<Trait>>(traitCount);
+                    tipValues.add(thisTip);
+                    for (int j = 0; j < traitCount; j++) {
+                        thisTip.add(new TraitSample());
+                    }
+                }
+                tipNames.addAll(treeValues.tipNames);
+            }
+            for (int i = 0; i < tipValues.size(); i++) {
+                for (int j = 0; j < traitCount; j++) {
+                    ((TraitSample) tipValues.get(i).get(j)).addAllValues(treeValues.tipValues.get(i).get(j));
+                }
+            }
+        }
+
+        treeLengths.addAll(treeValues.treeLengths);
+        sliceTreeDistanceArrays.addAll(treeValues.sliceTreeDistanceArrays);
+        sliceTreeTimeArrays.addAll(treeValues.sliceTreeTimeArrays);
+        sliceTreeMaxPathDistanceArrays.addAll(treeValues.sliceTreeMaxPathDistanceArrays);
+        sliceTreeMaxDistanceFromRootArrays.addAll(treeValues.sliceTreeMaxDistanceFromRootArrays);
+        sliceTreeTimeFromRootArrays.addAll(treeValues.sliceTreeTimeFromRootArrays);
+        sliceTreeDiffusionCoefficientArrays.addAll(treeValues.sliceTreeDiffusionCoefficientArrays);
+        sliceTreeDiffusionCoefficientVarianceArrays.addAll(treeValues.sliceTreeDiffusionCoefficientVarianceArrays);
+        treesAnalyzed += treeValues.treeCount;
+    }
+
+    /**
+     * The values collected from a batch of trees, laid out as those for all the trees.
+     */
+    private class TreeValues {
+
+        TreeValues() {
+            values = new ArrayList<List<List<Trait>>>(sliceCount);
+            for (int i = 0; i < sliceCount; i++) {
+                List<List<Trait>> thisSlice = new ArrayList<List<Trait>>(traitCount);
+                values.add(thisSlice);
+                for (int j = 0; j < traitCount; j++) {
+                    thisSlice.add(new ArrayList<Trait>());
+                }
+            }
+            if (TimeSlicer.this.rootValues != null) {
+                rootValues = new ArrayList<List<Trait>>(traitCount);
+                for (int j = 0; j < traitCount; j++) {
+                    rootValues.add(new ArrayList<Trait>());
+                }
+            } else {
+                rootValues = null;
+            }
+            if (TimeSlicer.this.tipValues != null) {
+                tipValues = new ArrayList<List<List<Trait>>>();
+                tipNames = new ArrayList<String>();
+            } else {
+                tipValues = null;
+                tipNames = null;
+            }
+        }
+
+        final List<List<List<Trait>>> values;
+        final List<List<Trait>> rootValues;
+        final List<List<List<Trait>>> tipValues;
+        final List<String> tipNames;
+
+        final List<Double> treeLengths = new ArrayList<Double>();
+        final List<double[]> sliceTreeDistanceArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeTimeArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeMaxPathDistanceArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeMaxDistanceFromRootArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeTimeFromRootArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeDiffusionCoefficientArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeDiffusionCoefficientVarianceArrays = new ArrayList<double[]>();
+        int treeCount = 0;
+    }
+
+    /**
+     * The values of a trait for a slice, the root or a tip over all the trees. If maxSamples is set, once there
+     * are more values than that a reservoir sample is kept instead: a uniform sample of the values so far of size
+     * maxSamples. Each list has its own random number stream, seeded in the order the lists are made, and is given
+     * the values in the order of the trees so the sample is the same for any number of threads.
+     */
+    private class TraitSample extends ArrayList<Trait> {
+
+        TraitSample() {
+            random = (maxSamples > 0 ? new Random(RESERVOIR_SEED + traitSampleCount++) : null);
+        }
+
+        void addAllValues(List<Trait> traits) {
+            if (random == null) {
+                addAll(traits);
+                return;
+            }
+            for (Trait trait : traits) {
+                valueCount++;
+                if (size() < maxSamples) {
+                    add(trait);
+                } else {
+                    long k = (long) (random.nextDouble() * valueCount);
+                    if (k < maxSamples) {
+                        set((int) k, trait);
+                    }
+                }
+            }
+        }
+
+        private final Random random;
+        private long valueCount = 0;
+    }
+
     class Trait {
 
         Trait(Object obj) {
@@ -1696,7 +1921,7 @@ public class TimeSlicer {
 
     private void analyzeTree(Tree treeTime, String[] traits, double[] slices, boolean impute,
                              boolean trueNoise, Normalization normalize, boolean divideByBranchlength,
-                             BranchSet branchset, Set taxaSet) {
+                             BranchSet branchset, Set taxaSet, TreeValues into) {
 
         double[][] precision = null;
 
@@ -1725,17 +1950,17 @@ public class TimeSlicer {
         }
 
 
-        if (tipValues != null && tipValues.size() == 0) {
+        if (into.tipValues != null && into.tipValues.size() == 0) {
             // this is the first tree so initialize the tip value lists
             for (int i = 0; i < treeTime.getExternalNodeCount(); i++) {
                 List<List<Trait>> thisTip = new ArrayList<List<Trait>>(traitCount);
-                tipValues.add(thisTip);
+                into.tipValues.add(thisTip);
                 for (int j = 0; j < traitCount; j++) {
                     List<Trait> thisTipTrait = new ArrayList<Trait>();
                     thisTip.add(thisTipTrait);
                 }
 
-                tipNames.add(treeTime.getNodeTaxon(treeTime.getExternalNode(i)).getId());
+                into.tipNames.add(treeTime.getNodeTaxon(treeTime.getExternalNode(i)).getId());
             }
 
         }
@@ -1758,7 +1983,7 @@ public class TimeSlicer {
         double[][] treeSliceDiffusionCoefficients = new double[sliceCount][treeTime.getNodeCount() - 1];
         double[] treeSliceBranchCount = new double[sliceCount];
 
-        treeLengths.add(TreeUtils.getTreeLength(treeTime, treeTime.getRoot()));
+        into.treeLengths.add(TreeUtils.getTreeLength(treeTime, treeTime.getRoot()));
 
         for (int x = 0; x < treeTime.getNodeCount(); x++) {
 
@@ -1910,7 +2135,7 @@ public class TimeSlicer {
 
                         if (proceed) {
 
-                            List<List<Trait>> thisSlice = values.get(i);
+                            List<List<Trait>> thisSlice = into.values.get(i);
                             for (int j = 0; j < traitCount; j++) {
 
                                 List<Trait> thisTraitSlice = thisSlice.get(j);
@@ -1930,9 +2155,8 @@ public class TimeSlicer {
                                         Double rateAttribute = (Double) treeTime.getNodeAttribute(node, rateAttributeString);
                                         if (rateAttribute != null) {
                                             rate = rateAttribute;
-                                            if (outputRateWarning) {
+                                            if (outputRateWarning.getAndSet(false)) {
                                                 progressStream.println("Warning: using "+rateAttributeString+" as rate attribute during imputation!");
-                                                outputRateWarning = false;
                                             }
                                         }
                                     }
@@ -1994,8 +2218,8 @@ public class TimeSlicer {
                     }
                 }
 
-                if (tipValues != null && treeTime.isExternal(node)) {
-                    List<List<Trait>> thisTip = tipValues.get(x);
+                if (into.tipValues != null && treeTime.isExternal(node)) {
+                    List<List<Trait>> thisTip = into.tipValues.get(x);
 
                     for (int j = 0; j < traitCount; j++) {
                         Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
@@ -2017,7 +2241,7 @@ public class TimeSlicer {
                             height = slices[i + 1];
                         }
                         if ((slices[i] < nodeHeight && height >= nodeHeight)){
-                            List<List<Trait>> thisSlice = values.get(i);
+                            List<List<Trait>> thisSlice = into.values.get(i);
                             for (int j = 0; j < traitCount; j++) {
                                 List<Trait> thisTraitSlice = thisSlice.get(j);
                                 Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
@@ -2035,9 +2259,9 @@ public class TimeSlicer {
                     }
                 }
 
-                if (rootValues != null) {
+                if (into.rootValues != null) {
                     for (int j = 0; j < traitCount; j++) {
-                        List<Trait> thisRootTrait = rootValues.get(j);
+                        List<Trait> thisRootTrait = into.rootValues.get(j);
                         Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                         if (tmpTrait == null) {
                             System.err.println("Trait '" + traits[j] + "' not found on root node.");
@@ -2054,12 +2278,12 @@ public class TimeSlicer {
         //System.out.println(Tree.Utils.getTreeLength(treeTime, treeTime.getRoot())+"\t"+test);
 
         if (sdr || snr) {
-            sliceTreeDistanceArrays.add(treeSliceDistance);
-            sliceTreeTimeArrays.add(treeSliceTime);
+            into.sliceTreeDistanceArrays.add(treeSliceDistance);
+            into.sliceTreeTimeArrays.add(treeSliceTime);
             if (sdr){
-                sliceTreeMaxPathDistanceArrays.add(treeSliceMaxDistance);
-                sliceTreeMaxDistanceFromRootArrays.add(maxDistanceFromRoot);
-                sliceTreeTimeFromRootArrays.add(treeTimeFromRoot);
+                into.sliceTreeMaxPathDistanceArrays.add(treeSliceMaxDistance);
+                into.sliceTreeMaxDistanceFromRootArrays.add(maxDistanceFromRoot);
+                into.sliceTreeTimeFromRootArrays.add(treeTimeFromRoot);
                 for (int i = 0; i < treeSliceDiffusionCoefficientA.length; i++) {
                     //treeSliceDiffusionCoefficientWA[i] = treeSliceDiffusionCoefficientWA[i]/treeSliceTime[i];
                     treeSliceDiffusionCoefficientA[i] = treeSliceDiffusionCoefficientA[i] / treeSliceBranchCount[i];
@@ -2069,8 +2293,8 @@ public class TimeSlicer {
                     treeSliceDiffusionCoefficientV[i] = treeSliceDiffusionCoefficientV[i] / treeSliceBranchCount[i];
                     //System.out.println(treeSliceTime[i]+"\t"+treeLengths.get(i));
                 }
-                sliceTreeDiffusionCoefficientArrays.add(treeSliceDiffusionCoefficientA);
-                sliceTreeDiffusionCoefficientVarianceArrays.add(treeSliceDiffusionCoefficientV);
+                into.sliceTreeDiffusionCoefficientArrays.add(treeSliceDiffusionCoefficientA);
+                into.sliceTreeDiffusionCoefficientVarianceArrays.add(treeSliceDiffusionCoefficientV);
             }
         }
 
@@ -2084,7 +2308,7 @@ public class TimeSlicer {
 //            dispersalrates.add(dispersalNativeRate+"\t"+dispersalKilometerRate);
 //        }
 
-        treesAnalyzed++;
+        into.treeCount++;
 
     }
 
@@ -2154,6 +2378,13 @@ public class TimeSlicer {
     private boolean doSlices;
     private int treesRead = 0;
     private int treesAnalyzed = 0;
+    private final int threadCount;
+    private final int maxSamples;
+    private int traitSampleCount = 0;
+
+    private static final int TREE_BATCH_SIZE = 50;
+    private static final int PENDING_BATCHES_PER_THREAD = 2;
+    private static final long RESERVOIR_SEED = 666;
     private double mostRecentSamplingDate;
     private ContourMode contourMode;
     private SliceMode sliceMode;
@@ -2179,18 +2410,18 @@ public class TimeSlicer {
 //        }
 //    }
 
-    private ArrayList sliceTreeDistanceArrays = new ArrayList();
-    private ArrayList sliceTreeTimeArrays = new ArrayList();
-    private ArrayList sliceTreeMaxPathDistanceArrays = new ArrayList();
-    private ArrayList sliceTreeMaxDistanceFromRootArrays = new ArrayList();
-    private ArrayList sliceTreeTimeFromRootArrays = new ArrayList();
-    private ArrayList sliceTreeDiffusionCoefficientArrays = new ArrayList();
-    private ArrayList sliceTreeDiffusionCoefficientVarianceArrays = new ArrayList();
+    private final List<double[]> sliceTreeDistanceArrays = new ArrayList<double[]>();
+    private final List<double[]> sliceTreeTimeArrays = new ArrayList<double[]>();
+    private final List<double[]> sliceTreeMaxPathDistanceArrays = new ArrayList<double[]>();
+    private final List<double[]> sliceTreeMaxDistanceFromRootArrays = new ArrayList<double[]>();
+    private final List<double[]> sliceTreeTimeFromRootArrays = new ArrayList<double[]>();
+    private final List<double[]> sliceTreeDiffusionCoefficientArrays = new ArrayList<double[]>();
+    private final List<double[]> sliceTreeDiffusionCoefficientVarianceArrays = new ArrayList<double[]>();
     private boolean sdr;
     private boolean snr;
-    private ArrayList treeLengths = new ArrayList();
+    private final List<Double> treeLengths = new ArrayList<Double>();
 
-    private boolean outputRateWarning = true;
+    private final AtomicBoolean outputRateWarning = new AtomicBoolean(true);
 
 
     private Trait imputeValue(Trait nodeTrait, Trait parentTrait, double time, double nodeHeight, double parentHeight, double[][] precision, double rate, boolean trueNoise) {
@@ -2660,6 +2891,8 @@ public class TimeSlicer {
         double longMax = Double.MAX_VALUE;
         double longMin = -Double.MAX_VALUE;
         String rateString = "location.rate";
+        int threadCount = 1;
+        int maxSamples = 0;
         Set descendents = null;
 
 //        if (args.length == 0) {
@@ -2713,7 +2946,9 @@ public class TimeSlicer {
                         new Arguments.RealOption(LONGMAX, "specifies the maximum longitude for a child node for a branch to be included in the summary [default=MAX_VALUE]"),
                         new Arguments.RealOption(LONGMIN, "specifies the minimum longitude for a child node for a branch to be included in the summary [default=MIN_VALUE]"),
                         new Arguments.IntegerOption(GRIDSIZE, "the grid size for contouring [default=200]"),
-                        new Arguments.StringOption(DESCENDENTS, "descendent taxa", "specifies a branch based on the descendent taxa [default=all branches]")
+                        new Arguments.StringOption(DESCENDENTS, "descendent taxa", "specifies a branch based on the descendent taxa [default=all branches]"),
+                        new Arguments.IntegerOption(THREADS, "the number of threads analysing trees; with imputed noise the draws are not reproducible for more than one [default=1]"),
+                        new Arguments.IntegerOption(MAX_SAMPLES, "keep a uniform sample of at most this many values for each slice, root or tip and trait [default=all values]")
 
                 });
 
@@ -2983,6 +3218,14 @@ public class TimeSlicer {
                 grid = arguments.getIntegerOption(GRIDSIZE);
             }
 
+            if (arguments.hasOption(THREADS)) {
+                threadCount = arguments.getIntegerOption(THREADS);
+            }
+
+            if (arguments.hasOption(MAX_SAMPLES)) {
+                maxSamples = arguments.getIntegerOption(MAX_SAMPLES);
+            }
+
 
 
         } catch (Arguments.ArgumentException e) {
@@ -3014,7 +3257,8 @@ public class TimeSlicer {
 
         TimeSlicer timeSlicer = new TimeSlicer(inputFileName, burnin, skipEvery, traitNames, sliceHeights, impute,
                 trueNoise, mrsd, contourMode, sliceMode,summarizeRoot, summarizeTips, normalize, getSDR, getSNR, progress,
-                branchNormalization, set, taxaSet, grid, latMin, latMax, longMin, longMax, descendents, rateString);
+                branchNormalization, set, taxaSet, grid, latMin, latMax, longMin, longMax, descendents, rateString,
+                threadCount, maxSamples);
         timeSlicer.output(outputFileName, summaryOnly, summarizeRoot, summarizeTips, contours, points, outputFormat, hpdValues, outputFileSDR, outputFileSNR);
 
         System.exit(0);
@@ -50,6 +50,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * @author Alexei Drummond
@@ -128,7 +130,30 @@ public class TreeAnnotator {
                          String inputFileName,
                          String outputFileName
     ) throws IOException {
+        this(burninTrees, burninStates, heightsOption, posteriorLimit, hpd2D, targetOption, targetTreeFileName,
+                inputFileName, outputFileName, 0, DEFAULT_SUMMARY_SAMPLE_LIMIT);
+    }
+
+    /**
+     * @param threadCount        if greater than 0 then the trees are processed by this many threads using clade
+     *                           fingerprints and streaming summaries of the attributes
+     * @param summarySampleLimit with threads, the maximum number of values per clade kept for medians and HPDs
+     */
+    public TreeAnnotator(final int burninTrees,
+                         final long burninStates,
+                         HeightsSummary heightsOption,
+                         double posteriorLimit,
+                         double[] hpd2D,
+                         Target targetOption,
+                         String targetTreeFileName,
+                         String inputFileName,
+                         String outputFileName,
+                         int threadCount,
+                         int summarySampleLimit
+    ) throws IOException {
 
+        this.threadCount = threadCount;
+        this.summarySampleLimit = summarySampleLimit;
         this.posteriorLimit = posteriorLimit;
         this.hpd2D = hpd2D;
 
@@ -153,6 +178,8 @@ public class TreeAnnotator {
             cladeSystem = new CladeSystem();
             FileReader fileReader = new FileReader(inputFileName);
             TreeImporter importer = new NexusImporter(fileReader, true);
+            TreeStream treeStream = null;
+            CladeCountTask[] countTasks = null;
             try {
                 totalTrees = 0;
                 while (importer.hasTree()) {
@@ -178,7 +205,19 @@ public class TreeAnnotator {
                             burnin = totalTrees;
                         }
 
-                        cladeSystem.add(tree, false);
+                        if (threadCount > 0) {
+                            if (treeStream == null) {
+                                fingerprinter = new CladeFingerprintTable.Fingerprinter(tree);
+                                countTasks = new CladeCountTask[threadCount];
+                                for (int i = 0; i < threadCount; i++) {
+                                    countTasks[i] = new CladeCountTask();
+                                }
+                                treeStream = new TreeStream(countTasks);
+                            }
+                            treeStream.submit(tree);
+                        } else {
+                            cladeSystem.add(tree, false);
+                        }
 
                         totalTreesUsed += 1;
                     }
@@ -202,13 +241,23 @@ public class TreeAnnotator {
                 System.err.println("No trees");
                 return;
             }
+            if (treeStream != null) {
+                treeStream.finish();
+                // merge the clade counts of all the threads
+                cladeCounts = countTasks[0].table;
+                for (int i = 1; i < countTasks.length; i++) {
+                    cladeCounts.addAll(countTasks[i].table);
+                }
+            }
             if (totalTreesUsed <= 1) {
                 if (burnin > 0) {
                     System.err.println("No trees to use: burnin too high");
                     return;
                 }
             }
-            cladeSystem.calculateCladeCredibilities(totalTreesUsed);
+            if (cladeCounts == null) {
+                cladeSystem.calculateCladeCredibilities(totalTreesUsed);
+            }
 
             progressStream.println("Total trees read: " + totalTrees);
             if (burninTrees > 0) {
@@ -218,7 +267,8 @@ public class TreeAnnotator {
                 progressStream.println("Ignoring first " + burninStates + " states (" + burnin + " trees).");
             }
 
-            progressStream.println("Total unique clades: " + cladeSystem.getCladeMap().keySet().size());
+            progressStream.println("Total unique clades: " +
+                    (cladeCounts != null ? cladeCounts.size() : cladeSystem.getCladeMap().keySet().size()));
             progressStream.println();
         }
 
@@ -278,6 +328,8 @@ public class TreeAnnotator {
         // this is remedied with removeClades call after while loop below
         cladeSystem = new CladeSystem(targetTree);
         totalTreesUsed = 0;
+        TreeStream treeStream = null;
+        AttributeTask[] attributeTasks = null;
         try {
             boolean firstTree = true;
             int counter = 0;
@@ -288,9 +340,18 @@ public class TreeAnnotator {
                     if (firstTree) {
                         setupAttributes(tree);
                         firstTree = false;
+
+                        if (threadCount > 0) {
+                            attributeTasks = createAttributeTasks(targetTree);
+                            treeStream = new TreeStream(attributeTasks);
+                        }
                     }
 
-                    cladeSystem.collectAttributes(tree);
+                    if (treeStream != null) {
+                        treeStream.submit(tree);
+                    } else {
+                        cladeSystem.collectAttributes(tree);
+                    }
                     totalTreesUsed += 1;
                 }
                 if (counter > 0 && counter % stepSize == 0) {
@@ -300,7 +361,12 @@ public class TreeAnnotator {
                 counter++;
 
             }
-            cladeSystem.removeClades(targetTree, targetTree.getRoot(), true);
+            if (treeStream != null) {
+                treeStream.finish();
+                setCladeSummaries(cladeSystem, targetTree, attributeTasks);
+            } else {
+                cladeSystem.removeClades(targetTree, targetTree.getRoot(), true);
+            }
             //progressStream.println("totalTreesUsed=" + totalTreesUsed);
             cladeSystem.calculateCladeCredibilities(totalTreesUsed);
         } catch (Importer.ImportException e) {
@@ -373,11 +439,26 @@ public class TreeAnnotator {
         int counter = 0;
         int bestTreeNumber = 0;
         TreeImporter importer = new NexusImporter(new FileReader(inputFileName), true);
+
+        TreeStream treeStream = null;
+        ScoreTask[] scoreTasks = null;
+        if (cladeCounts != null) {
+            scoreTasks = new ScoreTask[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                scoreTasks[i] = new ScoreTask();
+            }
+            treeStream = new TreeStream(scoreTasks);
+        }
+
         try {
             while (importer.hasTree()) {
                 Tree tree = importer.importNextTree();
 
-                if (counter >= burnin) {
+                if (treeStream != null) {
+                    if (counter >= burnin) {
+                        treeStream.submit(tree);
+                    }
+                } else if (counter >= burnin) {
                     double score = scoreTree(tree, cladeSystem /*, useSumCladeCredibility*/);
 //                    progressStream.println(score);
                     if (score > bestScore) {
@@ -396,6 +477,22 @@ public class TreeAnnotator {
             System.err.println("Error Parsing Input Tree: " + e.getMessage());
             return null;
         }
+
+        if (treeStream != null) {
+            treeStream.finish();
+            // the highest score and, if tied, the first tree as when done in order
+            int bestIndex = -1;
+            for (ScoreTask task : scoreTasks) {
+                if (task.bestTree != null && (task.bestScore > bestScore ||
+                        (task.bestScore == bestScore && task.bestIndex < bestIndex))) {
+                    bestTree = task.bestTree;
+                    bestScore = task.bestScore;
+                    bestIndex = task.bestIndex;
+                }
+            }
+            bestTreeNumber = burnin + bestIndex + 1;
+        }
+
         progressStream.println();
         progressStream.println();
         progressStream.println("Best tree: " + bestTree.getId() + " (tree number " + bestTreeNumber + ")");
@@ -416,6 +513,32 @@ public class TreeAnnotator {
 //        }
     }
 
+    /**
+     * @return the values of the attributes of the node in the order of attributeNames (used when collecting
+     * the attributes both in turn and in parallel)
+     */
+    private Object[] getAttributeValues(Tree tree, NodeRef node) {
+        int i = 0;
+        Object[] values = new Object[attributeNames.size()];
+        for (String attributeName : attributeNames) {
+            Object value;
+            if (attributeName.equals("height")) {
+                value = tree.getNodeHeight(node);
+            } else if (attributeName.equals("length")) {
+                value = tree.getBranchLength(node);
+            } else {
+                value = tree.getNodeAttribute(node, attributeName);
+                if (value instanceof String && ((String) value).startsWith("\"")) {
+                    value = ((String) value).replaceAll("\"", "");
+                }
+            }
+
+            values[i] = value;
+            i++;
+        }
+        return values;
+    }
+
     private class CladeSystem {
         //
         // Public stuff
@@ -527,44 +650,7 @@ public class TreeAnnotator {
                     clade.attributeValues = new ArrayList<Object[]>();
                 }
 
-                int i = 0;
-                Object[] values = new Object[attributeNames.size()];
-                for (String attributeName : attributeNames) {
-                    boolean processed = false;
-
-                    if (!processed) {
-                        Object value;
-                        if (attributeName.equals("height")) {
-                            value = tree.getNodeHeight(node);
-                        } else if (attributeName.equals("length")) {
-                            value = tree.getBranchLength(node);
-// AR - we deal with this once everything                             
-//                        } else if (attributeName.equals(location1Attribute)) {
-//                            // If this is one of the two specified bivariate location names then
-//                            // merge this and the other one into a single array.
-//                            Object value1 = tree.getNodeAttribute(node, attributeName);
-//                            Object value2 = tree.getNodeAttribute(node, location2Attribute);
-//
-//                            value = new Object[]{value1, value2};
-//                        } else if (attributeName.equals(location2Attribute)) {
-//                            // do nothing - already dealt with this...
-//                            value = null;
-                        } else {
-                            value = tree.getNodeAttribute(node, attributeName);
-                            if (value instanceof String && ((String) value).startsWith("\"")) {
-                                value = ((String) value).replaceAll("\"", "");
-                            }
-                        }
-
-                        //if (value == null) {
-                        //    progressStream.println("attribute " + attributeNames[i] + " is null.");
-                        //}
-
-                        values[i] = value;
-                    }
-                    i++;
-                }
-                clade.attributeValues.add(values);
+                clade.attributeValues.add(getAttributeValues(tree, node));
 
                 //progressStream.println(clade + " " + clade.getValuesSize());
                 clade.setCount(clade.getCount() + 1);
@@ -774,7 +860,7 @@ public class TreeAnnotator {
                         }
                         if (isHeight) {
                             if (heightsOption == HeightsSummary.MEAN_HEIGHTS) {
-                                final double mean = DiscreteStatistics.mean(values);
+                                final double mean = getMean(clade, i, values);
                                 tree.setNodeHeight(node, mean);
                             } else if (heightsOption == HeightsSummary.MEDIAN_HEIGHTS) {
                                 final double median = DiscreteStatistics.median(values);
@@ -795,7 +881,7 @@ public class TreeAnnotator {
                             if (!processed) {
                                 if (!isDiscrete) {
                                     if (!isDoubleArray)
-                                        annotateMeanAttribute(tree, node, attributeName, values);
+                                        tree.setNodeAttribute(node, attributeName, getMean(clade, i, values));
                                     else {
                                         for (int k = 0; k < lenArray; k++) {
                                             annotateMeanAttribute(tree, node, attributeName + (k + 1), valuesArray[k]);
@@ -867,6 +953,11 @@ public class TreeAnnotator {
             }
         }
 
+        // the exact mean if it was accumulated in parallel mode, otherwise the mean of the values
+        private double getMean(Clade clade, int index, double[] values) {
+            return clade.attributeMeans != null ? clade.attributeMeans[index] : DiscreteStatistics.mean(values);
+        }
+
         private void annotateMeanAttribute(MutableTree tree, NodeRef node, String label, double[] values) {
             double mean = DiscreteStatistics.mean(values);
             tree.setNodeAttribute(node, label, mean);
@@ -1201,6 +1292,7 @@ public class TreeAnnotator {
             double credibility;
             BitSet bits;
             List<Object[]> attributeValues = null;
+            double[] attributeMeans = null;
         }
 
         //
@@ -1212,6 +1304,354 @@ public class TreeAnnotator {
         Tree targetTree;
     }
 
+    // ****************************************************************
+    // Parallel mode
+    // ****************************************************************
+
+    /**
+     * Something done to each tree by a worker thread. Each worker has its own task and is given every
+     * threadCount'th tree in file order, with index being the position of the tree after the burnin.
+     */
+    private interface TreeTask {
+        void process(Tree tree, int index);
+    }
+
+    /**
+     * Deals the trees out to a set of worker threads as they are read. Each worker has a small bounded
+     * queue so only a few trees per thread are ever held in memory. If a worker fails it keeps taking
+     * trees (without processing them) so the reader is never blocked and the failure is thrown by the
+     * next call to submit or finish.
+     */
+    private static class TreeStream {
+
+        TreeStream(TreeTask[] tasks) {
+            for (int k = 0; k < tasks.length; k++) {
+                final TreeTask task = tasks[k];
+                final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+                final int first = k;
+                final int step = tasks.length;
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        processTrees(task, queue, first, step);
+                    }
+                }, "tree-annotator-" + k);
+                thread.setDaemon(true);
+                queues.add(queue);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        void submit(Tree tree) {
+            checkFailure();
+            put(queues.get(treeCount % queues.size()), tree);
+            treeCount++;
+        }
+
+        /**
+         * Waits for all the trees to be processed.
+         */
+        void finish() {
+            for (BlockingQueue<Object> queue : queues) {
+                put(queue, END);
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for the trees to be processed");
+                }
+            }
+            checkFailure();
+        }
+
+        private void processTrees(TreeTask task, BlockingQueue<Object> queue, int first, int step) {
+            int index = first;
+            try {
+                while (true) {
+                    Object tree = queue.take();
+                    if (tree == END) {
+                        return;
+                    }
+                    if (failure == null) {
+                        try {
+                            task.process((Tree) tree, index);
+                        } catch (Throwable t) {
+                            failure = t;
+                        }
+                    }
+                    index += step;
+                }
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+        }
+
+        private void put(BlockingQueue<Object> queue, Object tree) {
+            try {
+                queue.put(tree);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading the trees");
+            }
+        }
+
+        private void checkFailure() {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new RuntimeException(failure.getMessage(), failure);
+            }
+        }
+
+        private static final int QUEUE_SIZE = 4;
+        private static final Object END = new Object();
+
+        private final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+        private final List<Thread> threads = new ArrayList<Thread>();
+        private int treeCount = 0;
+        private volatile Throwable failure = null;
+    }
+
+    /**
+     * Counts the clades (internal nodes) of the trees by fingerprint.
+     */
+    private class CladeCountTask implements TreeTask {
+
+        public void process(Tree tree, int index) {
+            fingerprinter.fingerprint(tree);
+            for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+                NodeRef node = tree.getInternalNode(i);
+                table.increment(fingerprinter.getHigh(node), fingerprinter.getLow(node), 1);
+            }
+        }
+
+        private final CladeFingerprintTable.Fingerprinter fingerprinter = TreeAnnotator.this.fingerprinter.copy();
+        private final CladeFingerprintTable table = new CladeFingerprintTable();
+    }
+
+    /**
+     * Finds the tree with the highest log clade credibility using the merged clade counts.
+     */
+    private class ScoreTask implements TreeTask {
+
+        public void process(Tree tree, int index) {
+            fingerprinter.fingerprint(tree);
+            double score = getLogCladeCredibility(tree, tree.getRoot());
+            // the trees come in order so the first of any tied trees is kept
+            if (bestTree == null || score > bestScore) {
+                bestTree = tree;
+                bestScore = score;
+                bestIndex = index;
+            }
+        }
+
+        // summed in the same order as CladeSystem.getLogCladeCredibility
+        private double getLogCladeCredibility(Tree tree, NodeRef node) {
+            double logCladeCredibility = 0.0;
+            if (!tree.isExternal(node)) {
+                for (int i = 0; i < tree.getChildCount(node); i++) {
+                    logCladeCredibility += getLogCladeCredibility(tree, tree.getChild(node, i));
+                }
+                int count = cladeCounts.get(fingerprinter.getHigh(node), fingerprinter.getLow(node));
+                logCladeCredibility += Math.log(((double) count) / (double) totalTreesUsed);
+            }
+            return logCladeCredibility;
+        }
+
+        private final CladeFingerprintTable.Fingerprinter fingerprinter = TreeAnnotator.this.fingerprinter.copy();
+        private Tree bestTree = null;
+        private double bestScore = Double.NEGATIVE_INFINITY;
+        private int bestIndex = -1;
+    }
+
+    /**
+     * Summarizes the attributes of the nodes of the trees that match clades in the target tree.
+     */
+    private class AttributeTask implements TreeTask {
+
+        AttributeTask(CladeFingerprintTable targetClades, int targetNodeCount) {
+            this.targetClades = targetClades;
+            summaries = new CladeSummary[targetNodeCount];
+            for (int i = 0; i < targetNodeCount; i++) {
+                summaries[i] = new CladeSummary(summarySampleLimit);
+            }
+        }
+
+        public void process(Tree tree, int index) {
+            fingerprinter.fingerprint(tree);
+            for (int i = 0; i < tree.getNodeCount(); i++) {
+                NodeRef node = tree.getNode(i);
+                int target = targetClades.get(fingerprinter.getHigh(node), fingerprinter.getLow(node));
+                if (target > 0) {
+                    summaries[target - 1].add(getAttributeValues(tree, node));
+                }
+            }
+        }
+
+        private final CladeFingerprintTable.Fingerprinter fingerprinter = TreeAnnotator.this.fingerprinter.copy();
+        private final CladeFingerprintTable targetClades;
+        private final CladeSummary[] summaries;
+    }
+
+    private AttributeTask[] createAttributeTasks(Tree targetTree) {
+        if (fingerprinter == null) {
+            fingerprinter = new CladeFingerprintTable.Fingerprinter(targetTree);
+        }
+
+        // the clades of the target tree (including the tips) mapped to their node number + 1
+        CladeFingerprintTable targetClades = new CladeFingerprintTable(targetTree.getNodeCount());
+        fingerprinter.fingerprint(targetTree);
+        for (int i = 0; i < targetTree.getNodeCount(); i++) {
+            NodeRef node = targetTree.getNode(i);
+            targetClades.put(fingerprinter.getHigh(node), fingerprinter.getLow(node), node.getNumber() + 1);
+        }
+
+        AttributeTask[] tasks = new AttributeTask[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            tasks[i] = new AttributeTask(targetClades, targetTree.getNodeCount());
+        }
+        return tasks;
+    }
+
+    /**
+     * Merges the summaries of the threads and puts them into the clades of the target tree in place of
+     * the values that the sequential code collects.
+     */
+    private void setCladeSummaries(CladeSystem cladeSystem, Tree targetTree, AttributeTask[] tasks) {
+        BitSet[] codes = new BitSet[targetTree.getNodeCount()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = new BitSet();
+        }
+        cladeSystem.getTreeCladeCodes(targetTree, codes);
+
+        for (int i = 0; i < codes.length; i++) {
+            CladeSummary summary = tasks[0].summaries[i];
+            for (int k = 1; k < tasks.length; k++) {
+                summary.merge(tasks[k].summaries[i]);
+            }
+
+            CladeSystem.Clade clade = cladeSystem.cladeMap.get(codes[i]);
+            clade.setCount(summary.getCount());
+            clade.attributeValues = summary.getSample();
+            clade.attributeMeans = summary.getMeans();
+        }
+    }
+
+    /**
+     * A streaming summary of the attribute values of a clade. The count and the means of the numerical
+     * attributes are exact. The rows of values are kept in an evenly thinned sample of at most
+     * sampleLimit rows (all of them if there are no more than that) from which the medians, HPDs and
+     * frequencies are calculated.
+     */
+    private static class CladeSummary {
+
+        CladeSummary(int sampleLimit) {
+            this.sampleLimit = sampleLimit;
+        }
+
+        void add(Object[] values) {
+            if (sums == null) {
+                sums = new double[values.length];
+            }
+            for (int i = 0; i < values.length; i++) {
+                sums[i] += getDoubleValue(values[i]);
+            }
+
+            // keep every stride'th row
+            if (count % stride == 0) {
+                sample.add(values);
+                if (sample.size() > sampleLimit) {
+                    thin();
+                }
+            }
+            count++;
+        }
+
+        void merge(CladeSummary other) {
+            if (other.count == 0) {
+                return;
+            }
+            if (sums == null) {
+                sums = new double[other.sums.length];
+            }
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += other.sums[i];
+            }
+
+            // bring the two samples to the same stride before pooling them
+            while (stride < other.stride) {
+                thin();
+            }
+            while (other.stride < stride) {
+                other.thin();
+            }
+            sample.addAll(other.sample);
+            while (sample.size() > sampleLimit) {
+                thin();
+            }
+            count += other.count;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        List<Object[]> getSample() {
+            return sample;
+        }
+
+        double[] getMeans() {
+            if (count == 0) {
+                return null;
+            }
+            double[] means = new double[sums.length];
+            for (int i = 0; i < sums.length; i++) {
+                means[i] = sums[i] / count;
+            }
+            return means;
+        }
+
+        // drop every other row of the sample
+        private void thin() {
+            int size = 0;
+            for (int j = 0; j < sample.size(); j += 2) {
+                sample.set(size, sample.get(j));
+                size++;
+            }
+            sample.subList(size, sample.size()).clear();
+            stride *= 2;
+        }
+
+        // as the values are treated by annotateNode
+        private static double getDoubleValue(Object value) {
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value instanceof Boolean) {
+                return ((Boolean) value) ? 1.0 : 0.0;
+            }
+            return 0.0;
+        }
+
+        private final int sampleLimit;
+        private final List<Object[]> sample = new ArrayList<Object[]>();
+        private double[] sums = null;
+        private int count = 0;
+        private int stride = 1;
+    }
+
+    public static final int DEFAULT_SUMMARY_SAMPLE_LIMIT = 10000;
+
+    private final int threadCount;
+    private final int summarySampleLimit;
+
+    // the fingerprints of the clades and their counts in parallel mode
+    private CladeFingerprintTable.Fingerprinter fingerprinter = null;
+    private CladeFingerprintTable cladeCounts = null;
+
     int totalTrees = 0;
     int totalTreesUsed = 0;
     double posteriorLimit = 0.0;
@@ -1415,7 +1855,9 @@ public class TreeAnnotator {
                         new Arguments.StringOption("target", "target_file_name", "specifies a user target tree to be annotated"),
                         new Arguments.Option("help", "option to print this message"),
                         new Arguments.Option("forceDiscrete", "forces integer traits to be treated as discrete traits."),
-                        new Arguments.StringOption("hpd2D", "the HPD interval to be used for the bivariate traits", "specifies a (vector of comma seperated) HPD proportion(s)")
+                        new Arguments.StringOption("hpd2D", "the HPD interval to be used for the bivariate traits", "specifies a (vector of comma seperated) HPD proportion(s)"),
+                        new Arguments.IntegerOption("threads", "the number of threads to process the trees with (default 0 reads them in a single thread)"),
+                        new Arguments.IntegerOption("samples", "with threads, the maximum number of values per clade kept for medians and HPDs (default 10000)")
                 });
 
         try {
@@ -1473,6 +1915,16 @@ public class TreeAnnotator {
             }
         }
 
+        int threadCount = 0;
+        if (arguments.hasOption("threads")) {
+            threadCount = arguments.getIntegerOption("threads");
+        }
+
+        int summarySampleLimit = DEFAULT_SUMMARY_SAMPLE_LIMIT;
+        if (arguments.hasOption("samples")) {
+            summarySampleLimit = arguments.getIntegerOption("samples");
+        }
+
         Target target = Target.MAX_CLADE_CREDIBILITY;
         if (arguments.hasOption("target")) {
             target = Target.USER_TARGET_TREE;
@@ -1496,7 +1948,7 @@ public class TreeAnnotator {
             }
         }
 
-        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, target, targetTreeFileName, inputFileName, outputFileName);
+        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, target, targetTreeFileName, inputFileName, outputFileName, threadCount, summarySampleLimit);
 
         System.exit(0);
     }
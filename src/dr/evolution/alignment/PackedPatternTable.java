@@ -0,0 +1,210 @@
+/*
+ * PackedPatternTable.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+
+package dr.evolution.alignment;
+
+import dr.evolution.datatype.DataType;
+
+import java.util.Arrays;
+
+/**
+ * A set of site patterns packed into words of a few bits per state, kept in the order they were first added
+ * and found through an open-addressing hash table (of entry indices, with linear probing), so adding a pattern
+ * takes constant time rather than a comparison with every pattern found so far.
+ *
+ * All the patterns must have the same length and states between 0 and 2^bitsPerState - 1; pack returns false
+ * for a pattern with any other state.
+ */
+public class PackedPatternTable {
+
+    /**
+     * @param patternLength the number of states in each pattern
+     * @param bitsPerState  the number of bits each state is packed into (1 to 32)
+     */
+    public PackedPatternTable(int patternLength, int bitsPerState) {
+        if (bitsPerState < 1 || bitsPerState > 32) {
+            throw new IllegalArgumentException("The bits per state must be from 1 to 32");
+        }
+        this.patternLength = patternLength;
+        this.bitsPerState = bitsPerState;
+        statesPerWord = 64 / bitsPerState;
+        wordCount = Math.max(1, (patternLength + statesPerWord - 1) / statesPerWord);
+
+        words = new long[INITIAL_CAPACITY * wordCount];
+        hashes = new int[INITIAL_CAPACITY];
+        table = new int[2 * INITIAL_CAPACITY];
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * @return the number of bits needed for the states (and the gap, unknown and ambiguous states) of a data
+     * type, assuming they are numbered from 0
+     */
+    public static int getBitsPerState(DataType dataType) {
+        int maxState = Math.max(dataType.getStateCount(), dataType.getAmbiguousStateCount()) - 1;
+        maxState = Math.max(maxState, Math.max(dataType.getGapState(), dataType.getUnknownState()));
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(maxState));
+    }
+
+    public int getPatternLength() {
+        return patternLength;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    public int getPatternCount() {
+        return count;
+    }
+
+    /**
+     * Packs a pattern into wordCount words of an array.
+     *
+     * @return false if a state doesn't fit in bitsPerState bits (in which case the words are left partly set)
+     */
+    public boolean pack(int[] pattern, long[] packed, int offset) {
+        final long mask = (1L << bitsPerState) - 1;
+        int k = 0;
+        for (int w = 0; w < wordCount; w++) {
+            long word = 0L;
+            final int end = Math.min(patternLength, k + statesPerWord);
+            for (int shift = 0; k < end; k++, shift += bitsPerState) {
+                final int state = pattern[k];
+                if ((state & ~mask) != 0) {
+                    return false;
+                }
+                word |= ((long) state) << shift;
+            }
+            packed[offset + w] = word;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a packed pattern if it isn't already in the table.
+     *
+     * @return the index of the pattern (equal to the previous pattern count if it has just been added)
+     */
+    public int add(long[] packed, int offset) {
+        final int hash = hash(packed, offset);
+
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != EMPTY) {
+            final int index = table[slot];
+            if (hashes[index] == hash && equals(index, packed, offset)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        final int index = count;
+        if (index == hashes.length) {
+            grow();
+            mask = table.length - 1;
+            slot = hash & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+        }
+        System.arraycopy(packed, offset, words, index * wordCount, wordCount);
+        hashes[index] = hash;
+        table[slot] = index;
+        count++;
+        return index;
+    }
+
+    /**
+     * Copies the packed words of a pattern into an array.
+     */
+    public void getPacked(int index, long[] packed, int offset) {
+        System.arraycopy(words, index * wordCount, packed, offset, wordCount);
+    }
+
+    private boolean equals(int index, long[] packed, int offset) {
+        final int start = index * wordCount;
+        for (int w = 0; w < wordCount; w++) {
+            if (words[start + w] != packed[offset + w]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(long[] packed, int offset) {
+        long h = wordCount;
+        for (int w = 0; w < wordCount; w++) {
+            h = h * 0x9E3779B97F4A7C15L + packed[offset + w];
+        }
+        // the finalizer of MurmurHash3 so the low bits depend on all the states
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    // doubles the space for patterns and the table (which is kept at most half full)
+    private void grow() {
+        final int capacity = 2 * hashes.length;
+
+        long[] newWords = new long[capacity * wordCount];
+        System.arraycopy(words, 0, newWords, 0, count * wordCount);
+        words = newWords;
+
+        int[] newHashes = new int[capacity];
+        System.arraycopy(hashes, 0, newHashes, 0, count);
+        hashes = newHashes;
+
+        table = new int[2 * capacity];
+        Arrays.fill(table, EMPTY);
+        final int mask = table.length - 1;
+        for (int index = 0; index < count; index++) {
+            int slot = hashes[index] & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = index;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int EMPTY = -1;
+
+    private final int patternLength;
+    private final int bitsPerState;
+    private final int statesPerWord;
+    private final int wordCount;
+
+    // the packed patterns in the order they were added, wordCount words each
+    private long[] words;
+    private int[] hashes;
+    // the indices of the patterns by hash (or EMPTY)
+    private int[] table;
+    private int count = 0;
+}
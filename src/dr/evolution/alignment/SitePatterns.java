@@ -35,6 +35,7 @@ import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Stores a set of site patterns. This differs from the simple Patterns
@@ -47,6 +48,15 @@ import java.util.*;
  */
 public class SitePatterns implements SiteList, dr.util.XHTMLable {
 
+    /**
+     * The system property for the number of threads to find the site patterns of a large alignment with
+     * (by default the number of processors).
+     */
+    public static final String THREADS = "patterns.threads";
+
+    // the fewest sites in each chunk the sites are split into to find their patterns in parallel
+    private static final int MIN_CHUNK_SITE_COUNT = 1000;
+
     /**
      * the source alignment
      */
@@ -281,28 +291,15 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
             }
         }
 
+        int[] sites = new int[siteCount];
         int site = 0;
 
         for (int i = from; i <= to; i += every) {
-            int[] pattern = siteList.getSitePattern(i);
-            double[][] probs = null;
-
-            if (uncertainSites) {
-                probs = siteList.getUncertainSitePattern(i);
-            }
-
-            if (!strip || !isInvariant(pattern) ||
-                    (!isGapped(pattern) &&
-                            !isAmbiguous(pattern) &&
-                            !isUnknown(pattern))) {
-
-                sitePatternIndices[site] = addPattern(pattern, probs);
-
-            }  else {
-                sitePatternIndices[site] = -1;
-            }
+            sites[site] = i;
             site++;
         }
+
+        addSitePatterns(sites, site);
     }
 
     /**
@@ -335,32 +332,213 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
         }
 
         invariantCount = 0;
-        int[] pattern;
 
+        int[] sites = new int[siteCount];
         int site = 0;
 
         for (int i = from; i <= to; i += every) {
-            pattern = siteList.getSitePattern(i);
-
             if (mask[i]) {
-                if (!strip || !isInvariant(pattern) ||
-                        (!isGapped(pattern) &&
-                                !isAmbiguous(pattern) &&
-                                !isUnknown(pattern))
-                        ) {
+                sites[site] = i;
+                site++;
+            }
+        }
+
+        addSitePatterns(sites, site);
+    }
+
+    /**
+     * adds the patterns of the given sites of the site list in turn, setting the pattern index of each
+     * (or -1 if the site is stripped out)
+     */
+    private void addSitePatterns(int[] sites, int count) {
+
+        if (unique) {
+            if (addPackedSitePatterns(sites, count, PackedPatternTable.getBitsPerState(getDataType())) ||
+                    addPackedSitePatterns(sites, count, 32)) {
+                return;
+            }
+            // there are negative states so fall back to comparing with each pattern in turn
+        }
+
+        for (int site = 0; site < count; site++) {
+            int[] pattern = siteList.getSitePattern(sites[site]);
+
+            if (isIncluded(pattern)) {
+                double[][] probs = null;
+                if (uncertainSites) {
+                    probs = siteList.getUncertainSitePattern(sites[site]);
+                }
+                sitePatternIndices[site] = addPattern(pattern, probs);
+            } else {
+                sitePatternIndices[site] = -1;
+            }
+        }
+    }
+
+    /**
+     * Adds the patterns of the given sites, finding repeats with a hash table of the packed patterns rather
+     * than by comparing with every pattern so far. For a large simple alignment the sites are split into
+     * chunks whose distinct patterns are found in parallel then merged in order, so the patterns, their order
+     * and their weights are exactly those of addPattern.
+     *
+     * @return false (having added nothing) if a state doesn't fit in bitsPerState bits
+     */
+    private boolean addPackedSitePatterns(int[] sites, int count, int bitsPerState) {
+
+        PackedPatternTable table = new PackedPatternTable(siteList.getPatternLength(), bitsPerState);
+        long[] packed = new long[table.getWordCount()];
+
+        // the constant site patterns added already
+        for (int i = 0; i < patternCount; i++) {
+            if (!table.pack(patterns[i], packed, 0)) {
+                return false;
+            }
+            table.add(packed, 0);
+        }
+
+        // the reads from other site lists may not be thread safe
+        int threadCount = (siteList instanceof SimpleAlignment ? getThreadCount() : 1);
+        int chunkCount = Math.max(1, Math.min(4 * threadCount, count / MIN_CHUNK_SITE_COUNT));
+        if (threadCount == 1) {
+            chunkCount = 1;
+        }
+
+        List<SiteChunk> chunks = new ArrayList<SiteChunk>();
+        for (int c = 0; c < chunkCount; c++) {
+            chunks.add(new SiteChunk(sites, (int) ((long) count * c / chunkCount),
+                    (int) ((long) count * (c + 1) / chunkCount), bitsPerState));
+        }
 
+        if (chunkCount == 1) {
+            chunks.get(0).call();
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(threadCount, chunkCount));
+            try {
+                for (Future<SiteChunk> future : pool.invokeAll(chunks)) {
+                    future.get();
+                }
+            } catch (InterruptedException ie) {
+                throw new RuntimeException("Interrupted while compressing site patterns");
+            } catch (ExecutionException ee) {
+                throw new RuntimeException("Failed to compress site patterns: " + ee.getCause().getMessage(), ee.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        for (SiteChunk chunk : chunks) {
+            if (!chunk.isPacked) {
+                return false;
+            }
+        }
+
+        for (SiteChunk chunk : chunks) {
+            final int chunkPatternCount = chunk.table.getPatternCount();
+            int[] indices = new int[chunkPatternCount];
+
+            for (int j = 0; j < chunkPatternCount; j++) {
+                chunk.table.getPacked(j, packed, 0);
+                int index = table.add(packed, 0);
+
+                if (index == patternCount) {
                     double[][] probs = null;
                     if (uncertainSites) {
-                        probs = siteList.getUncertainSitePattern(i);
+                        probs = siteList.getUncertainSitePattern(chunk.firstSites[j]);
                     }
-                    sitePatternIndices[site] = addPattern(pattern, probs);
+                    appendPattern(chunk.patterns.get(j), 1, probs);
+                    weights[index] += chunk.counts[j] - 1;
+                } else {
+                    weights[index] += chunk.counts[j];
+                }
+                indices[j] = index;
+            }
+
+            for (int site = chunk.start; site < chunk.end; site++) {
+                final int j = chunk.patternIndices[site - chunk.start];
+                sitePatternIndices[site] = (j < 0 ? -1 : indices[j]);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * The distinct patterns of a run of sites in the order they first occur, the number of sites with each
+     * and the index among them of the pattern of each site (or -1 if the site is stripped out).
+     */
+    private class SiteChunk implements Callable<SiteChunk> {
+
+        SiteChunk(int[] sites, int start, int end, int bitsPerState) {
+            this.sites = sites;
+            this.start = start;
+            this.end = end;
+            this.bitsPerState = bitsPerState;
+        }
 
-                }  else {
-                    sitePatternIndices[site] = -1;
+        public SiteChunk call() {
+            table = new PackedPatternTable(siteList.getPatternLength(), bitsPerState);
+            long[] packed = new long[table.getWordCount()];
+
+            patternIndices = new int[end - start];
+            firstSites = new int[end - start];
+            counts = new int[end - start];
+            patterns = new ArrayList<int[]>();
+
+            for (int site = start; site < end; site++) {
+                int[] pattern = siteList.getSitePattern(sites[site]);
+
+                if (!isIncluded(pattern)) {
+                    patternIndices[site - start] = -1;
+                    continue;
                 }
-                site++;
+                if (!table.pack(pattern, packed, 0)) {
+                    isPacked = false;
+                    return this;
+                }
+
+                int index = table.add(packed, 0);
+                if (index == patterns.size()) {
+                    patterns.add(pattern);
+                    firstSites[index] = sites[site];
+                }
+                counts[index]++;
+                patternIndices[site - start] = index;
             }
+
+            isPacked = true;
+            return this;
+        }
+
+        private final int[] sites;
+        private final int start;
+        private final int end;
+        private final int bitsPerState;
+
+        private PackedPatternTable table;
+        private List<int[]> patterns;
+        private int[] firstSites;
+        private int[] counts;
+        private int[] patternIndices;
+        private boolean isPacked = false;
+    }
+
+    private static int getThreadCount() {
+        String threads = System.getProperty(THREADS);
+        if (threads != null) {
+            return Math.max(1, Integer.parseInt(threads));
         }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return true if the pattern is kept (it isn't a constant site of gaps or ambiguous or unknown states
+     * when stripping)
+     */
+    private boolean isIncluded(int[] pattern) {
+        return !strip || !isInvariant(pattern) ||
+                (!isGapped(pattern) &&
+                        !isAmbiguous(pattern) &&
+                        !isUnknown(pattern));
     }
 
 
@@ -389,6 +567,16 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
             }
         }
 
+        return appendPattern(pattern, weight, uncertainty);
+    }
+
+    /**
+     * adds a pattern to the end of the pattern list with the given weight
+     *
+     * @return the index of the pattern in the pattern list
+     */
+    private int appendPattern(int[] pattern, int weight, double[][] uncertainty) {
+
         if (isInvariant(pattern)) {
             invariantCount += weight;
         }
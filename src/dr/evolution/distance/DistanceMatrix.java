@@ -107,6 +107,23 @@ public class DistanceMatrix extends Matrix.AbstractMatrix implements TaxonList {
         return distances[row][column];
     }
 
+    /**
+     * @return the distance between two taxa, calculating just that one if the matrix hasn't been calculated
+     */
+    public double getPairwiseDistance(int taxon1, int taxon2) {
+
+        if (distancesKnown) {
+            return distances[taxon1][taxon2];
+        }
+
+        if (taxon1 == taxon2) {
+            return 0.0;
+        }
+
+        // as calculateDistances does
+        return calculatePairwiseDistance(Math.min(taxon1, taxon2), Math.max(taxon1, taxon2));
+    }
+
     /**
      * set an element - this overwrites any existing elements
      */
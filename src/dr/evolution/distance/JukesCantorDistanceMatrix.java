@@ -69,8 +69,13 @@ public class JukesCantorDistanceMatrix extends DistanceMatrix
 	 * Calculate a pairwise distance
 	 */
 	protected double calculatePairwiseDistance(int i, int j) {
-		final double obsDist = super.calculatePairwiseDistance(i, j);
-		
+		return getCorrectedDistance(super.calculatePairwiseDistance(i, j));
+	}
+
+	/**
+	 * @return the Jukes-Cantor distance for an observed distance (which is non-decreasing in it)
+	 */
+	public double getCorrectedDistance(double obsDist) {
 		if (obsDist == 0.0) return 0.0;
 	
 		if (obsDist >= const1) {
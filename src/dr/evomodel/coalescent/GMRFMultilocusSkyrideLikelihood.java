@@ -36,6 +36,7 @@ import dr.inference.model.Likelihood;
 import dr.inference.model.MatrixParameter;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
 import dr.util.Author;
 import dr.util.Citable;
 import dr.util.Citation;
@@ -45,6 +46,7 @@ import no.uib.cipr.matrix.SymmTridiagMatrix;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * @author Mandev Gill
@@ -56,6 +58,8 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
 
     public static final boolean DEBUG = false;
 
+    public static final String THREADS = "skygrid.threads";
+
     private final double cutOff;
     private final int numGridPoints;
     private final int oldFieldLength;
@@ -98,6 +102,21 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
     private List<Tree> treeList;
     private List<TreeIntervals> intervalsList;
 
+    // the statistics of each tree, so only the trees that change are walked again
+    private double[][] treeNumCoalEvents;
+    private double[][] storedTreeNumCoalEvents;
+    private double[][] treeSufficientStatistics;
+    private double[][] storedTreeSufficientStatistics;
+    private int[] firstPloidyGridIndex;
+    private int[] storedFirstPloidyGridIndex;
+    private int[] lastPloidyGridIndex;
+    private int[] storedLastPloidyGridIndex;
+    private boolean[] treeStatisticsKnown;
+    private boolean[] storedTreeStatisticsKnown;
+    private boolean[] treeStatisticsStored;
+
+    private ExecutorService pool = null;
+
     public GMRFMultilocusSkyrideLikelihood(List<Tree> treeList,
                                            Parameter popParameter,
                                            Parameter groupParameter,
@@ -430,8 +449,11 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
             TreeModel treeModel = (TreeModel) model;
             int tn = treeList.indexOf(treeModel);
             if (tn >= 0) {
-                //   intervalsList.get(tn).setIntervalsUnknown();  // TODO Why is this slower (?) than remaking whole list?
-                makeTreeIntervalList(treeList, false);
+                // only the intervals and statistics of the changed tree are found again
+                intervalsList.get(tn).setIntervalsUnknown();
+                if (treeStatisticsKnown != null) {
+                    treeStatisticsKnown[tn] = false;
+                }
                 intervalsKnown = false;
                 likelihoodKnown = false;
             } else {
@@ -442,6 +464,14 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
         }
     }
 
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        if (variable == ploidyFactors) {
+            // the statistics of each tree don't depend on the ploidy factors so they only need combining again
+            intervalsKnown = false;
+        }
+        super.handleVariableChangedEvent(variable, index, type);
+    }
+
     public void initializationReport() {
         System.out.println("Creating a GMRF smoothed skyride model for multiple loci (SkyGrid)");
         System.out.println("\tPopulation sizes: " + popSizeParameter.getDimension());
@@ -465,12 +495,127 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
 
     protected void setupSufficientStatistics() {
 
-        //numCoalEvents = new double[fieldLength];
-        //sufficientStatistics = new double[fieldLength];
+        if (treeSufficientStatistics == null) {
+            treeNumCoalEvents = new double[numTrees][fieldLength];
+            storedTreeNumCoalEvents = new double[numTrees][fieldLength];
+            treeSufficientStatistics = new double[numTrees][fieldLength];
+            storedTreeSufficientStatistics = new double[numTrees][fieldLength];
+            firstPloidyGridIndex = new int[numTrees];
+            storedFirstPloidyGridIndex = new int[numTrees];
+            lastPloidyGridIndex = new int[numTrees];
+            storedLastPloidyGridIndex = new int[numTrees];
+            treeStatisticsKnown = new boolean[numTrees];
+            storedTreeStatisticsKnown = new boolean[numTrees];
+            treeStatisticsStored = new boolean[numTrees];
+        }
 
+        // only the trees that have changed since their statistics were found are walked again
+        final List<Integer> changedTrees = new ArrayList<Integer>();
+        for (int i = 0; i < numTrees; i++) {
+            if (!treeStatisticsKnown[i]) {
+                if (!treeStatisticsStored[i]) {
+                    // keep the statistics at the last store in case the tree is restored
+                    swapTreeStatistics(i);
+                    treeStatisticsStored[i] = true;
+                }
+                changedTrees.add(i);
+            }
+        }
+
+        final int threadCount = Math.min(getThreadCount(), changedTrees.size());
+        if (threadCount > 1) {
+            if (pool == null) {
+                pool = Executors.newFixedThreadPool(getThreadCount(), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "skygrid");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (final int tree : changedTrees) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        setupSufficientStatistics(tree);
+                        return null;
+                    }
+                });
+            }
+            try {
+                for (Future<Object> future : pool.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException ie) {
+                throw new RuntimeException("Interrupted while finding the skygrid sufficient statistics");
+            } catch (ExecutionException ee) {
+                throw new RuntimeException("Failed to find the skygrid sufficient statistics: " + ee.getCause().getMessage(), ee.getCause());
+            }
+        } else {
+            for (int tree : changedTrees) {
+                setupSufficientStatistics(tree);
+            }
+        }
+        for (int tree : changedTrees) {
+            treeStatisticsKnown[tree] = true;
+        }
+
+        // combine the trees in order: the ploidy sums of a grid cell use the coalescent events of the trees
+        // up to and including the one being added
         Arrays.fill(numCoalEvents, 0);
         Arrays.fill(sufficientStatistics, 0);
         Arrays.fill(ploidySums, 0);
+        for (int i = 0; i < numTrees; i++) {
+            final double ploidyFactor = 1 / getPopulationFactor(i);
+            final double logPloidyFactor = Math.log(ploidyFactor);
+            final double[] coalEvents = treeNumCoalEvents[i];
+            final double[] statistics = treeSufficientStatistics[i];
+            for (int j = 0; j < fieldLength; j++) {
+                numCoalEvents[j] += coalEvents[j];
+                sufficientStatistics[j] += statistics[j] * ploidyFactor;
+            }
+            for (int j = firstPloidyGridIndex[i]; j <= lastPloidyGridIndex[i]; j++) {
+                ploidySums[j] += logPloidyFactor * numCoalEvents[j];
+            }
+        }
+    }
+
+    private void swapTreeStatistics(int tree) {
+        double[] tmp = treeNumCoalEvents[tree];
+        treeNumCoalEvents[tree] = storedTreeNumCoalEvents[tree];
+        storedTreeNumCoalEvents[tree] = tmp;
+        tmp = treeSufficientStatistics[tree];
+        treeSufficientStatistics[tree] = storedTreeSufficientStatistics[tree];
+        storedTreeSufficientStatistics[tree] = tmp;
+        int tmpIndex = firstPloidyGridIndex[tree];
+        firstPloidyGridIndex[tree] = storedFirstPloidyGridIndex[tree];
+        storedFirstPloidyGridIndex[tree] = tmpIndex;
+        tmpIndex = lastPloidyGridIndex[tree];
+        lastPloidyGridIndex[tree] = storedLastPloidyGridIndex[tree];
+        storedLastPloidyGridIndex[tree] = tmpIndex;
+    }
+
+    private static int getThreadCount() {
+        String threads = System.getProperty(THREADS);
+        if (threads != null) {
+            return Math.max(1, Integer.parseInt(threads));
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Finds the number of coalescent events and the sufficient statistics of a single tree in each grid cell.
+     * The sufficient statistics are not scaled by the tree's ploidy factor. The grid cells whose ploidy sums
+     * include the tree are from firstPloidyGridIndex to lastPloidyGridIndex.
+     */
+    private void setupSufficientStatistics(int tree) {
+
+        final TreeIntervals intervals = intervalsList.get(tree);
+        final double[] coalEvents = treeNumCoalEvents[tree];
+        final double[] statistics = treeSufficientStatistics[tree];
+
+        Arrays.fill(coalEvents, 0);
+        Arrays.fill(statistics, 0);
         //index of smallest grid point greater than at least one sampling/coalescent time in current tree
         int minGridIndex;
         //index of greatest grid point less than at least one sampling/coalescent time in current tree
@@ -483,192 +628,190 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
 
         double currentTime;
         double nextTime;
-        double ploidyFactor;
 
         //time of last coalescent event in tree
         double lastCoalescentTime;
 
-        for (int i = 0; i < numTrees; i++) {
-            ploidyFactor = 1 / getPopulationFactor(i);
-            currentTimeIndex = 0;
-            currentTime = intervalsList.get(i).getIntervalTime(currentTimeIndex);
-            nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
-            while (nextTime <= currentTime) {
-                currentTimeIndex++;
-                currentTime = intervalsList.get(i).getIntervalTime(currentTimeIndex);
-                nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
-            }
+        currentTimeIndex = 0;
+        currentTime = intervals.getIntervalTime(currentTimeIndex);
+        nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
+        while (nextTime <= currentTime) {
+            currentTimeIndex++;
+            currentTime = intervals.getIntervalTime(currentTimeIndex);
+            nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
+        }
 
-            numLineages = intervalsList.get(i).getLineageCount(currentTimeIndex + 1);
-            minGridIndex = 0;
-            while (minGridIndex < numGridPoints - 1 && gridPoints[minGridIndex] <= currentTime) { // MAS: Unclear about need for -1
-                minGridIndex++;
-            }
-            currentGridIndex = minGridIndex;
+        numLineages = intervals.getLineageCount(currentTimeIndex + 1);
+        minGridIndex = 0;
+        while (minGridIndex < numGridPoints - 1 && gridPoints[minGridIndex] <= currentTime) { // MAS: Unclear about need for -1
+            minGridIndex++;
+        }
+        currentGridIndex = minGridIndex;
 
-            lastCoalescentTime = currentTime + intervalsList.get(i).getTotalDuration();
+        lastCoalescentTime = currentTime + intervals.getTotalDuration();
 
 //            theLastTime = lastCoalescentTime;
 
-            maxGridIndex = numGridPoints - 1;
-            while ((maxGridIndex >= 0) && (gridPoints[maxGridIndex] >= lastCoalescentTime)) {
-                maxGridIndex = maxGridIndex - 1;
-            }
+        maxGridIndex = numGridPoints - 1;
+        while ((maxGridIndex >= 0) && (gridPoints[maxGridIndex] >= lastCoalescentTime)) {
+            maxGridIndex = maxGridIndex - 1;
+        }
 
-            if (maxGridIndex >= 0 && minGridIndex < numGridPoints) {
+        if (maxGridIndex >= 0 && minGridIndex < numGridPoints) {
 
+            // the cells from minGridIndex to the one before the last are closed in turn
+            firstPloidyGridIndex[tree] = minGridIndex;
 
-                //from likelihood of interval between first sampling time and gridPoints[minGridIndex]
 
-                while (nextTime < gridPoints[currentGridIndex]) {
+            //from likelihood of interval between first sampling time and gridPoints[minGridIndex]
 
-                    //check to see if interval ends with coalescent event
-                    if (intervalsList.get(i).getCoalescentEvents(currentTimeIndex + 1) > 0) {
+            while (nextTime < gridPoints[currentGridIndex]) {
 
-                        numCoalEvents[currentGridIndex]++;
-                    }
-                    sufficientStatistics[currentGridIndex] = sufficientStatistics[currentGridIndex] + (nextTime - currentTime) * numLineages * (numLineages - 1) * 0.5 * ploidyFactor;
-                    currentTime = nextTime;
+                //check to see if interval ends with coalescent event
+                if (intervals.getCoalescentEvents(currentTimeIndex + 1) > 0) {
+
+                    coalEvents[currentGridIndex]++;
+                }
+                statistics[currentGridIndex] += (nextTime - currentTime) * numLineages * (numLineages - 1) * 0.5;
+                currentTime = nextTime;
+                currentTimeIndex++;
+                nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
+
+                while (nextTime <= currentTime) {
                     currentTimeIndex++;
-                    nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
+                    currentTime = intervals.getIntervalTime(currentTimeIndex);
+                    nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
+                }
 
-                    while (nextTime <= currentTime) {
-                        currentTimeIndex++;
-                        currentTime = intervalsList.get(i).getIntervalTime(currentTimeIndex);
-                        nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
-                    }
+                numLineages = intervals.getLineageCount(currentTimeIndex + 1);
+
+            }
 
-                    numLineages = intervalsList.get(i).getLineageCount(currentTimeIndex + 1);
+            statistics[currentGridIndex] += (gridPoints[currentGridIndex] - currentTime) * numLineages * (numLineages - 1) * 0.5;
 
-                }
+            currentGridIndex++;
 
-                sufficientStatistics[currentGridIndex] = sufficientStatistics[currentGridIndex] + (gridPoints[currentGridIndex] - currentTime) * numLineages * (numLineages - 1) * 0.5 * ploidyFactor;
-                ploidySums[currentGridIndex] = ploidySums[currentGridIndex] + Math.log(ploidyFactor) * numCoalEvents[currentGridIndex];
 
-                currentGridIndex++;
+            //from likelihood of intervals between gridPoints[minGridIndex] and gridPoints[maxGridIndex]
 
+            while (currentGridIndex <= maxGridIndex) {
+                if (nextTime >= gridPoints[currentGridIndex]) {
+                    statistics[currentGridIndex] += (gridPoints[currentGridIndex] - gridPoints[currentGridIndex - 1]) * numLineages * (numLineages - 1) * 0.5;
 
-                //from likelihood of intervals between gridPoints[minGridIndex] and gridPoints[maxGridIndex]
+                    currentGridIndex++;
+                } else {
 
-                while (currentGridIndex <= maxGridIndex) {
-                    if (nextTime >= gridPoints[currentGridIndex]) {
-                        sufficientStatistics[currentGridIndex] = sufficientStatistics[currentGridIndex] + (gridPoints[currentGridIndex] - gridPoints[currentGridIndex - 1]) * numLineages * (numLineages - 1) * 0.5 * ploidyFactor;
-                        ploidySums[currentGridIndex] = ploidySums[currentGridIndex] + Math.log(ploidyFactor) * numCoalEvents[currentGridIndex];
+                    statistics[currentGridIndex] += (nextTime - gridPoints[currentGridIndex - 1]) * numLineages * (numLineages - 1) * 0.5;
 
-                        currentGridIndex++;
-                    } else {
+                    //check to see if interval ends with coalescent event
+                    if (intervals.getCoalescentEvents(currentTimeIndex + 1) > 0) {
+                        coalEvents[currentGridIndex]++;
+                    }
+                    currentTime = nextTime;
+                    currentTimeIndex++;
+                    nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
+                    while (nextTime <= currentTime) {
+                        currentTimeIndex++;
+                        currentTime = intervals.getIntervalTime(currentTimeIndex);
+                        nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
+                    }
 
-                        sufficientStatistics[currentGridIndex] = sufficientStatistics[currentGridIndex] + (nextTime - gridPoints[currentGridIndex - 1]) * numLineages * (numLineages - 1) * 0.5 * ploidyFactor;
+                    numLineages = intervals.getLineageCount(currentTimeIndex + 1);
 
-                        //check to see if interval ends with coalescent event
-                        if (intervalsList.get(i).getCoalescentEvents(currentTimeIndex + 1) > 0) {
-                            numCoalEvents[currentGridIndex]++;
+                    while (nextTime < gridPoints[currentGridIndex]) {
+                        //check to see if interval is coalescent interval or sampling interval
+                        if (intervals.getCoalescentEvents(currentTimeIndex + 1) > 0) {
+                            coalEvents[currentGridIndex]++;
                         }
+                        statistics[currentGridIndex] += (nextTime - currentTime) * numLineages * (numLineages - 1) * 0.5;
+
                         currentTime = nextTime;
                         currentTimeIndex++;
-                        nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
+                        nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
                         while (nextTime <= currentTime) {
                             currentTimeIndex++;
-                            currentTime = intervalsList.get(i).getIntervalTime(currentTimeIndex);
-                            nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
+                            currentTime = intervals.getIntervalTime(currentTimeIndex);
+                            nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
                         }
 
-                        numLineages = intervalsList.get(i).getLineageCount(currentTimeIndex + 1);
+                        numLineages = intervals.getLineageCount(currentTimeIndex + 1);
 
-                        while (nextTime < gridPoints[currentGridIndex]) {
-                            //check to see if interval is coalescent interval or sampling interval
-                            if (intervalsList.get(i).getCoalescentEvents(currentTimeIndex + 1) > 0) {
-                                numCoalEvents[currentGridIndex]++;
-                            }
-                            sufficientStatistics[currentGridIndex] = sufficientStatistics[currentGridIndex] + (nextTime - currentTime) * numLineages * (numLineages - 1) * 0.5 * ploidyFactor;
-
-                            currentTime = nextTime;
-                            currentTimeIndex++;
-                            nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
-                            while (nextTime <= currentTime) {
-                                currentTimeIndex++;
-                                currentTime = intervalsList.get(i).getIntervalTime(currentTimeIndex);
-                                nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
-                            }
-
-                            numLineages = intervalsList.get(i).getLineageCount(currentTimeIndex + 1);
-
-                        }
-                        sufficientStatistics[currentGridIndex] = sufficientStatistics[currentGridIndex] + (gridPoints[currentGridIndex] - currentTime) * numLineages * (numLineages - 1) * 0.5 * ploidyFactor;
-                        ploidySums[currentGridIndex] = ploidySums[currentGridIndex] + Math.log(ploidyFactor) * numCoalEvents[currentGridIndex];
-
-                        currentGridIndex++;
                     }
+                    statistics[currentGridIndex] += (gridPoints[currentGridIndex] - currentTime) * numLineages * (numLineages - 1) * 0.5;
+
+                    currentGridIndex++;
                 }
+            }
 
-                //from likelihood of interval between gridPoints[maxGridIndex] and lastCoalescentTime
+            lastPloidyGridIndex[tree] = currentGridIndex - 1;
 
-                sufficientStatistics[currentGridIndex] = sufficientStatistics[currentGridIndex] + (nextTime - gridPoints[currentGridIndex - 1]) * numLineages * (numLineages - 1) * 0.5 * ploidyFactor;
+            //from likelihood of interval between gridPoints[maxGridIndex] and lastCoalescentTime
 
-                //check to see if interval ends with coalescent event
-                if (intervalsList.get(i).getCoalescentEvents(currentTimeIndex + 1) > 0) {
-                    numCoalEvents[currentGridIndex]++;
-                }
+            statistics[currentGridIndex] += (nextTime - gridPoints[currentGridIndex - 1]) * numLineages * (numLineages - 1) * 0.5;
 
-                currentTime = nextTime;
-                currentTimeIndex++;
+            //check to see if interval ends with coalescent event
+            if (intervals.getCoalescentEvents(currentTimeIndex + 1) > 0) {
+                coalEvents[currentGridIndex]++;
+            }
 
-                while ((currentTimeIndex + 1) < intervalsList.get(i).getIntervalCount()) {
-                    // currentTime = nextTime;
-                    // currentTimeIndex++;
+            currentTime = nextTime;
+            currentTimeIndex++;
 
-                    nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
-                    while (nextTime <= currentTime) {
-                        currentTimeIndex++;
-                        currentTime = intervalsList.get(i).getIntervalTime(currentTimeIndex);
-                        nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
-                    }
+            while ((currentTimeIndex + 1) < intervals.getIntervalCount()) {
+                // currentTime = nextTime;
+                // currentTimeIndex++;
 
-                    numLineages = intervalsList.get(i).getLineageCount(currentTimeIndex + 1);
+                nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
+                while (nextTime <= currentTime) {
+                    currentTimeIndex++;
+                    currentTime = intervals.getIntervalTime(currentTimeIndex);
+                    nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
+                }
 
-                    //check to see if interval is coalescent interval or sampling interval
+                numLineages = intervals.getLineageCount(currentTimeIndex + 1);
 
+                //check to see if interval is coalescent interval or sampling interval
 
-                    if (intervalsList.get(i).getCoalescentEvents(currentTimeIndex + 1) > 0) {
-                        numCoalEvents[currentGridIndex]++;
-                    }
-                    sufficientStatistics[currentGridIndex] = sufficientStatistics[currentGridIndex] + (nextTime - currentTime) * numLineages * (numLineages - 1) * 0.5 * ploidyFactor;
-                    currentTime = nextTime;
-                    currentTimeIndex++;
 
+                if (intervals.getCoalescentEvents(currentTimeIndex + 1) > 0) {
+                    coalEvents[currentGridIndex]++;
                 }
+                statistics[currentGridIndex] += (nextTime - currentTime) * numLineages * (numLineages - 1) * 0.5;
+                currentTime = nextTime;
+                currentTimeIndex++;
 
-                // if tree does not overlap with any gridpoints/change-points, in which case logpopsize is constant
-
-            } else {
-                while ((currentTimeIndex + 1) < intervalsList.get(i).getIntervalCount()) {
-                    //check to see if interval is coalescent interval or sampling interval
-                    if (intervalsList.get(i).getCoalescentEvents(currentTimeIndex + 1) > 0) {
-                        numCoalEvents[currentGridIndex]++;
-                    }
-                    sufficientStatistics[currentGridIndex] = sufficientStatistics[currentGridIndex] + (nextTime - currentTime) * numLineages * (numLineages - 1) * 0.5 * ploidyFactor;
+            }
 
-                    currentTime = nextTime;
-                    currentTimeIndex++;
-                    if ((currentTimeIndex + 1) < intervalsList.get(i).getIntervalCount()) {
-                        nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
+            // if tree does not overlap with any gridpoints/change-points, in which case logpopsize is constant
 
-                        while (nextTime <= currentTime) {
-                            currentTimeIndex++;
-                            currentTime = intervalsList.get(i).getIntervalTime(currentTimeIndex);
-                            nextTime = intervalsList.get(i).getIntervalTime(currentTimeIndex + 1);
-                        }
+        } else {
+            while ((currentTimeIndex + 1) < intervals.getIntervalCount()) {
+                //check to see if interval is coalescent interval or sampling interval
+                if (intervals.getCoalescentEvents(currentTimeIndex + 1) > 0) {
+                    coalEvents[currentGridIndex]++;
+                }
+                statistics[currentGridIndex] += (nextTime - currentTime) * numLineages * (numLineages - 1) * 0.5;
 
-                        numLineages = intervalsList.get(i).getLineageCount(currentTimeIndex + 1);
+                currentTime = nextTime;
+                currentTimeIndex++;
+                if ((currentTimeIndex + 1) < intervals.getIntervalCount()) {
+                    nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
 
+                    while (nextTime <= currentTime) {
+                        currentTimeIndex++;
+                        currentTime = intervals.getIntervalTime(currentTimeIndex);
+                        nextTime = intervals.getIntervalTime(currentTimeIndex + 1);
                     }
 
+                    numLineages = intervals.getLineageCount(currentTimeIndex + 1);
+
                 }
-                ploidySums[currentGridIndex] = ploidySums[currentGridIndex] + Math.log(ploidyFactor) * numCoalEvents[currentGridIndex];
 
             }
-        }
+            firstPloidyGridIndex[tree] = currentGridIndex;
+            lastPloidyGridIndex[tree] = currentGridIndex;
 
+        }
     }
 
     public double[] getNumCoalEvents() {
@@ -898,6 +1041,10 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
         System.arraycopy(numCoalEvents, 0, storedNumCoalEvents, 0, numCoalEvents.length);
         // storedPrecMatrix = precMatrix.copy();
         System.arraycopy(ploidySums, 0, storedPloidySums, 0, ploidySums.length);
+        if (treeStatisticsKnown != null) {
+            System.arraycopy(treeStatisticsKnown, 0, storedTreeStatisticsKnown, 0, numTrees);
+            Arrays.fill(treeStatisticsStored, false);
+        }
     }
 
 
@@ -911,6 +1058,15 @@ public class GMRFMultilocusSkyrideLikelihood extends GMRFSkyrideLikelihood
         double[] tmp2 = ploidySums;
         ploidySums = storedPloidySums;
         storedPloidySums = tmp2;
+        if (treeStatisticsKnown != null) {
+            for (int i = 0; i < numTrees; i++) {
+                if (treeStatisticsStored[i]) {
+                    swapTreeStatistics(i);
+                    treeStatisticsStored[i] = false;
+                }
+            }
+            System.arraycopy(storedTreeStatisticsKnown, 0, treeStatisticsKnown, 0, numTrees);
+        }
     }
 
     // Implementation of GradientWrtParameterProvider
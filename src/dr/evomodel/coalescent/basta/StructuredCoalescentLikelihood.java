@@ -26,7 +26,6 @@
 package dr.evomodel.coalescent.basta;
 
 import dr.evolution.alignment.PatternList;
-import dr.evolution.coalescent.IntervalType;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.tree.TreeUtils;
@@ -34,16 +33,17 @@ import dr.evolution.util.TaxonList;
 import dr.evolution.util.Units;
 import dr.evomodel.branchratemodel.BranchRateModel;
 import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.substmodel.ComplexSubstitutionModel;
+import dr.evomodel.substmodel.EigenDecomposition;
 import dr.evomodel.substmodel.GeneralSubstitutionModel;
 import dr.evomodel.tree.TreeModel;
-import dr.evomodel.tree.TreeChangedEvent;
 import dr.inference.model.AbstractModelLikelihood;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
 import dr.util.*;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -54,21 +54,24 @@ import java.util.List;
  * Original paper: Nicola De Maio, Chieh-Hsi Wu, Kathleen O'Reilly and Daniel Wilson
  * "New routes to phylogeography: a Bayesian structured coalescent approximation".
  * PLOS Genetics 11, e1005421; doi: 10.1371/journal.pgen.1005421
+ *
+ * The lineage distributions among demes are held in flat arrays and the state of the active lineages is
+ * checkpointed at interval boundaries, so that after a tree move the intervals are only walked again from the
+ * checkpoint below the lowest event that changed. The migration matrices of the intervals whose lengths changed
+ * are computed together from a single eigendecomposition of the migration model.
  */
 public class StructuredCoalescentLikelihood extends AbstractModelLikelihood implements Units, Citable {
 
     //TODO: the likelihood class should have minimum functionality, i.e. if the likelihood needs to be recomputed
     //then compute it by calling a StructuredCoalescentModel calculateLikelihood method; if not, then simply return it
     //TODO: create StructuredCoalescentModel class
-    //TODO: have StructuredCoalescentLikelihood listen to both BeagleMatrixExponentiationDelegate and
-    //the StructuredCoalescentModel classes?
 
     private static final boolean DEBUG = false;
-    private static final boolean MATRIX_DEBUG = false;
-    private static final boolean UPDATE_DEBUG = false;
 
-    //private static final boolean USE_BEAGLE = false;
-    private static final boolean ASSOC_MULTIPLICATION = true;
+    private static final double MULTIFURCATION_LIMIT = 1e-9;
+
+    //the largest number of lineage probabilities kept in the checkpoints, beyond which they are spaced out
+    private static final long MAX_CHECKPOINT_SIZE = 1 << 20;
 
     public StructuredCoalescentLikelihood(Tree tree, BranchRateModel branchRateModel, Parameter popSizes, PatternList patternList,
                                           GeneralSubstitutionModel generalSubstitutionModel, int subIntervals,
@@ -97,53 +100,62 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
         addModel(this.generalSubstitutionModel);
 
         this.demes = generalSubstitutionModel.getDataType().getStateCount();
-        this.startExpected = new double[this.demes];
-        this.endExpected = new double[this.demes];
-
-        int nodeCount = treeModel.getNodeCount();
-
-        //this.activeLineageList = new ArrayList<ProbDist>();
-        //this.tempLineageList = new ArrayList<ProbDist>();
-        this.activeLineageList = new ProbDist[nodeCount];
-        //this.tempLineageList = new ProbDist[nodeCount];
-        this.addedLineages = new boolean[nodeCount];
-        for (int i = 0; i < addedLineages.length; i++) {
-            addedLineages[i] = false;
-        }
-        this.addedLength = 0;
+        this.nodeCount = treeModel.getNodeCount();
 
-        this.nodeProbDist = new ProbDist[nodeCount];
-        for (int i = 0; i < this.nodeProbDist.length; i++) {
-            this.nodeProbDist[i] = new ProbDist(demes);
-        }
-        //set the pattern and starting lineage probability for each external node
+        //the deme in which each external node was sampled
+        this.tipDemes = new int[nodeCount];
         for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
             NodeRef refNode = treeModel.getExternalNode(i);
-            this.nodeProbDist[refNode.getNumber()].patternIndex = patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(refNode).getId())];
-            this.nodeProbDist[refNode.getNumber()].node = refNode;
-            this.nodeProbDist[refNode.getNumber()].intervalType = IntervalType.SAMPLE;
-            this.nodeProbDist[refNode.getNumber()].leftChild = null;
-            this.nodeProbDist[refNode.getNumber()].rightChild = null;
-        }
-
-        this.maxCoalescentIntervals = treeModel.getTaxonCount() * 2 - 2;
-        //System.out.println("maxCoalescentIntervals = " + maxCoalescentIntervals);
-        this.currentCoalescentInterval = 0;
-        this.migrationMatrices = new double[maxCoalescentIntervals][this.demes*this.demes];
-        this.storedMigrationMatrices = new double[maxCoalescentIntervals][this.demes*this.demes];
-
-        this.times = new ArrayList<ComparableDouble>();
-        this.children = new ArrayList<Integer>();
-        this.nodes = new ArrayList<NodeRef>();
-
-        this.storedTimes = new ArrayList<ComparableDouble>();
-        this.storedChildren = new ArrayList<Integer>();
-        this.storedNodes = new ArrayList<NodeRef>();
-
-        this.treeModelUpdateFired = false;
-        this.rateChanged = false;
+            this.tipDemes[refNode.getNumber()] = patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(refNode).getId())];
+        }
+
+        this.nodeHeights = new double[nodeCount];
+        this.sortedNodes = new int[nodeCount];
+        this.eventNodes = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            this.eventNodes[i] = i;
+        }
+        this.eventHeights = new double[nodeCount];
+        this.eventChildren = new int[2 * nodeCount];
+        this.storedEventNodes = new int[nodeCount];
+        this.storedEventHeights = new double[nodeCount];
+        this.storedEventChildren = new int[2 * nodeCount];
+
+        this.groupStarts = new int[nodeCount + 1];
+        this.groupTimes = new double[nodeCount];
+        this.storedGroupStarts = new int[nodeCount + 1];
+        this.storedGroupTimes = new double[nodeCount];
+
+        this.matrixDistances = new double[nodeCount];
+        this.transitionMatrices = new double[nodeCount][demes * demes];
+        this.storedMatrixDistances = new double[nodeCount];
+        this.storedTransitionMatrices = new double[nodeCount][demes * demes];
+        this.updatedIntervals = new int[nodeCount];
+        this.exponentials = new double[demes * demes];
+
+        this.activeLineages = new int[nodeCount];
+        this.lineageProbs = new double[nodeCount * demes];
+        this.endLineageProbs = new double[demes];
+        this.sumComponents = new double[demes];
+        this.startProbs = new double[demes];
+        this.endProbs = new double[demes];
+        this.startExpected = new double[demes];
+        this.endExpected = new double[demes];
+
+        this.checkpointOffsets = new int[nodeCount + 1];
+        this.checkpointLogLikelihoods = new double[nodeCount];
+        this.checkpointLineages = new int[nodeCount];
+        this.checkpointLineageProbs = new double[nodeCount * demes];
+        this.storedCheckpointOffsets = new int[nodeCount + 1];
+        this.storedCheckpointLogLikelihoods = new double[nodeCount];
+        this.storedCheckpointLineages = new int[nodeCount];
+        this.storedCheckpointLineageProbs = new double[nodeCount * demes];
+        this.checkpointInterval = 1;
 
         this.likelihoodKnown = false;
+        this.walkKnown = false;
+        this.lineagesKnown = false;
+        this.matricesKnown = false;
 
     }
 
@@ -160,7 +172,6 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             logLikelihood = calculateLogLikelihood();
             likelihoodKnown = true;
         }
-        //System.out.println("total time by incrementing active lineages = " + this.timeIncrementActiveLineages/1000.0);
         return logLikelihood;
     }
 
@@ -182,573 +193,406 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             System.out.println();
         }
 
-        logLikelihood = traverseTree(treeModel, treeModel.getRoot(), patternList);
+        logLikelihood = traverseTree();
         return logLikelihood;
     }
 
-    //based on the traverseTree method in OldAbstractCoalescentLikelihood
-    private double traverseTree(Tree tree, NodeRef root, PatternList patternList) {
-        double MULTIFURCATION_LIMIT = 1e-9;
+    /**
+     * Walks the intervals from the last checkpoint below the lowest event that changed since the previous walk,
+     * or from the first sampling event if the population sizes or the migration model changed.
+     */
+    private double traverseTree() {
 
-        if (treeModelUpdateFired && !rateChanged) {
-            if (DEBUG) {
-                System.out.println("treeModelUpdateFired");
-                System.out.println("current coalescent intervals:");
-                for (int i = 1; i < times.size(); i++) {
-                    System.out.println((i-1) + ": " + (times.get(indices[i]).doubleValue() - times.get(indices[i-1]).doubleValue()));
-                }
-            }
-            updateTransitionProbabilities();
-            treeModelUpdateFired = false;
-        } else {
-            times.clear();
-            children.clear();
-            nodes.clear();
-            collectAllTimes(tree, root, nodes, times, children);
-            indices = new int[times.size()];
+        final int firstChangedGroup = sortEvents();
 
-            HeapSort.sort(times, indices);
+        //the last group whose state is kept from the previous walk
+        int restart = -1;
+        if (walkKnown && lineagesKnown && firstChangedGroup > 0) {
+            restart = ((firstChangedGroup - 1) / checkpointInterval) * checkpointInterval;
         }
 
-        double lnL = 0.0;
-
-        // start is the time of the first tip
-        double start = times.get(indices[0]).doubleValue();
-
-        int i = 0;
-        int j = 0;
-        while (i < times.size()) {
-
-            int lineagesRemoved = 0;
-            int lineagesAdded = 0;
-
-            final double finish = times.get(indices[i]).doubleValue();
-            double next = finish;
-
-            if (DEBUG) {
-                System.out.println("start = " + start + " ; finish = " + finish);
-            }
-
-            double intervalLength = finish - start;
-
-            while (Math.abs(next - finish) < MULTIFURCATION_LIMIT) {
-                final int children = this.children.get(indices[i]);
-                if (children == 0) {
-                    lineagesAdded += 1;
-                } else {
-                    lineagesRemoved += (children - 1);
-                }
-                i += 1;
-                if (i == times.size()) break;
-
-                next = times.get(indices[i]).doubleValue();
-            }
-
-            if (lineagesAdded > 0) {
-                if (DEBUG){
-                    System.out.println("lineagesAdded = " + lineagesAdded);
-                }
-                if ((intervalLength) > MULTIFURCATION_LIMIT) {
-                    incrementActiveLineages(finish-start);
-                    if (DEBUG) {
-                        System.out.println("start = " + start + " ; finish = " + finish + " ; intervalCount > 0");
-                    }
-                    while (Math.abs(treeModel.getNodeHeight(nodes.get(indices[j])) - finish) < MULTIFURCATION_LIMIT) {
-                        NodeRef refNode = nodes.get(indices[j]);
-                        if (treeModel.isExternal(refNode)) {
-                            //ProbDist newProbDist = new ProbDist(demes, 0.0, refNode);
-                            //nodeProbDist[refNode.getNumber()].update( 0.0, refNode, IntervalType.SAMPLE);
-                            nodeProbDist[refNode.getNumber()].update( 0.0);
-                            //newProbDist.setIntervalType(IntervalType.SAMPLE);
-                            //newProbDist.startLineageProbs[patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(newProbDist.node).getId())]] =  1.0;
-                            //newProbDist.copyLineageDensities();
-                            //nodeProbDist[refNode.getNumber()].startLineageProbs[patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(refNode).getId())]] =  1.0;
-                            //nodeProbDist[refNode.getNumber()].copyLineageDensities();
-                            if (DEBUG) {
-                                System.out.println(nodeProbDist[refNode.getNumber()]);
-                            }
-                            //temporary list required to keep accurate track of expected lineage counts
-                            //tempLineageList.add(nodeProbDist[refNode.getNumber()]);
-                            addedLineages[refNode.getNumber()] = true;
-                        } else {
-                            if (treeModel.getChildCount(refNode) > 2) {
-                                throw new RuntimeException("Structured coalescent currently only allows strictly bifurcating trees.");
-                            }
-                            NodeRef leftChild = treeModel.getChild(refNode, 0);
-                            NodeRef rightChild = treeModel.getChild(refNode, 1);
-                            //ProbDist newProbDist = new ProbDist(demes, intervalLength, refNode, leftChild, rightChild);
-                            //newProbDist.setIntervalType(IntervalType.COALESCENT);
-                            nodeProbDist[refNode.getNumber()].update(intervalLength, refNode, IntervalType.COALESCENT, leftChild, rightChild);
-                            //temporary list required to keep accurate track of expected lineage counts
-                            //tempLineageList.add(nodeProbDist[refNode.getNumber()]);
-                            addedLineages[refNode.getNumber()] = true;
-                        }
-                        j++;
-                        if (j >= indices.length) {
-                            j = 0;
-                            break;
-                        }
-                    }
-                } else {
-                    //very first sampling event
-                    if (DEBUG) {
-                        System.out.println("first sampling event");
-                    }
-                    while (Math.abs(treeModel.getNodeHeight(nodes.get(indices[j])) - start) < MULTIFURCATION_LIMIT) {
-                        NodeRef refNode = nodes.get(indices[j]);
-                        if (treeModel.isExternal(refNode)) {
-                            //ProbDist newProbDist = new ProbDist(demes, 0.0, refNode);
-                            //nodeProbDist[refNode.getNumber()].update( 0.0, refNode, IntervalType.SAMPLE);
-                            nodeProbDist[refNode.getNumber()].update( 0.0);
-                            //newProbDist.setIntervalType(IntervalType.SAMPLE);
-                            //newProbDist.startLineageProbs[patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(newProbDist.node).getId())]] =  1.0;
-                            //newProbDist.copyLineageDensities();
-                            //nodeProbDist[refNode.getNumber()].startLineageProbs[patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(refNode).getId())]] =  1.0;
-                            //nodeProbDist[refNode.getNumber()].copyLineageDensities();
-                            if (DEBUG) {
-                                System.out.println(nodeProbDist[refNode.getNumber()]);
-                            }
-                            //temporary list required to keep accurate track of expected lineage counts
-                            //tempLineageList.add(nodeProbDist[refNode.getNumber()]);
-                            addedLineages[refNode.getNumber()] = true;
-                        } else {
-                            throw new RuntimeException("First interval cannot be a coalescent event.");
-                        }
-                        //System.out.println("** (j=" + j + ") " + treeModel.getNodeHeight(nodes.get(indices[j])));
-                        j++;
-                        //System.out.println("** (j=" + j + ") ");
-                        if (j >= indices.length) {
-                            j = 0;
-                            break;
-                        }
-                    }
-                }
-                start = finish;
-            }
-
-            if (lineagesRemoved > 0) {
-                if (DEBUG) {
-                    System.out.println("lineagesRemoved = " + lineagesRemoved);
-                    System.out.println("start = " + start + " ; finish = " + finish);
-                }
-                incrementActiveLineages(finish-start);
-                while (Math.abs(treeModel.getNodeHeight(nodes.get(indices[j])) - finish) < MULTIFURCATION_LIMIT) {
-                    NodeRef refNode = nodes.get(indices[j]);
-                    if (treeModel.isExternal(refNode)) {
-                        //ProbDist newProbDist = new ProbDist(demes, intervalLength, refNode);
-                        //nodeProbDist[refNode.getNumber()].update( 0.0, refNode, IntervalType.SAMPLE);
-                        nodeProbDist[refNode.getNumber()].update( 0.0);
-                        //newProbDist.setIntervalType(IntervalType.SAMPLE);
-                        //newProbDist.startLineageProbs[patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(newProbDist.node).getId())]] = 1.0;
-                        //newProbDist.copyLineageDensities();
-                        //nodeProbDist[refNode.getNumber()].startLineageProbs[patternList.getPattern(0)[patternList.getTaxonIndex(treeModel.getNodeTaxon(refNode).getId())]] = 1.0;
-                        //nodeProbDist[refNode.getNumber()].copyLineageDensities();
-                        //temporary list required to keep accurate track of expected lineage counts
-                        //tempLineageList.add(nodeProbDist[refNode.getNumber()]);
-                        addedLineages[refNode.getNumber()] = true;
-                    } else {
-                        if (treeModel.getChildCount(refNode) > 2) {
-                            throw new RuntimeException("Structured coalescent currently only allows strictly bifurcating trees.");
-                        }
-                        NodeRef leftChild = treeModel.getChild(refNode, 0);
-                        NodeRef rightChild = treeModel.getChild(refNode, 1);
-                        ProbDist leftProbDist = nodeProbDist[leftChild.getNumber()];
-                        ProbDist rightProbDist = nodeProbDist[rightChild.getNumber()];
-                        //tempLineageList.remove(leftProbDist);
-                        //tempLineageList.remove(rightProbDist);
-                        addedLineages[leftChild.getNumber()] = false;
-                        addedLineages[rightChild.getNumber()] = false;
-                        /*if (DEBUG) {
-                            System.out.println("currently active lineages: " + activeLineageList.size());
-                        }*/
-                        //ProbDist newProbDist = new ProbDist(demes, intervalLength, refNode, leftChild, rightChild);
-                        //newProbDist.setIntervalType(IntervalType.COALESCENT);
-                        nodeProbDist[refNode.getNumber()].update(intervalLength, refNode, IntervalType.COALESCENT, leftChild, rightChild);
-                        //lnL += newProbDist.computeCoalescedLineage(leftProbDist, rightProbDist);
-                        lnL += nodeProbDist[refNode.getNumber()].computeCoalescedLineage(leftProbDist, rightProbDist);
-                        if (!treeModel.isRoot(refNode)) {
-                            //temporary list required to keep accurate track of expected lineage counts
-                            //tempLineageList.add(nodeProbDist[refNode.getNumber()]);
-                            addedLineages[refNode.getNumber()] = true;
-                        } else {
-                            if (DEBUG) {
-                                System.out.println("ROOT");
-                            }
-                        }
-                    }
-                    //System.out.println("** (j=" + j + ") " + treeModel.getNodeHeight(nodes.get(indices[j])));
-                    j++;
-                    //System.out.println("** (j=" + j + ") ");
-                    if (j >= indices.length) {
-                        break;
-                    }
-                }
-                start = finish;
-            }
-
-            //compute expected lineage counts here
-            if (!(finish == 0.0)) {
-                if (DEBUG) {
-                    System.out.println("Computing expected lineage counts: " + intervalLength);
-                }
-                //computeExpectedLineageCounts();
-                //and then compute the log likelihood
-                lnL += computeLogLikelihood(intervalLength);
-                if (DEBUG) {
-                    System.out.println("Computing (log) likelihood contribution; logP = " + lnL);
-                }
-            }
-
-            //and then compute the log likelihood
-            /*if (!(finish == 0.0)) {
-                lnL += computeLogLikelihood(intervalLength);
-                if (DEBUG) {
-                    System.out.println("Computing (log) likelihood contribution; logP = " + lnL);
-                }
-            }*/
-
-            //update the list of active lineages for next iteration
-            /*activeLineageList.clear();
-            for (ProbDist pd : tempLineageList) {
-                activeLineageList.add(pd);
-            }*/
-            this.addedLength = 0;
-            for (int k = 0; k < addedLineages.length; k++) {
-                if (addedLineages[k]) {
-                    activeLineageList[addedLength] = nodeProbDist[k];
-                    addedLength++;
-                }
-            }
-            /*if (DEBUG) {
-                System.out.println("currently active lineages: " + activeLineageList.size() + "\n");
-            }*/
+        if (DEBUG) {
+            System.out.println("first changed interval = " + firstChangedGroup + " ; restarting after interval " + restart);
+        }
 
+        saveWalk(restart + 1);
+        if (restart < 0) {
+            checkpointInterval = getCheckpointInterval();
         }
+        updateTransitionMatrices(restart + 1);
+
+        final double lnL = walkIntervals(restart);
 
         if (DEBUG) {
             System.out.println("Structured coalescent lnL = " + lnL);
         }
 
-        this.finalCoalescentInterval = this.currentCoalescentInterval;
-        //System.out.println("finalCoalescentInterval = " + finalCoalescentInterval);
-        this.currentCoalescentInterval = 0;
-        this.matricesKnown = true;
-        this.rateChanged = false;
+        walkKnown = true;
+        lineagesKnown = true;
+        matricesKnown = true;
 
         return lnL;
     }
 
     /**
-     * Compute the (log) likelihood over all currently active lineages.
+     * Sorts the nodes by height, starting from the order of the previous walk so that an insertion sort is close
+     * to linear after most tree moves, and groups the events that are less than MULTIFURCATION_LIMIT apart.
      *
-     * @return log likelihood contribution over the currently active lineages
+     * @return the first group that holds an event which differs from those of the previous walk
      */
-    private double computeLogLikelihood(double intervalLength) {
+    private int sortEvents() {
 
-        double intervalOne = 0.0;
-        double intervalTwo = 0.0;
-
-        if (DEBUG) {
-            System.out.println("interval length = " + intervalLength);
-            //System.out.println("active lineage list length = " + activeLineageList.size());
+        for (int i = 0; i < nodeCount; i++) {
+            nodeHeights[i] = treeModel.getNodeHeight(treeModel.getNode(i));
         }
 
-        /*for (ProbDist pd : activeLineageList) {
-            for (int i = 0; i < demes; i++) {
-                startProbs[i] += pd.startLineageProbs[i]*pd.startLineageProbs[i];
-                endProbs[i] += pd.endLineageProbs[i]*pd.endLineageProbs[i];
-            }
-        }*/
-
-        double[] startProbs = new double[demes];
-        double[] endProbs = new double[demes];
-        for (int i = 0; i < this.demes; i++) {
-            this.startExpected[i] = 0.0;
-            this.endExpected[i] = 0.0;
-        }
-        for (int j = 0; j < addedLength; j++) {
-            ProbDist pd = activeLineageList[j];
-            for (int i = 0; i < this.demes; i++) {
-                startProbs[i] += pd.startLineageProbs[i]*pd.startLineageProbs[i];
-                endProbs[i] += pd.endLineageProbs[i]*pd.endLineageProbs[i];
-                this.startExpected[i] += pd.startLineageProbs[i];
-                this.endExpected[i] += pd.endLineageProbs[i];
+        System.arraycopy(eventNodes, 0, sortedNodes, 0, nodeCount);
+        for (int i = 1; i < nodeCount; i++) {
+            final int node = sortedNodes[i];
+            final double height = nodeHeights[node];
+            int j = i - 1;
+            while (j >= 0 && nodeHeights[sortedNodes[j]] > height) {
+                sortedNodes[j + 1] = sortedNodes[j];
+                j--;
             }
+            sortedNodes[j + 1] = node;
         }
 
-        //TODO these two products can be stored inside of the ProbDist so as to only recompute when absolutely necessary
-        /*for (int i = 0; i < addedLength; i++) {
-            ProbDist pd = activeLineageList[i];
-            for (int j = 0; j < demes; j++) {
-                startProbs[j] += pd.startLineageProbs[j]*pd.startLineageProbs[j];
-                endProbs[j] += pd.endLineageProbs[j]*pd.endLineageProbs[j];
+        int firstChanged = (walkKnown ? nodeCount : 0);
+        for (int i = 0; i < nodeCount; i++) {
+            final int node = sortedNodes[i];
+            final NodeRef refNode = treeModel.getNode(node);
+            int leftChild = -1;
+            int rightChild = -1;
+            if (!treeModel.isExternal(refNode)) {
+                if (treeModel.getChildCount(refNode) > 2) {
+                    throw new RuntimeException("Structured coalescent currently only allows strictly bifurcating trees.");
+                }
+                leftChild = treeModel.getChild(refNode, 0).getNumber();
+                rightChild = treeModel.getChild(refNode, 1).getNumber();
             }
-        }*/
-
-        for (int i = 0; i < demes; i++) {
-            intervalOne += (startExpected[i]*startExpected[i] - startProbs[i])/popSizes.getParameterValue(i);
-            intervalTwo += (endExpected[i]*endExpected[i] - endProbs[i])/popSizes.getParameterValue(i);
+            if (firstChanged == nodeCount && (node != eventNodes[i] || nodeHeights[node] != eventHeights[i]
+                    || leftChild != eventChildren[2 * i] || rightChild != eventChildren[2 * i + 1])) {
+                firstChanged = i;
+            }
+            eventNodes[i] = node;
+            eventHeights[i] = nodeHeights[node];
+            eventChildren[2 * i] = leftChild;
+            eventChildren[2 * i + 1] = rightChild;
         }
 
-        intervalOne *= -intervalLength/4.0;
-        intervalTwo *= -intervalLength/4.0;
-
-        if (DEBUG) {
-            System.out.println("interval 1 (log) likelihood = " + intervalOne);
-            System.out.println("interval 2 (log) likelihood = " + intervalTwo);
-            System.out.println("total (log) likelihood = " + (intervalOne + intervalTwo));
+        int firstChangedGroup = -1;
+        groupCount = 0;
+        int i = 0;
+        while (i < nodeCount) {
+            final double finish = eventHeights[i];
+            groupStarts[groupCount] = i;
+            groupTimes[groupCount] = finish;
+            while (i < nodeCount && Math.abs(eventHeights[i] - finish) < MULTIFURCATION_LIMIT) {
+                if (i == firstChanged) {
+                    firstChangedGroup = groupCount;
+                }
+                i++;
+            }
+            groupCount++;
         }
+        groupStarts[groupCount] = nodeCount;
 
-        /*for (ProbDist pd : this.nodeProbDist) {
-            pd.needsUpdate = false;
-        }*/
-
-        return intervalOne + intervalTwo;
+        return (firstChangedGroup < 0 ? groupCount : firstChangedGroup);
     }
 
     /**
-     * Iterate over all the currently active lineages and compute the expected lineage counts.
+     * Spaces the checkpoints so that together they hold at most MAX_CHECKPOINT_SIZE lineage probabilities.
      */
-    private void computeExpectedLineageCounts() {
-        double[] start, end;
-        for (int i = 0; i < this.demes; i++) {
-            this.startExpected[i] = 0.0;
-            this.endExpected[i] = 0.0;
-        }
-        /*for (ProbDist pd : this.activeLineageList) {
-            start = pd.startLineageProbs;
-            end = pd.endLineageProbs;
-            for (int i = 0; i < this.demes; i++) {
-                this.startExpected[i] += start[i];
-                this.endExpected[i] += end[i];
-            }
-        }*/
-        for (int j = 0; j < addedLength; j++) {
-            ProbDist pd = activeLineageList[j];
-            start = pd.startLineageProbs;
-            end = pd.endLineageProbs;
-            for (int i = 0; i < this.demes; i++) {
-                this.startExpected[i] += start[i];
-                this.endExpected[i] += end[i];
-            }
-        }
-
-        if (DEBUG) {
-            System.out.print("  E_start(");
-            for (int i = 0; i < this.demes; i++) {
-                System.out.print(this.startExpected[i] + " ");
-            }
-            System.out.print(")\n  E_end(");
-            for (int i = 0; i < this.demes; i++) {
-                System.out.print(this.endExpected[i] + " ");
+    private int getCheckpointInterval() {
+        final int root = treeModel.getRoot().getNumber();
+        long size = 0;
+        int lineages = 0;
+        for (int g = 0; g < groupCount; g++) {
+            for (int i = groupStarts[g]; i < groupStarts[g + 1]; i++) {
+                if (eventChildren[2 * i] < 0) {
+                    lineages++;
+                } else {
+                    lineages -= (eventNodes[i] == root ? 2 : 1);
+                }
             }
-            System.out.println(")");
+            size += lineages;
         }
+        return (int) Math.max(1, (size * demes + MAX_CHECKPOINT_SIZE - 1) / MAX_CHECKPOINT_SIZE);
     }
 
     /**
-     * When a lineage/branch has not been fully processed/computed towards the log likelihood, increase
-     * all the branch lengths of those lineages still active.
-     *
-     * @param increment
+     * Recomputes the migration matrices of the intervals, from the given group upwards, whose lengths have changed.
+     * These are exponentiated together from a single eigendecomposition of the migration model, in the same way as
+     * its getTransitionProbabilities but without allocating a workspace for each interval.
      */
-    private void incrementActiveLineages(double increment) {
-        if (DEBUG) {
-            System.out.println("Incrementing active lineages by " + increment);
-        }
+    private void updateTransitionMatrices(int firstGroup) {
 
         final double branchRate;
         synchronized (branchRateModel) {
             branchRate = branchRateModel.getBranchRate(treeModel, treeModel.getRoot());
         }
-        if (!matricesKnown) {
-            generalSubstitutionModel.getTransitionProbabilities(branchRate * increment, migrationMatrices[this.currentCoalescentInterval]);
-
-            if (MATRIX_DEBUG) {
-                System.out.println("-----------");
-                double[] matrix = new double[demes*demes];
-                generalSubstitutionModel.getInfinitesimalMatrix(matrix);
-                for (int i = 0; i < demes; i++) {
+
+        int updateCount = 0;
+        for (int g = Math.max(firstGroup, 1); g < groupCount; g++) {
+            final double distance = branchRate * (groupTimes[g] - groupTimes[g - 1]);
+            if (!matricesKnown || distance != matrixDistances[g]) {
+                matrixDistances[g] = distance;
+                updatedIntervals[updateCount] = g;
+                updateCount++;
+            }
+        }
+
+        if (updateCount == 0) {
+            return;
+        }
+
+        final EigenDecomposition eigen = generalSubstitutionModel.getEigenDecomposition();
+
+        if (eigen == null) {
+            for (int u = 0; u < updateCount; u++) {
+                Arrays.fill(transitionMatrices[updatedIntervals[u]], 0.0);
+            }
+            return;
+        }
+
+        final double[] Evec = eigen.getEigenVectors();
+        final double[] Ievc = eigen.getInverseEigenVectors();
+        final double[] Eval = eigen.getEigenValues();
+        //complex migration models hold the imaginary parts of the eigenvalues after the real parts
+        final boolean complex = (generalSubstitutionModel instanceof ComplexSubstitutionModel);
+
+        for (int u = 0; u < updateCount; u++) {
+            final double distance = matrixDistances[updatedIntervals[u]];
+            final double[] matrix = transitionMatrices[updatedIntervals[u]];
+
+            for (int i = 0; i < demes; i++) {
+                if (!complex || Eval[demes + i] == 0) {
+                    final double temp = Math.exp(distance * Eval[i]);
                     for (int j = 0; j < demes; j++) {
-                        System.out.print(matrix[i*demes+j] + " ");
+                        exponentials[i * demes + j] = Ievc[i * demes + j] * temp;
                     }
-                    System.out.println();
-                }
-                System.out.println("-----------");
-                System.out.println("Matrix exponentiation (t=" + increment + ") is: ");
-                for (int i = 0; i < demes * demes; i++) {
-                    System.out.print(migrationMatrices[this.currentCoalescentInterval][i] + " ");
-                    if ((i + 1) % demes == 0) {
-                        System.out.println();
+                } else {
+                    //2x2 block of a complex conjugate pair of eigenvalues
+                    final int i2 = i + 1;
+                    final double expat = Math.exp(distance * Eval[i]);
+                    final double expatcosbt = expat * Math.cos(distance * Eval[demes + i]);
+                    final double expatsinbt = expat * Math.sin(distance * Eval[demes + i]);
+                    for (int j = 0; j < demes; j++) {
+                        exponentials[i * demes + j] = expatcosbt * Ievc[i * demes + j] +
+                                expatsinbt * Ievc[i2 * demes + j];
+                        exponentials[i2 * demes + j] = expatcosbt * Ievc[i2 * demes + j] -
+                                expatsinbt * Ievc[i * demes + j];
                     }
+                    i++;
                 }
-                System.out.println("-----------");
             }
-        }
 
-        //TODO evaluate later if this should be done in parallel
-        //double start = System.currentTimeMillis();
-        /*for (ProbDist pd : activeLineageList) {
-            pd.incrementIntervalLength(increment, migrationMatrices[this.currentCoalescentInterval]);
-            if (DEBUG) {
-                System.out.println("  " + pd);
+            int v = 0;
+            for (int i = 0; i < demes; i++) {
+                for (int j = 0; j < demes; j++) {
+                    double temp = 0.0;
+                    for (int k = 0; k < demes; k++) {
+                        temp += Evec[i * demes + k] * exponentials[k * demes + j];
+                    }
+                    matrix[v] = Math.abs(temp);
+                    v++;
+                }
             }
-        }*/
-        for (int i = 0; i < addedLength; i++) {
-            activeLineageList[i].incrementIntervalLength(increment, migrationMatrices[this.currentCoalescentInterval]);
         }
-        //double end = System.currentTimeMillis();
-        this.currentCoalescentInterval++;
     }
 
     /**
-     * Extract coalescent times and tip information into ArrayList times from tree.
-     * Upon return times contain the time of each node in the subtree below top, and at the corresponding index
-     * of children is the descendant count for that time.
-     *
-     * @param top          the node to start from
-     * @param tree         given tree
-     * @param times        array to fill with times
-     * @param children     array to fill with descendents count
+     * Walks the groups of events after the given one, starting from the state of the active lineages that was
+     * checkpointed there, and checkpoints the state again along the way.
      */
-    private void collectAllTimes(Tree tree, NodeRef top, ArrayList<NodeRef> nodes,
-                                        ArrayList<ComparableDouble> times, ArrayList<Integer> children) {
+    private double walkIntervals(int restart) {
 
-        times.add(new ComparableDouble(tree.getNodeHeight(top)));
-        nodes.add(top);
-        children.add(tree.getChildCount(top));
+        final int root = treeModel.getRoot().getNumber();
 
-        for (int i = 0; i < tree.getChildCount(top); i++) {
-            NodeRef child = tree.getChild(top, i);
-            collectAllTimes(tree, child, nodes, times, children);
+        double lnL;
+        if (restart < 0) {
+            activeCount = 0;
+            lnL = 0.0;
+        } else {
+            final int checkpoint = restart / checkpointInterval;
+            final int offset = checkpointOffsets[checkpoint];
+            activeCount = checkpointOffsets[checkpoint + 1] - offset;
+            for (int j = 0; j < activeCount; j++) {
+                final int node = checkpointLineages[offset + j];
+                activeLineages[j] = node;
+                System.arraycopy(checkpointLineageProbs, (offset + j) * demes, lineageProbs, node * demes, demes);
+            }
+            lnL = checkpointLogLikelihoods[checkpoint];
         }
-    }
 
-    /**
-     * compare the two times lists and only recompute those matrices that correspond to different coalescent
-     * interval lengths
-     */
-    private void updateTransitionProbabilities() {
-
-        if (MATRIX_DEBUG) {
-            int index = 0;
-            for (int i = 1; i < storedTimes.size(); i++) {
-                double length = storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i-1]).doubleValue();
-                if (length != 0.0) {
-                    System.out.println("----------- START ----------- updateTransitionProbabilities()");
-                    System.out.println("Matrix exponentiation (t=" + length + ") is: ");
-                    for (int j = 0; j < demes * demes; j++) {
-                        System.out.print(migrationMatrices[index][j] + " ");
-                        if ((j + 1) % demes == 0) {
-                            System.out.println();
-                        }
+        for (int g = restart + 1; g < groupCount; g++) {
+
+            double intervalLogLikelihood = 0.0;
+            if (g > 0) {
+                intervalLogLikelihood = incrementActiveLineages(groupTimes[g] - groupTimes[g - 1], transitionMatrices[g]);
+            }
+
+            for (int i = groupStarts[g]; i < groupStarts[g + 1]; i++) {
+                final int node = eventNodes[i];
+                final int leftChild = eventChildren[2 * i];
+                final int rightChild = eventChildren[2 * i + 1];
+                if (leftChild < 0) {
+                    Arrays.fill(lineageProbs, node * demes, (node + 1) * demes, 0.0);
+                    lineageProbs[node * demes + tipDemes[node]] = 1.0;
+                    addActiveLineage(node);
+                } else {
+                    if (g == 0) {
+                        throw new RuntimeException("First interval cannot be a coalescent event.");
+                    }
+                    lnL += computeCoalescedLineage(node, leftChild, rightChild);
+                    removeActiveLineage(leftChild);
+                    removeActiveLineage(rightChild);
+                    if (node != root) {
+                        addActiveLineage(node);
                     }
-                    System.out.println("-----------");
-                    index++;
                 }
             }
-        }
 
-        double[] oldLengths = new double[times.size()-1];
-        for (int i = 1; i < times.size(); i++) {
-            oldLengths[i-1] = times.get(indices[i]).doubleValue() - times.get(indices[i-1]).doubleValue();
-        }
+            lnL += intervalLogLikelihood;
 
-        if (DEBUG) {
-            System.out.println("old coalescent intervals:");
-            for (int i = 1; i < times.size(); i++) {
-                System.out.println((i - 1) + ": " + (times.get(indices[i]).doubleValue() - times.get(indices[i - 1]).doubleValue()));
+            if (g % checkpointInterval == 0) {
+                storeCheckpoint(g / checkpointInterval, lnL);
             }
         }
 
-        storedTimes.clear();
-        storedNodes.clear();
-        storedChildren.clear();
+        return lnL;
+    }
 
-        collectAllTimes(treeModel, treeModel.getRoot(), storedNodes, storedTimes, storedChildren);
+    /**
+     * Moves all the active lineages to the end of an interval and computes the (log) likelihood contribution over
+     * these lineages.
+     *
+     * @return log likelihood contribution over the currently active lineages
+     */
+    private double incrementActiveLineages(double intervalLength, double[] migrationMatrix) {
 
-        storedIndices = new int[storedTimes.size()];
-        HeapSort.sort(storedTimes, storedIndices);
+        Arrays.fill(startProbs, 0.0);
+        Arrays.fill(endProbs, 0.0);
+        Arrays.fill(startExpected, 0.0);
+        Arrays.fill(endExpected, 0.0);
 
-        if (DEBUG) {
-            System.out.println("new coalescent intervals:");
-            for (int i = 1; i < storedTimes.size(); i++) {
-                System.out.println((i - 1) + ": " + (storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i - 1]).doubleValue()));
+        for (int j = 0; j < activeCount; j++) {
+            final int offset = activeLineages[j] * demes;
+            for (int k = 0; k < demes; k++) {
+                endLineageProbs[k] = rdot(demes, lineageProbs, offset, 1, migrationMatrix, k, demes);
+            }
+            for (int i = 0; i < demes; i++) {
+                final double start = lineageProbs[offset + i];
+                final double end = endLineageProbs[i];
+                startProbs[i] += start * start;
+                endProbs[i] += end * end;
+                startExpected[i] += start;
+                endExpected[i] += end;
             }
+            System.arraycopy(endLineageProbs, 0, lineageProbs, offset, demes);
         }
 
-        double[] newLengths = new double[storedTimes.size()-1];
-        for (int i = 1; i < storedTimes.size(); i++) {
-            newLengths[i-1] = storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i-1]).doubleValue();
+        double intervalOne = 0.0;
+        double intervalTwo = 0.0;
+        for (int i = 0; i < demes; i++) {
+            intervalOne += (startExpected[i]*startExpected[i] - startProbs[i])/popSizes.getParameterValue(i);
+            intervalTwo += (endExpected[i]*endExpected[i] - endProbs[i])/popSizes.getParameterValue(i);
         }
 
-        final double branchRate;
-        synchronized (branchRateModel) {
-            branchRate = branchRateModel.getBranchRate(treeModel, treeModel.getRoot());
-        }
+        intervalOne *= -intervalLength/4.0;
+        intervalTwo *= -intervalLength/4.0;
 
-        if (UPDATE_DEBUG) {
-            for (int i = 0; i < times.size(); i++) {
-                System.out.print(times.get(i) + " ");
-            }
-            System.out.println();
-            for (int i = 0; i < storedTimes.size(); i++) {
-                System.out.print(storedTimes.get(i) + " ");
-            }
-            System.out.println();
+        if (DEBUG) {
+            System.out.println("interval 1 (log) likelihood = " + intervalOne);
+            System.out.println("interval 2 (log) likelihood = " + intervalTwo);
         }
 
-        int matrixIndex = 0;
+        return intervalOne + intervalTwo;
+    }
 
-        //take into account interval length of 0.0
-        //if the number of intervals would increase, currently throw an error but full evaluation would be better
-        if (oldLengths.length == newLengths.length) {
-            for (int i = 0; i < oldLengths.length; i++) {
-                if ((oldLengths[i] != newLengths[i]) && (newLengths[i] != 0.0)) {
-                    if (UPDATE_DEBUG) {
-                        System.out.println("updating transition probability matrix for coalescent interval length " + newLengths[i] + " at index " + matrixIndex);
-                    }
-                    generalSubstitutionModel.getTransitionProbabilities(branchRate * newLengths[i], migrationMatrices[matrixIndex]);
-                    matrixIndex++;
-                } else {
-                    if (MATRIX_DEBUG) {
-                        System.out.println("no matrix update required");
-                    }
-                    if (newLengths[i] != 0.0) {
-                        matrixIndex++;
-                    }
-                }
-            }
-        } else {
-            throw new RuntimeException("Number of coalescent intervals has increased?");
+    /**
+     * Sets the lineage probabilities of a coalesced node from those of its children at the end of the interval.
+     *
+     * @return log likelihood contribution of the coalescent event
+     */
+    private double computeCoalescedLineage(int node, int leftChild, int rightChild) {
+        double sum = 0.0;
+        for (int i = 0; i < demes; i++) {
+            sumComponents[i] = (lineageProbs[leftChild * demes + i] * lineageProbs[rightChild * demes + i])/popSizes.getParameterValue(i);
+            sum += sumComponents[i];
         }
+        for (int i = 0; i < demes; i++) {
+            lineageProbs[node * demes + i] = sumComponents[i]/sum;
+        }
+        return Math.log(sum);
+    }
 
-        if (MATRIX_DEBUG) {
-            int index = 0;
-            for (int i = 1; i < storedTimes.size(); i++) {
-                double length = storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i-1]).doubleValue();
-                if (length != 0.0) {
-                    System.out.println("----------- END ----------- updateTransitionProbabilities()");
-                    System.out.println("Matrix exponentiation (t=" + length + ") is: ");
-                    for (int j = 0; j < demes * demes; j++) {
-                        System.out.print(migrationMatrices[index][j] + " ");
-                        if ((j + 1) % demes == 0) {
-                            System.out.println();
-                        }
-                    }
-                    System.out.println("-----------");
-                    index++;
-                }
-            }
+    //the active lineages are kept in node order, which fixes the order in which the expected counts are summed
+    private void addActiveLineage(int node) {
+        int j = activeCount;
+        while (j > 0 && activeLineages[j - 1] > node) {
+            activeLineages[j] = activeLineages[j - 1];
+            j--;
         }
+        activeLineages[j] = node;
+        activeCount++;
+    }
 
-        times = storedTimes;
-        nodes = storedNodes;
-        children = storedChildren;
-        indices = storedIndices;
+    private void removeActiveLineage(int node) {
+        final int j = Arrays.binarySearch(activeLineages, 0, activeCount, node);
+        System.arraycopy(activeLineages, j + 1, activeLineages, j, activeCount - j - 1);
+        activeCount--;
+    }
 
-        matricesKnown = true;
+    private void storeCheckpoint(int checkpoint, double lnL) {
+        final int offset = checkpointOffsets[checkpoint];
+        if (offset + activeCount > checkpointLineages.length) {
+            final int capacity = Math.max(2 * checkpointLineages.length, offset + activeCount);
+            checkpointLineages = Arrays.copyOf(checkpointLineages, capacity);
+            checkpointLineageProbs = Arrays.copyOf(checkpointLineageProbs, capacity * demes);
+            storedCheckpointLineages = Arrays.copyOf(storedCheckpointLineages, capacity);
+            storedCheckpointLineageProbs = Arrays.copyOf(storedCheckpointLineageProbs, capacity * demes);
+        }
+        for (int j = 0; j < activeCount; j++) {
+            final int node = activeLineages[j];
+            checkpointLineages[offset + j] = node;
+            System.arraycopy(lineageProbs, node * demes, checkpointLineageProbs, (offset + j) * demes, demes);
+        }
+        checkpointOffsets[checkpoint + 1] = offset + activeCount;
+        checkpointLogLikelihoods[checkpoint] = lnL;
+    }
 
+    private int getCheckpointCount(int groupCount, int checkpointInterval) {
+        return (groupCount + checkpointInterval - 1) / checkpointInterval;
+    }
+
+    /**
+     * Before a walk overwrites the matrices and checkpoints from the given group upwards, keeps those that were
+     * there when the state was stored and have not been kept yet.
+     */
+    private void saveWalk(int firstGroup) {
+        if (firstGroup >= savedGroup) {
+            return;
+        }
+
+        for (int g = Math.max(firstGroup, 1); g < savedGroup; g++) {
+            System.arraycopy(transitionMatrices[g], 0, storedTransitionMatrices[g], 0, demes * demes);
+            storedMatrixDistances[g] = matrixDistances[g];
+        }
+
+        final int first = getCheckpointCount(firstGroup, checkpointInterval);
+        final int last = getCheckpointCount(savedGroup, checkpointInterval);
+        if (first < last) {
+            System.arraycopy(checkpointOffsets, first, storedCheckpointOffsets, first, last - first + 1);
+            System.arraycopy(checkpointLogLikelihoods, first, storedCheckpointLogLikelihoods, first, last - first);
+            final int from = checkpointOffsets[first];
+            final int to = checkpointOffsets[last];
+            System.arraycopy(checkpointLineages, from, storedCheckpointLineages, from, to - from);
+            System.arraycopy(checkpointLineageProbs, from * demes, storedCheckpointLineageProbs, from * demes, (to - from) * demes);
+        }
+
+        savedGroup = firstGroup;
     }
 
     // **************************************************************
@@ -760,59 +604,14 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             System.out.println("handleModelChangedEvent: " + model.getModelName() + ", " + object + " (class " + object.getClass() + ")");
         }
         if (model == treeModel) {
-            /*if (object instanceof TreeChangedEvent) {
-                // If a node event occurs the node and its two child nodes
-                // are flagged for updating (this will result in everything
-                // above being updated as well. Node events occur when a node
-                // is added to a branch, removed from a branch or its height or
-                // rate changes.
-                if (((TreeChangedEvent) object).isNodeChanged()) {
-                    double changeHeight = treeModel.getNodeHeight(((TreeChangedEvent) object).getNode());
-                    //TODO use what's in times variable to decide which ProbDist to update?
-                    //TODO give updateTransitionProbabilities more responsibility?
-                    //TODO NOT SUFFICIENT: sketch out an example
-                    for (ProbDist pd : this.nodeProbDist) {
-                        if (treeModel.getNodeHeight(pd.node) > changeHeight) {
-                            pd.needsUpdate = true;
-                        }
-                    }
-                } else if (((TreeChangedEvent) object).isTreeChanged()) {
-                    // Full tree events result in a complete updating of the tree likelihood
-                    // This event type is now used for EmpiricalTreeDistributions.
-                    System.err.println("Full tree update event - these events currently aren't used\n" +
-                            "so either this is in error or a new feature is using them so remove this message.");
-                    updateAllDensities();
-                } else {
-                    // Other event types are ignored (probably trait changes).
-                    //System.err.println("Another tree event has occurred (possibly a trait change).");
-                }
-            }*/
-            //for all the nodes that are older than the event, set needsUpdate to true
-            //then trigger a recalculation that makes use of an adjusted traverseTree method (that checks whether
-            //or not the ProbDist needs to be updated
+            //the events that changed are found by comparing them with those of the previous walk
             likelihoodKnown = false;
-            //TODO not all matrices will have to be recomputed all the time
-            matricesKnown = false;
-            treeModelUpdateFired = true;
         } else if (model == branchRateModel) {
-            matricesKnown = false;
-            //the following to accommodate events stemming from the upDownOperator
-            this.rateChanged = true;
-            /*likelihoodKnown = false;
-            for (ProbDist pd : this.nodeProbDist) {
-                pd.needsUpdate = true;
-            }*/
-            //updateAllDensities();
+            lineagesKnown = false;
             likelihoodKnown = false;
         } else if (model == generalSubstitutionModel) {
             matricesKnown = false;
-            //TODO is this necessary? turns out it is to avoid store/restore issues but why??
-            this.rateChanged = true;
-            /*likelihoodKnown = false;
-            for (ProbDist pd : this.nodeProbDist) {
-                pd.needsUpdate = true;
-            }*/
-            //updateAllDensities();
+            lineagesKnown = false;
             likelihoodKnown = false;
         } else {
             throw new RuntimeException("Unknown handleModelChangedEvent source, exiting.");
@@ -823,35 +622,77 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
     // VariableListener IMPLEMENTATION
     // **************************************************************
 
-
     protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
         if (DEBUG) {
             System.out.println("handleVariableChangedEvent: " + variable.getVariableName());
         }
-        //if even one of the popSizes has changed, the whole density needs to be recomputed
-        //hence we should use the adaptive multivariate transition kernel on all popSizes
+        //the population sizes change every coalesced lineage but not the migration matrices
+        lineagesKnown = false;
         likelihoodKnown = false;
-        //a change in one of the popSizes does not affect matrix exponentiation
-        matricesKnown = true;
     }
 
+    /**
+     * The events and intervals are copied, while the matrices and checkpoints are only kept once a walk is about
+     * to overwrite them.
+     */
     protected void storeState() {
-        //super.storeState();
-        for (int i = 0; i < this.finalCoalescentInterval; i++) {
-            System.arraycopy(this.migrationMatrices[i],0, this.storedMigrationMatrices[i], 0, demes*demes);
-        }
+        System.arraycopy(eventNodes, 0, storedEventNodes, 0, nodeCount);
+        System.arraycopy(eventHeights, 0, storedEventHeights, 0, nodeCount);
+        System.arraycopy(eventChildren, 0, storedEventChildren, 0, 2 * nodeCount);
+        System.arraycopy(groupStarts, 0, storedGroupStarts, 0, groupCount + 1);
+        System.arraycopy(groupTimes, 0, storedGroupTimes, 0, groupCount);
+        storedGroupCount = groupCount;
+        storedCheckpointInterval = checkpointInterval;
+        savedGroup = (walkKnown ? groupCount : 0);
+
+        storedWalkKnown = walkKnown;
+        storedLineagesKnown = lineagesKnown;
+        storedMatricesKnown = matricesKnown;
         storedLikelihoodKnown = likelihoodKnown;
         storedLogLikelihood = logLikelihood;
     }
 
     protected void restoreState() {
-        //super.restoreState();
-        double[] tmp;
-        for (int i = 0; i < this.finalCoalescentInterval; i++) {
-            tmp = this.migrationMatrices[i];
-            this.migrationMatrices[i] = this.storedMigrationMatrices[i];
-            this.storedMigrationMatrices[i] = tmp;
-        }
+        if (storedWalkKnown) {
+            checkpointInterval = storedCheckpointInterval;
+
+            for (int g = Math.max(savedGroup, 1); g < storedGroupCount; g++) {
+                System.arraycopy(storedTransitionMatrices[g], 0, transitionMatrices[g], 0, demes * demes);
+                matrixDistances[g] = storedMatrixDistances[g];
+            }
+
+            final int first = getCheckpointCount(savedGroup, checkpointInterval);
+            final int last = getCheckpointCount(storedGroupCount, checkpointInterval);
+            if (first < last) {
+                System.arraycopy(storedCheckpointOffsets, first, checkpointOffsets, first, last - first + 1);
+                System.arraycopy(storedCheckpointLogLikelihoods, first, checkpointLogLikelihoods, first, last - first);
+                final int from = checkpointOffsets[first];
+                final int to = checkpointOffsets[last];
+                System.arraycopy(storedCheckpointLineages, from, checkpointLineages, from, to - from);
+                System.arraycopy(storedCheckpointLineageProbs, from * demes, checkpointLineageProbs, from * demes, (to - from) * demes);
+            }
+        }
+
+        int[] tmp = eventNodes;
+        eventNodes = storedEventNodes;
+        storedEventNodes = tmp;
+        double[] tmp2 = eventHeights;
+        eventHeights = storedEventHeights;
+        storedEventHeights = tmp2;
+        tmp = eventChildren;
+        eventChildren = storedEventChildren;
+        storedEventChildren = tmp;
+        tmp = groupStarts;
+        groupStarts = storedGroupStarts;
+        storedGroupStarts = tmp;
+        tmp2 = groupTimes;
+        groupTimes = storedGroupTimes;
+        storedGroupTimes = tmp2;
+        groupCount = storedGroupCount;
+
+        walkKnown = storedWalkKnown;
+        lineagesKnown = storedLineagesKnown;
+        matricesKnown = storedMatricesKnown;
         likelihoodKnown = storedLikelihoodKnown;
         logLikelihood = storedLogLikelihood;
     }
@@ -863,206 +704,10 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
 
     public void makeDirty() {
         likelihoodKnown = false;
+        lineagesKnown = false;
         matricesKnown = false;
     }
 
-    protected void updateAllDensities() {
-        for (ProbDist pd : this.nodeProbDist) {
-            pd.needsUpdate = true;
-        }
-        likelihoodKnown = false;
-    }
-
-    /**
-     * Private class that allows for objects that hold the computed probability distribution of lineages among demes
-     */
-    //TODO need to implement caching mechanism for this class?
-    private class ProbDist {
-
-        //lineage probability distribution at start of interval
-        private double[] startLineageProbs;
-        //lineage probability distribution at end of interval
-        private double[] endLineageProbs;
-        //private double[] expectedLineages;
-        private double intervalLength;
-
-        //this node variable serves a double purpose as it's either a tip node in the case of a sampling event
-        //or an internal node in the case of a coalescent event
-        private NodeRef node;
-
-        private int patternIndex;
-
-        //keep track of whether the interval length has already been incremented for matrix exponentiation
-        private boolean incremented = false;
-
-        //internal boolean that indicates if this density needs to be recomputed
-        private boolean needsUpdate = true;
-
-        //coalescent or sample
-        private IntervalType intervalType;
-
-        //child nodes only server a purpose when dealing with a coalescent event
-        private NodeRef leftChild = null;
-        private NodeRef rightChild = null;
-
-        public ProbDist(int nDemes) {
-            this.startLineageProbs = new double[nDemes];
-            this.endLineageProbs = new double[nDemes];
-        }
-
-        public ProbDist(int nDemes, double distance, NodeRef node) {
-            this.startLineageProbs = new double[nDemes];
-            this.endLineageProbs = new double[nDemes];
-            this.intervalLength = distance;
-            this.node = node;
-        }
-
-        public ProbDist(int nDemes, double distance, NodeRef node, NodeRef leftChild, NodeRef rightChild) {
-            this.startLineageProbs = new double[nDemes];
-            this.endLineageProbs = new double[nDemes];
-            this.intervalLength = distance;
-            this.node = node;
-            this.leftChild = leftChild;
-            this.rightChild = rightChild;
-        }
-
-        public void update(double distance) {
-            this.intervalLength = distance;
-            for (int i = 0; i < startLineageProbs.length; i++) {
-                this.startLineageProbs[i] = 0.0;
-                this.endLineageProbs[i] = 0.0;
-            }
-            this.startLineageProbs[this.patternIndex] = 1.0;
-            this.endLineageProbs[this.patternIndex] = 1.0;
-        }
-
-        /*public void update(double distance, NodeRef node, IntervalType intervalType) {
-            this.intervalLength = distance;
-            this.node = node;
-            this.intervalType = intervalType;
-            this.leftChild = null;
-            this.rightChild = null;
-            this.incremented = false;
-            for (int i = 0; i < startLineageProbs.length; i++) {
-                this.startLineageProbs[i] = 0.0;
-                this.startLineageProbsSquared[i] = 0.0;
-                this.endLineageProbs[i] = 0.0;
-                this.endLineageProbsSquared[i] = 0.0;
-            }
-            this.startLineageProbs[this.patternIndex] = 1.0;
-            this.startLineageProbsSquared[this.patternIndex] = 1.0;
-            this.endLineageProbs[this.patternIndex] = 1.0;
-            this.endLineageProbsSquared[this.patternIndex] = 1.0;
-        }*/
-
-        public void update(double distance, NodeRef node, IntervalType intervalType, NodeRef leftChild, NodeRef rightChild) {
-            this.intervalLength = distance;
-            this.node = node;
-            this.intervalType = intervalType;
-            this.leftChild = leftChild;
-            this.rightChild = rightChild;
-            this.incremented = false;
-            for (int i = 0; i < startLineageProbs.length; i++) {
-                this.startLineageProbs[i] = 0.0;
-                this.endLineageProbs[i] = 0.0;
-            }
-            this.startLineageProbs[this.patternIndex] = 1.0;
-            this.endLineageProbs[this.patternIndex] = 1.0;
-        }
-
-        //compute the probability distribution of lineages among demes for a coalescent event
-        public double computeCoalescedLineage(ProbDist leftProbDist, ProbDist rightProbDist) {
-            double sum = 0.0;
-            double[] sumComponents = new double[demes];
-            for (int i = 0; i < demes; i++) {
-                sumComponents[i] = (leftProbDist.endLineageProbs[i] * rightProbDist.endLineageProbs[i])/popSizes.getParameterValue(i);
-                sum += sumComponents[i];
-            }
-
-            if (DEBUG) {
-                System.out.println("coalescent end lineage prob 0 = " + leftProbDist.endLineageProbs[0]);
-                System.out.println("coalescent end lineage prob 1 = " + leftProbDist.endLineageProbs[1]);
-            }
-            for (int i = 0; i < demes; i++) {
-                this.startLineageProbs[i] = sumComponents[i]/sum;
-                if (DEBUG) {
-                    System.out.println("coalescent start lineage prob " + i + " = " + (sumComponents[i]/sum));
-                }
-            }
-            if (DEBUG) {
-                System.out.println("E_i = " + Math.log(sum));
-            }
-            //new interval (and new node) so set its length to zero
-            this.intervalLength = 0.0;
-            return Math.log(sum);
-        }
-
-        //compute the end probability densities and expected numbers of lineages
-        public void computeEndLineageDensities(double lineageLength, double[] migrationMatrix) {
-            //TODO this should be possible in parallel for each lineage within the same coalescent interval
-            //TODO will need to collect all the tasks first (i.e. collectEndLineageDensities) and then start in parallel
-            for (int k = 0; k < demes; k++) {
-                    /*double value = 0.0;
-                    for (int l = 0; l < demes; l++) {
-                        value += this.startLineageProbs[l] * migrationMatrix[l*demes+k];
-                    }
-                    this.endLineageProbs[k] = value;*/
-                this.endLineageProbs[k] = rdot(demes, startLineageProbs, 0, 1, migrationMatrix, k, demes);
-            }
-            //}
-
-        }
-
-        //TODO this should really become 1 call to computeEndLineageDensities
-        public void incrementIntervalLength(double increment, double[] migrationMatrix) {
-            this.intervalLength += increment;
-            if (incremented) {
-                if (ASSOC_MULTIPLICATION) {
-                    System.arraycopy(this.endLineageProbs, 0, this.startLineageProbs, 0, demes);
-                    //for (int i = 0; i < demes; i++) {
-                    //    startLineageProbs[i] = endLineageProbs[i];
-                    //}
-                    computeEndLineageDensities(increment, migrationMatrix);
-                } else {
-                    throw new RuntimeException("Only incremental matrix exponentiation allowed for performance reasons.");
-                }
-            } else {
-                if (DEBUG) {
-                    System.out.println("this.intervalLength computeEndLineageDensities: " + this.intervalLength + " ; increment = " + increment);
-                }
-                computeEndLineageDensities(this.intervalLength, migrationMatrix);
-            }
-            this.incremented = true;
-        }
-
-        public IntervalType getIntervalType() {
-            return this.intervalType;
-        }
-
-        public NodeRef getLeftChild() {
-            return this.leftChild;
-        }
-
-        public NodeRef getRightChild() {
-            return this.rightChild;
-        }
-
-        @Override
-        public String toString() {
-            String output = "Node " + this.node + " ; length = " + this.intervalLength + " S(";
-            for (int i = 0; i < startLineageProbs.length; i++) {
-                output += startLineageProbs[i] + " ";
-            }
-            output += ") E(";
-            for (int i = 0; i < endLineageProbs.length; i++) {
-                output += endLineageProbs[i] + " ";
-            }
-            output += ")";
-            return output;
-        }
-
-    }
-
     // **************************************************************
     // Method from JavaBlas v1.2.4 (www.jblas.org)
     // **************************************************************
@@ -1154,54 +799,76 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
     //the discrete trait data
     private PatternList patternList;
 
-    //expected starting lineage counts
-    private double[] startExpected;
-
-    //expected ending lineage counts
-    private double[] endExpected;
-
-    //array with a probability distribution for each node
-    private ProbDist[] nodeProbDist;
-
-    //elements for constructing the coalescent intervals and times
-    private ArrayList<ComparableDouble> times;
-    private ArrayList<Integer> children;
-    private ArrayList<NodeRef> nodes;
-    private int[] indices;
-
-    //stored versions of the coalescent intervals and times
-    private ArrayList<ComparableDouble> storedTimes;
-    private ArrayList<Integer> storedChildren;
-    private ArrayList<NodeRef> storedNodes;
-    private int[] storedIndices;
-
-    //list of currently active lineages
-    //private ArrayList<ProbDist> activeLineageList;
-    //temporary list of lineages
-    //private ArrayList<ProbDist> tempLineageList;
-
-    //list of currently active lineages
-    private ProbDist[] activeLineageList;
-    //temporary list of lineages
-    //private ProbDist[] tempLineageList;
-    private boolean[] addedLineages;
-    private int addedLength;
-
     //the migration model
     private GeneralSubstitutionModel generalSubstitutionModel;
 
     //number of demes for the structured coalescent model
     private int demes;
 
-    //variables that allow to use storeState and restoreState
-    private int maxCoalescentIntervals;
-    private int currentCoalescentInterval;
-    private double[][] migrationMatrices;
-    private int finalCoalescentInterval;
-    private double[][] storedMigrationMatrices;
+    private int nodeCount;
+
+    //the deme of each external node
+    private int[] tipDemes;
+
+    //the nodes sorted by height, with their heights and children (-1 for external nodes) at the previous walk
+    private double[] nodeHeights;
+    private int[] sortedNodes;
+    private int[] eventNodes;
+    private double[] eventHeights;
+    private int[] eventChildren;
+    private int[] storedEventNodes;
+    private double[] storedEventHeights;
+    private int[] storedEventChildren;
+
+    //the groups of simultaneous events, given by their first event and their time
+    private int groupCount;
+    private int[] groupStarts;
+    private double[] groupTimes;
+    private int storedGroupCount;
+    private int[] storedGroupStarts;
+    private double[] storedGroupTimes;
+
+    //the migration matrix of the interval that ends at each group and the distance it was computed for
+    private double[] matrixDistances;
+    private double[][] transitionMatrices;
+    private double[] storedMatrixDistances;
+    private double[][] storedTransitionMatrices;
+    private int[] updatedIntervals;
+    private double[] exponentials;
+
+    //the currently active lineages, in node order, and the probabilities of each node's lineage among demes
+    private int activeCount;
+    private int[] activeLineages;
+    private double[] lineageProbs;
+    private double[] endLineageProbs;
+    private double[] sumComponents;
+
+    //squared probabilities and expected lineage counts at the start and end of an interval
+    private double[] startProbs;
+    private double[] endProbs;
+    private double[] startExpected;
+    private double[] endExpected;
 
+    //the active lineages, their probabilities and the log likelihood after every checkpointInterval'th group
+    private int checkpointInterval;
+    private int[] checkpointOffsets;
+    private double[] checkpointLogLikelihoods;
+    private int[] checkpointLineages;
+    private double[] checkpointLineageProbs;
+    private int storedCheckpointInterval;
+    private int[] storedCheckpointOffsets;
+    private double[] storedCheckpointLogLikelihoods;
+    private int[] storedCheckpointLineages;
+    private double[] storedCheckpointLineageProbs;
+
+    //the groups from which the matrices and checkpoints of the stored state have been kept
+    private int savedGroup;
+
+    private boolean walkKnown;
+    private boolean lineagesKnown;
     private boolean matricesKnown;
-    private boolean rateChanged;
-    private boolean treeModelUpdateFired;
+    private boolean storedWalkKnown;
+    private boolean storedLineagesKnown;
+    private boolean storedMatricesKnown;
 
 }
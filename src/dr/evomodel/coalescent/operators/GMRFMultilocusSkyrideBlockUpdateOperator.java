@@ -31,6 +31,7 @@ import dr.inference.model.MatrixParameter;
 import dr.inference.model.Parameter;
 import dr.inference.operators.*;
 import dr.math.MathUtils;
+import dr.math.matrixAlgebra.TridiagonalCholesky;
 import no.uib.cipr.matrix.*;
 
 import java.util.List;
@@ -62,7 +63,22 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractAdaptableO
 
     GMRFMultilocusSkyrideLikelihood gmrfField;
 
-    private double[] zeros;
+    // workspace reused by each update
+    private final TridiagonalCholesky forwardCholesky;
+    private final TridiagonalCholesky backwardCholesky;
+    private final TridiagonalCholesky jacobianCholesky;
+    private final double[] gammaMode;
+    private final double[] gradient;
+    private final double[] step;
+    private final double[] precisionDiagonal;
+    private final double[] qzBeta;
+    private final double[] canonical;
+    private final double[] forwardMean;
+    private final double[] backwardMean;
+    private final double[] standardNormal;
+    private final double[] proposedGamma;
+    private final double[] difference;
+    private final double[] product;
 
     public GMRFMultilocusSkyrideBlockUpdateOperator(GMRFMultilocusSkyrideLikelihood gmrfLikelihood,
                                                     double weight, AdaptationMode mode, double scaleFactor,
@@ -83,7 +99,21 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractAdaptableO
         this.stopValue = stopValue;
         setWeight(weight);
 
-        zeros = new double[fieldLength];
+        forwardCholesky = new TridiagonalCholesky(fieldLength);
+        backwardCholesky = new TridiagonalCholesky(fieldLength);
+        jacobianCholesky = new TridiagonalCholesky(fieldLength);
+        gammaMode = new double[fieldLength];
+        gradient = new double[fieldLength];
+        step = new double[fieldLength];
+        precisionDiagonal = new double[fieldLength];
+        qzBeta = new double[fieldLength];
+        canonical = new double[fieldLength];
+        forwardMean = new double[fieldLength];
+        backwardMean = new double[fieldLength];
+        standardNormal = new double[fieldLength];
+        proposedGamma = new double[fieldLength];
+        difference = new double[fieldLength];
+        product = new double[fieldLength];
     }
 
     private double getNewLambda(double currentValue, double lambdaScale) {
@@ -113,44 +143,6 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractAdaptableO
         return returnValue;
     }
 
-    public DenseVector getMultiNormalMean(DenseVector CanonVector, BandCholesky Cholesky) {
-
-        DenseVector tempValue = new DenseVector(zeros);
-        DenseVector Mean = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // Assume Cholesky factorization of the precision matrix Q = LL^T
-
-        // 1. Solve L\omega = b
-
-        CholeskyUpper.transSolve(CanonVector, tempValue);
-
-        // 2. Solve L^T \mu = \omega
-
-        CholeskyUpper.solve(tempValue, Mean);
-
-        return Mean;
-    }
-
-    public DenseVector getMultiNormal(DenseVector StandNorm, DenseVector Mean, BandCholesky Cholesky) {
-
-        DenseVector returnValue = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // 3. Solve L^T v = z
-
-        CholeskyUpper.solve(StandNorm, returnValue);
-
-        // 4. Return x = \mu + v
-
-        returnValue.add(Mean);
-
-        return returnValue;
-    }
-
-
     public static DenseVector getMultiNormal(DenseVector Mean, UpperSPDDenseMatrix Variance) {
         int length = Mean.size();
         DenseVector tempValue = new DenseVector(length);
@@ -207,11 +199,6 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractAdaptableO
         }
     }
 
-    public DenseVector newtonRaphson(double[] data1, double[] data2, DenseVector currentGamma,
-                                     SymmTridiagMatrix proposedQ, DenseVector ZBeta) {
-        return newNewtonRaphson(data1, data2, currentGamma, proposedQ, maxIterations, stopValue, ZBeta);
-    }
-
     public static DenseVector newNewtonRaphson(double[] data1, double[] data2, DenseVector currentGamma, SymmTridiagMatrix proposedQ,
                                                int maxIterations, double stopValue, DenseVector ZBeta) {
 
@@ -295,8 +282,7 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractAdaptableO
         precisionParameter.setParameterValue(0, proposedPrecision);
         lambdaParameter.setParameterValue(0, proposedLambda);
 
-        DenseVector currentGamma = new DenseVector(gmrfField.getPopSizeParameter().getParameterValues());
-        DenseVector proposedGamma;
+        double[] currentGamma = gmrfField.getPopSizeParameter().getParameterValues();
 
         SymmTridiagMatrix currentQ = gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda);
         SymmTridiagMatrix proposedQ = gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda);
@@ -304,101 +290,161 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractAdaptableO
         double[] wNative = gmrfField.getSufficientStatistics();
         double[] numCoalEv = gmrfField.getNumCoalEvents();
 
-        UpperSPDBandMatrix forwardQW = new UpperSPDBandMatrix(proposedQ, 1);
-        UpperSPDBandMatrix backwardQW = new UpperSPDBandMatrix(currentQ, 1);
+        double[] zBeta = getZBeta(covariates, betaParameter).getData();
 
-        BandCholesky forwardCholesky = new BandCholesky(wNative.length, 1, true);
-        BandCholesky backwardCholesky = new BandCholesky(wNative.length, 1, true);
+        // forward move: a Gaussian approximation around the mode of the proposed full conditional
 
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector diagonal2 = new DenseVector(fieldLength);
-        DenseVector diagonal3 = new DenseVector(fieldLength);
-        DenseVector ZBetaVector = getZBeta(covariates, betaParameter);
-        DenseVector QZBetaProp = new DenseVector(fieldLength);
-        DenseVector QZBetaCurrent = new DenseVector(fieldLength);
-        forwardQW.mult(ZBetaVector, QZBetaProp);
-        backwardQW.mult(ZBetaVector, QZBetaCurrent);
+        TridiagonalCholesky.multiply(proposedQ.getDiagonal(), proposedQ.getOffDiagonal(), zBeta, qzBeta);
 
-        DenseVector modeForward = newtonRaphson(numCoalEv, wNative, currentGamma, proposedQ.copy(), ZBetaVector);
-
-        if (modeForward == null) {
+        if (!findMode(numCoalEv, wNative, currentGamma, proposedQ, qzBeta, gammaMode)) {
             // used to pass on an OperatorFailedException
             return Double.NEGATIVE_INFINITY;
         }
 
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeForward.get(i)));
-            diagonal2.set(i, modeForward.get(i) + 1);
+        if (!factorApproximation(numCoalEv, wNative, proposedQ, qzBeta, gammaMode, forwardCholesky)) {
+            return Double.NEGATIVE_INFINITY;
+        }
 
-            forwardQW.set(i, i, diagonal1.get(i) + forwardQW.get(i, i));
-            //diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-            diagonal1.set(i, QZBetaProp.get(i) + diagonal1.get(i) * diagonal2.get(i) - numCoalEv[i]);
+        // the mean of the approximation solves Q mu = b
+        forwardCholesky.solve(canonical, forwardMean);
+
+        for (int i = 0; i < fieldLength; i++)
+            standardNormal[i] = MathUtils.nextGaussian();
+
+        // x = mu + v where U v = z
+        forwardCholesky.solveUpper(standardNormal, proposedGamma);
+        for (int i = 0; i < fieldLength; i++) {
+            proposedGamma[i] += forwardMean[i];
         }
 
-        forwardCholesky.factor(forwardQW.copy());
+        for (int i = 0; i < fieldLength; i++)
+            popSizeParameter.setParameterValueQuietly(i, proposedGamma[i]);
 
-        DenseVector forwardMean = getMultiNormalMean(diagonal1, forwardCholesky);
+        ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
 
-        DenseVector stand_norm = new DenseVector(zeros);
+        // backward move: the approximation around the mode of the current full conditional
 
-        for (int i = 0; i < zeros.length; i++)
-            stand_norm.set(i, MathUtils.nextGaussian());
+        TridiagonalCholesky.multiply(currentQ.getDiagonal(), currentQ.getOffDiagonal(), zBeta, qzBeta);
 
-        proposedGamma = getMultiNormal(stand_norm, forwardMean, forwardCholesky);
+        if (!findMode(numCoalEv, wNative, proposedGamma, currentQ, qzBeta, gammaMode)) {
+            // used to pass on an OperatorFailedException
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        if (!factorApproximation(numCoalEv, wNative, currentQ, qzBeta, gammaMode, backwardCholesky)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        backwardCholesky.solve(canonical, backwardMean);
 
-        /*
-        double hRatio = 0;
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, proposedGamma.get(i) - forwardMean.get(i));
+            difference[i] = currentGamma[i] - backwardMean[i];
         }
-        diagonal3.zero();
-        forwardQW.mult(diagonal1, diagonal3);
 
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * diagonal1.dot(diagonal3);
-        */
+        // precisionDiagonal still holds the diagonal of the backward precision
+        TridiagonalCholesky.multiply(precisionDiagonal, currentQ.getOffDiagonal(), difference, product);
 
-        for (int i = 0; i < fieldLength; i++)
-            popSizeParameter.setParameterValueQuietly(i, proposedGamma.get(i));
+        double hRatio = 0;
+        hRatio += logGeneralizedDeterminant(backwardCholesky.getDiagonal()) - 0.5 * dot(difference, product);
+        hRatio -= logGeneralizedDeterminant(forwardCholesky.getDiagonal()) - 0.5 * dot(standardNormal, standardNormal);
 
-        ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
+        return hRatio;
+    }
 
+    /**
+     * Finds the mode of the full conditional of the log population sizes by Newton-Raphson iteration, starting
+     * from the given values, with the tridiagonal Jacobian factored in the reused workspace.
+     *
+     * @return false if the Jacobian is not positive definite or the iteration does not converge
+     */
+    private boolean findMode(double[] data1, double[] data2, double[] start, SymmTridiagMatrix Q,
+                             double[] qzBeta, double[] mode) {
 
-        double hRatio = 0;
+        final double[] qDiagonal = Q.getDiagonal();
+        final double[] qOffDiagonal = Q.getOffDiagonal();
 
-        diagonal1.zero();
-        diagonal2.zero();
-        diagonal3.zero();
+        System.arraycopy(start, 0, mode, 0, fieldLength);
 
-        DenseVector modeBackward = newtonRaphson(numCoalEv, wNative, proposedGamma, currentQ.copy(), ZBetaVector);
+        int numberIterations = 0;
 
-        if (modeBackward == null) {
-            // used to pass on an OperatorFailedException
-            return Double.NEGATIVE_INFINITY;
-        }
+        while (true) {
+            TridiagonalCholesky.multiply(qDiagonal, qOffDiagonal, mode, gradient);
+            double norm = 0.0;
+            for (int i = 0; i < fieldLength; i++) {
+                final double weight = data2[i] * Math.exp(-mode[i]);
+                gradient[i] = -gradient[i] + qzBeta[i] - data1[i] + weight;
+                precisionDiagonal[i] = qDiagonal[i] + weight;
+                norm += gradient[i] * gradient[i];
+            }
 
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeBackward.get(i)));
-            diagonal2.set(i, modeBackward.get(i) + 1);
+            if (!(Math.sqrt(norm) > stopValue)) {
+                break;
+            }
+
+            if (!jacobianCholesky.factor(precisionDiagonal, qOffDiagonal)) {
+                return failNewtonRaphson();
+            }
+            jacobianCholesky.solve(gradient, step);
 
-            backwardQW.set(i, i, diagonal1.get(i) + backwardQW.get(i, i));
-            //diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-            diagonal1.set(i, QZBetaCurrent.get(i) + diagonal1.get(i) * diagonal2.get(i) - numCoalEv[i]);
+            for (int i = 0; i < fieldLength; i++) {
+                mode[i] += step[i];
+            }
+            numberIterations++;
+
+            if (numberIterations > maxIterations) {
+                return failNewtonRaphson();
+            }
         }
 
-        backwardCholesky.factor(backwardQW.copy());
+        Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson S");
+        return true;
+    }
 
-        DenseVector backwardMean = getMultiNormalMean(diagonal1, backwardCholesky);
+    private boolean failNewtonRaphson() {
+        if (FAIL_SILENTLY) {
+            // this replicates the old behaviour of throwing an OperatorFailedException and rejecting the move.
+            return false;
+        }
+        Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
+        throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
+                "Try starting BEAST with a more accurate initial tree.");
+    }
 
+    /**
+     * Factors the precision Q + diag(w exp(-mode)) of the Gaussian approximation at the mode and sets up the
+     * canonical vector of its mean.
+     *
+     * @return false if the precision is not positive definite
+     */
+    private boolean factorApproximation(double[] numCoalEv, double[] wNative, SymmTridiagMatrix Q,
+                                        double[] qzBeta, double[] mode, TridiagonalCholesky cholesky) {
+        final double[] qDiagonal = Q.getDiagonal();
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, currentGamma.get(i) - backwardMean.get(i));
+            final double weight = wNative[i] * Math.exp(-mode[i]);
+            precisionDiagonal[i] = qDiagonal[i] + weight;
+            canonical[i] = qzBeta[i] + weight * (mode[i] + 1) - numCoalEv[i];
         }
+        return cholesky.factor(precisionDiagonal, Q.getOffDiagonal());
+    }
 
-        backwardQW.mult(diagonal1, diagonal3);
+    public static double logGeneralizedDeterminant(double[] choleskyDiagonal) {
+        double returnValue = 0;
 
-        hRatio += logGeneralizedDeterminant(backwardCholesky.getU()) - 0.5 * diagonal1.dot(diagonal3);
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * stand_norm.dot(stand_norm);
+        for (double value : choleskyDiagonal) {
+            if (value > 0.0000001) {
+                returnValue += Math.log(value);
+            }
+        }
 
-       return hRatio;
+        return returnValue;
+    }
+
+    private static double dot(double[] x, double[] y) {
+        double sum = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            sum += x[i] * y[i];
+        }
+        return sum;
     }
 
     //MCMCOperator INTERFACE
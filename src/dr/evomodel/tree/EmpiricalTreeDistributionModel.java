@@ -134,6 +134,23 @@ public class EmpiricalTreeDistributionModel extends TreeModel {
         return currentTree.getRoot();
     }
 
+    public int[] getPostOrderNodeNumbers() {
+        if (postOrderTree != currentTree) {
+            if (postOrderNodeNumbers == null || postOrderNodeNumbers.length != currentTree.getNodeCount()) {
+                postOrderNodeNumbers = new int[currentTree.getNodeCount()];
+                postOrderPositions = new int[currentTree.getNodeCount()];
+            }
+            calculatePostOrder(postOrderNodeNumbers, postOrderPositions);
+            postOrderTree = currentTree;
+        }
+        return postOrderNodeNumbers;
+    }
+
+    public int getPostOrderPosition(int nodeNumber) {
+        getPostOrderNodeNumbers();
+        return postOrderPositions[nodeNumber];
+    }
+
     public int getNodeCount() {
         return currentTree.getNodeCount();
     }
@@ -274,4 +291,9 @@ public class EmpiricalTreeDistributionModel extends TreeModel {
     private Tree storedCurrentTree;
 
     private int currentTreeIndex;
+
+    // the tree the post-order below is for
+    private Tree postOrderTree = null;
+    private int[] postOrderNodeNumbers = null;
+    private int[] postOrderPositions = null;
 }
@@ -101,7 +101,6 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
         nodeCount = internalNodeCount + externalNodeCount;
 
         nodes = new Node[nodeCount];
-        storedNodes = new Node[nodeCount];
 
         int i = 0;
         int j = externalNodeCount;
@@ -115,22 +114,36 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
                 node.number = i;
 
                 nodes[i] = node;
-                storedNodes[i] = new Node();
-                storedNodes[i].taxon = node.taxon;
-                storedNodes[i].number = i;
 
                 i++;
             } else {
                 node.number = j;
 
                 nodes[j] = node;
-                storedNodes[j] = new Node();
-                storedNodes[j].number = j;
 
                 j++;
             }
         } while (node != root);
 
+        storedParentNumbers = new int[nodeCount];
+        storedLeftChildNumbers = new int[nodeCount];
+        storedRightChildNumbers = new int[nodeCount];
+        storedHeightParameters = new Parameter[nodeCount];
+        storedRateParameters = new Parameter[nodeCount];
+        @SuppressWarnings("unchecked")
+        Map<String, Parameter>[] traitParameters = new Map[nodeCount];
+        storedTraitParameters = traitParameters;
+        isNodeStored = new boolean[nodeCount];
+        storedNodeNumbers = new int[nodeCount];
+
+        postOrderNodeNumbers = new int[nodeCount];
+        postOrderPositions = new int[nodeCount];
+
+        nodeOfHeightParameter = new IdentityHashMap<Parameter, Node>();
+        for (Node n : nodes) {
+            nodeOfHeightParameter.put(n.heightParameter, n);
+        }
+
         // must be done here to allow programmatic running of BEAST
         setupHeightBounds();
     }
@@ -487,6 +500,7 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
         if (!inEdit) throw new RuntimeException("Must be in edit transaction to call this method!");
 
         root = (Node) newRoot;
+        postOrderKnown = false;
 
         // We shouldn't need this because the addChild will already have fired appropriate events.
         pushTreeChangedEvent(root);
@@ -595,11 +609,13 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
     // *****************************************************************
 
     /**
-     * Store current state
+     * Store current state. The links between the nodes are not copied here; instead the links of each
+     * node are saved the first time it is changed after the store (see storeNodeLinks) so the cost of a
+     * store and restore depends only on the number of nodes a move changes.
      */
     protected void storeState() {
 
-        copyNodeStructure(storedNodes);
+        clearStoredNodeLinks();
         storedRootNumber = root.getNumber();
 
     }
@@ -609,9 +625,29 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      */
     protected void restoreState() {
 
-        Node[] tmp = storedNodes;
-        storedNodes = nodes;
-        nodes = tmp;
+        for (int i = 0; i < storedNodeCount; i++) {
+            final int n = storedNodeNumbers[i];
+            final Node node = nodes[n];
+
+            // the parameter values are automatically stored and restored
+            // just need to put back the links
+            node.parent = getStoredNode(storedParentNumbers[n]);
+            node.leftChild = getStoredNode(storedLeftChildNumbers[n]);
+            node.rightChild = getStoredNode(storedRightChildNumbers[n]);
+
+            if (node.heightParameter != storedHeightParameters[n]) {
+                node.heightParameter = storedHeightParameters[n];
+                nodeOfHeightParameter.put(node.heightParameter, node);
+            }
+            node.rateParameter = storedRateParameters[n];
+            node.traitParameters = storedTraitParameters[n];
+
+            isNodeStored[n] = false;
+        }
+        if (storedNodeCount > 0) {
+            postOrderKnown = false;
+        }
+        storedNodeCount = 0;
 
         root = nodes[storedRootNumber];
     }
@@ -620,46 +656,98 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      * accept the stored state
      */
     protected void acceptState() {
-    } // nothing to do
+        clearStoredNodeLinks();
+    }
 
     /**
-     * Copies the node connections from this TreeModel's nodes array to the
-     * destination array. Basically it connects up the nodes in destination
-     * in the same way as this TreeModel is set up. This method is package
-     * private.
+     * Saves the links of a node (to its parent, children and parameters) the first time it is changed
+     * after a store so they can be put back by restoreState.
      */
-    private void copyNodeStructure(Node[] destination) {
+    private void storeNodeLinks(Node node) {
+        if (isNodeStored == null) {
+            // the tree is still being built
+            return;
+        }
 
-        if (nodes.length != destination.length) {
-            throw new IllegalArgumentException("Node arrays are of different lengths");
+        final int n = node.number;
+        if (!isNodeStored[n]) {
+            storedParentNumbers[n] = (node.parent != null ? node.parent.number : -1);
+            storedLeftChildNumbers[n] = (node.leftChild != null ? node.leftChild.number : -1);
+            storedRightChildNumbers[n] = (node.rightChild != null ? node.rightChild.number : -1);
+            storedHeightParameters[n] = node.heightParameter;
+            storedRateParameters[n] = node.rateParameter;
+            storedTraitParameters[n] = node.traitParameters;
+
+            isNodeStored[n] = true;
+            storedNodeNumbers[storedNodeCount] = n;
+            storedNodeCount++;
         }
 
-        for (int i = 0, n = nodes.length; i < n; i++) {
-            Node node0 = nodes[i];
-            Node node1 = destination[i];
+        postOrderKnown = false;
+    }
 
-            // the parameter values are automatically stored and restored
-            // just need to keep the links
-            node1.heightParameter = node0.heightParameter;
-            node1.rateParameter = node0.rateParameter;
-            node1.traitParameters = node0.traitParameters;
+    private void clearStoredNodeLinks() {
+        for (int i = 0; i < storedNodeCount; i++) {
+            isNodeStored[storedNodeNumbers[i]] = false;
+        }
+        storedNodeCount = 0;
+    }
 
-            if (node0.parent != null) {
-                node1.parent = storedNodes[node0.parent.getNumber()];
-            } else {
-                node1.parent = null;
-            }
+    private Node getStoredNode(int number) {
+        return (number != -1 ? nodes[number] : null);
+    }
 
-            if (node0.leftChild != null) {
-                node1.leftChild = storedNodes[node0.leftChild.getNumber()];
-            } else {
-                node1.leftChild = null;
-            }
+    /**
+     * Gives the node numbers in post-order (the same order as a recursive traversal visiting the first
+     * child, the second child and then the node itself, so ending at the root). The order is kept until
+     * the topology next changes so it can be walked as a flat array.
+     *
+     * @return the node numbers in post-order (this array must not be modified)
+     */
+    public int[] getPostOrderNodeNumbers() {
+        if (!postOrderKnown) {
+            calculatePostOrder(postOrderNodeNumbers, postOrderPositions);
+            postOrderKnown = true;
+        }
+        return postOrderNodeNumbers;
+    }
 
-            if (node0.rightChild != null) {
-                node1.rightChild = storedNodes[node0.rightChild.getNumber()];
+    /**
+     * @return the position of the node in the array returned by getPostOrderNodeNumbers
+     */
+    public int getPostOrderPosition(int nodeNumber) {
+        if (!postOrderKnown) {
+            getPostOrderNodeNumbers();
+        }
+        return postOrderPositions[nodeNumber];
+    }
+
+    /**
+     * Fills in the post-order of the nodes (without recursion) and the position of each node in it.
+     */
+    protected final void calculatePostOrder(int[] order, int[] positions) {
+        int count = 0;
+        NodeRef node = getRoot();
+        // descend to the first tip and then repeatedly move to the post-order successor
+        while (getChildCount(node) > 0) {
+            node = getChild(node, 0);
+        }
+        while (true) {
+            positions[node.getNumber()] = count;
+            order[count] = node.getNumber();
+            count++;
+
+            NodeRef parent = getParent(node);
+            if (parent == null) {
+                break;
+            }
+            if (getChild(parent, 0) == node && getChildCount(parent) > 1) {
+                node = getChild(parent, 1);
+                while (getChildCount(node) > 0) {
+                    node = getChild(node, 0);
+                }
             } else {
-                node1.rightChild = null;
+                node = parent;
             }
         }
     }
@@ -1106,9 +1194,11 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
 
         if (parameter == null) throw new IllegalArgumentException("Parameter is null!");
 
-        for (Node node : nodes) {
-            if (node.heightParameter == parameter) {
-                return node;
+        // height parameters are by far the most often changed so are looked up directly
+        if (nodeOfHeightParameter != null) {
+            Node heightNode = nodeOfHeightParameter.get(parameter);
+            if (heightNode != null && heightNode.heightParameter == parameter) {
+                return heightNode;
             }
         }
 
@@ -1317,6 +1407,9 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
             rate2 = n2.getRate();
         }
 
+        storeNodeLinks(n1);
+        storeNodeLinks(n2);
+
         // swap all trait parameters
 
         if (hasTraits) {
@@ -1341,6 +1434,8 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
         Parameter temp = n1.heightParameter;
         n1.heightParameter = n2.heightParameter;
         n2.heightParameter = temp;
+        nodeOfHeightParameter.put(n1.heightParameter, n1);
+        nodeOfHeightParameter.put(n2.heightParameter, n2);
 
         if (hasRates) {
             temp = n1.rateParameter;
@@ -1547,6 +1642,8 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
          * @param node new child node
          */
         public void addChild(Node node) {
+            storeNodeLinks(this);
+            storeNodeLinks(node);
             if (leftChild == null) {
                 leftChild = node;
             } else if (rightChild == null) {
@@ -1563,6 +1660,8 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
          * @param node child to be removed
          */
         public Node removeChild(Node node) {
+            storeNodeLinks(this);
+            storeNodeLinks(node);
             if (leftChild == node) {
                 leftChild = null;
             } else if (rightChild == node) {
@@ -1580,6 +1679,8 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
          * @param n number of child to be removed
          */
         public Node removeChild(int n) {
+            storeNodeLinks(this);
+            storeNodeLinks(getChild(n));
             Node node;
             if (n == 0) {
                 node = leftChild;
@@ -1684,7 +1785,28 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      * list of internal nodes (including root)
      */
     private Node[] nodes = null;
-    private Node[] storedNodes = null;
+
+    /**
+     * the links of each node saved when it is first changed after a store (as node numbers, -1 for none)
+     */
+    private int[] storedParentNumbers = null;
+    private int[] storedLeftChildNumbers = null;
+    private int[] storedRightChildNumbers = null;
+    private Parameter[] storedHeightParameters = null;
+    private Parameter[] storedRateParameters = null;
+    private Map<String, Parameter>[] storedTraitParameters = null;
+    private boolean[] isNodeStored = null;
+    private int[] storedNodeNumbers = null;
+    private int storedNodeCount = 0;
+
+    /**
+     * the node numbers in post-order and the position of each node in it
+     */
+    private int[] postOrderNodeNumbers = null;
+    private int[] postOrderPositions = null;
+    private boolean postOrderKnown = false;
+
+    private Map<Parameter, Node> nodeOfHeightParameter = null;
 
     /**
      * number of nodes (including root and tips)
@@ -44,6 +44,7 @@ import dr.util.Citation;
 import dr.util.CommonCitations;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
@@ -90,6 +91,8 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
     private static final String EXTRA_BUFFER_COUNT_PROPERTY = "beagle.extra.buffer.count";
     private static final String FORCE_VECTORIZATION = "beagle.force.vectorization";
     private static final String THREAD_COUNT = "beagle.thread.count";
+    // The number of transition matrices to cache (keyed by the model state and branch length), 0 for none
+    private static final String MATRIX_CACHE_SIZE_PROPERTY = "beagle.matrix.cache";
 
     // Which scheme to use if choice not specified (or 'default' is selected):
     private static final PartialsRescalingScheme DEFAULT_RESCALING_SCHEME = PartialsRescalingScheme.DYNAMIC;
@@ -122,6 +125,10 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             this.branchInfinitesimalDerivative = branchInfinitesimalDerivative;
         }
 
+        public boolean isUsePreOrder() {
+            return usePreOrder;
+        }
+
         public static PreOrderSettings getDefault () {
             return new PreOrderSettings(false, false, false);
         }
@@ -518,6 +525,21 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                 everUnderflowed = false; // If false, BEAST does not rescale until first under-/over-flow.
             }
 
+            String mc = System.getProperty(MATRIX_CACHE_SIZE_PROPERTY);
+            if (mc != null && Integer.parseInt(mc) > 0) {
+                if (beagle instanceof GeneralBeagleImpl && categoryCount > 1) {
+                    // the Java implementation can only set the matrix for the first category
+                    logger.info("  Transition matrix cache is not available with the Java implementation of BEAGLE and rate categories");
+                } else {
+                    // the cache must at least hold the matrices added in a single update (one per node) as these
+                    // are only filled in after they are all computed
+                    matrixCache = new TransitionMatrixCache(Math.max(Integer.parseInt(mc), nodeCount),
+                            categoryCount * stateCount * stateCount);
+                    evolutionaryProcessDelegate.setTransitionMatrixCache(matrixCache);
+                    logger.info("  Using a cache of " + matrixCache.getCapacity() + " transition matrices");
+                }
+            }
+
             updateSubstitutionModel = true;
             updateSiteModel = true;
 
@@ -530,6 +552,9 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
 
     @Override
     public String getReport() {
+        if (matrixCache != null) {
+            return "Transition matrix cache: " + matrixCache + "\n";
+        }
         return null;
     }
 
@@ -584,6 +609,13 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
 
     public Beagle getBeagleInstance() { return beagle; }
 
+    /**
+     * @return the cache of transition matrices or null if none is used
+     */
+    public TransitionMatrixCache getTransitionMatrixCache() {
+        return matrixCache;
+    }
+
     private static List<String> parseSystemPropertyStringArray(String propertyName) {
 
         List<String> order = new ArrayList<String>();
@@ -798,6 +830,13 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                 return Double.NEGATIVE_INFINITY;
             }
             beagle.setCategoryRates(categoryRates);
+
+            if (matrixCache != null && !Arrays.equals(categoryRates, cachedCategoryRates)) {
+                // the rates are uploaded again after every restore but the cached matrices only need
+                // to be left behind if they are actually different
+                evolutionaryProcessDelegate.categoryRatesChanged();
+                cachedCategoryRates = categoryRates.clone();
+            }
         }
 
         if (branchUpdateCount > 0) {
@@ -1252,5 +1291,11 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
      */
     private PreOrderSettings settings;
 
+    /**
+     * the cache of transition matrices (or null if not used) and the category rates they were computed with
+     */
+    private TransitionMatrixCache matrixCache = null;
+    private double[] cachedCategoryRates = null;
+
 
 }
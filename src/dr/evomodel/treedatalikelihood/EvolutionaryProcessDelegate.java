@@ -79,6 +79,17 @@ public interface EvolutionaryProcessDelegate {
 
     void flipTransitionMatrices(int[] branchIndices, int updateCount);
 
+    /**
+     * Transition matrices are looked up in this cache (if not null) before being computed and those
+     * computed are added to it.
+     */
+    void setTransitionMatrixCache(TransitionMatrixCache cache);
+
+    /**
+     * The category rates have been changed in the likelihood engine so cached matrices no longer apply.
+     */
+    void categoryRatesChanged();
+
     void storeState();
 
     void restoreState();
@@ -51,6 +51,10 @@ public final class HomogenousSubstitutionModelDelegate implements EvolutionaryPr
     private final int nodeCount;
     private final PreOrderSettings settings;
 
+    private TransitionMatrixCache matrixCache = null;
+    private long modelVersion;
+    private long storedModelVersion;
+
     /**
      * A class which handles substitution models including epoch models where multiple
      * substitution models on a branch are convolved.
@@ -197,6 +201,9 @@ public final class HomogenousSubstitutionModelDelegate implements EvolutionaryPr
         if (flip) {
             eigenBufferHelper.flipOffset(0);
         }
+        if (matrixCache != null) {
+            modelVersion = matrixCache.newVersion();
+        }
         EigenDecomposition ed = substitutionModel.getEigenDecomposition();
 
         beagle.setEigenDecomposition(
@@ -216,6 +223,11 @@ public final class HomogenousSubstitutionModelDelegate implements EvolutionaryPr
 
         int[] probabilityIndices = new int[updateCount];
 
+        if (matrixCache != null) {
+            updateTransitionMatricesUsingCache(beagle, branchIndices, edgeLengths, updateCount, flip, probabilityIndices);
+            return;
+        }
+
         for (int i = 0; i < updateCount; i++) {
             if (flip) {
                 matrixBufferHelper.flipOffset(branchIndices[i]);
@@ -232,6 +244,56 @@ public final class HomogenousSubstitutionModelDelegate implements EvolutionaryPr
 
     }
 
+    private void updateTransitionMatricesUsingCache(Beagle beagle, int[] branchIndices, double[] edgeLengths, int updateCount,
+                                                    boolean flip, int[] probabilityIndices) {
+
+        double[] missedEdgeLengths = new double[updateCount];
+        double[][] missedMatrices = new double[updateCount][];
+        int missCount = 0;
+
+        int[] hitIndices = new int[updateCount];
+        double[][] hitMatrices = new double[updateCount][];
+        int hitCount = 0;
+
+        for (int i = 0; i < updateCount; i++) {
+            if (flip) {
+                matrixBufferHelper.flipOffset(branchIndices[i]);
+            }
+            int probabilityIndex = matrixBufferHelper.getOffsetIndex(branchIndices[i]);
+
+            // a matrix added for an earlier branch in this update is only filled in once computed so all
+            // the matrices found in the cache are set at the end
+            double[] matrix = matrixCache.get(modelVersion, edgeLengths[i]);
+            if (matrix != null) {
+                hitIndices[hitCount] = probabilityIndex;
+                hitMatrices[hitCount] = matrix;
+                hitCount++;
+            } else {
+                probabilityIndices[missCount] = probabilityIndex;
+                missedEdgeLengths[missCount] = edgeLengths[i];
+                missedMatrices[missCount] = matrixCache.add(modelVersion, edgeLengths[i]);
+                missCount++;
+            }
+        }// END: i loop
+
+        if (missCount > 0) {
+            beagle.updateTransitionMatrices(eigenBufferHelper.getOffsetIndex(0),
+                    probabilityIndices,
+                    null, // firstDerivativeIndices
+                    null, // secondDerivativeIndices
+                    missedEdgeLengths,
+                    missCount);
+
+            for (int i = 0; i < missCount; i++) {
+                beagle.getTransitionMatrix(probabilityIndices[i], missedMatrices[i]);
+            }
+        }
+
+        for (int i = 0; i < hitCount; i++) {
+            beagle.setTransitionMatrix(hitIndices[i], hitMatrices[i], 1.0);
+        }
+    }
+
     @Override
     public void flipTransitionMatrices(int[] branchIndices, int updateCount) {
         for (int i = 0; i < updateCount; i++) {
@@ -240,16 +302,34 @@ public final class HomogenousSubstitutionModelDelegate implements EvolutionaryPr
     }
 
 
+    @Override
+    public void setTransitionMatrixCache(TransitionMatrixCache cache) {
+        this.matrixCache = cache;
+        if (cache != null) {
+            modelVersion = cache.newVersion();
+            storedModelVersion = modelVersion;
+        }
+    }
+
+    @Override
+    public void categoryRatesChanged() {
+        if (matrixCache != null) {
+            modelVersion = matrixCache.newVersion();
+        }
+    }
+
     @Override
     public void storeState() {
         eigenBufferHelper.storeState();
         matrixBufferHelper.storeState();
+        storedModelVersion = modelVersion;
     }
 
     @Override
     public void restoreState() {
         eigenBufferHelper.restoreState();
         matrixBufferHelper.restoreState();
+        modelVersion = storedModelVersion;
     }
 
 }// END: class
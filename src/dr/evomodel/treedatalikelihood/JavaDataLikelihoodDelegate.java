@@ -0,0 +1,1003 @@
+/*
+ * JavaDataLikelihoodDelegate.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import dr.evolution.alignment.PatternList;
+import dr.evolution.alignment.UncertainSiteList;
+import dr.evolution.datatype.DataType;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.TaxonList;
+import dr.evomodel.branchmodel.BranchModel;
+import dr.evomodel.siteratemodel.SiteRateModel;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.inference.model.AbstractModel;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * JavaDataLikelihoodDelegate
+ *
+ * A DataLikelihoodDelegate that does the peeling in Java without needing the native BEAGLE library.
+ *
+ * The partials for each node buffer are a single flat array ordered by category, pattern and then state
+ * and the transition matrices are held transposed so the inner loops run along contiguous memory (and
+ * the 4 state case is unrolled) to let the JIT vectorise them. As the patterns are independent the
+ * patterns are divided into blocks which are each taken through the whole post-order traversal and the
+ * root on a separate thread of a ForkJoinPool. The rescaling schemes are those of the BEAGLE delegate.
+ *
+ * @version $Id$
+ */
+public class JavaDataLikelihoodDelegate extends AbstractModel implements DataLikelihoodDelegate {
+
+    private static final boolean COUNT_CALCULATIONS = true; // keep a cumulative total of number of computations
+
+    private static final String RESCALE_FREQUENCY_PROPERTY = "beagle.rescale";
+    private static final String DELAY_SCALING_PROPERTY = "beagle.delay.scaling";
+
+    // Which scheme to use if choice not specified (or 'default' is selected):
+    private static final PartialsRescalingScheme DEFAULT_RESCALING_SCHEME = PartialsRescalingScheme.DYNAMIC;
+
+    // Default frequency for complete recomputation of scaling factors under the 'dynamic' scheme
+    private static final int RESCALE_FREQUENCY = 100;
+    private static final int RESCALE_TIMES = 1;
+
+    // fewer patterns than this per thread are not worth the cost of handing them over
+    public static final int MIN_PATTERNS_PER_THREAD = 256;
+
+    private static final int NONE = -1;
+
+    // the layout of an entry in the operations array
+    private static final int OPERATION_TUPLE_SIZE = 7;
+
+    /**
+     * @param tree Used for configuration - shouldn't be watched for changes
+     * @param patternList List of patterns
+     * @param branchModel Specifies substitution model for each branch
+     * @param siteRateModel Specifies rates per site
+     * @param useAmbiguities Whether to respect state ambiguities in data
+     * @param rescalingScheme the rescaling scheme
+     * @param delayRescalingUntilUnderflow whether to start rescaling only after the first underflow
+     * @param threadCount the number of threads to divide the patterns over (-1 for the number of processors)
+     * @throws DelegateTypeException if the branch model needs more than one substitution model
+     */
+    public JavaDataLikelihoodDelegate(Tree tree,
+                                      PatternList patternList,
+                                      BranchModel branchModel,
+                                      SiteRateModel siteRateModel,
+                                      boolean useAmbiguities,
+                                      PartialsRescalingScheme rescalingScheme,
+                                      boolean delayRescalingUntilUnderflow,
+                                      int threadCount) throws DelegateTypeException {
+
+        super("JavaDataLikelihoodDelegate");
+
+        if (branchModel.getSubstitutionModels().size() != 1 || branchModel.requiresMatrixConvolution()) {
+            // only a single substitution model across the tree is supported
+            throw new DelegateTypeException();
+        }
+
+        final Logger logger = Logger.getLogger("dr.evomodel");
+
+        logger.info("\nUsing Java DataLikelihood Delegate");
+        setId(patternList.getId());
+
+        this.dataType = patternList.getDataType();
+        this.patternList = patternList;
+        patternCount = patternList.getPatternCount();
+        stateCount = dataType.getStateCount();
+
+        // Check for matching state counts
+        int stateCount2 = branchModel.getRootFrequencyModel().getFrequencyCount();
+        if (stateCount != stateCount2) {
+            throw new IllegalArgumentException("Pattern state count (" + stateCount
+                    + ") does not match substitution model state count (" + stateCount2 + ")");
+        }
+
+        patternWeights = patternList.getPatternWeights();
+
+        this.branchModel = branchModel;
+        addModel(this.branchModel);
+
+        this.substitutionModel = branchModel.getSubstitutionModels().get(0);
+
+        this.siteRateModel = siteRateModel;
+        addModel(this.siteRateModel);
+
+        this.categoryCount = this.siteRateModel.getCategoryCount();
+
+        nodeCount = tree.getNodeCount();
+        tipCount = tree.getExternalNodeCount();
+        internalNodeCount = nodeCount - tipCount;
+
+        partialsSize = categoryCount * patternCount * stateCount;
+        matrixSize = stateCount * stateCount;
+
+        scaleBufferIndices = new int[internalNodeCount];
+        storedScaleBufferIndices = new int[internalNodeCount];
+
+        operations = new int[internalNodeCount * OPERATION_TUPLE_SIZE];
+
+        firstRescaleAttempt = true;
+
+        // one partials buffer for each tip and two for each internal node (for store restore)
+        partialBufferHelper = new BufferIndexHelper(nodeCount, tipCount);
+        partials = new double[partialBufferHelper.getBufferCount()][];
+        tipStates = new int[tipCount][];
+
+        // two matrix buffers for each node (for store restore)
+        matrixBufferHelper = new BufferIndexHelper(nodeCount, 0);
+        matrices = new double[matrixBufferHelper.getBufferCount()][categoryCount * matrixSize];
+        matrix = new double[matrixSize];
+
+        // one scaling buffer for each internal node plus an extra for the accumulation, then doubled for store/restore
+        scaleBufferHelper = new BufferIndexHelper(internalNodeCount + 1, 0);
+        scaleFactors = new double[scaleBufferHelper.getBufferCount()][];
+
+        this.rescalingScheme = rescalingScheme;
+        this.delayRescalingUntilUnderflow = delayRescalingUntilUnderflow;
+
+        if (this.rescalingScheme == PartialsRescalingScheme.DEFAULT ||
+                this.rescalingScheme == PartialsRescalingScheme.AUTO) {
+            // there is no automatic scaling outside BEAGLE
+            this.rescalingScheme = DEFAULT_RESCALING_SCHEME;
+        }
+
+        // to keep behaviour of the delayed scheme (always + delay)...
+        if (this.rescalingScheme == PartialsRescalingScheme.DELAYED) {
+            this.delayRescalingUntilUnderflow = true;
+            this.rescalingScheme = PartialsRescalingScheme.ALWAYS;
+        }
+
+        String r = System.getProperty(RESCALE_FREQUENCY_PROPERTY);
+        if (r != null) {
+            rescalingFrequency = Integer.parseInt(r);
+            if (rescalingFrequency < 1) {
+                rescalingFrequency = RESCALE_FREQUENCY;
+            }
+        }
+
+        String d = System.getProperty(DELAY_SCALING_PROPERTY);
+        if (d != null) {
+            this.delayRescalingUntilUnderflow = Boolean.parseBoolean(d);
+        }
+
+        if (patternList instanceof UncertainSiteList) {
+            useAmbiguities = true;
+        }
+
+        try {
+            for (int i = 0; i < tipCount; i++) {
+                // Find the id of tip i in the patternList
+                String id = tree.getTaxonId(i);
+                int index = patternList.getTaxonIndex(id);
+
+                if (index == -1) {
+                    throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + tree.getId() +
+                            ", is not found in patternList, " + patternList.getId());
+                } else {
+                    if (useAmbiguities) {
+                        setPartials(patternList, index, i);
+                    } else {
+                        setStates(patternList, index, i);
+                    }
+                }
+            }
+        } catch (TaxonList.MissingTaxonException mte) {
+            throw new RuntimeException(mte.toString());
+        }
+
+        if (threadCount < 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+        int blockCount = Math.max(1, Math.min(threadCount, patternCount / MIN_PATTERNS_PER_THREAD));
+
+        blocks = new PatternBlock[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blocks[i] = new PatternBlock((i * patternCount) / blockCount, ((i + 1) * patternCount) / blockCount);
+        }
+        blockList = new ArrayList<PatternBlock>();
+        for (PatternBlock block : blocks) {
+            blockList.add(block);
+        }
+        pool = (blockCount > 1 ? new ForkJoinPool(blockCount) : null);
+
+        logger.info("  " + (useAmbiguities ? "Using" : "Ignoring") + " ambiguities in tree likelihood.");
+        logger.info("  With " + patternList.getPatternCount() + " unique site patterns" +
+                (blockCount > 1 ? " divided over " + blockCount + " threads." : "."));
+
+        if (patternList.areUncertain() && !useAmbiguities) {
+            logger.info("  WARNING: Uncertain site patterns will be ignored.");
+        }
+
+        String rescaleMessage = "  Using rescaling scheme : " + this.rescalingScheme.getText();
+        boolean parenthesis = false;
+        if (this.rescalingScheme == PartialsRescalingScheme.DYNAMIC) {
+            rescaleMessage += " (rescaling every " + rescalingFrequency + " evaluations";
+            parenthesis = true;
+        }
+        if (this.delayRescalingUntilUnderflow) {
+            rescaleMessage += (parenthesis ? ", " : "(") + "delay rescaling until first overflow";
+            parenthesis = true;
+        }
+        rescaleMessage += (parenthesis ? ")" : "");
+        logger.info(rescaleMessage);
+
+        if (this.rescalingScheme == PartialsRescalingScheme.DYNAMIC) {
+            everUnderflowed = false; // If false, BEAST does not rescale until first under-/over-flow.
+        }
+    }
+
+    @Override
+    public String getReport() {
+        return null;
+    }
+
+    @Override
+    public TreeTraversal.TraversalType getOptimalTraversalType() {
+        return TreeTraversal.TraversalType.POST_ORDER;
+    }
+
+    @Override
+    public int getTraitCount() {
+        return 1;
+    }
+
+    @Override
+    public int getTraitDim() {
+        return patternCount;
+    }
+
+    @Override
+    public RateRescalingScheme getRateRescalingScheme() {
+        return RateRescalingScheme.NONE;
+    }
+
+    public final BranchModel getBranchModel() {
+        return branchModel;
+    }
+
+    public PatternList getPatternList() {
+        return this.patternList;
+    }
+
+    /**
+     * Sets the partials from a sequence in an alignment.
+     *
+     * @param patternList   patternList
+     * @param sequenceIndex sequenceIndex
+     * @param nodeIndex     nodeIndex
+     */
+    private void setPartials(PatternList patternList, int sequenceIndex, int nodeIndex) {
+        double[] tipPartials = new double[partialsSize];
+
+        int v = 0;
+        for (int i = 0; i < patternCount; i++) {
+
+            if (patternList instanceof UncertainSiteList) {
+                ((UncertainSiteList) patternList).fillPartials(sequenceIndex, i, tipPartials, v);
+                v += stateCount;
+            } else if (patternList.areUncertain()) {
+
+                double[] prob = patternList.getUncertainPatternState(sequenceIndex, i);
+                System.arraycopy(prob, 0, tipPartials, v, stateCount);
+                v += stateCount;
+
+            } else {
+                int state = patternList.getPatternState(sequenceIndex, i);
+                boolean[] stateSet = dataType.getStateSet(state);
+
+                for (int j = 0; j < stateCount; j++) {
+                    tipPartials[v] = (stateSet[j] ? 1.0 : 0.0);
+                    v++;
+                }
+            }
+        }
+
+        // if there is more than one category then replicate the partials for each
+        int n = patternCount * stateCount;
+        int k = n;
+        for (int i = 1; i < categoryCount; i++) {
+            System.arraycopy(tipPartials, 0, tipPartials, k, n);
+            k += n;
+        }
+
+        partials[nodeIndex] = tipPartials;
+    }
+
+    /**
+     * Sets the states from a sequence in an alignment. Any ambiguous state is treated as missing.
+     *
+     * @param patternList   patternList
+     * @param sequenceIndex sequenceIndex
+     * @param nodeIndex     nodeIndex
+     */
+    private void setStates(PatternList patternList, int sequenceIndex, int nodeIndex) {
+        int[] states = new int[patternCount];
+
+        for (int i = 0; i < patternCount; i++) {
+            int state = patternList.getPatternState(sequenceIndex, i);
+            states[i] = (state < stateCount ? state : stateCount);
+        }
+
+        tipStates[nodeIndex] = states;
+    }
+
+    /**
+     * Calculate the log likelihood of the current state.
+     *
+     * @return the log likelihood.
+     */
+    @Override
+    public double calculateLikelihood(List<BranchOperation> branchOperations, List<NodeOperation> nodeOperations, int rootNodeNumber) throws LikelihoodException {
+
+        if (!this.delayRescalingUntilUnderflow || everUnderflowed) {
+            if (this.rescalingScheme == PartialsRescalingScheme.ALWAYS) {
+                useScaleFactors = true;
+                recomputeScaleFactors = true;
+            } else if (this.rescalingScheme == PartialsRescalingScheme.DYNAMIC) {
+                useScaleFactors = true;
+
+                if (rescalingCount > rescalingFrequency) {
+                    rescalingCount = 0;
+                    rescalingCountInner = 0;
+                }
+
+                if (rescalingCountInner < RESCALE_TIMES) {
+                    recomputeScaleFactors = true;
+
+                    rescalingCountInner++;
+
+                    throw new LikelihoodRescalingException();
+                }
+
+                // takes into account the first evaluation when initiating the MCMC chain
+                if (initialEvaluation) {
+                    if (underflowHandling < 1) {
+                        underflowHandling++;
+                    } else if (underflowHandling == 1) {
+                        recomputeScaleFactors = true;
+                        underflowHandling++;
+                        initialEvaluation = false;
+                    }
+                }
+
+                rescalingCount++;
+            }
+        }
+
+        double[] categoryRates = this.siteRateModel.getCategoryRates();
+        if (categoryRates == null) {
+            // If this returns null then there was a numerical error calculating the category rates
+            // (probably a very small alpha) so reject the move.
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        for (BranchOperation op : branchOperations) {
+            int branchNum = op.getBranchNumber();
+            if (flip) {
+                matrixBufferHelper.flipOffset(branchNum);
+            }
+            updateTransitionMatrices(matrices[matrixBufferHelper.getOffsetIndex(branchNum)],
+                    op.getBranchLength(), categoryRates);
+        }
+
+        if (COUNT_CALCULATIONS) {
+            totalMatrixUpdateCount += branchOperations.size();
+        }
+
+        if (flip) {
+            // Flip all the buffers to be written to first...
+            for (NodeOperation op : nodeOperations) {
+                partialBufferHelper.flipOffset(op.getNodeNumber());
+            }
+        }
+
+        int operationCount = nodeOperations.size();
+        int k = 0;
+        for (NodeOperation op : nodeOperations) {
+            int nodeNum = op.getNodeNumber();
+
+            operations[k] = partialBufferHelper.getOffsetIndex(nodeNum);
+
+            if (useScaleFactors) {
+                // get the index of this scaling buffer
+                int n = nodeNum - tipCount;
+
+                if (recomputeScaleFactors) {
+                    // flip the indicator: can take either n or (internalNodeCount + 1) - n
+                    scaleBufferHelper.flipOffset(n);
+
+                    // store the index
+                    scaleBufferIndices[n] = scaleBufferHelper.getOffsetIndex(n);
+
+                    operations[k + 1] = scaleBufferIndices[n]; // Write new scaleFactor
+                    operations[k + 2] = NONE;
+
+                } else {
+                    operations[k + 1] = NONE;
+                    operations[k + 2] = scaleBufferIndices[n]; // Read existing scaleFactor
+                }
+
+            } else {
+                operations[k + 1] = NONE; // Not using scaleFactors
+                operations[k + 2] = NONE;
+            }
+
+            operations[k + 3] = op.getLeftChild(); // source node 1
+            operations[k + 4] = matrixBufferHelper.getOffsetIndex(op.getLeftChild()); // source matrix 1
+            operations[k + 5] = op.getRightChild(); // source node 2
+            operations[k + 6] = matrixBufferHelper.getOffsetIndex(op.getRightChild()); // source matrix 2
+
+            // allocate the destination buffers the first time they are used
+            if (partials[operations[k]] == null) {
+                partials[operations[k]] = new double[partialsSize];
+            }
+            if (operations[k + 1] != NONE && scaleFactors[operations[k + 1]] == null) {
+                scaleFactors[operations[k + 1]] = new double[patternCount];
+            }
+
+            k += OPERATION_TUPLE_SIZE;
+        }
+        this.operationCount = operationCount;
+
+        if (COUNT_CALCULATIONS) {
+            totalEvaluationCount += 1;
+            totalPartialsUpdateCount += operationCount;
+        }
+
+        rootIndex = partialBufferHelper.getOffsetIndex(rootNodeNumber);
+        categoryWeights = this.siteRateModel.getCategoryProportions();
+        frequencies = branchModel.getRootFrequencyModel().getFrequencies();
+
+        cumulativeScaleIndex = NONE;
+        accumulateScaleFactors = false;
+        if (useScaleFactors) {
+            if (recomputeScaleFactors) {
+                scaleBufferHelper.flipOffset(internalNodeCount);
+                accumulateScaleFactors = true;
+            }
+            cumulativeScaleIndex = scaleBufferHelper.getOffsetIndex(internalNodeCount);
+            if (scaleFactors[cumulativeScaleIndex] == null) {
+                scaleFactors[cumulativeScaleIndex] = new double[patternCount];
+            }
+        }
+
+        double logL = 0.0;
+        if (pool == null) {
+            logL = blocks[0].call();
+        } else {
+            try {
+                // the block totals are summed in order so the result doesn't depend on the scheduling
+                for (Future<Double> future : pool.invokeAll(blockList)) {
+                    logL += future.get();
+                }
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(ie);
+            } catch (ExecutionException ee) {
+                throw new RuntimeException(ee.getCause());
+            }
+        }
+
+        if (Double.isNaN(logL) || Double.isInfinite(logL)) {
+
+            everUnderflowed = true;
+
+            logL = Double.NEGATIVE_INFINITY;
+
+            if (firstRescaleAttempt && (delayRescalingUntilUnderflow || rescalingScheme == PartialsRescalingScheme.DELAYED)) {
+
+                if (rescalingScheme == PartialsRescalingScheme.DYNAMIC || (rescalingCount == 0)) {
+                    // show a message but only every 1000 rescales
+                    if (rescalingMessageCount % 1000 == 0) {
+                        if (rescalingMessageCount > 0) {
+                            Logger.getLogger("dr.evomodel").info("Underflow calculating likelihood (" + rescalingMessageCount + " messages not shown; " + getId() + ").");
+                        } else {
+                            Logger.getLogger("dr.evomodel").info("Underflow calculating likelihood. Attempting a rescaling... (" + getId() + ")");
+                        }
+                    }
+                    rescalingMessageCount += 1;
+                }
+
+                useScaleFactors = true;
+                recomputeScaleFactors = true;
+
+                firstRescaleAttempt = false; // Only try to rescale once
+
+                rescalingCount--;
+            }
+
+            // turn off double buffer flipping so the next call overwrites the
+            // underflowed buffers. Flip will be turned on again in storeState for
+            // next step
+            flip = false;
+            underflowHandling = 0;
+            throw new LikelihoodUnderflowException();
+
+        } else {
+
+            firstRescaleAttempt = true;
+            recomputeScaleFactors = false;
+            flip = true;
+
+        }
+
+        return logL;
+    }
+
+    /**
+     * Computes the transition matrices for each rate category and stores them transposed so that
+     * the entry for going from state i to state j is at j * stateCount + i.
+     */
+    private void updateTransitionMatrices(double[] categoryMatrices, double branchLength, double[] categoryRates) {
+        int offset = 0;
+        for (int c = 0; c < categoryCount; c++) {
+            substitutionModel.getTransitionProbabilities(branchLength * categoryRates[c], matrix);
+            for (int i = 0; i < stateCount; i++) {
+                for (int j = 0; j < stateCount; j++) {
+                    categoryMatrices[offset + j * stateCount + i] = matrix[i * stateCount + j];
+                }
+            }
+            offset += matrixSize;
+        }
+    }
+
+    /**
+     * A range of patterns taken through all the partials operations and the root on one thread.
+     */
+    private class PatternBlock implements Callable<Double> {
+
+        PatternBlock(int startPattern, int endPattern) {
+            this.startPattern = startPattern;
+            this.endPattern = endPattern;
+            childPartials1 = new double[stateCount];
+            childPartials2 = new double[stateCount];
+        }
+
+        public Double call() {
+            int k = 0;
+            for (int i = 0; i < operationCount; i++) {
+                double[] destination = partials[operations[k]];
+
+                int child1 = operations[k + 3];
+                int child2 = operations[k + 5];
+                double[] matrices1 = matrices[operations[k + 4]];
+                double[] matrices2 = matrices[operations[k + 6]];
+
+                if (child1 < tipCount && tipStates[child1] != null) {
+                    if (child2 < tipCount && tipStates[child2] != null) {
+                        updateStatesStates(tipStates[child1], matrices1, tipStates[child2], matrices2, destination);
+                    } else {
+                        updateStatesPartials(tipStates[child1], matrices1,
+                                partials[partialBufferHelper.getOffsetIndex(child2)], matrices2, destination);
+                    }
+                } else if (child2 < tipCount && tipStates[child2] != null) {
+                    updateStatesPartials(tipStates[child2], matrices2,
+                            partials[partialBufferHelper.getOffsetIndex(child1)], matrices1, destination);
+                } else {
+                    updatePartialsPartials(partials[partialBufferHelper.getOffsetIndex(child1)], matrices1,
+                            partials[partialBufferHelper.getOffsetIndex(child2)], matrices2, destination);
+                }
+
+                if (operations[k + 1] != NONE) {
+                    scalePartials(destination, scaleFactors[operations[k + 1]]);
+                } else if (operations[k + 2] != NONE) {
+                    rescalePartials(destination, scaleFactors[operations[k + 2]]);
+                }
+
+                k += OPERATION_TUPLE_SIZE;
+            }
+
+            double[] cumulativeScaleFactors = null;
+            if (cumulativeScaleIndex != NONE) {
+                cumulativeScaleFactors = scaleFactors[cumulativeScaleIndex];
+                if (accumulateScaleFactors) {
+                    for (int p = startPattern; p < endPattern; p++) {
+                        double logScale = 0.0;
+                        for (int n = 0; n < internalNodeCount; n++) {
+                            logScale += Math.log(scaleFactors[scaleBufferIndices[n]][p]);
+                        }
+                        cumulativeScaleFactors[p] = logScale;
+                    }
+                }
+            }
+
+            return calculateRootLogLikelihood(partials[rootIndex], cumulativeScaleFactors);
+        }
+
+        private void updateStatesStates(int[] states1, double[] matrices1, int[] states2, double[] matrices2,
+                                        double[] destination) {
+            for (int c = 0; c < categoryCount; c++) {
+                int m = c * matrixSize;
+                int w = (c * patternCount + startPattern) * stateCount;
+                for (int p = startPattern; p < endPattern; p++) {
+                    int state1 = states1[p];
+                    int state2 = states2[p];
+                    if (state1 < stateCount && state2 < stateCount) {
+                        int m1 = m + state1 * stateCount;
+                        int m2 = m + state2 * stateCount;
+                        for (int i = 0; i < stateCount; i++) {
+                            destination[w + i] = matrices1[m1 + i] * matrices2[m2 + i];
+                        }
+                    } else if (state1 < stateCount) {
+                        System.arraycopy(matrices1, m + state1 * stateCount, destination, w, stateCount);
+                    } else if (state2 < stateCount) {
+                        System.arraycopy(matrices2, m + state2 * stateCount, destination, w, stateCount);
+                    } else {
+                        for (int i = 0; i < stateCount; i++) {
+                            destination[w + i] = 1.0;
+                        }
+                    }
+                    w += stateCount;
+                }
+            }
+        }
+
+        private void updateStatesPartials(int[] states1, double[] matrices1, double[] partials2, double[] matrices2,
+                                          double[] destination) {
+            final double[] sum2 = childPartials2;
+            for (int c = 0; c < categoryCount; c++) {
+                int m = c * matrixSize;
+                int w = (c * patternCount + startPattern) * stateCount;
+                for (int p = startPattern; p < endPattern; p++) {
+                    multiply(matrices2, m, partials2, w, sum2);
+
+                    int state1 = states1[p];
+                    if (state1 < stateCount) {
+                        int m1 = m + state1 * stateCount;
+                        for (int i = 0; i < stateCount; i++) {
+                            destination[w + i] = matrices1[m1 + i] * sum2[i];
+                        }
+                    } else {
+                        System.arraycopy(sum2, 0, destination, w, stateCount);
+                    }
+                    w += stateCount;
+                }
+            }
+        }
+
+        private void updatePartialsPartials(double[] partials1, double[] matrices1, double[] partials2, double[] matrices2,
+                                            double[] destination) {
+            final double[] sum1 = childPartials1;
+            final double[] sum2 = childPartials2;
+            for (int c = 0; c < categoryCount; c++) {
+                int m = c * matrixSize;
+                int w = (c * patternCount + startPattern) * stateCount;
+                for (int p = startPattern; p < endPattern; p++) {
+                    multiply(matrices1, m, partials1, w, sum1);
+                    multiply(matrices2, m, partials2, w, sum2);
+                    for (int i = 0; i < stateCount; i++) {
+                        destination[w + i] = sum1[i] * sum2[i];
+                    }
+                    w += stateCount;
+                }
+            }
+        }
+
+        /**
+         * Multiplies the (transposed) matrix at offset m by the partials vector at offset w into sum.
+         * Each source state adds a column of the matrix scaled by its partial so the inner loop is along
+         * contiguous memory.
+         */
+        private void multiply(double[] matrices, int m, double[] partials, int w, double[] sum) {
+            if (stateCount == 4) {
+                final double p0 = partials[w];
+                final double p1 = partials[w + 1];
+                final double p2 = partials[w + 2];
+                final double p3 = partials[w + 3];
+                sum[0] = matrices[m] * p0 + matrices[m + 4] * p1 + matrices[m + 8] * p2 + matrices[m + 12] * p3;
+                sum[1] = matrices[m + 1] * p0 + matrices[m + 5] * p1 + matrices[m + 9] * p2 + matrices[m + 13] * p3;
+                sum[2] = matrices[m + 2] * p0 + matrices[m + 6] * p1 + matrices[m + 10] * p2 + matrices[m + 14] * p3;
+                sum[3] = matrices[m + 3] * p0 + matrices[m + 7] * p1 + matrices[m + 11] * p2 + matrices[m + 15] * p3;
+            } else {
+                final double p0 = partials[w];
+                for (int i = 0; i < stateCount; i++) {
+                    sum[i] = matrices[m + i] * p0;
+                }
+                for (int j = 1; j < stateCount; j++) {
+                    final double pj = partials[w + j];
+                    final int mj = m + j * stateCount;
+                    for (int i = 0; i < stateCount; i++) {
+                        sum[i] += matrices[mj + i] * pj;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Divides the partials of each pattern by their largest value, storing that as the scale factor.
+         */
+        private void scalePartials(double[] destination, double[] factors) {
+            for (int p = startPattern; p < endPattern; p++) {
+                double max = 0.0;
+                for (int c = 0; c < categoryCount; c++) {
+                    int w = (c * patternCount + p) * stateCount;
+                    for (int i = 0; i < stateCount; i++) {
+                        max = Math.max(max, destination[w + i]);
+                    }
+                }
+                if (max == 0.0) {
+                    max = 1.0;
+                }
+                factors[p] = max;
+                scale(destination, p, 1.0 / max);
+            }
+        }
+
+        /**
+         * Divides the partials of each pattern by the existing scale factors.
+         */
+        private void rescalePartials(double[] destination, double[] factors) {
+            for (int p = startPattern; p < endPattern; p++) {
+                scale(destination, p, 1.0 / factors[p]);
+            }
+        }
+
+        private void scale(double[] destination, int p, double multiplier) {
+            for (int c = 0; c < categoryCount; c++) {
+                int w = (c * patternCount + p) * stateCount;
+                for (int i = 0; i < stateCount; i++) {
+                    destination[w + i] *= multiplier;
+                }
+            }
+        }
+
+        private double calculateRootLogLikelihood(double[] rootPartials, double[] cumulativeScaleFactors) {
+            double logL = 0.0;
+            for (int p = startPattern; p < endPattern; p++) {
+                double sum = 0.0;
+                for (int c = 0; c < categoryCount; c++) {
+                    int w = (c * patternCount + p) * stateCount;
+                    double categorySum = 0.0;
+                    for (int i = 0; i < stateCount; i++) {
+                        categorySum += frequencies[i] * rootPartials[w + i];
+                    }
+                    sum += categoryWeights[c] * categorySum;
+                }
+                double siteLogL = Math.log(sum);
+                if (cumulativeScaleFactors != null) {
+                    siteLogL += cumulativeScaleFactors[p];
+                }
+                logL += patternWeights[p] * siteLogL;
+            }
+            return logL;
+        }
+
+        private final int startPattern;
+        private final int endPattern;
+
+        private final double[] childPartials1;
+        private final double[] childPartials2;
+    }
+
+    @Override
+    public void makeDirty() {
+        // the matrices are recomputed for every branch that is updated
+    }
+
+    @Override
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        // Tell TreeDataLikelihood to update all nodes
+        fireModelChanged();
+    }
+
+    @Override
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+
+    }
+
+    /**
+     * Stores the additional state other than model components
+     */
+    @Override
+    public void storeState() {
+        partialBufferHelper.storeState();
+        matrixBufferHelper.storeState();
+
+        if (useScaleFactors) { // Only store when actually used
+            scaleBufferHelper.storeState();
+            System.arraycopy(scaleBufferIndices, 0, storedScaleBufferIndices, 0, scaleBufferIndices.length);
+        }
+
+        // turn on double buffering flipping (may have been turned off to enable a rescale)
+        flip = true;
+    }
+
+    /**
+     * Restore the additional stored state
+     */
+    @Override
+    public void restoreState() {
+        partialBufferHelper.restoreState();
+        matrixBufferHelper.restoreState();
+
+        if (useScaleFactors) {
+            scaleBufferHelper.restoreState();
+            int[] tmp = storedScaleBufferIndices;
+            storedScaleBufferIndices = scaleBufferIndices;
+            scaleBufferIndices = tmp;
+        }
+    }
+
+    @Override
+    public void setCallback(TreeDataLikelihood treeDataLikelihood) {
+        // Callback not necessary
+    }
+
+    @Override
+    public int vectorizeNodeOperations(List<ProcessOnTreeDelegate.NodeOperation> nodeOperations, int[] operations) {
+        throw new RuntimeException("Not yet implemented");
+    }
+
+    @Override
+    protected void acceptState() {
+    }
+
+    // **************************************************************
+    // INSTANCE PROFILEABLE
+    // **************************************************************
+
+    @Override
+    public long getTotalCalculationCount() {
+        // Can only return one count at the moment so return the number of partials updated
+        return totalPartialsUpdateCount;
+    }
+
+    // **************************************************************
+    // INSTANCE VARIABLES
+    // **************************************************************
+
+    // count the number of partial likelihood and matrix updates
+    private long totalMatrixUpdateCount = 0;
+    private long totalPartialsUpdateCount = 0;
+    private long totalEvaluationCount = 0;
+
+    private final int nodeCount;
+    private final int tipCount;
+    private final int internalNodeCount;
+
+    private final int partialsSize;
+    private final int matrixSize;
+
+    private int[] scaleBufferIndices;
+    private int[] storedScaleBufferIndices;
+
+    private final int[] operations;
+    private int operationCount;
+
+    private boolean flip = true;
+    private final BufferIndexHelper partialBufferHelper;
+    private final BufferIndexHelper matrixBufferHelper;
+    private final BufferIndexHelper scaleBufferHelper;
+
+    /**
+     * the partials for each buffer (null for tips with states) ordered by category, pattern, state
+     */
+    private final double[][] partials;
+
+    /**
+     * the states of each tip (null if the tip has partials) with stateCount standing for missing
+     */
+    private final int[][] tipStates;
+
+    /**
+     * the transposed transition matrices for each category of each buffer
+     */
+    private final double[][] matrices;
+    private final double[] matrix;
+
+    /**
+     * the scale factors for each buffer and, in the accumulation buffer, their sum of logs
+     */
+    private final double[][] scaleFactors;
+
+    // the values for the current evaluation shared by the pattern blocks
+    private int rootIndex;
+    private int cumulativeScaleIndex;
+    private boolean accumulateScaleFactors;
+    private double[] categoryWeights;
+    private double[] frequencies;
+
+    private final PatternBlock[] blocks;
+    private final List<PatternBlock> blockList;
+    private final ForkJoinPool pool;
+
+    private PartialsRescalingScheme rescalingScheme;
+    private int rescalingFrequency = RESCALE_FREQUENCY;
+    private boolean delayRescalingUntilUnderflow = true;
+
+    private boolean useScaleFactors = false;
+
+    private boolean recomputeScaleFactors = false;
+    private boolean everUnderflowed = false;
+    private int rescalingCount = 0;
+    private int rescalingCountInner = 0;
+
+    private boolean firstRescaleAttempt = false;
+    private int rescalingMessageCount = 0;
+
+    //integer to keep track of setting recomputeScaleFactors correctly after an underflow
+    private int underflowHandling = 0;
+
+    /**
+     * Flag to take into account the first likelihood evaluation when initiating the MCMC chain
+     */
+    private boolean initialEvaluation = true;
+
+    /**
+     * the patternList
+     */
+    private final PatternList patternList;
+
+    /**
+     * the data type
+     */
+    private final DataType dataType;
+
+    /**
+     * the pattern weights
+     */
+    private final double[] patternWeights;
+
+    /**
+     * the number of patterns
+     */
+    private final int patternCount;
+
+    /**
+     * the number of states in the data
+     */
+    private final int stateCount;
+
+    /**
+     * the branch-site model for these sites
+     */
+    private final BranchModel branchModel;
+
+    /**
+     * the single substitution model of the branch model
+     */
+    private final SubstitutionModel substitutionModel;
+
+    /**
+     * the site model for these sites
+     */
+    private final SiteRateModel siteRateModel;
+
+    /**
+     * the number of rate categories
+     */
+    private final int categoryCount;
+}
@@ -28,6 +28,7 @@ package dr.evomodel.treedatalikelihood;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.tree.TreeModel;
 
 import java.util.*;
 
@@ -41,6 +42,11 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
                                    final BranchRateModel branchRateModel,
                                    final TraversalType traversalType) {
         super(treeModel, branchRateModel, traversalType);
+
+        int nodeCount = treeModel.getNodeCount();
+        branchPositions = new int[nodeCount];
+        nodePositions = new int[nodeCount];
+        onUpdatePath = new boolean[nodeCount];
     }
 
     @Override
@@ -51,7 +57,11 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
         switch (traversalType) {
 
             case POST_ORDER:
-                traversePostOrder(treeModel);
+                if (treeModel instanceof TreeModel) {
+                    traversePostOrder((TreeModel) treeModel);
+                } else {
+                    traversePostOrder(treeModel);
+                }
                 break;
             case REVERSE_LEVEL_ORDER:
                 traverseReverseLevelOrder(treeModel);
@@ -79,6 +89,61 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
         traversePostOrder(tree, tree.getRoot());
     }
 
+    /**
+     * Traverse the tree in post order using the flat post-order index kept by the tree model. When only
+     * some nodes have changed just the path from each of these to the root is visited.
+     *
+     * @param tree tree
+     */
+    private void traversePostOrder(TreeModel tree) {
+        final int[] postOrder = tree.getPostOrderNodeNumbers();
+
+        if (updateAllNodes) {
+            for (int nodeNum : postOrder) {
+                NodeRef node = tree.getNode(nodeNum);
+                if (!tree.isRoot(node)) {
+                    addBranchUpdateOperation(tree, node);
+                }
+                if (!tree.isExternal(node)) {
+                    addNodeOperation(tree, node);
+                }
+            }
+            return;
+        }
+
+        int branchCount = 0;
+        int nodeCount = 0;
+        for (int i = 0; i < updatedNodeCount; i++) {
+            NodeRef node = tree.getNode(updatedNodeNumbers[i]);
+            NodeRef parent = tree.getParent(node);
+            if (parent != null) {
+                branchPositions[branchCount] = tree.getPostOrderPosition(node.getNumber());
+                branchCount++;
+
+                // the partials of every ancestor need updating but the walk can stop at an ancestor
+                // already reached from another node
+                while (parent != null && !onUpdatePath[parent.getNumber()]) {
+                    onUpdatePath[parent.getNumber()] = true;
+                    nodePositions[nodeCount] = tree.getPostOrderPosition(parent.getNumber());
+                    nodeCount++;
+                    parent = tree.getParent(parent);
+                }
+            }
+        }
+
+        Arrays.sort(branchPositions, 0, branchCount);
+        for (int i = 0; i < branchCount; i++) {
+            addBranchUpdateOperation(tree, tree.getNode(postOrder[branchPositions[i]]));
+        }
+
+        Arrays.sort(nodePositions, 0, nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            int nodeNum = postOrder[nodePositions[i]];
+            addNodeOperation(tree, tree.getNode(nodeNum));
+            onUpdatePath[nodeNum] = false;
+        }
+    }
+
     /**
      * Traverse the tree in post order.
      *
@@ -212,6 +277,16 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
                 computeBranchLength(tree, node)));
     }
 
+    private void addNodeOperation(final Tree tree, final NodeRef node) {
+        nodeOperations.add(new DataLikelihoodDelegate.NodeOperation(node.getNumber(),
+                tree.getChild(node, 0).getNumber(), tree.getChild(node, 1).getNumber()));
+    }
+
+    // scratch space for the incremental post-order traversal
+    private final int[] branchPositions;
+    private final int[] nodePositions;
+    private final boolean[] onUpdatePath;
+
     private final List<DataLikelihoodDelegate.BranchOperation> branchOperations = new ArrayList<DataLikelihoodDelegate.BranchOperation>();
     private final List<DataLikelihoodDelegate.NodeOperation> nodeOperations = new ArrayList<DataLikelihoodDelegate.NodeOperation>();
 
@@ -72,6 +72,11 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
 
     private Deque<Integer> availableBuffers = new ArrayDeque<Integer>();
 
+    private TransitionMatrixCache matrixCache = null;
+    // the version of each substitution model (and the category rates) the cached matrices are kept under
+    private long[] modelVersions;
+    private long[] storedModelVersions;
+
     /**
      * A class which handles substitution models including epoch models where multiple
      * substitution models on a branch are convolved.
@@ -118,6 +123,9 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
         eigenCount = substitutionModelList.size();
         nodeCount = tree.getNodeCount();
 
+        modelVersions = new long[eigenCount];
+        storedModelVersions = new long[eigenCount];
+
         // two eigen buffers for each decomposition for store and restore.
         eigenBufferHelper = new BufferIndexHelper(eigenCount, 0, partitionNumber);
 
@@ -270,6 +278,10 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
                 eigenBufferHelper.flipOffset(i);
             }
 
+            if (matrixCache != null) {
+                modelVersions[i] = matrixCache.newVersion();
+            }
+
             SubstitutionModel substitutionModel = substitutionModelList.get(i);
 
             EigenDecomposition ed = substitutionModel.getEigenDecomposition();
@@ -304,6 +316,21 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
 
         List<Deque<Integer>> convolutionList = new ArrayList<Deque<Integer>>();
 
+        // the matrices computed that are to be added to the cache and those found in it (matrices that are
+        // convolved are not cached)
+        int[] missedIndices = null;
+        double[][] missedMatrices = null;
+        int missCount = 0;
+        int[] hitIndices = null;
+        double[][] hitMatrices = null;
+        int hitCount = 0;
+        if (matrixCache != null) {
+            missedIndices = new int[updateCount];
+            missedMatrices = new double[updateCount][];
+            hitIndices = new int[updateCount];
+            hitMatrices = new double[updateCount][];
+        }
+
         for (int i = 0; i < updateCount; i++) {
 
             BranchModel.Mapping mapping = branchModel.getBranchModelMapping(tree.getNode(branchIndices[i]));
@@ -315,7 +342,24 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
                 if (flipBuffers) {
                     matrixBufferHelper.flipOffset(branchIndices[i]);
                 }
-                probabilityIndices[k][counts[k]] = matrixBufferHelper.getOffsetIndex(branchIndices[i]);
+                int probabilityIndex = matrixBufferHelper.getOffsetIndex(branchIndices[i]);
+
+                if (matrixCache != null) {
+                    // a matrix added for an earlier branch in this update is only filled in once computed so
+                    // all the matrices found in the cache are set at the end
+                    double[] matrix = matrixCache.get(modelVersions[k], edgeLength[i]);
+                    if (matrix != null) {
+                        hitIndices[hitCount] = probabilityIndex;
+                        hitMatrices[hitCount] = matrix;
+                        hitCount++;
+                        continue;
+                    }
+                    missedIndices[missCount] = probabilityIndex;
+                    missedMatrices[missCount] = matrixCache.add(modelVersions[k], edgeLength[i]);
+                    missCount++;
+                }
+
+                probabilityIndices[k][counts[k]] = probabilityIndex;
                 edgeLengths[k][counts[k]] = edgeLength[i];
                 counts[k]++;
             } else {
@@ -363,6 +407,13 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
         computeTransitionMatrices(beagle, probabilityIndices, edgeLengths, counts);
         convolveMatrices(beagle, convolutionList);
 
+        for (int i = 0; i < missCount; i++) {
+            beagle.getTransitionMatrix(missedIndices[i], missedMatrices[i]);
+        }
+        for (int i = 0; i < hitCount; i++) {
+            beagle.setTransitionMatrix(hitIndices[i], hitMatrices[i], 1.0);
+        }
+
     }// END: updateTransitionMatrices
 
     @Override
@@ -576,16 +627,36 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
         availableBuffers.push(index);
     }
 
+    @Override
+    public void setTransitionMatrixCache(TransitionMatrixCache cache) {
+        this.matrixCache = cache;
+        categoryRatesChanged();
+        System.arraycopy(modelVersions, 0, storedModelVersions, 0, eigenCount);
+    }
+
+    @Override
+    public void categoryRatesChanged() {
+        if (matrixCache != null) {
+            for (int i = 0; i < eigenCount; i++) {
+                modelVersions[i] = matrixCache.newVersion();
+            }
+        }
+    }
+
     @Override
     public void storeState() {
         eigenBufferHelper.storeState();
         matrixBufferHelper.storeState();
+        System.arraycopy(modelVersions, 0, storedModelVersions, 0, eigenCount);
     }
 
     @Override
     public void restoreState() {
         eigenBufferHelper.restoreState();
         matrixBufferHelper.restoreState();
+        long[] tmp = modelVersions;
+        modelVersions = storedModelVersions;
+        storedModelVersions = tmp;
     }
 
 }// END: class
@@ -0,0 +1,180 @@
+/*
+ * TransitionMatrixCache.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of transition probability matrices (for all the rate categories) keyed by a version
+ * of the model that produced them and the branch length. When full the least recently used matrix is
+ * dropped and its array reused for the next one added.
+ *
+ * A version stands for one state of the substitution model and site rates, so a new version must be
+ * taken (with newVersion) whenever either changes; a version can be kept by a store and put back by a
+ * restore. The cache is not thread safe.
+ */
+public final class TransitionMatrixCache {
+
+    public TransitionMatrixCache(int capacity, int matrixSize) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one matrix");
+        }
+        this.capacity = capacity;
+        this.matrixSize = matrixSize;
+        matrices = new LinkedHashMap<Key, double[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+                if (size() > TransitionMatrixCache.this.capacity) {
+                    spareMatrix = eldest.getValue();
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return a version number not returned before
+     */
+    public long newVersion() {
+        return nextVersion++;
+    }
+
+    /**
+     * @param version      the version of the model
+     * @param branchLength the branch length (as passed to the likelihood engine)
+     * @return the cached matrix (which must not be modified) or null if there is none
+     */
+    public double[] get(long version, double branchLength) {
+        probe.set(version, branchLength);
+        double[] matrix = matrices.get(probe);
+        if (matrix != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return matrix;
+    }
+
+    /**
+     * Adds an entry, replacing any existing one with the same key.
+     *
+     * @param version      the version of the model
+     * @param branchLength the branch length (as passed to the likelihood engine)
+     * @return the array the matrix should then be written into
+     */
+    public double[] add(long version, double branchLength) {
+        double[] matrix = spareMatrix;
+        if (matrix == null) {
+            matrix = new double[matrixSize];
+        }
+        spareMatrix = null;
+
+        Key key = new Key();
+        key.set(version, branchLength);
+        double[] replaced = matrices.put(key, matrix);
+        if (replaced != null) {
+            spareMatrix = replaced;
+        }
+        return matrix;
+    }
+
+    public void clear() {
+        matrices.clear();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMatrixSize() {
+        return matrixSize;
+    }
+
+    public int getSize() {
+        return matrices.size();
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public double getHitRate() {
+        long total = hitCount + missCount;
+        return total > 0 ? ((double) hitCount) / total : 0.0;
+    }
+
+    public String toString() {
+        return matrices.size() + " of " + capacity + " matrices cached, " + hitCount + " hits, " + missCount +
+                " misses (hit rate " + String.format("%.3f", getHitRate()) + "), " + evictionCount + " evictions";
+    }
+
+    private static final class Key {
+        void set(long version, double branchLength) {
+            this.version = version;
+            this.lengthBits = Double.doubleToLongBits(branchLength);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return version == key.version && lengthBits == key.lengthBits;
+        }
+
+        public int hashCode() {
+            long h = version * 0x9E3779B97F4A7C15L + lengthBits;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private long version;
+        private long lengthBits;
+    }
+
+    private final int capacity;
+    private final int matrixSize;
+    private final LinkedHashMap<Key, double[]> matrices;
+
+    // used to look up matrices without creating a key each time
+    private final Key probe = new Key();
+    private double[] spareMatrix = null;
+
+    private long nextVersion = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+}
@@ -52,6 +52,7 @@ public abstract class TreeTraversal {
         this.traversalType = traversalType;
 
         updateNode = new boolean[treeModel.getNodeCount()];
+        updatedNodeNumbers = new int[treeModel.getNodeCount()];
         updateAllNodes();
     }
 
@@ -62,30 +63,38 @@ public abstract class TreeTraversal {
     }
 
     public final void setAllNodesUpdated() {
-        Arrays.fill(updateNode, false);
+        if (updateAllNodes) {
+            Arrays.fill(updateNode, false);
+        } else {
+            for (int i = 0; i < updatedNodeCount; i++) {
+                updateNode[updatedNodeNumbers[i]] = false;
+            }
+        }
+        updatedNodeCount = 0;
         updateAllNodes = false;
     }
 
     public final void updateAllNodes() {
         Arrays.fill(updateNode, true);
+        updatedNodeCount = 0;
         updateAllNodes = true;
     }
 
     public final void updateNode(final NodeRef node) {
-        updateNode[node.getNumber()] = true;
+        flagNode(node.getNumber());
     }
 
     public final void updateNodeAndChildren(final NodeRef node) {
-        updateNode[node.getNumber()] = true;
+        flagNode(node.getNumber());
 
         for (int i = 0; i < treeModel.getChildCount(node); i++) {
             final NodeRef child = treeModel.getChild(node, i);
-            updateNode[child.getNumber()] = true;
+            flagNode(child.getNumber());
         }
     }
 
     public final void updateNodeAndDescendents(final NodeRef node) {
-        updateNode[node.getNumber()] = true;
+        flagNode(node.getNumber());
 
         for (int i = 0; i < treeModel.getChildCount(node); i++) {
             final NodeRef child = treeModel.getChild(node, i);
@@ -94,7 +103,7 @@ public abstract class TreeTraversal {
     }
 
     public final void updateNodeAndAncestors(final NodeRef node) {
-        updateNode[node.getNumber()] = true;
+        flagNode(node.getNumber());
 
         if (!treeModel.isRoot(node)) {
             final NodeRef parent = treeModel.getParent(node);
@@ -102,6 +111,18 @@ public abstract class TreeTraversal {
         }
     }
 
+    /**
+     * Flags a node for update, keeping a list of the flagged nodes so that only these need to be visited
+     * (unless all the nodes are to be updated).
+     */
+    private void flagNode(final int nodeNumber) {
+        if (!updateNode[nodeNumber]) {
+            updateNode[nodeNumber] = true;
+            updatedNodeNumbers[updatedNodeCount] = nodeNumber;
+            updatedNodeCount++;
+        }
+    }
+
     protected final double computeBranchLength(final Tree tree, final NodeRef node) {
         final double branchRate;
 
@@ -126,6 +147,10 @@ public abstract class TreeTraversal {
     protected final boolean[] updateNode;
     protected boolean updateAllNodes;
 
+    // the nodes flagged for update since the last traversal (not kept when all nodes are to be updated)
+    protected final int[] updatedNodeNumbers;
+    protected int updatedNodeCount = 0;
+
     protected final TraversalType traversalType;
 }
 
@@ -60,6 +60,7 @@ import dr.evomodel.tree.TreeModel;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.inference.model.ThreadAwareLikelihood;
+import dr.inference.model.TrackableLikelihood;
 import dr.math.MathUtils;
 import dr.util.Citable;
 import dr.util.Citation;
@@ -79,7 +80,7 @@ import java.util.logging.Logger;
 
 @SuppressWarnings("serial")
 @Deprecated // Switching to TreeDataLikelihood
-public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood implements ThreadAwareLikelihood, Citable {
+public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood implements ThreadAwareLikelihood, TrackableLikelihood, Citable {
     public static boolean IS_THREAD_COUNT_COMPATIBLE() {
         int[] versionNumbers = BeagleInfo.getVersionNumbers();
         return versionNumbers.length != 0 && versionNumbers[0] >= 3 && versionNumbers[1] >= 1;
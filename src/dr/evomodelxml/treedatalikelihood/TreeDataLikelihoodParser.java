@@ -40,6 +40,7 @@ import dr.evomodel.tree.TreeModel;
 import dr.evomodel.treedatalikelihood.BeagleDataLikelihoodDelegate;
 import dr.evomodel.treedatalikelihood.BeagleDataLikelihoodDelegate.PreOrderSettings;
 import dr.evomodel.treedatalikelihood.DataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.JavaDataLikelihoodDelegate;
 import dr.evomodel.treedatalikelihood.MultiPartitionDataLikelihoodDelegate;
 import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
 import dr.evomodel.treelikelihood.PartialsRescalingScheme;
@@ -61,6 +62,8 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
     public static final String BEAGLE_THREAD_COUNT = "beagle.thread.count";
     public static final String THREAD_COUNT = "thread.count";
     public static final String THREADS = "threads";
+    // use JavaDataLikelihoodDelegate rather than BEAGLE where it can be
+    public static final String JAVA_DELEGATE = "treedatalikelihood.java";
 
     public static final String TREE_DATA_LIKELIHOOD = "treeDataLikelihood";
     public static final String USE_AMBIGUITIES = "useAmbiguities";
@@ -120,6 +123,7 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
         }
 
         boolean useJava = Boolean.parseBoolean(System.getProperty("java.only", "false"));
+        boolean useJavaDelegate = Boolean.parseBoolean(System.getProperty(JAVA_DELEGATE, "false"));
 
         int threadCount = -1;
         int beagleThreadCount = -1;
@@ -137,7 +141,7 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
             }
         }
 
-        if ( useBeagle3MultiPartition && !useJava) {
+        if ( useBeagle3MultiPartition && !useJava && !useJavaDelegate) {
 
             if (beagleThreadCount == -1 && threadCount >= 0) {
                 System.setProperty(BEAGLE_THREAD_COUNT, Integer.toString(threadCount));
@@ -174,15 +178,41 @@ public class TreeDataLikelihoodParser extends AbstractXMLObjectParser {
 
         for (int i = 0; i < patternLists.size(); i++) {
 
-            DataLikelihoodDelegate dataLikelihoodDelegate = new BeagleDataLikelihoodDelegate(
-                    treeModel,
-                    patternLists.get(i),
-                    branchModels.get(i),
-                    siteRateModels.get(i),
-                    useAmbiguities,
-                    scalingScheme,
-                    delayRescalingUntilUnderflow,
-                    settings);
+            DataLikelihoodDelegate dataLikelihoodDelegate = null;
+
+            if (useJavaDelegate && !settings.isUsePreOrder()) {
+                // the pure Java delegate doesn't need the native library but can't do pre-order traversals
+                int javaThreadCount = (beagleThreadCount >= 0 ? beagleThreadCount : threadCount);
+                if (javaThreadCount > 0) {
+                    javaThreadCount = Math.max(1, javaThreadCount / patternLists.size());
+                }
+
+                try {
+                    dataLikelihoodDelegate = new JavaDataLikelihoodDelegate(
+                            treeModel,
+                            patternLists.get(i),
+                            branchModels.get(i),
+                            siteRateModels.get(i),
+                            useAmbiguities,
+                            scalingScheme,
+                            delayRescalingUntilUnderflow,
+                            javaThreadCount);
+                } catch (DataLikelihoodDelegate.DelegateTypeException dte) {
+                    // the branch model needs more than one substitution model so use BEAGLE
+                }
+            }
+
+            if (dataLikelihoodDelegate == null) {
+                dataLikelihoodDelegate = new BeagleDataLikelihoodDelegate(
+                        treeModel,
+                        patternLists.get(i),
+                        branchModels.get(i),
+                        siteRateModels.get(i),
+                        useAmbiguities,
+                        scalingScheme,
+                        delayRescalingUntilUnderflow,
+                        settings);
+            }
 
             treeDataLikelihoods.add(
                     new TreeDataLikelihood(
@@ -116,6 +116,10 @@ public abstract class AbstractPolygon2D {
             x[i] = point.getX();
             y[i] = point.getY();
         }
+        // the bounding box and edge index are rebuilt when next needed
+        min = null;
+        max = null;
+        edgeIndex = null;
     }
 
     public void addPoint2D(Point2D point2D) {
@@ -190,6 +194,18 @@ public abstract class AbstractPolygon2D {
 
     private static boolean TRY_ROUGH = false;
 
+    private static boolean USE_EDGE_INDEX = true;
+
+    /**
+     * @return an index over the edges for point-in-polygon queries (built on first use)
+     */
+    public PolygonEdgeIndex getEdgeIndex() {
+        if (edgeIndex == null) {
+            edgeIndex = new PolygonEdgeIndex(x, y, length);
+        }
+        return edgeIndex;
+    }
+
     public abstract double getProbability(Point2D Point2D, boolean outside);
 
     public abstract double getLogProbability(Point2D Point2D, boolean outside);
@@ -202,8 +218,17 @@ public abstract class AbstractPolygon2D {
             }
         }
 
-        final double inX = Point2D.getX();
-        final double inY = Point2D.getY();
+        if (USE_EDGE_INDEX && x != null) {
+            return getEdgeIndex().contains(Point2D.getX(), Point2D.getY());
+        }
+
+        return scanContainsPoint2D(Point2D.getX(), Point2D.getY());
+    }
+
+    /**
+     * Tests every edge in turn (as the edge index does only for the edges near the point).
+     */
+    public boolean scanContainsPoint2D(final double inX, final double inY) {
         boolean contains = false;
 
         // Take a horizontal ray from (inX,inY) to the right.
@@ -667,4 +692,6 @@ public abstract class AbstractPolygon2D {
     protected double[] max;
     protected double[] min;
 
+    private PolygonEdgeIndex edgeIndex;
+
 }
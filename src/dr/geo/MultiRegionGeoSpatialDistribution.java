@@ -55,8 +55,9 @@ public class MultiRegionGeoSpatialDistribution extends GeoSpatialDistribution {
             for (GeoSpatialDistribution region : regions) {
                 //System.err.println(test);
                 //test++;
-                if (!Double.isInfinite(region.logPdf(x))) {
-                    return region.logPdf(x);
+                final double logPdf = region.logPdf(x);
+                if (!Double.isInfinite(logPdf)) {
+                    return logPdf;
                 }
             }
             return Double.NEGATIVE_INFINITY;
@@ -0,0 +1,267 @@
+/*
+ * PolygonEdgeIndex.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.geo;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+
+/**
+ * A uniform grid of horizontal bands over the edges of a polygon for point-in-polygon queries. Each
+ * band lists (with their end points copied alongside) the edges whose vertical extent overlaps it, so
+ * a horizontal ray from a point only needs testing against the edges of the one band the point falls
+ * in rather than against every edge. Points above or below the (cached) bounding box are rejected
+ * straight away.
+ *
+ * Each edge is tested exactly as in the linear scan of AbstractPolygon2D so the answers are identical.
+ * The index is a snapshot of the vertices and must be rebuilt if they change.
+ */
+public class PolygonEdgeIndex {
+
+    // the number of bands is halved until each edge is listed in at most this many on average
+    private static final int MAX_ENTRIES_PER_EDGE = 8;
+
+    /**
+     * @param x      the x coordinates of the vertices
+     * @param y      the y coordinates of the vertices
+     * @param length the number of edges; edge i joins vertex i to vertex i - 1 (and edge 0 joins vertex 0
+     *               to vertex length - 1)
+     */
+    public PolygonEdgeIndex(double[] x, double[] y, int length) {
+
+        double minX = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            minX = Math.min(minX, x[i]);
+            maxX = Math.max(maxX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        this.minX = minX;
+        this.maxX = maxX;
+        this.minY = minY;
+        this.maxY = maxY;
+
+        // horizontal edges are never crossed by a horizontal ray so are left out
+        int edgeCount = 0;
+        for (int i = 0, j = length - 1; i < length; j = i++) {
+            if (y[i] != y[j]) {
+                edgeCount++;
+            }
+        }
+
+        int bandCount = Math.max(1, edgeCount);
+        double bandHeight = (maxY - minY) / bandCount;
+        if (!(bandHeight > 0.0)) {
+            bandCount = 1;
+            bandHeight = 1.0;
+        }
+
+        long entryCount = countEntries(x, y, length, bandCount, bandHeight);
+        while (bandCount > 1 && entryCount > (long) MAX_ENTRIES_PER_EDGE * edgeCount) {
+            bandCount /= 2;
+            bandHeight = (maxY - minY) / bandCount;
+            entryCount = countEntries(x, y, length, bandCount, bandHeight);
+        }
+        this.bandCount = bandCount;
+        this.bandHeight = bandHeight;
+
+        bandStart = new int[bandCount + 1];
+        for (int i = 0, j = length - 1; i < length; j = i++) {
+            if (y[i] != y[j]) {
+                int last = getBand(Math.max(y[i], y[j]));
+                for (int b = getBand(Math.min(y[i], y[j])); b <= last; b++) {
+                    bandStart[b + 1]++;
+                }
+            }
+        }
+        for (int b = 0; b < bandCount; b++) {
+            bandStart[b + 1] += bandStart[b];
+        }
+
+        final int entries = bandStart[bandCount];
+        xi = new double[entries];
+        yi = new double[entries];
+        xj = new double[entries];
+        yj = new double[entries];
+
+        int[] next = new int[bandCount];
+        System.arraycopy(bandStart, 0, next, 0, bandCount);
+        for (int i = 0, j = length - 1; i < length; j = i++) {
+            if (y[i] != y[j]) {
+                int last = getBand(Math.max(y[i], y[j]));
+                for (int b = getBand(Math.min(y[i], y[j])); b <= last; b++) {
+                    int k = next[b]++;
+                    xi[k] = x[i];
+                    yi[k] = y[i];
+                    xj[k] = x[j];
+                    yj[k] = y[j];
+                }
+            }
+        }
+    }
+
+    private long countEntries(double[] x, double[] y, int length, int bandCount, double bandHeight) {
+        long count = 0;
+        for (int i = 0, j = length - 1; i < length; j = i++) {
+            if (y[i] != y[j]) {
+                count += getBand(Math.max(y[i], y[j]), bandCount, bandHeight) -
+                        getBand(Math.min(y[i], y[j]), bandCount, bandHeight) + 1;
+            }
+        }
+        return count;
+    }
+
+    // the band is a non-decreasing function of y so an edge is listed in every band a point on it can map to
+    private int getBand(double y, int bandCount, double bandHeight) {
+        int band = (int) ((y - minY) / bandHeight);
+        if (band < 0) {
+            return 0;
+        }
+        return band < bandCount ? band : bandCount - 1;
+    }
+
+    private int getBand(double y) {
+        return getBand(y, bandCount, bandHeight);
+    }
+
+    public boolean contains(double inX, double inY) {
+        if (inY < minY || inY > maxY) {
+            // no edge spans inY
+            return false;
+        }
+
+        final int band = getBand(inY);
+        final int end = bandStart[band + 1];
+        boolean contains = false;
+        for (int k = bandStart[band]; k < end; k++) {
+            if ((((yi[k] <= inY) && (inY < yj[k])) ||
+                    ((yj[k] <= inY) && (inY < yi[k]))) &&
+                    (inX < (xj[k] - xi[k]) * (inY - yi[k]) / (yj[k] - yi[k]) + xi[k]))
+                contains = !contains;
+        }
+        return contains;
+    }
+
+    public boolean contains(Point2D point2D) {
+        return contains(point2D.getX(), point2D.getY());
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMaxX() {
+        return maxX;
+    }
+
+    public double getMinY() {
+        return minY;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * @return the mean number of edges tested for a point within the vertical extent of the polygon
+     */
+    public double getMeanBandSize() {
+        return ((double) bandStart[bandCount]) / bandCount;
+    }
+
+    // the bounding box (cached)
+    private final double minX;
+    private final double maxX;
+    private final double minY;
+    private final double maxY;
+
+    private final int bandCount;
+    private final double bandHeight;
+
+    // the edges in band b are those from bandStart[b] to bandStart[b + 1] - 1
+    private final int[] bandStart;
+    private final double[] xi;
+    private final double[] yi;
+    private final double[] xj;
+    private final double[] yj;
+
+    /**
+     * Times the index against the linear scan for a random (wavy) star-shaped polygon.
+     */
+    public static void main(String[] args) {
+
+        int vertexCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int pointCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        Random random = new Random(666);
+        Polygon2D polygon = new Polygon2D();
+        for (int i = 0; i < vertexCount; i++) {
+            double angle = -2.0 * Math.PI * i / vertexCount;
+            double radius = 70.0 + 15.0 * Math.sin(7.0 * angle) + random.nextDouble();
+            polygon.addPoint2D(new Point2D.Double(radius * Math.cos(angle), radius * Math.sin(angle)));
+        }
+
+        double[] px = new double[pointCount];
+        double[] py = new double[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            px[i] = 200.0 * random.nextDouble() - 100.0;
+            py[i] = 200.0 * random.nextDouble() - 100.0;
+        }
+
+        PolygonEdgeIndex index = new PolygonEdgeIndex(polygon.x, polygon.y, polygon.length);
+        System.out.println(vertexCount + " vertices, " + index.getBandCount() + " bands, " +
+                index.getMeanBandSize() + " edges per band");
+
+        for (int repeat = 0; repeat < 3; repeat++) {
+            long start = System.nanoTime();
+            int scanCount = 0;
+            for (int i = 0; i < pointCount; i++) {
+                if (polygon.scanContainsPoint2D(px[i], py[i])) {
+                    scanCount++;
+                }
+            }
+            long scanTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int indexCount = 0;
+            for (int i = 0; i < pointCount; i++) {
+                if (index.contains(px[i], py[i])) {
+                    indexCount++;
+                }
+            }
+            long indexTime = System.nanoTime() - start;
+
+            System.out.println("scan: " + (scanTime / 1000000) + "ms (" + scanCount + " inside), index: " +
+                    (indexTime / 1000000) + "ms (" + indexCount + " inside)");
+        }
+    }
+}
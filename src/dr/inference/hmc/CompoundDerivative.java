@@ -43,6 +43,10 @@ public class CompoundDerivative extends CompoundGradient implements HessianWrtPa
         super(derivativeList);
     }
 
+    public CompoundDerivative(List<GradientWrtParameterProvider> derivativeList, int threads) {
+        super(derivativeList, threads);
+    }
+
     @Override
     public double[] getDiagonalHessianLogDensity() {
 
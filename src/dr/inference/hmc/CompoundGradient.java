@@ -44,10 +44,20 @@ public class CompoundGradient implements GradientWrtParameterProvider {
     protected final List<GradientWrtParameterProvider> derivativeList;
     private final Likelihood likelihood;
     private final Parameter parameter;
+    private final ParallelGradientEvaluator parallelEvaluator;
 
     public CompoundGradient(List<GradientWrtParameterProvider> derivativeList) {
+        this(derivativeList, 0);
+    }
+
+    /**
+     * @param threads the number of threads used to compute the components at the same time (0 computes them
+     *                serially and a negative number uses a thread for each)
+     */
+    public CompoundGradient(List<GradientWrtParameterProvider> derivativeList, int threads) {
 
         this.derivativeList = derivativeList;
+        this.parallelEvaluator = ParallelGradientEvaluator.create(derivativeList, threads);
 
         if (derivativeList.size() == 1) {
             likelihood = derivativeList.get(0).getLikelihood();
@@ -103,6 +113,19 @@ public class CompoundGradient implements GradientWrtParameterProvider {
 
         double[] result = new double[dimension];
 
+        if (parallelEvaluator != null) {
+            double[][] gradients = parallelEvaluator.getGradientLogDensities();
+
+            int offset = 0;
+            for (int i = 0; i < gradients.length; i++) {
+                int dim = derivativeList.get(i).getDimension();
+                System.arraycopy(gradients[i], 0, result, offset, dim);
+                offset += dim;
+            }
+
+            return result;
+        }
+
         int offset = 0;
         for (GradientWrtParameterProvider grad : derivativeList) {
             
@@ -113,4 +136,8 @@ public class CompoundGradient implements GradientWrtParameterProvider {
 
         return result;
     }
+
+    public int getThreadCount() {
+        return (parallelEvaluator != null ? parallelEvaluator.getThreadCount() : 0);
+    }
 }
@@ -0,0 +1,147 @@
+/*
+ * ParallelGradientEvaluator.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.hmc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Evaluates the gradients of the components of a CompoundGradient or SumDerivative on a fixed thread pool.
+ * The first component is computed on the calling thread while the others run in the pool, and the gradients
+ * are returned in the order of the components so the caller can combine them independently of the scheduling.
+ *
+ * The components are evaluated at the same time so they must not share models that compute lazily (such as a
+ * substitution model used by two tree likelihoods).
+ */
+class ParallelGradientEvaluator {
+
+    /**
+     * @param threads the size of the pool, with a negative number giving one thread per component
+     * @return an evaluator or null if the components are to be computed serially
+     */
+    static ParallelGradientEvaluator create(List<GradientWrtParameterProvider> derivativeList, int threads) {
+        if (threads < 0) {
+            threads = derivativeList.size() - 1;
+        }
+        if (threads == 0 || derivativeList.size() < 2) {
+            return null;
+        }
+        return new ParallelGradientEvaluator(derivativeList, Math.min(threads, derivativeList.size() - 1));
+    }
+
+    private ParallelGradientEvaluator(List<GradientWrtParameterProvider> derivativeList, int threads) {
+        this.first = derivativeList.get(0);
+        this.gradientCallers = new ArrayList<Callable<double[]>>();
+        for (int i = 1; i < derivativeList.size(); i++) {
+            final GradientWrtParameterProvider derivative = derivativeList.get(i);
+            gradientCallers.add(new Callable<double[]>() {
+                public double[] call() {
+                    return derivative.getGradientLogDensity();
+                }
+            });
+        }
+        this.gradients = new double[derivativeList.size()][];
+        this.threadCount = threads;
+
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                // the pool must not keep BEAST running once the chain has finished
+                Thread thread = new Thread(runnable, "hmc-gradient");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * @return the gradient of each component, in order (the array is reused by the next call)
+     */
+    double[][] getGradientLogDensities() {
+
+        List<Future<double[]>> results = new ArrayList<Future<double[]>>(gradientCallers.size());
+        for (Callable<double[]> caller : gradientCallers) {
+            results.add(pool.submit(caller));
+        }
+
+        RuntimeException failure = null;
+        try {
+            gradients[0] = first.getGradientLogDensity();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        // every component is waited for, even after a failure, so none is still running into the next evaluation
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                gradients[i + 1] = getUninterruptibly(results.get(i));
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    Throwable cause = e.getCause();
+                    failure = (cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause));
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        return gradients;
+    }
+
+    private static double[] getUninterruptibly(Future<double[]> result) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final GradientWrtParameterProvider first;
+    private final List<Callable<double[]>> gradientCallers;
+    private final double[][] gradients;
+    private final int threadCount;
+    private final ExecutorService pool;
+}
@@ -44,8 +44,17 @@ public class SumDerivative implements GradientWrtParameterProvider, HessianWrtPa
     private final Parameter parameter;
 
     private final List<GradientWrtParameterProvider> derivativeList;
+    private final ParallelGradientEvaluator parallelEvaluator;
 
     public SumDerivative(List<GradientWrtParameterProvider> derivativeList){
+        this(derivativeList, 0);
+    }
+
+    /**
+     * @param threads the number of threads used to compute the components at the same time (0 computes them
+     *                serially and a negative number uses a thread for each)
+     */
+    public SumDerivative(List<GradientWrtParameterProvider> derivativeList, int threads){
 
         this.derivativeList = derivativeList;
 
@@ -74,6 +83,8 @@ public class SumDerivative implements GradientWrtParameterProvider, HessianWrtPa
             }
             likelihood = new CompoundLikelihood(likelihoodList);
         }
+
+        parallelEvaluator = ParallelGradientEvaluator.create(derivativeList, threads);
     }
 
     @Override
@@ -156,9 +167,29 @@ public class SumDerivative implements GradientWrtParameterProvider, HessianWrtPa
 
     @Override
     public double[] getGradientLogDensity() {
+
+        if (parallelEvaluator != null) {
+            double[][] gradients = parallelEvaluator.getGradientLogDensities();
+
+            // summed in the order of the components, as when they are computed serially
+            final double[] derivative = gradients[0];
+            for (int i = 1; i < gradients.length; i++) {
+                final double[] temp = gradients[i];
+                for (int j = 0; j < temp.length; j++) {
+                    derivative[j] += temp[j];
+                }
+            }
+
+            return derivative;
+        }
+
         return getDerivativeLogDensity(DerivativeType.GRADIENT);
     }
 
+    public int getThreadCount() {
+        return (parallelEvaluator != null ? parallelEvaluator.getThreadCount() : 0);
+    }
+
     private static final boolean DEBUG = false;
     private static final boolean DEBUG_KILL = false;
 
@@ -0,0 +1,324 @@
+/*
+ * AsynchronousMCLogger.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+/**
+ * An MCLogger that moves the formatting and writing of the log off the chain thread.
+ *
+ * When a state is logged the values of the NumberColumns are copied as doubles into a ring buffer of
+ * preallocated rows (other columns are formatted straight away as their values may not be copyable).
+ * A background thread takes all the rows that are available, formats them and writes them as a batch,
+ * flushing the output once per batch. If the writer falls behind the chain waits for a free row so the
+ * memory used is bounded by the size of the buffer. All the rows are written before stopLogging returns.
+ * If the chain thread is interrupted while waiting, the rows already queued are written out and from then on
+ * each row is written directly by the chain thread.
+ *
+ * The output is identical to that of MCLogger. Performance reports are not supported so this is only
+ * intended for file logs.
+ */
+public class AsynchronousMCLogger extends MCLogger {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+
+    public AsynchronousMCLogger(LogFormatter formatter, long logEvery, int bufferSize) {
+        super(formatter, logEvery, false);
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("buffer size must be at least 1");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    public AsynchronousMCLogger(LogFormatter formatter, long logEvery) {
+        this(formatter, logEvery, DEFAULT_BUFFER_SIZE);
+    }
+
+    @Override
+    public void startLogging() {
+        super.startLogging();
+
+        if (logEvery <= 0) {
+            return;
+        }
+
+        final int columnCount = getColumnCount();
+
+        copiedColumns = new CopiedColumn[columnCount];
+        int numberCount = 0;
+        for (int i = 0; i < columnCount; i++) {
+            if (numberColumns[i] != null) {
+                copiedColumns[i] = new CopiedColumn(numberColumns[i]);
+                numberCount++;
+            }
+        }
+
+        stateBuffer = new long[bufferSize];
+        numberBuffer = new double[bufferSize][numberCount];
+        formattedBuffer = new String[bufferSize][columnCount - numberCount];
+        values = new String[columnCount + 1];
+        rowNumbers = new double[columnCount + 1];
+
+        head = 0;
+        tail = 0;
+        count = 0;
+        stopped = false;
+        failure = null;
+
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeRows();
+            }
+        }, "logger-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void log(long state) {
+
+        if (writerThread == null) {
+            super.log(state);
+            return;
+        }
+
+        if (logEvery > 0 && (state % logEvery == 0)) {
+            checkFailure();
+
+            // wait for a free row
+            boolean interrupted = false;
+            synchronized (lock) {
+                while (count == bufferSize && failure == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        break;
+                    }
+                }
+            }
+
+            if (interrupted) {
+                // the row is not dropped: the queued rows are written and then this one, on this thread
+                stopWriter();
+                Thread.currentThread().interrupt();
+                checkFailure();
+                super.log(state);
+                return;
+            }
+            checkFailure();
+
+            // the writer doesn't touch this row until it has been counted so it is filled outside the lock
+            final int row = head;
+            final double[] numbers = numberBuffer[row];
+            final String[] formatted = formattedBuffer[row];
+            int n = 0;
+            int f = 0;
+            for (int i = 0; i < numberColumns.length; i++) {
+                if (numberColumns[i] != null) {
+                    numbers[n] = numberColumns[i].getDoubleValue();
+                    n++;
+                } else {
+                    formatted[f] = getColumnFormatted(i);
+                    f++;
+                }
+            }
+            stateBuffer[row] = state;
+
+            synchronized (lock) {
+                head = (head + 1) % bufferSize;
+                count++;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void stopLogging() {
+        stopWriter();
+
+        super.stopLogging();
+
+        checkFailure();
+    }
+
+    /**
+     * Waits for the writer thread to write all the queued rows and finish.
+     */
+    private void stopWriter() {
+        if (writerThread == null) {
+            return;
+        }
+
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        writerThread = null;
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The body of the writer thread: takes all the rows that are ready, writes them and then releases
+     * them until stopped and the buffer is empty.
+     */
+    private void writeRows() {
+        try {
+            while (true) {
+                int first;
+                int available;
+                synchronized (lock) {
+                    while (count == 0 && !stopped) {
+                        lock.wait();
+                    }
+                    if (count == 0) {
+                        return;
+                    }
+                    first = tail;
+                    available = count;
+                }
+
+                for (int k = 0; k < available; k++) {
+                    writeRow((first + k) % bufferSize);
+                }
+                flushFormatters();
+
+                synchronized (lock) {
+                    tail = (tail + available) % bufferSize;
+                    count -= available;
+                    lock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void writeRow(int row) {
+        final double[] numbers = numberBuffer[row];
+        final String[] formatted = formattedBuffer[row];
+
+        values[0] = Long.toString(stateBuffer[row]);
+        int n = 0;
+        int f = 0;
+        for (int i = 0; i < numberColumns.length; i++) {
+            if (numberColumns[i] != null) {
+                copiedColumns[i].value = numbers[n];
+                values[i + 1] = copiedColumns[i].getFormatted();
+                rowNumbers[i + 1] = numbers[n];
+                n++;
+            } else {
+                values[i + 1] = formatted[f];
+                formatted[f] = null;
+                f++;
+            }
+        }
+
+        for (LogFormatter formatter : formatters) {
+            if (formatter instanceof TabDelimitedFormatter) {
+                ((TabDelimitedFormatter) formatter).logValues(values, false);
+            } else if (formatter instanceof BinaryLogFormatter) {
+                ((BinaryLogFormatter) formatter).logValues(values, rowNumbers, isNumber);
+            } else {
+                formatter.logValues(values);
+            }
+        }
+    }
+
+    private void flushFormatters() {
+        for (LogFormatter formatter : formatters) {
+            if (formatter instanceof TabDelimitedFormatter) {
+                ((TabDelimitedFormatter) formatter).flush();
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("Unable to write log: " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * A column with the format of one of the log's NumberColumns that gives the value copied from it. The
+     * DecimalFormats of a NumberColumn are not thread safe so the writer formats with its own.
+     */
+    private static class CopiedColumn extends NumberColumn {
+        CopiedColumn(NumberColumn column) {
+            super(column.getLabel());
+            if (column.getSignificantFigures() >= 0) {
+                setSignificantFigures(column.getSignificantFigures());
+            } else if (column.getDecimalPlaces() >= 0) {
+                setDecimalPlaces(column.getDecimalPlaces());
+            }
+            setMinimumWidth(column.getMinimumWidth());
+        }
+
+        public double getDoubleValue() {
+            return value;
+        }
+
+        private double value;
+    }
+
+    private final int bufferSize;
+
+    private CopiedColumn[] copiedColumns;
+
+    // the ring buffer - a row is owned by the chain thread until it is counted and by the writer until released
+    private long[] stateBuffer;
+    private double[][] numberBuffer;
+    private String[][] formattedBuffer;
+    private int head;
+    private int tail;
+    private int count;
+    private boolean stopped;
+    private final Object lock = new Object();
+
+    // only used by the writer thread
+    private String[] values;
+    private double[] rowNumbers;
+
+    // null once stopped, after which rows are written by the chain thread
+    private Thread writerThread = null;
+    private volatile Exception failure = null;
+}
@@ -0,0 +1,310 @@
+/*
+ * BinaryLogFormatter.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * A class that writes a log in a compressed, columnar binary format which can be read by
+ * dr.inference.trace.BinaryLogReader (and so by LogFileTraces, LogCombiner and LogAnalyser).
+ *
+ * The file starts with a magic number, a version and a header containing the headings and the column
+ * labels. The rows are then written in blocks of blockSize states. Each block is length-prefixed and
+ * holds the state numbers followed by a separately compressed chunk for each column, so a reader can
+ * pick out individual columns without decompressing the others. A column chunk is stored as ints if
+ * all of its values are integers, as doubles if they are all numbers and as a table of labels and
+ * indices otherwise. The values of number columns are given by the loggers as doubles and are stored at
+ * full precision whatever the precision of the columns' text. Only complete blocks are ever read back so
+ * a log that was cut short loses at most the states since the last block.
+ *
+ * Lines logged after the labels (with logLine) have no place in the format and are ignored.
+ */
+public class BinaryLogFormatter implements LogFormatter {
+
+    public static final byte[] MAGIC = { 'B', 'E', 'A', 'S', 'T', 'L', 'O', 'G' };
+    public static final int VERSION = 1;
+
+    public static final byte INTEGER_COLUMN = 0;
+    public static final byte REAL_COLUMN = 1;
+    public static final byte CATEGORICAL_COLUMN = 2;
+
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+    public BinaryLogFormatter(OutputStream stream) {
+        this(stream, DEFAULT_BLOCK_SIZE);
+    }
+
+    public BinaryLogFormatter(OutputStream stream, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size must be at least 1");
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(stream));
+        this.blockSize = blockSize;
+    }
+
+    public void startLogging(String title) {
+        // DO NOTHING
+    }
+
+    public void logHeading(String heading) {
+        if (heading != null && columnCount < 0) {
+            headings.add(heading);
+        }
+    }
+
+    public void logLine(String line) {
+        if (columnCount < 0) {
+            headings.add(line);
+        }
+    }
+
+    public void logLabels(String[] labels) {
+        if (columnCount >= 0) {
+            throw new IllegalStateException("labels have already been written");
+        }
+
+        // the first label is the state
+        columnCount = labels.length - 1;
+
+        states = new long[blockSize];
+        kinds = new byte[columnCount][blockSize];
+        numbers = new double[columnCount][blockSize];
+        strings = new String[columnCount][blockSize];
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(headings.size());
+            for (String heading : headings) {
+                header.writeUTF(heading);
+            }
+            header.writeInt(columnCount);
+            for (int i = 1; i < labels.length; i++) {
+                header.writeUTF(labels[i].trim());
+            }
+            header.close();
+
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.flush();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write log: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    public void logValues(String[] values) {
+        logValues(values, null, null);
+    }
+
+    /**
+     * Logs a row in which the values of some columns are also given as doubles. These are stored as they are
+     * rather than parsed back from their formatted text, so they keep their full precision however the columns
+     * are formatted. Such a value is stored as an integer only if its formatted text is one and it is a whole
+     * number.
+     *
+     * @param values       the formatted values, the state first
+     * @param doubleValues the values as doubles, at the same indices as values
+     * @param isNumber     whether the value at each index is given in doubleValues (may be null if none are)
+     */
+    public void logValues(String[] values, double[] doubleValues, boolean[] isNumber) {
+        if (columnCount < 0) {
+            throw new IllegalStateException("labels must be written before values");
+        }
+        if (values.length != columnCount + 1) {
+            throw new IllegalArgumentException("expected " + (columnCount + 1) + " values but got " + values.length);
+        }
+
+        states[rowCount] = Long.parseLong(values[0].trim());
+        for (int i = 0; i < columnCount; i++) {
+            String value = values[i + 1].trim();
+            strings[i][rowCount] = value;
+            if (isNumber != null && isNumber[i + 1]) {
+                double number = doubleValues[i + 1];
+                numbers[i][rowCount] = number;
+                kinds[i][rowCount] = isInteger(value) && number == (int) number ? INTEGER_COLUMN : REAL_COLUMN;
+            } else if (isInteger(value)) {
+                kinds[i][rowCount] = INTEGER_COLUMN;
+                numbers[i][rowCount] = Integer.parseInt(value);
+            } else {
+                try {
+                    numbers[i][rowCount] = Double.parseDouble(value);
+                    kinds[i][rowCount] = REAL_COLUMN;
+                } catch (NumberFormatException nfe) {
+                    kinds[i][rowCount] = CATEGORICAL_COLUMN;
+                }
+            }
+        }
+        rowCount++;
+
+        if (rowCount == blockSize) {
+            writeBlock();
+        }
+    }
+
+    public void stopLogging() {
+        if (rowCount > 0) {
+            writeBlock();
+        }
+        deflater.end();
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write log: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private void writeBlock() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream block = new DataOutputStream(bytes);
+
+            block.writeInt(rowCount);
+            for (int j = 0; j < rowCount; j++) {
+                block.writeLong(states[j]);
+            }
+
+            for (int i = 0; i < columnCount; i++) {
+                byte encoding = INTEGER_COLUMN;
+                for (int j = 0; j < rowCount; j++) {
+                    if (kinds[i][j] > encoding) {
+                        encoding = kinds[i][j];
+                    }
+                }
+
+                byte[] raw = encodeColumn(i, encoding);
+                deflater.reset();
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2 + 16);
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, length);
+                }
+
+                block.writeByte(encoding);
+                block.writeInt(raw.length);
+                block.writeInt(compressed.size());
+                compressed.writeTo(block);
+            }
+            block.close();
+
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.flush();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write log: " + ioe.getMessage(), ioe);
+        }
+
+        for (String[] column : strings) {
+            for (int j = 0; j < rowCount; j++) {
+                column[j] = null;
+            }
+        }
+        rowCount = 0;
+    }
+
+    private byte[] encodeColumn(int column, byte encoding) throws IOException {
+        if (encoding == INTEGER_COLUMN) {
+            ByteBuffer raw = ByteBuffer.allocate(rowCount * 4);
+            for (int j = 0; j < rowCount; j++) {
+                raw.putInt((int) numbers[column][j]);
+            }
+            return raw.array();
+        } else if (encoding == REAL_COLUMN) {
+            ByteBuffer raw = ByteBuffer.allocate(rowCount * 8);
+            for (int j = 0; j < rowCount; j++) {
+                raw.putDouble(numbers[column][j]);
+            }
+            return raw.array();
+        } else {
+            // the labels used in this block followed by the index of each value
+            Map<String, Integer> indices = new HashMap<String, Integer>();
+            List<String> labels = new ArrayList<String>();
+            int[] values = new int[rowCount];
+            for (int j = 0; j < rowCount; j++) {
+                String value = strings[column][j];
+                Integer index = indices.get(value);
+                if (index == null) {
+                    index = labels.size();
+                    indices.put(value, index);
+                    labels.add(value);
+                }
+                values[j] = index;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream raw = new DataOutputStream(bytes);
+            raw.writeInt(labels.size());
+            for (String label : labels) {
+                raw.writeUTF(label);
+            }
+            for (int value : values) {
+                raw.writeInt(value);
+            }
+            raw.close();
+            return bytes.toByteArray();
+        }
+    }
+
+    // integers as the text log reader sees them: no decimal point or exponent (and small enough to be an int)
+    private static boolean isInteger(String value) {
+        int start = value.startsWith("-") ? 1 : 0;
+        int length = value.length() - start;
+        if (length < 1 || length > 9) {
+            return false;
+        }
+        for (int i = start; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final DataOutputStream out;
+    private final int blockSize;
+    private final List<String> headings = new ArrayList<String>();
+    private int columnCount = -1;
+
+    // the rows of the current block
+    private long[] states;
+    private byte[][] kinds;
+    private double[][] numbers;
+    private String[][] strings;
+    private int rowCount = 0;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] buffer = new byte[8192];
+}
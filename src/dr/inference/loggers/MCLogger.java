@@ -192,6 +192,31 @@ public class MCLogger implements Logger {
         }
     }
 
+    /**
+     * Logs a row giving the binary formatters the values of the number columns as doubles.
+     *
+     * @param numbers  the values of the number columns, at the same indices as values
+     * @param isNumber whether the value at each index is in numbers
+     */
+    protected void logValues(String[] values, double[] numbers, boolean[] isNumber) {
+        for (LogFormatter formatter : formatters) {
+            if (formatter instanceof BinaryLogFormatter) {
+                ((BinaryLogFormatter) formatter).logValues(values, numbers, isNumber);
+            } else {
+                formatter.logValues(values);
+            }
+        }
+    }
+
+    protected boolean hasBinaryFormatter() {
+        for (LogFormatter formatter : formatters) {
+            if (formatter instanceof BinaryLogFormatter) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void startLogging() {
 
         for (LogFormatter formatter : formatters) {
@@ -221,6 +246,16 @@ public class MCLogger implements Logger {
             }
 
             logLabels(labels);
+
+            numberColumns = new NumberColumn[columnCount];
+            isNumber = new boolean[columnCount + 1];
+            for (int i = 0; i < columnCount; i++) {
+                LogColumn column = getColumn(i);
+                if (isPlainNumberColumn(column)) {
+                    numberColumns[i] = (NumberColumn) column;
+                    isNumber[i + 1] = true;
+                }
+            }
         }
     }
 
@@ -245,8 +280,20 @@ public class MCLogger implements Logger {
 
             values[0] = Long.toString(state);
 
+            // the number columns' values are only needed as doubles by binary formatters and each is
+            // only computed once
+            double[] numbers = null;
+            if (numberColumns != null && numberColumns.length == columnCount && hasBinaryFormatter()) {
+                numbers = new double[values.length];
+            }
+
             for (int i = 0; i < columnCount; i++) {
-                values[i + 1] = getColumnFormatted(i);
+                if (numbers != null && numberColumns[i] != null) {
+                    numbers[i + 1] = numberColumns[i].getDoubleValue();
+                    values[i + 1] = numberColumns[i].getFormatted(numbers[i + 1]);
+                } else {
+                    values[i + 1] = getColumnFormatted(i);
+                }
             }
 
             if (performanceReport) {
@@ -275,7 +322,11 @@ public class MCLogger implements Logger {
                 }
             }
 
-            logValues(values);
+            if (numbers != null) {
+                logValues(values, numbers, isNumber);
+            } else {
+                logValues(values);
+            }
         }
 
         if (performanceReport && !performanceReportStarted && state >= performanceReportDelay) {
@@ -291,12 +342,41 @@ public class MCLogger implements Logger {
         }
     }
 
+    /**
+     * A column has a value as a double if it is a NumberColumn that formats its value in the standard way.
+     */
+    private static boolean isPlainNumberColumn(LogColumn column) {
+        if (!(column instanceof NumberColumn)) {
+            return false;
+        }
+        for (Class<?> c = column.getClass(); c != NumberColumn.class; c = c.getSuperclass()) {
+            if (declaresMethod(c, "getFormattedValue") || declaresMethod(c, "formatValue", double.class)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean declaresMethod(Class<?> c, String name, Class<?>... parameterTypes) {
+        try {
+            c.getDeclaredMethod(name, parameterTypes);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
     private String title = null;
 
     private Set<String> keywords = new HashSet<String>();
 
     private List<LogColumn> columns = new ArrayList<LogColumn>();
 
+    // the plain number columns (null for the others) and which of the logged values they give, set when
+    // logging starts
+    protected NumberColumn[] numberColumns = null;
+    protected boolean[] isNumber = null;
+
     protected long logEvery = 0;
 
     public List<LogFormatter> getFormatters() {
@@ -142,6 +142,17 @@ public abstract class NumberColumn extends LogColumn.Abstract {
 		return formatValue(getDoubleValue());
 	}
 	
+	/**
+	 * Returns a string containing the given value formatted as getFormatted would
+	 * format it as the current value of this column (if getFormattedValue is not
+	 * overridden).
+	 *
+	 * @return the formatted string.
+	 */
+	public final String getFormatted(double value) {
+		return pad(formatValue(value));
+	}
+
 	private int getNumFractionDigits(double value) {
 		value = Math.abs(value);
 		for (int i = 0; i < cutoffTable.length; i++) {
@@ -98,6 +98,14 @@ public class TabDelimitedFormatter implements LogFormatter {
     }
 
     public void logValues(String[] values) {
+        logValues(values, true);
+    }
+
+    /**
+     * Writes a line of values, optionally without flushing so that a batch of lines can be written
+     * before calling flush().
+     */
+    public void logValues(String[] values, boolean flush) {
 
         if (values.length > 0) {
             printWriter.print(values[0]);
@@ -109,6 +117,12 @@ public class TabDelimitedFormatter implements LogFormatter {
         }
 
         printWriter.println();
+        if (flush) {
+            printWriter.flush();
+        }
+    }
+
+    public void flush() {
         printWriter.flush();
     }
 
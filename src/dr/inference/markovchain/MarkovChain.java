@@ -28,6 +28,7 @@ package dr.inference.markovchain;
 import dr.evomodel.continuous.GibbsIndependentCoalescentOperator;
 import dr.inference.model.*;
 import dr.inference.operators.*;
+import dr.util.Metric;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -49,6 +50,14 @@ public final class MarkovChain implements Serializable {
     private final static boolean DEBUG = false;
     private final static boolean PROFILE = true;
 
+    // A lean chain samples the operator timings rather than timing every evaluation
+    private final static boolean LEAN_CHAIN = Boolean.getBoolean("mcmc.lean_chain");
+
+    // Operator evaluation times and calculation counts are recorded every PROFILE_INTERVAL
+    // evaluations (using System.nanoTime()) and scaled up by the interval. Zero switches profiling off.
+    // This is the default for each chain (see setProfileInterval).
+    private final static int PROFILE_INTERVAL = Integer.getInteger("mcmc.profile_interval", LEAN_CHAIN ? 128 : 1);
+
     public static final double EVALUATION_TEST_THRESHOLD = 1e-1;
 
     private final OperatorSchedule schedule;
@@ -69,6 +78,18 @@ public final class MarkovChain implements Serializable {
 
     private double evaluationTestThreshold = EVALUATION_TEST_THRESHOLD;
 
+    // primitive snapshots of the likelihood components used to create a diagnosis only when needed
+    private final double[] diagnosticStart;
+    private final double[] diagnosticOperator;
+
+    // evaluation time (in nanoseconds) not yet passed on to each operator
+    private final long[] pendingEvaluationTimes;
+    private int profileInterval = PROFILE_INTERVAL;
+    private long profileCount = 0;
+
+    // live metrics for each operator (null unless requested)
+    private MarkovChainMetrics metrics = null;
+
 
     public MarkovChain(Likelihood likelihood,
                        OperatorSchedule schedule, Acceptor acceptor,
@@ -95,6 +116,17 @@ public final class MarkovChain implements Serializable {
             }
         }
 
+        if (likelihood instanceof CompoundLikelihood) {
+            final int size = ((CompoundLikelihood) likelihood).getDiagnosisSize();
+            diagnosticStart = new double[size];
+            diagnosticOperator = new double[size];
+        } else {
+            diagnosticStart = null;
+            diagnosticOperator = null;
+        }
+
+        pendingEvaluationTimes = new long[schedule.getOperatorCount()];
+
         currentScore = evaluate(likelihood);
     }
 
@@ -172,8 +204,6 @@ public final class MarkovChain implements Serializable {
 
         while (!pleaseStop && (currentState < (currentLength + length))) {
 
-            String diagnosticStart = "";
-
             // periodically log states
             fireCurrentModel(currentState, currentModel);
 
@@ -187,9 +217,8 @@ public final class MarkovChain implements Serializable {
             final MCMCOperator mcmcOperator = schedule.getOperator(op);
 
             double oldScore = currentScore;
-            if (usingFullEvaluation) {
-                diagnosticStart = likelihood instanceof CompoundLikelihood ?
-                        ((CompoundLikelihood) likelihood).getDiagnosis() : "";
+            if (usingFullEvaluation && diagnosticStart != null) {
+                ((CompoundLikelihood) likelihood).storeDiagnosis(diagnosticStart, 0);
             }
 
             // assert Profiler.startProfile("Store");
@@ -207,6 +236,8 @@ public final class MarkovChain implements Serializable {
 
             logr[0] = -Double.MAX_VALUE;
 
+            final long moveStartTime = (metrics != null ? System.nanoTime() : 0L);
+
             // The new model is proposed
             // assert Profiler.startProfile("Operate");
 
@@ -242,10 +273,13 @@ public final class MarkovChain implements Serializable {
                     System.out.println("** Evaluate");
                 }
 
+                final boolean profiling = PROFILE && profileInterval > 0 && (profileCount % profileInterval == 0);
+                profileCount++;
+
                 long elapsedTime = 0;
                 long calculationCount = 0;
-                if (PROFILE) {
-                    elapsedTime = System.currentTimeMillis();
+                if (profiling) {
+                    elapsedTime = System.nanoTime();
                     if (likelihood instanceof Profileable) {
                         calculationCount = ((Profileable) likelihood).getTotalCalculationCount();
                     }
@@ -254,22 +288,20 @@ public final class MarkovChain implements Serializable {
                 // The new model is evaluated
                 score = evaluate(likelihood);
 
-                if (PROFILE) {
-                    long duration = System.currentTimeMillis() - elapsedTime;
-                    mcmcOperator.addEvaluationTime(duration);
+                if (profiling) {
+                    long duration = System.nanoTime() - elapsedTime;
+                    addEvaluationTime(op, mcmcOperator, duration * profileInterval);
                     long newCalculationCount = (likelihood instanceof Profileable) ?
-                            ((Profileable) likelihood).getTotalCalculationCount() : 1;
-                    mcmcOperator.addCalculationCount(newCalculationCount - calculationCount);
+                            ((Profileable) likelihood).getTotalCalculationCount() : calculationCount + 1;
+                    mcmcOperator.addCalculationCount((newCalculationCount - calculationCount) * profileInterval);
 
                     if (DEBUG) {
-                        System.out.println("Time: " + duration);
+                        System.out.println("Time: " + duration + "ns");
                     }
                 }
 
-                String diagnosticOperator = "";
-                if (usingFullEvaluation) {
-                    diagnosticOperator = likelihood instanceof CompoundLikelihood ?
-                            ((CompoundLikelihood) likelihood).getDiagnosis() : "";
+                if (usingFullEvaluation && diagnosticOperator != null) {
+                    ((CompoundLikelihood) likelihood).storeDiagnosis(diagnosticOperator, 0);
                 }
 
                 if (score == Double.NEGATIVE_INFINITY && mcmcOperator instanceof GibbsOperator) {
@@ -336,17 +368,20 @@ public final class MarkovChain implements Serializable {
                     likelihood.makeDirty();
                     final double testScore = evaluate(likelihood);
 
-                    final String d2 = likelihood instanceof CompoundLikelihood ?
-                            ((CompoundLikelihood) likelihood).getDiagnosis() : "";
-
                     if (Math.abs(testScore - score) > evaluationTestThreshold) {
+                        // the diagnosis strings are only created once a problem has been found
+                        final String d1 = diagnosticOperator != null ?
+                                ((CompoundLikelihood) likelihood).getDiagnosis(diagnosticOperator) : "";
+                        final String d2 = likelihood instanceof CompoundLikelihood ?
+                                ((CompoundLikelihood) likelihood).getDiagnosis() : "";
+
                         Logger.getLogger("error").severe(
                                 "State "+currentState+": State was not correctly calculated after an operator move.\n"
                                         + "Likelihood evaluation: " + score
                                         + "\nFull Likelihood evaluation: " + testScore
                                         + "\n" + "Operator: " + mcmcOperator
                                         + " " + mcmcOperator.getOperatorName()
-                                        + (diagnosticOperator.length() > 0 ? "\n\nDetails\nBefore: " + diagnosticOperator + "\nAfter: " + d2 : "")
+                                        + (d1.length() > 0 ? "\n\nDetails\nBefore: " + d1 + "\nAfter: " + d2 : "")
                                         + "\n\n");
                         fullEvaluationError = true;
                     }
@@ -393,11 +428,12 @@ public final class MarkovChain implements Serializable {
                     likelihood.makeDirty();
                     final double testScore = evaluate(likelihood);
 
-                    final String d2 = likelihood instanceof CompoundLikelihood ?
-                            ((CompoundLikelihood) likelihood).getDiagnosis() : "";
-
                     if (Math.abs(testScore - oldScore) > evaluationTestThreshold) {
 
+                        final String d1 = diagnosticStart != null ?
+                                ((CompoundLikelihood) likelihood).getDiagnosis(diagnosticStart) : "";
+                        final String d2 = likelihood instanceof CompoundLikelihood ?
+                                ((CompoundLikelihood) likelihood).getDiagnosis() : "";
 
                         final Logger logger = Logger.getLogger("error");
                         logger.severe("State "+currentState+": State was not correctly restored after reject step.\n"
@@ -405,7 +441,7 @@ public final class MarkovChain implements Serializable {
                                 + " Likelihood after: " + testScore
                                 + "\n" + "Operator: " + mcmcOperator
                                 + " " + mcmcOperator.getOperatorName()
-                                + (diagnosticStart.length() > 0 ? "\n\nDetails\nBefore: " + diagnosticStart + "\nAfter: " + d2 : "")
+                                + (d1.length() > 0 ? "\n\nDetails\nBefore: " + d1 + "\nAfter: " + d2 : "")
                                 + "\n\n");
                         fullEvaluationError = true;
                     }
@@ -413,6 +449,16 @@ public final class MarkovChain implements Serializable {
             }
             // assert Profiler.stopProfile("Restore");
 
+            if (metrics != null) {
+                final Metric metric = metrics.getOperatorMetric(op);
+                metric.record(System.nanoTime() - moveStartTime);
+                if (accept) {
+                    metric.accept();
+                } else {
+                    metric.reject();
+                }
+            }
+
 
             if (useAdaptation && !disableAdaptation && mcmcOperator instanceof AdaptableMCMCOperator) {
                 adaptAcceptanceProbability((AdaptableMCMCOperator) mcmcOperator, logr[0]);
@@ -446,6 +492,21 @@ public final class MarkovChain implements Serializable {
         return currentLength;
     }
 
+    /**
+     * Passes the evaluation time on to the operator in milliseconds, carrying over the remainder
+     * so that short evaluations are not lost to rounding.
+     */
+    private void addEvaluationTime(int op, MCMCOperator mcmcOperator, long nanoseconds) {
+        long pending = pendingEvaluationTimes[op] + nanoseconds;
+        if (pending >= NANOSECONDS_PER_MILLISECOND) {
+            mcmcOperator.addEvaluationTime(pending / NANOSECONDS_PER_MILLISECOND);
+            pending %= NANOSECONDS_PER_MILLISECOND;
+        }
+        pendingEvaluationTimes[op] = pending;
+    }
+
+    private static final long NANOSECONDS_PER_MILLISECOND = 1000000L;
+
     public void terminateChain() {
         fireFinished(currentLength);
 
@@ -484,6 +545,26 @@ public final class MarkovChain implements Serializable {
         this.currentLength = currentLength;
     }
 
+    /**
+     * @param profileInterval the number of evaluations between those whose time and calculation count
+     *                        are recorded for the operators (0 for none)
+     */
+    public void setProfileInterval(int profileInterval) {
+        this.profileInterval = profileInterval;
+        profileCount = 0;
+    }
+
+    /**
+     * @param metrics metrics to record each operator's moves in, or null for none
+     */
+    public void setMetrics(MarkovChainMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public MarkovChainMetrics getMetrics() {
+        return metrics;
+    }
+
     public double getCurrentScore() {
         return currentScore;
     }
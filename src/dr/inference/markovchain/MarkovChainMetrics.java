@@ -0,0 +1,267 @@
+/*
+ * MarkovChainMetrics.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.markovchain;
+
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.hmc.HamiltonianMonteCarloOperator;
+import dr.util.Metric;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Live metrics for a running chain: for each operator the number of moves, how many were accepted and
+ * the time each took (to propose, evaluate and then accept or restore), and for each component of a
+ * CompoundLikelihood the number and times of its evaluations. Hamiltonian Monte Carlo operators also report the
+ * time of each trajectory and of each gradient evaluation within it. The table can be written to a file
+ * periodically while the chain runs and each metric can be registered as an MBean (under
+ * "dr.inference") to watch with jconsole or any other JMX client.
+ *
+ * These are switched on by system properties (set by the -metrics and -metrics_jmx options of BEAST).
+ */
+public class MarkovChainMetrics {
+
+    public static final String METRICS_FILE = "mcmc.metrics_file";
+    public static final String METRICS_EVERY = "mcmc.metrics_every";
+    public static final String METRICS_JMX = "mcmc.metrics_jmx";
+
+    public static final long DEFAULT_METRICS_EVERY = 60;
+
+    private static final String JMX_DOMAIN = "dr.inference";
+
+    /**
+     * @return metrics for the chain started as requested by the system properties or null if none are
+     */
+    public static MarkovChainMetrics createIfRequested(OperatorSchedule schedule, Likelihood likelihood) {
+        String fileName = System.getProperty(METRICS_FILE);
+        boolean useJMX = Boolean.parseBoolean(System.getProperty(METRICS_JMX));
+        if (fileName == null && !useJMX) {
+            return null;
+        }
+
+        MarkovChainMetrics metrics = new MarkovChainMetrics(schedule, likelihood);
+        if (useJMX) {
+            metrics.registerMBeans();
+        }
+        if (fileName != null) {
+            long every = Long.parseLong(System.getProperty(METRICS_EVERY, Long.toString(DEFAULT_METRICS_EVERY)));
+            metrics.startWriting(new File(fileName), every);
+        }
+        return metrics;
+    }
+
+    public MarkovChainMetrics(OperatorSchedule schedule, Likelihood likelihood) {
+        operatorMetrics = new Metric[schedule.getOperatorCount()];
+        List<Metric> trajectoryMetrics = new ArrayList<Metric>();
+        for (int i = 0; i < operatorMetrics.length; i++) {
+            MCMCOperator operator = schedule.getOperator(i);
+            operatorMetrics[i] = new Metric("Operator", operator.getOperatorName());
+
+            if (operator instanceof HamiltonianMonteCarloOperator) {
+                HamiltonianMonteCarloOperator hmcOperator = (HamiltonianMonteCarloOperator) operator;
+                Metric trajectoryMetric = new Metric("Trajectory", operator.getOperatorName());
+                Metric gradientMetric = new Metric("Gradient", operator.getOperatorName());
+                hmcOperator.setTrajectoryMetrics(trajectoryMetric, gradientMetric);
+                trajectoryMetrics.add(trajectoryMetric);
+                trajectoryMetrics.add(gradientMetric);
+                hmcOperators.add(hmcOperator);
+            }
+        }
+        this.trajectoryMetrics = trajectoryMetrics.toArray(new Metric[trajectoryMetrics.size()]);
+
+        List<Metric> metrics = new ArrayList<Metric>();
+        addLikelihoodMetrics(likelihood, metrics);
+        likelihoodMetrics = metrics.toArray(new Metric[metrics.size()]);
+    }
+
+    // the components of nested compound likelihoods (such as the prior and likelihood within the
+    // posterior) are each given metrics too
+    private void addLikelihoodMetrics(Likelihood likelihood, List<Metric> metrics) {
+        if (likelihood instanceof CompoundLikelihood) {
+            CompoundLikelihood compoundLikelihood = (CompoundLikelihood) likelihood;
+            Metric[] componentMetrics = new Metric[compoundLikelihood.getLikelihoodCount()];
+            for (int i = 0; i < componentMetrics.length; i++) {
+                componentMetrics[i] = new Metric("Likelihood", compoundLikelihood.getLikelihood(i).prettyName());
+                metrics.add(componentMetrics[i]);
+            }
+            compoundLikelihood.setComponentMetrics(componentMetrics);
+            compoundLikelihoods.add(compoundLikelihood);
+
+            for (Likelihood component : compoundLikelihood.getLikelihoods()) {
+                addLikelihoodMetrics(component, metrics);
+            }
+        }
+    }
+
+    public Metric getOperatorMetric(int index) {
+        return operatorMetrics[index];
+    }
+
+    public Metric getLikelihoodMetric(int index) {
+        return likelihoodMetrics[index];
+    }
+
+    /**
+     * Registers each metric with the platform MBean server.
+     */
+    public void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            registerMBeans(server, operatorMetrics);
+            registerMBeans(server, trajectoryMetrics);
+            registerMBeans(server, likelihoodMetrics);
+        } catch (Exception e) {
+            Logger.getLogger("dr.inference").warning("Unable to register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    private void registerMBeans(MBeanServer server, Metric[] metrics) throws Exception {
+        for (int i = 0; i < metrics.length; i++) {
+            // names need not be unique so the index is part of the object name
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + metrics[i].getType() +
+                    ",index=" + i + ",name=" + ObjectName.quote(metrics[i].getName()));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(metrics[i], objectName);
+            objectNames.add(objectName);
+        }
+    }
+
+    /**
+     * Writes the metrics to a file (replacing its contents each time) every so many seconds in a
+     * background thread.
+     */
+    public void startWriting(final File file, long everySeconds) {
+        this.file = file;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mcmc-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                writeFile();
+            }
+        }, everySeconds, everySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the writing (after writing the final values) and removes the MBeans.
+     */
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            writeFile();
+        }
+
+        if (!objectNames.isEmpty()) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName objectName : objectNames) {
+                try {
+                    server.unregisterMBean(objectName);
+                } catch (Exception e) {
+                    // already gone
+                }
+            }
+            objectNames.clear();
+        }
+
+        for (CompoundLikelihood compoundLikelihood : compoundLikelihoods) {
+            compoundLikelihood.setComponentMetrics(null);
+        }
+
+        for (HamiltonianMonteCarloOperator hmcOperator : hmcOperators) {
+            hmcOperator.setTrajectoryMetrics(null, null);
+        }
+    }
+
+    private synchronized void writeFile() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            PrintStream out = new PrintStream(new FileOutputStream(temp));
+            write(out);
+            out.close();
+            if (!temp.renameTo(file)) {
+                // renaming over an existing file fails on some platforms
+                file.delete();
+                temp.renameTo(file);
+            }
+        } catch (IOException ioe) {
+            Logger.getLogger("dr.inference").warning("Unable to write metrics file: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Writes the metrics as a tab-delimited table.
+     */
+    public void write(PrintStream out) {
+        out.println("# " + new java.util.Date());
+        out.println("type\tindex\tname\tcount\taccepted\trejected\tacceptance\ttotal_s\tmean_ms\tmedian_ms\tp99_ms");
+        write(out, operatorMetrics);
+        write(out, trajectoryMetrics);
+        write(out, likelihoodMetrics);
+    }
+
+    private void write(PrintStream out, Metric[] metrics) {
+        for (int i = 0; i < metrics.length; i++) {
+            Metric metric = metrics[i];
+            out.println(metric.getType() + "\t" + i + "\t" + metric.getName() + "\t" +
+                    metric.getCount() + "\t" + metric.getAcceptCount() + "\t" + metric.getRejectCount() + "\t" +
+                    metric.getAcceptanceProbability() + "\t" + metric.getTotalTimeSeconds() + "\t" +
+                    metric.getMeanTimeMilliseconds() + "\t" + metric.getMedianTimeMilliseconds() + "\t" +
+                    metric.getUpperTimeMilliseconds());
+        }
+    }
+
+    private final Metric[] operatorMetrics;
+    private final Metric[] trajectoryMetrics;
+    private final Metric[] likelihoodMetrics;
+    private final List<CompoundLikelihood> compoundLikelihoods = new ArrayList<CompoundLikelihood>();
+    private final List<HamiltonianMonteCarloOperator> hmcOperators = new ArrayList<HamiltonianMonteCarloOperator>();
+
+    private final List<ObjectName> objectNames = new ArrayList<ObjectName>();
+    private File file = null;
+    private ScheduledExecutorService executor = null;
+}
@@ -0,0 +1,357 @@
+/*
+ * ConvergenceDiagnostics.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.mcmc;
+
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.model.Model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Follows the convergence of the numeric columns of some loggables while a chain runs. Every sampleEvery states
+ * each value is added to a BatchMeans, which keeps the running mean and variance and a fixed number of batch
+ * means (so memory doesn't grow with the chain) from which the batch-means ESS and the split R-hat (of the first
+ * and second halves of the sample) are estimated.
+ *
+ * If a minimum ESS or a maximum R-hat is given the chain is asked to stop once every column meets them. Under
+ * MCMCMC the diagnostics follow the cold chain (MCMCMC samples them and decides when to stop).
+ */
+public class ConvergenceDiagnostics implements MarkovChainListener {
+
+    /**
+     * @param loggables   the loggables whose numeric columns are followed
+     * @param sampleEvery the number of states between samples
+     * @param minESS      the ESS every column must reach to stop the chain (or 0 for none)
+     * @param maxRHat     the split R-hat every column must be below to stop the chain (or infinity for none)
+     * @param reportEvery the number of states between reports of the smallest ESS and largest R-hat (or 0 for none)
+     */
+    public ConvergenceDiagnostics(Loggable[] loggables, long sampleEvery, double minESS, double maxRHat, long reportEvery) {
+        List<NumberColumn> columns = new ArrayList<NumberColumn>();
+        for (Loggable loggable : loggables) {
+            for (LogColumn column : loggable.getColumns()) {
+                if (column instanceof NumberColumn) {
+                    columns.add((NumberColumn) column);
+                }
+            }
+        }
+        this.columns = columns.toArray(new NumberColumn[columns.size()]);
+
+        statistics = new BatchMeans[this.columns.length];
+        for (int i = 0; i < statistics.length; i++) {
+            statistics[i] = new BatchMeans();
+        }
+
+        this.sampleEvery = sampleEvery;
+        this.minESS = minESS;
+        this.maxRHat = maxRHat;
+        this.reportEvery = reportEvery;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public String getColumnLabel(int index) {
+        return columns[index].getLabel();
+    }
+
+    public BatchMeans getStatistics(int index) {
+        return statistics[index];
+    }
+
+    /**
+     * @return true if there is a stopping rule and every column meets it (other than those whose value has never
+     * changed, which have no ESS or R-hat)
+     */
+    public boolean isConverged() {
+        if (!(minESS > 0.0) && Double.isInfinite(maxRHat)) {
+            return false;
+        }
+        for (BatchMeans statistic : statistics) {
+            if (statistic.getBatchCount() < MIN_BATCH_COUNT) {
+                return false;
+            }
+            if (statistic.isConstant()) {
+                continue;
+            }
+            if (minESS > 0.0 && !(statistic.getESS() >= minESS)) {
+                return false;
+            }
+            if (!Double.isInfinite(maxRHat) && !(statistic.getSplitRHat() <= maxRHat)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes these diagnostics add to the statistics of another (for the same columns of another copy of the
+     * model), so those of the chains of MCMCMC together follow whichever chain is cold. Only the cold chain
+     * adds to them at any time but it may be on a different thread after a swap, so BatchMeans is synchronized.
+     */
+    public void shareStatistics(ConvergenceDiagnostics diagnostics) {
+        if (diagnostics.columns.length != columns.length) {
+            throw new IllegalArgumentException("The diagnostics follow different numbers of columns");
+        }
+        statistics = diagnostics.statistics;
+    }
+
+    /**
+     * @param stopsChain whether to ask the chain to stop itself once converged (otherwise its owner checks)
+     */
+    public void setStopsChain(boolean stopsChain) {
+        this.stopsChain = stopsChain;
+    }
+
+    // MarkovChainListener interface *******************************************
+
+    public void currentState(long state, MarkovChain markovChain, Model currentModel) {
+        if (state % sampleEvery != 0) {
+            return;
+        }
+
+        for (int i = 0; i < columns.length; i++) {
+            statistics[i].add(columns[i].getDoubleValue());
+        }
+
+        if (reportEvery > 0 && state > 0 && state % reportEvery == 0) {
+            report(state);
+        }
+
+        if (stopsChain && isConverged()) {
+            if (!isStopping) {
+                report(state);
+                Logger.getLogger("dr.inference").info("Stopping the chain at state " + state + ": it has converged");
+                isStopping = true;
+            }
+            markovChain.pleaseStop();
+        }
+    }
+
+    public void bestState(long state, MarkovChain markovChain, Model bestModel) {
+    }
+
+    public void finished(long chainLength, MarkovChain markovChain) {
+        if (reportEvery > 0) {
+            report(chainLength);
+        }
+    }
+
+    private void report(long state) {
+        int minIndex = -1;
+        int maxIndex = -1;
+        for (int i = 0; i < statistics.length; i++) {
+            if (statistics[i].isConstant()) {
+                continue;
+            }
+            if (minIndex < 0 || statistics[i].getESS() < statistics[minIndex].getESS()) {
+                minIndex = i;
+            }
+            if (maxIndex < 0 || statistics[i].getSplitRHat() > statistics[maxIndex].getSplitRHat()) {
+                maxIndex = i;
+            }
+        }
+        if (minIndex >= 0) {
+            Logger.getLogger("dr.inference").info("State " + state + ": smallest ESS = " +
+                    statistics[minIndex].getESS() + " (" + getColumnLabel(minIndex) + "), largest split R-hat = " +
+                    statistics[maxIndex].getSplitRHat() + " (" + getColumnLabel(maxIndex) + ")");
+        }
+    }
+
+    /**
+     * The running mean and variance of a series of values and the sums (and sums of squares) of up to
+     * MAX_BATCH_COUNT consecutive batches of them. When all the batches are full, neighbouring pairs are
+     * merged so there are half as many batches of twice the size. The values are shifted by the first so the
+     * sums of squares keep their precision. It is synchronized as, under MCMCMC, the chain that adds to it
+     * changes whenever the cold chain is swapped, and in the asynchronous mode each chain has its own thread.
+     */
+    public static class BatchMeans {
+
+        public synchronized void add(double value) {
+            if (count == 0) {
+                shift = value;
+            }
+            final double y = value - shift;
+
+            count++;
+            final double delta = y - mean;
+            mean += delta / count;
+            sumOfSquares += delta * (y - mean);
+
+            batchSum += y;
+            batchSquareSum += y * y;
+            batchValueCount++;
+            if (batchValueCount == batchSize) {
+                batchSums[batchCount] = batchSum;
+                batchSquareSums[batchCount] = batchSquareSum;
+                batchCount++;
+                batchSum = 0.0;
+                batchSquareSum = 0.0;
+                batchValueCount = 0;
+
+                if (batchCount == MAX_BATCH_COUNT) {
+                    for (int i = 0; i < MAX_BATCH_COUNT / 2; i++) {
+                        batchSums[i] = batchSums[2 * i] + batchSums[2 * i + 1];
+                        batchSquareSums[i] = batchSquareSums[2 * i] + batchSquareSums[2 * i + 1];
+                    }
+                    batchCount = MAX_BATCH_COUNT / 2;
+                    batchSize *= 2;
+                }
+            }
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getMean() {
+            return count > 0 ? shift + mean : Double.NaN;
+        }
+
+        public synchronized double getVariance() {
+            return count > 1 ? sumOfSquares / (count - 1) : Double.NaN;
+        }
+
+        /**
+         * @return true if values have been added and they are all the same
+         */
+        public synchronized boolean isConstant() {
+            return count > 0 && sumOfSquares == 0.0;
+        }
+
+        public synchronized int getBatchCount() {
+            return batchCount;
+        }
+
+        public synchronized long getBatchSize() {
+            return batchSize;
+        }
+
+        /**
+         * @return the sample size times the variance of the values in the full batches over the batch size
+         * times the variance of the batch means (or NaN if there are fewer than two batches or no variation)
+         */
+        public synchronized double getESS() {
+            if (batchCount < 2) {
+                return Double.NaN;
+            }
+
+            double sum = 0.0;
+            double squareSum = 0.0;
+            for (int i = 0; i < batchCount; i++) {
+                sum += batchSums[i];
+                squareSum += batchSquareSums[i];
+            }
+            final double n = (double) batchCount * batchSize;
+            final double batchedMean = sum / n;
+            final double variance = (squareSum - n * batchedMean * batchedMean) / (n - 1);
+
+            double batchVariance = 0.0;
+            for (int i = 0; i < batchCount; i++) {
+                final double del = batchSums[i] / batchSize - batchedMean;
+                batchVariance += del * del;
+            }
+            batchVariance *= (double) batchSize / (batchCount - 1);
+
+            if (!(variance > 0.0) || !(batchVariance > 0.0)) {
+                return Double.NaN;
+            }
+            return n * variance / batchVariance;
+        }
+
+        /**
+         * @return the potential scale reduction factor of Gelman and Rubin treating the first and last halves of
+         * the full batches as two chains (or NaN if there are fewer than two batches or no variation)
+         */
+        public synchronized double getSplitRHat() {
+            final int half = batchCount / 2;
+            if (half < 1) {
+                return Double.NaN;
+            }
+            final double n = (double) half * batchSize;
+
+            double[] means = new double[2];
+            double[] variances = new double[2];
+            for (int j = 0; j < 2; j++) {
+                final int first = (j == 0 ? 0 : batchCount - half);
+                double sum = 0.0;
+                double squareSum = 0.0;
+                for (int i = first; i < first + half; i++) {
+                    sum += batchSums[i];
+                    squareSum += batchSquareSums[i];
+                }
+                means[j] = sum / n;
+                variances[j] = (squareSum - n * means[j] * means[j]) / (n - 1);
+            }
+
+            final double within = (variances[0] + variances[1]) / 2.0;
+            final double del = (means[0] - means[1]) / 2.0;
+            // n times the variance of the two means
+            final double between = n * 2.0 * del * del;
+
+            if (!(within > 0.0)) {
+                return Double.NaN;
+            }
+            final double pooled = (n - 1) / n * within + between / n;
+            return Math.sqrt(pooled / within);
+        }
+
+        private long count = 0;
+        private double shift;
+        private double mean = 0.0;
+        private double sumOfSquares = 0.0;
+
+        private final double[] batchSums = new double[MAX_BATCH_COUNT];
+        private final double[] batchSquareSums = new double[MAX_BATCH_COUNT];
+        private int batchCount = 0;
+        private long batchSize = 1;
+        private double batchSum = 0.0;
+        private double batchSquareSum = 0.0;
+        private long batchValueCount = 0;
+    }
+
+    // even so the batches can be merged in pairs
+    private static final int MAX_BATCH_COUNT = 64;
+    // the fewest batches an estimate to stop on is made from
+    private static final int MIN_BATCH_COUNT = MAX_BATCH_COUNT / 2;
+
+    private final NumberColumn[] columns;
+    private BatchMeans[] statistics;
+
+    private final long sampleEvery;
+    private final double minESS;
+    private final double maxRHat;
+    private final long reportEvery;
+
+    private boolean stopsChain = true;
+    private boolean isStopping = false;
+}
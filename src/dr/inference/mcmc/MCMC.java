@@ -32,6 +32,7 @@ import dr.inference.loggers.Loggable;
 import dr.inference.loggers.Logger;
 import dr.inference.markovchain.MarkovChain;
 import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.markovchain.MarkovChainMetrics;
 import dr.inference.model.Likelihood;
 import dr.inference.model.Model;
 import dr.inference.operators.*;
@@ -43,6 +44,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * An MCMC analysis that estimates parameters of a probabilistic model.
@@ -124,6 +127,17 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
         return loggers;
     }
 
+    /**
+     * Adds diagnostics that follow the chain while it runs (and may stop it once converged).
+     */
+    public void addConvergenceDiagnostics(ConvergenceDiagnostics diagnostics) {
+        convergenceDiagnostics.add(diagnostics);
+    }
+
+    public List<ConvergenceDiagnostics> getConvergenceDiagnostics() {
+        return convergenceDiagnostics;
+    }
+
     public MCMCOptions getOptions() {
         return options;
     }
@@ -172,6 +186,12 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
             }
 
             mc.addMarkovChainListener(chainListener);
+            for (ConvergenceDiagnostics diagnostics : convergenceDiagnostics) {
+                mc.addMarkovChainListener(diagnostics);
+            }
+
+            final MarkovChainMetrics metrics = MarkovChainMetrics.createIfRequested(schedule, mc.getLikelihood());
+            mc.setMetrics(metrics);
 
             long chainLength = getChainLength();
 
@@ -189,11 +209,22 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
                 }
             }
 
-            mc.runChain(chainLength, false);
+            // the chain may have been stopped in the adaptation period (by convergence diagnostics)
+            if (!mc.isStopped()) {
+                mc.runChain(chainLength, false);
+            }
 
             mc.terminateChain();
 
+            if (metrics != null) {
+                mc.setMetrics(null);
+                metrics.stop();
+            }
+
             mc.removeMarkovChainListener(chainListener);
+            for (ConvergenceDiagnostics diagnostics : convergenceDiagnostics) {
+                mc.removeMarkovChainListener(diagnostics);
+            }
 
         }
         timer.stop();
@@ -419,6 +450,7 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
 
     protected Logger[] loggers;
     protected OperatorSchedule schedule;
+    protected final List<ConvergenceDiagnostics> convergenceDiagnostics = new ArrayList<ConvergenceDiagnostics>();
 
     private String id = null;
 }
@@ -30,6 +30,7 @@ import dr.inference.loggers.Logger;
 import dr.inference.loggers.MCLogger;
 import dr.inference.markovchain.MarkovChain;
 import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.mcmc.ConvergenceDiagnostics;
 import dr.inference.mcmc.MCMC;
 import dr.inference.mcmc.MCMCCriterion;
 import dr.inference.mcmc.MCMCOptions;
@@ -42,8 +43,13 @@ import dr.inference.operators.OperatorSchedule;
 import dr.math.MathUtils;
 import dr.util.NumberFormatter;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Exchanger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * An MCMC analysis that estimates parameters of a probabilistic model.
@@ -89,6 +95,23 @@ public class MCMCMC implements Runnable {
             schedules[i] = mcmcs[i].getOperatorSchedule();
         }
 
+        // Each chain has diagnostics for its own copy of the model but they all add to the statistics
+        // of the first chain's, whichever is cold, and only this decides when to stop.
+        diagnostics = new ConvergenceDiagnostics[mcmcs.length][];
+        for (int i = 0; i < mcmcs.length; i++) {
+            List<ConvergenceDiagnostics> chainDiagnostics = mcmcs[i].getConvergenceDiagnostics();
+            if (chainDiagnostics.size() != mcmcs[0].getConvergenceDiagnostics().size()) {
+                throw new RuntimeException("The MCMC chains have different convergence diagnostics.");
+            }
+            diagnostics[i] = chainDiagnostics.toArray(new ConvergenceDiagnostics[chainDiagnostics.size()]);
+            for (int j = 0; j < diagnostics[i].length; j++) {
+                if (i > 0) {
+                    diagnostics[i][j].shareStatistics(diagnostics[0][j]);
+                }
+                diagnostics[i][j].setStopsChain(false);
+            }
+        }
+
         chains = new MarkovChain[mcmcs.length];
 
         chains[0] = mcmcs[0].getMarkovChain();
@@ -118,34 +141,43 @@ public class MCMCMC implements Runnable {
 //        }
 
         MCLogger[] coldChainLoggers = mcLoggers[coldChain];
-        List<LogFormatter>[] logFormatters = new List[coldChainLoggers.length];
+        logFormatters = new ArrayList<List<LogFormatter>>(coldChainLoggers.length);
 
         for (int i = 0; i < coldChainLoggers.length; i++) {
             // Start the logging for the cold chain
             coldChainLoggers[i].startLogging();
 
             // Now get the formatters (destinations) for the cold chains coldChainLoggers
-            logFormatters[i] = coldChainLoggers[i].getFormatters();
+            logFormatters.add(coldChainLoggers[i].getFormatters());
         }
 
         // Set the other chains to have null log formatters...
         for (int j = 0; j < mcLoggers.length; j++) {
             if (j != coldChain) {
                 for (int i = 0; i < mcLoggers[j].length; i++) {
-                    mcLoggers[j][i].setFormatters(Collections.EMPTY_LIST);
+                    mcLoggers[j][i].setFormatters(Collections.<LogFormatter>emptyList());
                 }
             }
         }
 
         chains[coldChain].addMarkovChainListener(chainListener);
 
+        if (mcmcmcOptions.isAsynchronous()) {
+            runAsynchronously();
+
+            finish();
+
+            timer.stop();
+            return;
+        }
+
         MCMCMCRunner[] threads = new MCMCMCRunner[chains.length];
         for (int i = 0; i < chains.length; i++) {
             threads[i] = new MCMCMCRunner(chains[i], mcmcmcOptions.getSwapChainsEvery(), getChainLength(), false);
             threads[i].start();
         }
 
-        while (chains[coldChain].getCurrentLength() < getChainLength()) {
+        while (!stopped && chains[coldChain].getCurrentLength() < getChainLength()) {
 
             // wait for all the threads to complete their alloted chain length
             boolean allDone;
@@ -164,7 +196,7 @@ public class MCMCMC implements Runnable {
                 }
             } while (!allDone);
 
-            if (chains[coldChain].getCurrentLength() < getChainLength()) {
+            if (!stopped && chains[coldChain].getCurrentLength() < getChainLength()) {
                 int oldColdChain = coldChain;
 
                 // attempt to swap two chains' temperatures
@@ -173,22 +205,7 @@ public class MCMCMC implements Runnable {
                 // if the cold chain was involved in a swap then we need to change the
                 // listener that does the logging and the destinations for the coldChainLoggers.
                 if (coldChain != oldColdChain) {
-
-                    chains[oldColdChain].removeMarkovChainListener(chainListener);
-
-                    // Set the new cold chain's loggers with the formatters (destinations) of
-                    // the original cold chain
-                    for (int i = 0; i < mcLoggers[coldChain].length; i++) {
-                        mcLoggers[coldChain][i].setFormatters(logFormatters[i]);
-                    }
-
-                    // Set the old cold chain to have null log formatters...
-                    for (int i = 0; i < mcLoggers[oldColdChain].length; i++) {
-                        mcLoggers[oldColdChain][i].setFormatters(Collections.EMPTY_LIST);
-                    }
-
-                    chains[coldChain].addMarkovChainListener(chainListener);
-
+                    moveColdChain(oldColdChain, coldChain);
                 }
 
                 for (int i = 0; i < chains.length; i++) {
@@ -198,6 +215,10 @@ public class MCMCMC implements Runnable {
 
         }
 
+        for (MCMCMCRunner thread : threads) {
+            thread.stopChain();
+        }
+
         finish();
 
         timer.stop();
@@ -268,40 +289,318 @@ public class MCMCMC implements Runnable {
             acceptor1.setTemperature(temperature2);
             acceptor2.setTemperature(temperature1);
 
-            OperatorSchedule schedule1 = schedules[index1];
-            OperatorSchedule schedule2 = schedules[index2];
+            swapOperatorTuning(schedules[index1], schedules[index2]);
+
+            if (index1 == coldChain) {
+                newColdChain = index2;
+            } else if (index2 == coldChain) {
+                newColdChain = index1;
+            }
+        }
+
+        return newColdChain;
+    }
+
+    /**
+     * Moves the logging (the listener and the destinations of the loggers) from the old cold chain
+     * to the new one.
+     */
+    private void moveColdChain(int oldColdChain, int newColdChain) {
+        chains[oldColdChain].removeMarkovChainListener(chainListener);
+
+        // Set the new cold chain's loggers with the formatters (destinations) of
+        // the original cold chain
+        for (int i = 0; i < mcLoggers[newColdChain].length; i++) {
+            mcLoggers[newColdChain][i].setFormatters(logFormatters.get(i));
+        }
+
+        // Set the old cold chain to have null log formatters...
+        for (int i = 0; i < mcLoggers[oldColdChain].length; i++) {
+            mcLoggers[oldColdChain][i].setFormatters(Collections.<LogFormatter>emptyList());
+        }
 
-            for (int i = 0; i < schedule1.getOperatorCount(); i++) {
-                MCMCOperator operator1 = schedule1.getOperator(i);
-                MCMCOperator operator2 = schedule2.getOperator(i);
+        chains[newColdChain].addMarkovChainListener(chainListener);
+    }
 
-                long tmp = operator1.getAcceptCount();
-                operator1.setAcceptCount(operator2.getAcceptCount());
-                operator2.setAcceptCount(tmp);
+    /**
+     * The tuning of the operators goes with the temperature so is swapped with it.
+     */
+    private void swapOperatorTuning(OperatorSchedule schedule1, OperatorSchedule schedule2) {
+        for (int i = 0; i < schedule1.getOperatorCount(); i++) {
+            MCMCOperator operator1 = schedule1.getOperator(i);
+            MCMCOperator operator2 = schedule2.getOperator(i);
+
+            long tmp = operator1.getAcceptCount();
+            operator1.setAcceptCount(operator2.getAcceptCount());
+            operator2.setAcceptCount(tmp);
+
+            tmp = operator1.getRejectCount();
+            operator1.setRejectCount(operator2.getRejectCount());
+            operator2.setRejectCount(tmp);
+
+            double tmp2 = operator1.getSumDeviation();
+            operator1.setSumDeviation(operator2.getSumDeviation());
+            operator2.setSumDeviation(tmp2);
+
+            if (operator1 instanceof AdaptableMCMCOperator) {
+                tmp2 = ((AdaptableMCMCOperator) operator1).getAdaptableParameter();
+                ((AdaptableMCMCOperator) operator1).setAdaptableParameter(((AdaptableMCMCOperator) operator2).getAdaptableParameter());
+                ((AdaptableMCMCOperator) operator2).setAdaptableParameter(tmp2);
+            }
+        }
+    }
 
-                tmp = operator1.getRejectCount();
-                operator1.setRejectCount(operator2.getRejectCount());
-                operator2.setRejectCount(tmp);
+    /**
+     * Runs each chain freely on its own thread. After every swapChainsEvery states a chain attempts to
+     * swap temperatures with a neighbour in the temperature ladder, alternately the one above and the one
+     * below (the pairs of ranks (0,1), (2,3)... then (1,2), (3,4)...), so a chain only ever waits for
+     * its partner rather than for the slowest of all the chains.
+     */
+    private void runAsynchronously() {
+        ladder = new TemperatureLadder(mcmcmcOptions.getChainTemperatures(), mcmcmcOptions.adaptTemperatures());
+
+        exchangers = new ArrayList<Exchanger<SwapOffer>>(chains.length - 1);
+        for (int i = 0; i < chains.length - 1; i++) {
+            exchangers.add(new Exchanger<SwapOffer>());
+        }
+        swapAttempts = new AtomicLongArray(exchangers.size());
+        swapAcceptances = new AtomicLongArray(exchangers.size());
 
-                double tmp2 = operator1.getSumDeviation();
-                operator1.setSumDeviation(operator2.getSumDeviation());
-                operator2.setSumDeviation(tmp2);
+        runners = new ChainRunner[chains.length];
+        for (int i = 0; i < chains.length; i++) {
+            runners[i] = new ChainRunner(i);
+            runners[i].start();
+        }
 
-                if (operator1 instanceof AdaptableMCMCOperator) {
-                    tmp2 = ((AdaptableMCMCOperator) operator1).getAdaptableParameter();
-                    ((AdaptableMCMCOperator) operator1).setAdaptableParameter(((AdaptableMCMCOperator) operator2).getAdaptableParameter());
-                    ((AdaptableMCMCOperator) operator2).setAdaptableParameter(tmp2);
+        for (ChainRunner runner : runners) {
+            // wait doggedly for thread to die
+            while (runner.isAlive()) {
+                try {
+                    runner.join();
+                } catch (InterruptedException ie) {
+                    // DO NOTHING
                 }
             }
+        }
 
-            if (index1 == coldChain) {
-                newColdChain = index2;
-            } else if (index2 == coldChain) {
-                newColdChain = index1;
+        if (failure != null) {
+            throw new RuntimeException("A chain failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * What a chain tells its partner when they meet to attempt a swap. The decision is made from the
+     * lower ranked chain's random number so both chains reach the same one.
+     */
+    private static class SwapOffer {
+        SwapOffer(int chain, double score, double temperature, double random) {
+            this.chain = chain;
+            this.score = score;
+            this.temperature = temperature;
+            this.random = random;
+        }
+
+        final int chain;
+        final double score;
+        final double temperature;
+        final double random;
+    }
+
+    /**
+     * Runs a chain in blocks of swapChainsEvery states, attempting a swap between each. The two chains
+     * of a pair meet at the Exchanger for their pair of ranks (only those two chains can hold those
+     * ranks until they have met, so no other chain can use it). If the swap is accepted the lower chain
+     * moves the operator tuning, and the logging if it was the cold chain, across while the upper chain
+     * waits at the exchanger for it to finish.
+     */
+    private class ChainRunner extends Thread {
+
+        ChainRunner(int chain) {
+            super("mc3-chain-" + chain);
+            this.chain = chain;
+            this.rank = chain;
+        }
+
+        public void run() {
+            final MarkovChain markovChain = chains[chain];
+            final long chainLength = getChainLength();
+            final long swapEvery = mcmcmcOptions.getSwapChainsEvery();
+
+            try {
+                int round = 0;
+                while (!stopped && markovChain.getCurrentLength() < chainLength) {
+                    long time = System.nanoTime();
+                    markovChain.runChain(Math.min(swapEvery, chainLength - markovChain.getCurrentLength()), false);
+                    runningTime += System.nanoTime() - time;
+
+                    if (stopped || markovChain.getCurrentLength() >= chainLength) {
+                        break;
+                    }
+
+                    time = System.nanoTime();
+                    attemptSwap(round);
+                    waitingTime += System.nanoTime() - time;
+                    round++;
+                }
+            } catch (Throwable t) {
+                failure = t;
+                pleaseStop();
             }
         }
 
-        return newColdChain;
+        private void attemptSwap(int round) throws InterruptedException {
+            final int pair = (rank % 2 == round % 2 ? rank : rank - 1);
+            if (pair < 0 || pair >= exchangers.size()) {
+                // no partner this time
+                return;
+            }
+            final boolean isLower = (rank == pair);
+
+            MCMCCriterion acceptor = (MCMCCriterion) chains[chain].getAcceptor();
+            SwapOffer offer = new SwapOffer(chain, chains[chain].getCurrentScore(), acceptor.getTemperature(),
+                    MathUtils.nextDouble());
+            SwapOffer other = exchange(pair, offer);
+            if (other == null) {
+                return;
+            }
+
+            SwapOffer lower = isLower ? offer : other;
+            SwapOffer upper = isLower ? other : offer;
+
+            double logRatio = ((upper.score - lower.score) * lower.temperature) + ((lower.score - upper.score) * upper.temperature);
+            boolean swap = (Math.log(lower.random) < logRatio);
+
+            if (isLower) {
+                swapAttempts.incrementAndGet(pair);
+                if (swap) {
+                    swapAcceptances.incrementAndGet(pair);
+                }
+                ladder.update(pair, swap);
+            }
+
+            if (swap) {
+                if (isLower) {
+                    swapOperatorTuning(schedules[chain], schedules[other.chain]);
+                    if (pair == 0) {
+                        moveColdChain(chain, other.chain);
+                        coldChain = other.chain;
+                    }
+                }
+                // the upper chain waits here until the lower one has finished
+                exchange(pair, offer);
+
+                rank = (isLower ? pair + 1 : pair);
+            }
+
+            acceptor.setTemperature(ladder.getTemperature(rank));
+        }
+
+        private SwapOffer exchange(int pair, SwapOffer offer) throws InterruptedException {
+            while (!stopped) {
+                try {
+                    return exchangers.get(pair).exchange(offer, 100, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException te) {
+                    // check whether the run has been stopped and try again
+                }
+            }
+            return null;
+        }
+
+        private final int chain;
+        private int rank;
+
+        private long runningTime = 0;
+        private long waitingTime = 0;
+    }
+
+    /**
+     * The chain temperatures (1/T) by rank. If adaptive, the gaps between neighbouring temperatures
+     * are adjusted with a diminishing step size so that the swap acceptance rate of each pair tends
+     * to TARGET_ACCEPTANCE. The temperatures are kept as t[r + 1] = t[r] * exp(-exp(rho[r])) so they
+     * stay in decreasing order and rank 0 stays cold.
+     */
+    private static class TemperatureLadder {
+
+        private static final double TARGET_ACCEPTANCE = 0.234;
+
+        TemperatureLadder(double[] temperatures, boolean adaptive) {
+            this.temperatures = temperatures.clone();
+            this.adaptive = adaptive;
+
+            rho = new double[temperatures.length - 1];
+            updateCounts = new int[temperatures.length - 1];
+            if (adaptive) {
+                for (int r = 0; r < rho.length; r++) {
+                    if (!(temperatures[r + 1] < temperatures[r]) || temperatures[r + 1] <= 0.0) {
+                        throw new IllegalArgumentException("Adapting the temperatures requires the hot chain temperatures to be decreasing and positive");
+                    }
+                    rho[r] = Math.log(Math.log(temperatures[r] / temperatures[r + 1]));
+                }
+            }
+        }
+
+        synchronized double getTemperature(int rank) {
+            return temperatures[rank];
+        }
+
+        synchronized double[] getTemperatures() {
+            return temperatures.clone();
+        }
+
+        synchronized void update(int pair, boolean accepted) {
+            if (!adaptive) {
+                return;
+            }
+            updateCounts[pair]++;
+            final double stepSize = Math.pow(1.0 + updateCounts[pair], -0.6);
+            rho[pair] += stepSize * ((accepted ? 1.0 : 0.0) - TARGET_ACCEPTANCE);
+            for (int r = pair; r < rho.length; r++) {
+                temperatures[r + 1] = temperatures[r] * Math.exp(-Math.exp(rho[r]));
+            }
+        }
+
+        private final double[] temperatures;
+        private final boolean adaptive;
+        private final double[] rho;
+        private final int[] updateCounts;
+    }
+
+    private void showChainPerformance() {
+        NumberFormatter formatter = new NumberFormatter(4);
+
+        System.out.println();
+        System.out.println("Chain performance");
+        System.out.println(
+                formatter.formatToFieldWidth("Chain", 8) +
+                        formatter.formatToFieldWidth("Temperature", 14) +
+                        formatter.formatToFieldWidth("States/sec", 14) +
+                        formatter.formatToFieldWidth("Waiting", 10));
+        for (int i = 0; i < runners.length; i++) {
+            ChainRunner runner = runners[i];
+            double seconds = (runner.runningTime + runner.waitingTime) / 1.0E9;
+            double statesPerSecond = seconds > 0.0 ? chains[i].getCurrentLength() / seconds : 0.0;
+            double waiting = seconds > 0.0 ? runner.waitingTime / 1.0E9 / seconds : 0.0;
+            System.out.println(
+                    formatter.formatToFieldWidth(Integer.toString(i + 1), 8) +
+                            formatter.formatToFieldWidth(formatter.format(ladder.getTemperature(runner.rank)), 14) +
+                            formatter.formatToFieldWidth(formatter.format(statesPerSecond), 14) +
+                            formatter.formatToFieldWidth(formatter.format(waiting * 100.0) + "%", 10));
+        }
+
+        System.out.println();
+        System.out.println(
+                formatter.formatToFieldWidth("Ranks", 8) +
+                        formatter.formatToFieldWidth("Swaps", 14) +
+                        formatter.formatToFieldWidth("Pr(accept)", 14));
+        for (int i = 0; i < exchangers.size(); i++) {
+            long attempts = swapAttempts.get(i);
+            double acceptance = attempts > 0 ? (double) swapAcceptances.get(i) / attempts : 0.0;
+            System.out.println(
+                    formatter.formatToFieldWidth(i + "-" + (i + 1), 8) +
+                            formatter.formatToFieldWidth(Long.toString(attempts), 14) +
+                            formatter.formatToFieldWidth(formatter.format(acceptance), 14));
+        }
+        System.out.println();
     }
 
     private void resetChains() {
@@ -324,9 +623,17 @@ public class MCMCMC implements Runnable {
             logger.stopLogging();
         }
 
+        for (ConvergenceDiagnostics chainDiagnostics : diagnostics[coldChain]) {
+            chainDiagnostics.finished(currentState, chains[coldChain]);
+        }
+
         System.out.println();
         System.out.println("Time taken: " + timer.toString());
 
+        if (runners != null) {
+            showChainPerformance();
+        }
+
         if (showOperatorAnalysis) {
             System.out.println();
             System.out.println("Operator analysis");
@@ -376,6 +683,16 @@ public class MCMCMC implements Runnable {
                 logger.log(state);
             }
 
+            boolean converged = diagnostics[coldChain].length > 0;
+            for (ConvergenceDiagnostics chainDiagnostics : diagnostics[coldChain]) {
+                chainDiagnostics.currentState(state, markovChain, currentModel);
+                converged &= chainDiagnostics.isConverged();
+            }
+            if (converged && !stopped) {
+                java.util.logging.Logger.getLogger("dr.inference").info("Stopping the chains at state " + state + ": the cold chain has converged");
+                pleaseStop();
+            }
+
         }
 
         /**
@@ -438,6 +755,7 @@ public class MCMCMC implements Runnable {
      * Requests that the MCMC chain stop prematurely.
      */
     public void pleaseStop() {
+        stopped = true;
         for (MarkovChain chain : chains) {
             chain.pleaseStop();
         }
@@ -459,6 +777,17 @@ public class MCMCMC implements Runnable {
     private final MarkovChain[] chains;
     private final MCLogger[][] mcLoggers;
     private final OperatorSchedule[] schedules;
-    private int coldChain;
+    private final ConvergenceDiagnostics[][] diagnostics;
+    private volatile int coldChain;
+    private List<List<LogFormatter>> logFormatters;
+
+    // the asynchronous mode
+    private TemperatureLadder ladder = null;
+    private List<Exchanger<SwapOffer>> exchangers = null;
+    private ChainRunner[] runners = null;
+    private AtomicLongArray swapAttempts;
+    private AtomicLongArray swapAcceptances;
+    private volatile boolean stopped = false;
+    private volatile Throwable failure = null;
 }
 
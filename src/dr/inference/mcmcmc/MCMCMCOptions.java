@@ -39,8 +39,21 @@ package dr.inference.mcmcmc;
 public class MCMCMCOptions {
 
     public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery) {
+        this(temperatures, swapChainsEvery, false, false);
+    }
+
+    /**
+     * @param asynchronous      if true then each chain runs freely on its own thread and only waits for its
+     *                          neighbour in the temperature ladder when they attempt a swap
+     * @param adaptTemperatures if true (asynchronous only) then the hot chain temperatures are adjusted
+     *                          during the run towards the target swap acceptance rate
+     */
+    public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery,
+                         final boolean asynchronous, final boolean adaptTemperatures) {
         this.temperatures = temperatures;
         this.swapChainsEvery = swapChainsEvery;
+        this.asynchronous = asynchronous;
+        this.adaptTemperatures = adaptTemperatures;
     }
 
 
@@ -52,6 +65,16 @@ public class MCMCMCOptions {
         return swapChainsEvery;
     }
 
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    public boolean adaptTemperatures() {
+        return adaptTemperatures;
+    }
+
     private final double[] temperatures;
     private final int swapChainsEvery;
+    private final boolean asynchronous;
+    private final boolean adaptTemperatures;
 }
@@ -44,7 +44,7 @@ public class MCMCMCRunner extends Thread {
 
 	public void run() {
         long i = 0;
-        while (i < totalLength) {
+        while (i < totalLength && !isStopped()) {
             markovChain.runChain(length, disableCoerce/*, 0*/);
 
             i += length;
@@ -52,7 +52,7 @@ public class MCMCMCRunner extends Thread {
 	        chainDone();
 
 	        if (i < totalLength) {
-		        while (isChainDone()) {
+		        while (isChainDone() && !isStopped()) {
 			        try {
 				        synchronized(this) {
 					        wait();
@@ -78,6 +78,18 @@ public class MCMCMCRunner extends Thread {
 	    notify();
     }
 
+    /**
+     * Ends the thread once the current run of the chain is done (for when the analysis stops early).
+     */
+    public synchronized void stopChain() {
+        this.stopped = true;
+        notify();
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
 
 	private final MarkovChain markovChain;
 	private final long length;
@@ -85,5 +97,6 @@ public class MCMCMCRunner extends Thread {
     private final boolean disableCoerce;
 
 	private boolean chainDone;
+    private boolean stopped = false;
 }
 
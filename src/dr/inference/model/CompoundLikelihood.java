@@ -26,6 +26,7 @@
 package dr.inference.model;
 
 import dr.util.Keywordable;
+import dr.util.Metric;
 import dr.util.NumberFormatter;
 import dr.xml.Reportable;
 
@@ -48,6 +49,16 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
     public final int[] evaluationCounts;
 
     public CompoundLikelihood(int threads, Collection<Likelihood> likelihoods) {
+        this(threads, likelihoods, false);
+    }
+
+    /**
+     * @param threads the number of threads (-1 for automatic, 0 for none)
+     * @param likelihoods the component likelihoods
+     * @param useWorkStealing evaluate the components with a ForkJoinLikelihoodEngine rather than
+     *                        submitting them all to an executor
+     */
+    public CompoundLikelihood(int threads, Collection<Likelihood> likelihoods, boolean useWorkStealing) {
 
         int i = 0;
         for (Likelihood l : likelihoods) {
@@ -55,6 +66,30 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
             i++;
         }
 
+        if (EVALUATION_TIMERS) {
+            evaluationTimes = new long[this.likelihoods.size()];
+            evaluationCounts = new int[this.likelihoods.size()];
+        } else {
+            evaluationTimes = null;
+            evaluationCounts = null;
+        }
+
+        if (useWorkStealing && this.likelihoods.size() > 1 && threads != 0) {
+            int[] timerIndices = new int[lateLikelihoods.size()];
+            for (int j = 0; j < timerIndices.length; j++) {
+                timerIndices[j] = this.likelihoods.indexOf(lateLikelihoods.get(j));
+            }
+            // the engine needs the timers even if they are not being reported
+            engine = new ForkJoinLikelihoodEngine(threads, lateLikelihoods,
+                    evaluationTimes != null ? evaluationTimes : new long[this.likelihoods.size()],
+                    evaluationCounts != null ? evaluationCounts : new int[this.likelihoods.size()],
+                    timerIndices);
+            threadCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+            pool = null;
+            return;
+        }
+        engine = null;
+
         if (threads < 0 && this.likelihoods.size() > 1) {
             // asking for an automatic threadpool size and there is more than one likelihood to compute
             threadCount = this.likelihoods.size();  // create a threadpool the size of the number of likelihoods
@@ -75,19 +110,12 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
             // don't use a threadpool (i.e., compute serially)
             pool = null;
         }
-
-        if (EVALUATION_TIMERS) {
-            evaluationTimes = new long[this.likelihoods.size()];
-            evaluationCounts = new int[this.likelihoods.size()];
-        } else {
-            evaluationTimes = null;
-            evaluationCounts = null;
-        }
     }
 
     public CompoundLikelihood(Collection<Likelihood> likelihoods) {
 
         pool = null;
+        engine = null;
         threadCount = 0;
 
         int i = 0;
@@ -192,15 +220,17 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
 
     public double getLogLikelihood() {
 
-        double logLikelihood = evaluateLikelihoods(earlyLikelihoods);
+        double logLikelihood = evaluateLikelihoods(earlyLikelihoods, earlyMetrics);
 
         if( logLikelihood == Double.NEGATIVE_INFINITY ) {
             return Double.NEGATIVE_INFINITY;
         }
 
-        if (pool == null) {
+        if (engine != null) {
+            logLikelihood += engine.evaluate();
+        } else if (pool == null) {
             // Single threaded
-            logLikelihood += evaluateLikelihoods(lateLikelihoods);
+            logLikelihood += evaluateLikelihoods(lateLikelihoods, lateMetrics);
         } else {
 
             try {
@@ -230,7 +260,7 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
         return logLikelihood;
     }
 
-    private double evaluateLikelihoods(ArrayList<Likelihood> likelihoods) {
+    private double evaluateLikelihoods(ArrayList<Likelihood> likelihoods, Metric[] metrics) {
         double logLikelihood = 0.0;
         int i = 0;
         for (Likelihood likelihood : likelihoods) {
@@ -238,8 +268,12 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
                 // this code is only compiled if EVALUATION_TIMERS is true
                 long time = System.nanoTime();
                 double l = likelihood.getLogLikelihood();
-                evaluationTimes[i] += System.nanoTime() - time;
+                time = System.nanoTime() - time;
+                evaluationTimes[i] += time;
                 evaluationCounts[i] ++;
+                if (metrics != null) {
+                    metrics[i].record(time);
+                }
 
                 if( l == Double.NEGATIVE_INFINITY )
                     return Double.NEGATIVE_INFINITY;
@@ -265,6 +299,9 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
         for( Likelihood likelihood : likelihoods ) {
             likelihood.makeDirty();
         }
+        if (engine != null) {
+            engine.makeDirty();
+        }
     }
 
     public boolean evaluateEarly() {
@@ -276,6 +313,58 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
     }
 
     public String getDiagnosis(int indent) {
+        final double[] values = new double[getDiagnosisSize()];
+        storeDiagnosis(values, 0);
+        return getDiagnosis(values, new int[] { 0 }, indent);
+    }
+
+    /**
+     * @return the number of values required to hold a diagnosis snapshot of this likelihood
+     */
+    public int getDiagnosisSize() {
+        int size = 1; // the total
+        for (Likelihood lik : likelihoods) {
+            if (lik instanceof CompoundLikelihood) {
+                size += ((CompoundLikelihood) lik).getDiagnosisSize();
+            } else {
+                size += 1;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Stores the component log likelihoods into a primitive snapshot so that a diagnosis string
+     * can be created later (and only if needed) using getDiagnosis(double[]).
+     *
+     * @param values the destination array (of at least getDiagnosisSize() + offset in length)
+     * @param offset the position at which to start storing
+     * @return the position following the last value stored
+     */
+    public int storeDiagnosis(double[] values, int offset) {
+        for (Likelihood lik : likelihoods) {
+            if (lik instanceof CompoundLikelihood) {
+                offset = ((CompoundLikelihood) lik).storeDiagnosis(values, offset);
+            } else {
+                values[offset] = lik.getLogLikelihood();
+                offset++;
+            }
+        }
+        values[offset] = getLogLikelihood();
+        return offset + 1;
+    }
+
+    /**
+     * Creates a diagnosis string from a snapshot previously stored with storeDiagnosis.
+     *
+     * @param values the snapshot
+     * @return the diagnosis
+     */
+    public String getDiagnosis(double[] values) {
+        return getDiagnosis(values, new int[] { 0 }, 0);
+    }
+
+    private String getDiagnosis(double[] values, int[] position, int indent) {
         String message = "";
         boolean first = true;
 
@@ -298,7 +387,7 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
             message += lik.prettyName() + "=";
 
             if( lik instanceof CompoundLikelihood ) {
-                final String d = ((CompoundLikelihood) lik).getDiagnosis(indent < 0 ? -1 : indent + 2);
+                final String d = ((CompoundLikelihood) lik).getDiagnosis(values, position, indent < 0 ? -1 : indent + 2);
                 if( d != null && d.length() > 0 ) {
                     message += "(" + d;
 
@@ -312,7 +401,8 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
                 }
             } else {
 
-                final double logLikelihood = lik.getLogLikelihood();
+                final double logLikelihood = values[position[0]];
+                position[0]++;
                 if( logLikelihood == Double.NEGATIVE_INFINITY ) {
                     message += "-Inf";
                 } else if( Double.isNaN(logLikelihood) ) {
@@ -328,7 +418,8 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
         for (int i = 0; i < indent; i++) {
             message += " ";
         }
-        message += "Total = " + this.getLogLikelihood();
+        message += "Total = " + values[position[0]];
+        position[0]++;
 
         return message;
     }
@@ -357,6 +448,10 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
     public int getThreadCount() {
         return threadCount;
     }
+
+    public boolean isUsingWorkStealing() {
+        return engine != null;
+    }
     
     public long[] getEvaluationTimes() {
     	return evaluationTimes;
@@ -366,6 +461,47 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
     	return evaluationCounts;
     }
     
+    /**
+     * Sets metrics to record the evaluation times of each of the component likelihoods (in the order
+     * of getLikelihood) which can be read while the chain runs.
+     *
+     * @param metrics the metrics or null to stop recording
+     */
+    public void setComponentMetrics(Metric[] metrics) {
+        if (metrics == null) {
+            earlyMetrics = null;
+            lateMetrics = null;
+            for (Callable<Double> caller : likelihoodCallers) {
+                ((LikelihoodCaller) caller).metric = null;
+            }
+            if (engine != null) {
+                engine.setMetrics(null);
+            }
+            return;
+        }
+
+        if (metrics.length != likelihoods.size()) {
+            throw new IllegalArgumentException("Expected a metric for each of the " + likelihoods.size() + " likelihoods");
+        }
+        Metric[] early = new Metric[earlyLikelihoods.size()];
+        for (int i = 0; i < early.length; i++) {
+            early[i] = metrics[likelihoods.indexOf(earlyLikelihoods.get(i))];
+        }
+        Metric[] late = new Metric[lateLikelihoods.size()];
+        for (int i = 0; i < late.length; i++) {
+            late[i] = metrics[likelihoods.indexOf(lateLikelihoods.get(i))];
+        }
+        for (Callable<Double> caller : likelihoodCallers) {
+            LikelihoodCaller likelihoodCaller = (LikelihoodCaller) caller;
+            likelihoodCaller.metric = metrics[likelihoods.indexOf(likelihoodCaller.likelihood)];
+        }
+        if (engine != null) {
+            engine.setMetrics(late);
+        }
+        earlyMetrics = early;
+        lateMetrics = late;
+    }
+
     public void resetEvaluationTimes() {
     	for (int i = 0; i < evaluationTimes.length; i++) {
     		evaluationTimes[i] = 0;
@@ -515,6 +651,8 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
 
     private final ExecutorService pool;
 
+    private final ForkJoinLikelihoodEngine engine;
+
     private final ArrayList<Likelihood> likelihoods = new ArrayList<Likelihood>();
     private final CompoundModel compoundModel = new CompoundModel("compoundModel");
 
@@ -523,6 +661,9 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
 
     private final List<Callable<Double>> likelihoodCallers = new ArrayList<Callable<Double>>();
 
+    private volatile Metric[] earlyMetrics = null;
+    private volatile Metric[] lateMetrics = null;
+
     class LikelihoodCaller implements Callable<Double> {
 
         public LikelihoodCaller(Likelihood likelihood, int index) {
@@ -537,8 +678,13 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
             if (EVALUATION_TIMERS) {
                 long time = System.nanoTime();
                 double logL = likelihood.getLogLikelihood();
-                evaluationTimes[index] += System.nanoTime() - time;
+                time = System.nanoTime() - time;
+                evaluationTimes[index] += time;
                 evaluationCounts[index] ++;
+                Metric metric = this.metric;
+                if (metric != null) {
+                    metric.record(time);
+                }
                 return logL;
             }
             return likelihood.getLogLikelihood();
@@ -546,6 +692,7 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
 
         private final Likelihood likelihood;
         private final int index;
+        private volatile Metric metric = null;
     }
 
     public static final boolean DEBUG_PARALLEL_EVALUATION = false;
@@ -0,0 +1,317 @@
+/*
+ * ForkJoinLikelihoodEngine.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.model;
+
+import dr.util.Metric;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Evaluates the components of a CompoundLikelihood on a work-stealing ForkJoinPool.
+ *
+ * The components that are TrackableLikelihoods are only recomputed when their models have fired a
+ * change (or restore) event since they were last evaluated; all the others are evaluated every time as
+ * their values may depend on something outside their models. Components that are cheap (by their measured mean evaluation time) are
+ * computed on the calling thread while the expensive ones are submitted to the pool in order of
+ * decreasing cost so that the longest computations start first. The results are always summed in
+ * the original order so the total is independent of the scheduling.
+ */
+public class ForkJoinLikelihoodEngine implements ModelListener {
+
+    // components with a mean evaluation time below this are computed on the calling thread
+    public static final long CHEAP_EVALUATION_NANOSECONDS = 50000;
+
+    public ForkJoinLikelihoodEngine(int threadCount, List<Likelihood> likelihoods,
+                                    long[] evaluationTimes, int[] evaluationCounts, int[] timerIndices) {
+
+        this.likelihoods = likelihoods.toArray(new Likelihood[likelihoods.size()]);
+        this.evaluationTimes = evaluationTimes;
+        this.evaluationCounts = evaluationCounts;
+        this.timerIndices = timerIndices;
+
+        int n = this.likelihoods.length;
+        logLikelihoods = new double[n];
+        dirty = new boolean[n];
+        tracked = new boolean[n];
+        dependents = new IdentityHashMap<Model, int[]>();
+
+        tasks = new EvaluationTask[n];
+        expensive = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            tasks[i] = new EvaluationTask(i);
+            dirty[i] = true;
+            tracked[i] = this.likelihoods[i] instanceof TrackableLikelihood && trackModels(i);
+        }
+
+        pool = getPool(threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The engines share one pool for each number of threads, so a model with many compound likelihoods
+     * (or many chains, as in MCMCMC) doesn't create a pool for each. The pools' worker threads are
+     * daemons, which stop of their own accord once idle, so the pools never need shutting down.
+     */
+    private static synchronized ForkJoinPool getPool(int threadCount) {
+        ForkJoinPool pool = POOLS.get(threadCount);
+        if (pool == null) {
+            pool = new ForkJoinPool(threadCount);
+            POOLS.put(threadCount, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Listens to every model in the graph below the likelihood's model. Because a model is not obliged
+     * to pass on the change events of its sub-models, listening to the top model alone is not enough.
+     * @return false if the models of the likelihood can't be followed (in which case it is always
+     * evaluated)
+     */
+    private boolean trackModels(int index) {
+        final Model model = likelihoods[index].getModel();
+        if (model == null) {
+            return false;
+        }
+
+        Set<Model> visited = new HashSet<Model>();
+        if (!collectModels(model, visited)) {
+            return false;
+        }
+
+        for (Model m : visited) {
+            int[] indices = dependents.get(m);
+            if (indices == null) {
+                indices = new int[] { index };
+                m.addModelListener(this);
+                ((AbstractModel) m).addModelRestoreListener(this);
+            } else {
+                int[] newIndices = new int[indices.length + 1];
+                System.arraycopy(indices, 0, newIndices, 0, indices.length);
+                newIndices[indices.length] = index;
+                indices = newIndices;
+            }
+            dependents.put(m, indices);
+        }
+        return true;
+    }
+
+    private boolean collectModels(Model model, Set<Model> visited) {
+        if (!(model instanceof AbstractModel)) {
+            // only AbstractModel can report restores
+            return false;
+        }
+        if (visited.add(model)) {
+            for (int i = 0; i < model.getModelCount(); i++) {
+                if (!collectModels(model.getModel(i), visited)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the sum of the log likelihoods of all the components
+     */
+    public double evaluate() {
+        final int n = likelihoods.length;
+
+        // find the dirty components that are worth sending to the pool, the rest are done here
+        int expensiveCount = 0;
+        for (int i = 0; i < n; i++) {
+            if (dirty[i] || !tracked[i]) {
+                if (getMeanEvaluationTime(i) >= CHEAP_EVALUATION_NANOSECONDS) {
+                    expensive[expensiveCount] = i;
+                    expensiveCount++;
+                }
+            }
+        }
+
+        if (expensiveCount > 1) {
+            sortByCost(expensive, expensiveCount);
+
+            // submit the most expensive first...
+            for (int j = 0; j < expensiveCount; j++) {
+                EvaluationTask task = tasks[expensive[j]];
+                task.reinitialize();
+                pool.execute(task);
+            }
+        } else {
+            // nothing to be gained from the pool
+            expensiveCount = 0;
+        }
+
+        // ...and compute the cheap ones while they run
+        for (int i = 0; i < n; i++) {
+            if ((dirty[i] || !tracked[i]) && !tasks[i].submitted) {
+                evaluate(i);
+            }
+        }
+
+        for (int j = 0; j < expensiveCount; j++) {
+            EvaluationTask task = tasks[expensive[j]];
+            task.join();
+            task.submitted = false;
+        }
+
+        // sum in a fixed order so that the result doesn't depend on the scheduling
+        double logLikelihood = 0.0;
+        for (int i = 0; i < n; i++) {
+            logLikelihood += logLikelihoods[i];
+        }
+        return logLikelihood;
+    }
+
+    /**
+     * Flags all the components for recalculation.
+     */
+    public void makeDirty() {
+        for (int i = 0; i < dirty.length; i++) {
+            dirty[i] = true;
+        }
+    }
+
+    /**
+     * @param metrics metrics to record the evaluation times of the likelihoods (in the order given to
+     *                the constructor) or null for none
+     */
+    public void setMetrics(Metric[] metrics) {
+        this.metrics = metrics;
+    }
+
+    private void evaluate(int index) {
+        long time = System.nanoTime();
+        logLikelihoods[index] = likelihoods[index].getLogLikelihood();
+        time = System.nanoTime() - time;
+        evaluationTimes[timerIndices[index]] += time;
+        Metric[] metrics = this.metrics;
+        if (metrics != null) {
+            metrics[index].record(time);
+        }
+        evaluationCounts[timerIndices[index]]++;
+        dirty[index] = false;
+    }
+
+    private long getMeanEvaluationTime(int index) {
+        int count = evaluationCounts[timerIndices[index]];
+        if (count == 0) {
+            // not timed yet so compute it on the calling thread to get a measure
+            return 0;
+        }
+        return evaluationTimes[timerIndices[index]] / count;
+    }
+
+    // insertion sort by decreasing cost - the number of components is small
+    private void sortByCost(int[] indices, int count) {
+        for (int j = 1; j < count; j++) {
+            int index = indices[j];
+            long cost = getMeanEvaluationTime(index);
+            int k = j - 1;
+            while (k >= 0 && getMeanEvaluationTime(indices[k]) < cost) {
+                indices[k + 1] = indices[k];
+                k--;
+            }
+            indices[k + 1] = index;
+        }
+    }
+
+    // **************************************************************
+    // ModelListener IMPLEMENTATION
+    // **************************************************************
+
+    public void modelChangedEvent(Model model, Object object, int index) {
+        markDirty(model);
+    }
+
+    public void modelRestored(Model model) {
+        markDirty(model);
+    }
+
+    private void markDirty(Model model) {
+        int[] indices = dependents.get(model);
+        if (indices != null) {
+            for (int i : indices) {
+                dirty[i] = true;
+            }
+        }
+    }
+
+    private class EvaluationTask extends ForkJoinTask<Void> {
+
+        EvaluationTask(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Void getRawResult() {
+            return null;
+        }
+
+        @Override
+        protected void setRawResult(Void value) {
+        }
+
+        @Override
+        protected boolean exec() {
+            evaluate(index);
+            return true;
+        }
+
+        @Override
+        public void reinitialize() {
+            super.reinitialize();
+            submitted = true;
+        }
+
+        private final int index;
+        private boolean submitted = false;
+    }
+
+    private final Likelihood[] likelihoods;
+    private final double[] logLikelihoods;
+    private final boolean[] dirty;
+    private final boolean[] tracked;
+    private final Map<Model, int[]> dependents;
+
+    private final long[] evaluationTimes;
+    private volatile Metric[] metrics = null;
+    private final int[] evaluationCounts;
+    private final int[] timerIndices;
+
+    private final EvaluationTask[] tasks;
+    private final int[] expensive;
+
+    private static final Map<Integer, ForkJoinPool> POOLS = new HashMap<Integer, ForkJoinPool>();
+
+    private final ForkJoinPool pool;
+}
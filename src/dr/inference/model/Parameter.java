@@ -621,8 +621,9 @@ public interface Parameter extends Statistic, Variable<Double> {
         //********************************************************************
 
         /**
-         * Can only be called before store is called. If it results in new
-         * dimensions, then the value of the first dimension is copied into the new dimensions.
+         * If it results in new dimensions, then the value of the first dimension is copied into the
+         * new dimensions. If called after a store then a restore puts back the old values and the
+         * old bounds.
          */
         public void setDimension(int dim) {
             final int oldDim = getDimension();
@@ -630,10 +631,7 @@ public interface Parameter extends Statistic, Variable<Double> {
                 return;
             }
 
-            assert storedValues == null :
-                    "Can't change dimension after store has been called! storedValues=" +
-                            Arrays.toString(storedValues) + " bounds=" + bounds;
-
+            storeAllValues();
 
             double[] newValues = new double[dim];
             // copy over new values, min in case new dim is smaller
@@ -653,6 +651,10 @@ public interface Parameter extends Statistic, Variable<Double> {
                 }
                 final double low = bounds.getLowerLimit(0);
                 final double high = bounds.getUpperLimit(0);
+                if (isStoring && !boundsStored) {
+                    storedBounds = bounds;
+                    boundsStored = true;
+                }
                 bounds = null;
                 addBounds(low, high);
             }
@@ -667,6 +669,8 @@ public interface Parameter extends Statistic, Variable<Double> {
             assert bounds == null;
 
             final int n = values.length;
+            storeAllValues();
+
             double[] newValues = new double[n + 1];
             System.arraycopy(values, 0, newValues, 0, index);
             newValues[index] = value;
@@ -687,6 +691,8 @@ public interface Parameter extends Statistic, Variable<Double> {
             final int n = values.length;
             final double value = values[index];
 
+            storeAllValues();
+
             final double[] newValues = new double[n - 1];
             System.arraycopy(values, 0, newValues, 0, index);
             System.arraycopy(values, index, newValues, index - 1, n - index);
@@ -697,6 +703,7 @@ public interface Parameter extends Statistic, Variable<Double> {
 
 
         public void setParameterValue(int i, double val) {
+            storeValue(i);
             values[i] = val;
             fireParameterChangedEvent(i, Parameter.ChangeType.VALUE_CHANGED);
         }
@@ -708,9 +715,21 @@ public interface Parameter extends Statistic, Variable<Double> {
          * @param value the value to set
          */
         public void setParameterValueQuietly(int dim, double value) {
+            storeValue(dim);
             values[dim] = value;
         }
 
+        /**
+         * Sets all the values of the parameter from an array without firing a changed event.
+         *
+         * @param values the array to copy the values from
+         * @param offset the position in the array of the first value
+         */
+        public void setAllParameterValuesQuietly(double[] values, int offset) {
+            storeAllValues();
+            System.arraycopy(values, offset, this.values, 0, this.values.length);
+        }
+
 
         /**
          * Sets the values of the parameter and notify that all values of the parameter have changed.
@@ -719,35 +738,60 @@ public interface Parameter extends Statistic, Variable<Double> {
          * @param val to value to set
          */
         public void setParameterValueNotifyChangedAll(int i, double val) {
+            storeValue(i);
             values[i] = val;
             fireParameterChangedEvent(-1, Parameter.ChangeType.ALL_VALUES_CHANGED);
         }
 
+        /**
+         * Nothing is copied here. Instead each dimension is copied the first time it is changed after
+         * this call (see storeValue) so a move that changes a few dimensions of a large parameter
+         * only pays for those.
+         */
         protected final void storeValues() {
             // no need to pay a price in a very common call for one-time rare usage
             //hasBeenStored = true;
             if (storedValues == null || storedValues.length != values.length) {
                 storedValues = new double[values.length];
+                isStored = new boolean[values.length];
+                storedIndices = new int[values.length];
+                storedCount = 0;
+                allStored = false;
+            } else {
+                // in case the last store was neither restored nor accepted
+                clearStoredIndices();
             }
-            System.arraycopy(values, 0, storedValues, 0, storedValues.length);
+            clearStoredBounds();
+            isStoring = true;
         }
 
         protected final void restoreValues() {
-
-            //swap the arrays
-            double[] temp = storedValues;
-            storedValues = values;
-            values = temp;
-
-            //if (storedValues != null) {
-            //	System.arraycopy(storedValues, 0, values, 0, values.length);
-            //} else throw new RuntimeException("restore called before store!");
+            if (boundsStored) {
+                // the dimension has changed since the store
+                bounds = storedBounds;
+                clearStoredBounds();
+            }
+            if (allStored) {
+                //swap the arrays (the dimension may have changed)
+                clearStoredIndices();
+                double[] temp = storedValues;
+                storedValues = values;
+                values = temp;
+            } else {
+                for (int k = 0; k < storedCount; k++) {
+                    final int i = storedIndices[k];
+                    values[i] = storedValues[i];
+                    isStored[i] = false;
+                }
+                storedCount = 0;
+            }
+            isStoring = false;
         }
 
-        /**
-         * Nothing to do
-         */
         protected final void acceptValues() {
+            clearStoredIndices();
+            clearStoredBounds();
+            isStoring = false;
         }
 
         protected final void adoptValues(Parameter source) {
@@ -757,14 +801,66 @@ public interface Parameter extends Statistic, Variable<Double> {
                 throw new RuntimeException("The two parameters don't have the same number of dimensions");
             }
 
+            storeAllValues();
             for (int i = 0, n = getDimension(); i < n; i++) {
                 values[i] = source.getParameterValue(i);
             }
         }
 
+        /**
+         * Copies the current value of a dimension, if it hasn't been already, before it is changed
+         * between a store and the following restore or accept.
+         */
+        private void storeValue(int i) {
+            if (isStoring && !allStored && !isStored[i]) {
+                storedValues[i] = values[i];
+                isStored[i] = true;
+                storedIndices[storedCount] = i;
+                storedCount++;
+            }
+        }
+
+        /**
+         * Copies all the current values (other than those already copied) before the whole array is
+         * changed or replaced.
+         */
+        private void storeAllValues() {
+            if (isStoring && !allStored) {
+                for (int i = 0; i < values.length; i++) {
+                    if (!isStored[i]) {
+                        storedValues[i] = values[i];
+                    }
+                }
+                allStored = true;
+            }
+        }
+
+        private void clearStoredIndices() {
+            for (int k = 0; k < storedCount; k++) {
+                isStored[storedIndices[k]] = false;
+            }
+            storedCount = 0;
+            allStored = false;
+        }
+
+        private void clearStoredBounds() {
+            storedBounds = null;
+            boundsStored = false;
+        }
+
         private double[] values;
 
+        // the values (of the dimensions that have changed) as they were at the last store
         private double[] storedValues;
+        private boolean[] isStored;
+        private int[] storedIndices;
+        private int storedCount = 0;
+        private boolean allStored = false;
+        private boolean isStoring = false;
+
+        // the bounds as they were at the last store, if the dimension has changed since
+        private Bounds<Double> storedBounds = null;
+        private boolean boundsStored = false;
 
         // same as !storedValues && !bounds
         //private boolean hasBeenStored = false;
@@ -0,0 +1,121 @@
+/*
+ * ParameterStoreBenchmarker.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.model;
+
+import dr.math.MathUtils;
+
+/**
+ * Times the store / change / restore-or-accept cycle that every MCMC move puts a parameter through,
+ * comparing Parameter.Default (which only copies the dimensions that are changed) with copying the
+ * whole array at each store as was done before.
+ *
+ * Usage: ParameterStoreBenchmarker [dimension [changes per move [moves]]]
+ */
+public class ParameterStoreBenchmarker {
+
+    public static void main(String[] args) {
+        int dimension = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+        int changeCount = (args.length > 1 ? Integer.parseInt(args[1]) : 1);
+        int moveCount = (args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+
+        MathUtils.setSeed(666);
+        int[] indices = new int[moveCount * changeCount];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = MathUtils.nextInt(dimension);
+        }
+
+        System.out.println("Parameter dimension: " + dimension + ", changes per move: " + changeCount +
+                ", moves: " + moveCount);
+
+        // run each twice so the second time is after the JIT has warmed up
+        for (int repeat = 0; repeat < 2; repeat++) {
+            Parameter parameter = new Parameter.Default(dimension, 1.0);
+            long startTime = System.nanoTime();
+            for (int move = 0; move < moveCount; move++) {
+                parameter.storeParameterValues();
+                for (int j = 0; j < changeCount; j++) {
+                    int index = indices[move * changeCount + j];
+                    parameter.setParameterValueQuietly(index, parameter.getParameterValue(index) + 1.0);
+                }
+                if (move % 2 == 0) {
+                    parameter.acceptParameterValues();
+                } else {
+                    parameter.restoreParameterValues();
+                }
+            }
+            double changedSeconds = (System.nanoTime() - startTime) * 1E-9;
+
+            FullCopyValues fullCopy = new FullCopyValues(dimension, 1.0);
+            startTime = System.nanoTime();
+            for (int move = 0; move < moveCount; move++) {
+                fullCopy.store();
+                for (int j = 0; j < changeCount; j++) {
+                    int index = indices[move * changeCount + j];
+                    fullCopy.values[index] += 1.0;
+                }
+                if (move % 2 != 0) {
+                    fullCopy.restore();
+                }
+            }
+            double fullCopySeconds = (System.nanoTime() - startTime) * 1E-9;
+
+            for (int i = 0; i < dimension; i++) {
+                if (parameter.getParameterValue(i) != fullCopy.values[i]) {
+                    throw new RuntimeException("Values differ at dimension " + i);
+                }
+            }
+
+            System.out.println("Changed dimensions only: " + changedSeconds + " sec");
+            System.out.println("Whole array copied:      " + fullCopySeconds + " sec");
+        }
+    }
+
+    /**
+     * The values and store / restore of Parameter.Default as they were before.
+     */
+    private static class FullCopyValues {
+        FullCopyValues(int dimension, double initialValue) {
+            values = new double[dimension];
+            for (int i = 0; i < dimension; i++) {
+                values[i] = initialValue;
+            }
+            storedValues = new double[dimension];
+        }
+
+        void store() {
+            System.arraycopy(values, 0, storedValues, 0, values.length);
+        }
+
+        void restore() {
+            double[] temp = storedValues;
+            storedValues = values;
+            values = temp;
+        }
+
+        double[] values;
+        double[] storedValues;
+    }
+}
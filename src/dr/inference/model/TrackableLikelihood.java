@@ -0,0 +1,36 @@
+/*
+ * TrackableLikelihood.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.model;
+
+/**
+ * A likelihood whose value depends on nothing but the models in the graph below its getModel(), each of
+ * which fires a change (or restore) event whenever it changes in a way that affects the value. Such a
+ * likelihood need only be recomputed after one of those events, which is what ForkJoinLikelihoodEngine
+ * relies on to skip it. A likelihood that reads anything else, such as a DistributionLikelihood whose
+ * data parameters are not part of its model, must not implement this.
+ */
+public interface TrackableLikelihood extends Likelihood {
+}
@@ -46,6 +46,7 @@ public class MultiDimensionalScalingLikelihood extends AbstractModelLikelihood i
         GradientWrtParameterProvider {
 
     private final static String REQUIRED_FLAGS_PROPERTY = "mds.required.flags";
+    private final static String PARALLEL_CORE_PROPERTY = "mds.parallel";
 
     @Override
     public String getReport() {
@@ -222,6 +223,9 @@ public class MultiDimensionalScalingLikelihood extends AbstractModelLikelihood i
             System.err.println("Attempting to use a native MDS core with flag: " + computeMode + "; may the force be with you ....");
             core = new MassivelyParallelMDSImpl();
             flags = computeMode;
+        } else if (Boolean.parseBoolean(System.getProperty(PARALLEL_CORE_PROPERTY))) {
+            System.err.println("Using a multi-threaded Java MDS core");
+            core = new ParallelMultiDimensionalScalingCoreImpl();
         } else {
             System.err.println("Computer mode found: " + computeMode + " vs. " + r);
             core = new MultiDimensionalScalingCoreImpl();
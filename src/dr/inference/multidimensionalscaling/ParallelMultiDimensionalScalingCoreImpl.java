@@ -0,0 +1,530 @@
+/*
+ * ParallelMultiDimensionalScalingCoreImpl.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.multidimensionalscaling;
+
+import dr.math.distributions.NormalDistribution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static dr.inference.multidimensionalscaling.NativeMDSSingleton.THREADS;
+
+/**
+ * A Java MDS core for large numbers of locations. The observations, locations and increments are held
+ * in flat arrays (row-major) and a full re-computation, and the gradient with respect to the locations,
+ * is divided into blocks of rows computed on a ForkJoinPool (with the number of threads given by the
+ * 'mds.threads' property or else one per processor).
+ *
+ * When only a few locations have changed since the last evaluation just the increments involving them
+ * are recomputed, with the rows they replace kept so that a restore only has to put these back.
+ * Missing (NaN) observations are left out of the sum of increments.
+ *
+ * The likelihood is the same as that of MultiDimensionalScalingCoreImpl. The sums are made over blocks
+ * of a fixed number of rows added in order so they don't depend on the number of threads.
+ */
+public class ParallelMultiDimensionalScalingCoreImpl implements MultiDimensionalScalingCore {
+
+    private static final int ROWS_PER_BLOCK = 64;
+
+    // above this proportion of the locations having changed the increments are all recomputed
+    private static final int INCREMENTAL_FRACTION = 16;
+
+    public ParallelMultiDimensionalScalingCoreImpl() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String r = System.getProperty(THREADS);
+        if (r != null) {
+            try {
+                threads = Integer.parseInt(r.trim());
+            } catch (NumberFormatException exception) {
+                throw new RuntimeException("Unable to parse '" + THREADS + "' environmental property");
+            }
+        }
+        threadCount = Math.max(1, threads);
+    }
+
+    @Override
+    public void initialize(int embeddingDimension, int locationCount, long flags) {
+        this.embeddingDimension = embeddingDimension;
+        this.locationCount = locationCount;
+
+        isLeftTruncated = (flags & MultiDimensionalScalingCore.LEFT_TRUNCATION) != 0;
+
+        observations = new double[locationCount * locationCount];
+        increments = new double[locationCount * locationCount];
+        incrementsKnown = false;
+        sumOfIncrementsKnown = false;
+
+        locations = new double[locationCount * embeddingDimension];
+        storedLocations = new double[locationCount * embeddingDimension];
+
+        incrementalLimit = Math.max(1, locationCount / INCREMENTAL_FRACTION);
+
+        isLocationUpdated = new boolean[locationCount];
+        updatedLocations = new int[incrementalLimit];
+        updatedLocationCount = 0;
+        allLocationsUpdated = true;
+
+        isRowStored = new boolean[locationCount];
+        storedRowLocations = new int[incrementalLimit];
+        storedRows = new double[incrementalLimit * locationCount];
+        storedRowCount = 0;
+        storedRowsValid = false;
+
+        int blockCount = (locationCount + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+        incrementBlocks = new ArrayList<IncrementBlock>(blockCount);
+        gradientBlocks = new ArrayList<GradientBlock>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            int start = i * ROWS_PER_BLOCK;
+            int end = Math.min(locationCount, start + ROWS_PER_BLOCK);
+            incrementBlocks.add(new IncrementBlock(start, end));
+            gradientBlocks.add(new GradientBlock(start, end));
+        }
+
+        pool = (threadCount > 1 && blockCount > 1 ? new ForkJoinPool(Math.min(threadCount, blockCount)) : null);
+    }
+
+    @Override
+    public void setPairwiseData(double[] observations) {
+        if (observations.length != (locationCount * locationCount)) {
+            throw new RuntimeException("Observation data is not the correct dimension");
+        }
+        System.arraycopy(observations, 0, this.observations, 0, observations.length);
+
+        // missing observations are left out of the likelihood
+        observationCount = 0;
+        for (int i = 0; i < locationCount; i++) {
+            for (int j = i + 1; j < locationCount; j++) {
+                if (!Double.isNaN(observations[i * locationCount + j])) {
+                    observationCount++;
+                }
+            }
+        }
+        makeDirty();
+    }
+
+    @Override
+    public double[] getPairwiseData() {
+        double[] data = new double[locationCount * locationCount];
+        System.arraycopy(observations, 0, data, 0, data.length);
+        return data;
+    }
+
+    @Override
+    public int getInternalDimension() {
+        return embeddingDimension;
+    }
+
+    @Override
+    public void setParameters(double[] parameters) {
+        precision = parameters[0];
+
+        // Handle truncations
+        if (isLeftTruncated) {
+            incrementsKnown = false;
+            sumOfIncrementsKnown = false;
+            storedRowsValid = false;
+        }
+    }
+
+    @Override
+    public void updateLocation(int locationIndex, double[] location) {
+        if (locationIndex != -1) {
+            if (location.length != embeddingDimension) {
+                throw new RuntimeException("Location is not the correct dimension");
+            }
+
+            System.arraycopy(location, 0, locations, locationIndex * embeddingDimension, embeddingDimension);
+
+            if (!isLocationUpdated[locationIndex]) {
+                if (updatedLocationCount < incrementalLimit) {
+                    isLocationUpdated[locationIndex] = true;
+                    updatedLocations[updatedLocationCount] = locationIndex;
+                    updatedLocationCount++;
+                } else {
+                    // too many locations updated - do a full re-computation
+                    allLocationsUpdated = true;
+                }
+            }
+        } else {
+            if (location.length != embeddingDimension * locationCount) {
+                throw new RuntimeException("Location is the not correct dimension");
+            }
+
+            System.arraycopy(location, 0, locations, 0, locations.length);
+            allLocationsUpdated = true;
+        }
+
+        sumOfIncrementsKnown = false;
+    }
+
+    @Override
+    public double calculateLogLikelihood() {
+        if (!sumOfIncrementsKnown) {
+
+            if (!incrementsKnown || allLocationsUpdated) {
+                computeSumOfIncrements();
+            } else {
+                updateSumOfIncrements();
+            }
+            clearUpdatedLocations();
+            sumOfIncrementsKnown = true;
+        }
+
+        double logLikelihood = 0.5 * (Math.log(precision) - Math.log(2 * Math.PI)) * observationCount;
+
+        if (isLeftTruncated) {
+            logLikelihood -= sumOfIncrements; // If truncated, then values on difference scale
+        } else {
+            logLikelihood -= 0.5 * precision * sumOfIncrements;
+        }
+
+        return logLikelihood;
+    }
+
+    @Override
+    public void storeState() {
+        // Handle residuals
+        storedSumOfIncrements = sumOfIncrements;
+        clearStoredRows();
+        storedRowsValid = incrementsKnown;
+
+        // Handle locations
+        System.arraycopy(locations, 0, storedLocations, 0, locations.length);
+
+        // Handle precision
+        storedPrecision = precision;
+    }
+
+    @Override
+    public void restoreState() {
+        // Handle residuals
+        sumOfIncrements = storedSumOfIncrements;
+        sumOfIncrementsKnown = true;
+
+        if (storedRowsValid) {
+            // put back the rows (and so the columns) in the reverse of the order they were stored as a row
+            // stored later may hold values written when an earlier one was updated
+            for (int k = storedRowCount - 1; k >= 0; k--) {
+                restoreRow(storedRowLocations[k], k * locationCount);
+            }
+            incrementsKnown = true;
+        } else {
+            incrementsKnown = false;
+        }
+        clearStoredRows();
+        clearUpdatedLocations();
+
+        // Handle locations
+        double[] tmp = storedLocations;
+        storedLocations = locations;
+        locations = tmp;
+
+        // Handle precision
+        precision = storedPrecision;
+    }
+
+    @Override
+    public void acceptState() {
+        clearStoredRows();
+    }
+
+    @Override
+    public void makeDirty() {
+        sumOfIncrementsKnown = false;
+        incrementsKnown = false;
+        storedRowsValid = false;
+    }
+
+    @Override
+    public void getGradient(double[] gradient) {
+        if (gradient.length != locations.length) {
+            throw new RuntimeException("Gradient is not the correct dimension");
+        }
+        this.gradient = gradient;
+        invokeBlocks(gradientBlocks);
+        this.gradient = null;
+    }
+
+    private void computeSumOfIncrements() {
+        sumOfIncrements = invokeBlocks(incrementBlocks) / 2;
+
+        incrementsKnown = true;
+        // the increments kept for a restore have been overwritten
+        storedRowsValid = false;
+    }
+
+    private void updateSumOfIncrements() {
+
+        final double oneOverSd = Math.sqrt(precision);
+        final double scale = 0.5 * precision;
+
+        // keep the rows before any of them are changed
+        for (int k = 0; k < updatedLocationCount; k++) {
+            storeRow(updatedLocations[k]);
+        }
+
+        double delta = 0.0;
+
+        for (int k = 0; k < updatedLocationCount; k++) {
+            final int i = updatedLocations[k];
+            final int rowOffset = i * locationCount;
+
+            for (int j = 0; j < locationCount; j++) {
+                // a pair of updated locations is done once (from the first)
+                if (j == i || (isLocationUpdated[j] && j < i)) {
+                    continue;
+                }
+
+                double increment = computeIncrement(i, j, scale, oneOverSd);
+
+                delta += increment - increments[rowOffset + j];
+                increments[rowOffset + j] = increment;
+                increments[j * locationCount + i] = increment;
+            }
+        }
+
+        sumOfIncrements += delta;
+    }
+
+    private double computeIncrement(int i, int j, double scale, double oneOverSd) {
+        double observation = observations[i * locationCount + j];
+        if (Double.isNaN(observation)) {
+            return 0.0;
+        }
+
+        double distance = calculateDistance(i, j);
+        double residual = distance - observation;
+        double increment = residual * residual;
+        if (isLeftTruncated) {
+            increment = scale * increment;
+            if (i != j) {
+                increment += computeTruncation(distance, oneOverSd);
+            }
+        }
+        return increment;
+    }
+
+    private double calculateDistance(int i, int j) {
+        final int offsetI = i * embeddingDimension;
+        final int offsetJ = j * embeddingDimension;
+        double sum = 0.0;
+        for (int k = 0; k < embeddingDimension; k++) {
+            double difference = locations[offsetI + k] - locations[offsetJ + k];
+            sum += difference * difference;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private double computeTruncation(double mean, double oneOverSd) {
+        return NormalDistribution.standardCDF(mean * oneOverSd, true); // Should be standardCDF(mean / sd, true);
+    }
+
+    private void storeRow(int i) {
+        if (!storedRowsValid || isRowStored[i]) {
+            return;
+        }
+        if (storedRowCount == incrementalLimit) {
+            // too many rows to keep - a restore will recompute them all
+            storedRowsValid = false;
+            return;
+        }
+
+        System.arraycopy(increments, i * locationCount, storedRows, storedRowCount * locationCount, locationCount);
+        storedRowLocations[storedRowCount] = i;
+        isRowStored[i] = true;
+        storedRowCount++;
+    }
+
+    private void restoreRow(int i, int storedOffset) {
+        System.arraycopy(storedRows, storedOffset, increments, i * locationCount, locationCount);
+        for (int j = 0; j < locationCount; j++) {
+            increments[j * locationCount + i] = storedRows[storedOffset + j];
+        }
+    }
+
+    private void clearStoredRows() {
+        for (int k = 0; k < storedRowCount; k++) {
+            isRowStored[storedRowLocations[k]] = false;
+        }
+        storedRowCount = 0;
+    }
+
+    private void clearUpdatedLocations() {
+        for (int k = 0; k < updatedLocationCount; k++) {
+            isLocationUpdated[updatedLocations[k]] = false;
+        }
+        updatedLocationCount = 0;
+        allLocationsUpdated = false;
+    }
+
+    private double invokeBlocks(List<? extends Callable<Double>> blocks) {
+        double total = 0.0;
+        try {
+            if (pool == null) {
+                for (Callable<Double> block : blocks) {
+                    total += block.call();
+                }
+            } else {
+                // the block totals are summed in order so the result doesn't depend on the scheduling
+                for (Future<Double> future : pool.invokeAll(blocks)) {
+                    total += future.get();
+                }
+            }
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return total;
+    }
+
+    /**
+     * Computes the increments of a range of rows (all the pairs they are in) and returns their sum.
+     */
+    private class IncrementBlock implements Callable<Double> {
+
+        IncrementBlock(int startRow, int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        public Double call() {
+            final double oneOverSd = Math.sqrt(precision);
+            final double scale = 0.5 * precision;
+
+            double sum = 0.0;
+            for (int i = startRow; i < endRow; i++) {
+                final int rowOffset = i * locationCount;
+                for (int j = 0; j < locationCount; j++) {
+                    double increment = computeIncrement(i, j, scale, oneOverSd);
+                    increments[rowOffset + j] = increment;
+                    sum += increment;
+                }
+            }
+            return sum;
+        }
+
+        private final int startRow;
+        private final int endRow;
+    }
+
+    /**
+     * Computes the gradient of the log likelihood with respect to the locations of a range of rows.
+     */
+    private class GradientBlock implements Callable<Double> {
+
+        GradientBlock(int startRow, int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        public Double call() {
+            final double oneOverSd = Math.sqrt(precision);
+            final double logSqrtTwoPi = 0.5 * Math.log(2 * Math.PI);
+
+            for (int i = startRow; i < endRow; i++) {
+                final int offsetI = i * embeddingDimension;
+                for (int k = 0; k < embeddingDimension; k++) {
+                    gradient[offsetI + k] = 0.0;
+                }
+
+                for (int j = 0; j < locationCount; j++) {
+                    double observation = observations[i * locationCount + j];
+                    if (j == i || Double.isNaN(observation)) {
+                        continue;
+                    }
+
+                    double distance = calculateDistance(i, j);
+                    if (distance == 0.0) {
+                        continue;
+                    }
+
+                    // the derivative of the increment with respect to the distance
+                    double derivative = precision * (distance - observation);
+                    if (isLeftTruncated) {
+                        double x = distance * oneOverSd;
+                        derivative += oneOverSd *
+                                Math.exp(-0.5 * x * x - logSqrtTwoPi - NormalDistribution.standardCDF(x, true));
+                    }
+
+                    final double factor = derivative / distance;
+                    final int offsetJ = j * embeddingDimension;
+                    for (int k = 0; k < embeddingDimension; k++) {
+                        gradient[offsetI + k] -= factor * (locations[offsetI + k] - locations[offsetJ + k]);
+                    }
+                }
+            }
+            return 0.0;
+        }
+
+        private final int startRow;
+        private final int endRow;
+    }
+
+    private final int threadCount;
+    private ForkJoinPool pool;
+    private List<IncrementBlock> incrementBlocks;
+    private List<GradientBlock> gradientBlocks;
+
+    private int embeddingDimension;
+    private boolean isLeftTruncated = false;
+    private int locationCount;
+    private int observationCount;
+    private double precision;
+    private double storedPrecision;
+
+    private double[] observations;
+    private double[] locations;
+    private double[] storedLocations;
+    private double[] gradient;
+
+    private boolean incrementsKnown = false;
+    private boolean sumOfIncrementsKnown = false;
+    private double[] increments;
+
+    private double sumOfIncrements;
+    private double storedSumOfIncrements;
+
+    // the locations changed since the last evaluation (if not too many)
+    private int incrementalLimit;
+    private boolean[] isLocationUpdated;
+    private int[] updatedLocations;
+    private int updatedLocationCount;
+    private boolean allLocationsUpdated;
+
+    // the rows of increments replaced since the last store
+    private boolean[] isRowStored;
+    private int[] storedRowLocations;
+    private double[] storedRows;
+    private int storedRowCount;
+    private boolean storedRowsValid;
+}
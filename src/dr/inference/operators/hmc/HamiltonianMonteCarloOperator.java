@@ -38,6 +38,7 @@ import dr.math.matrixAlgebra.ReadableVector;
 import dr.math.matrixAlgebra.WrappedVector;
 import dr.inference.operators.PathDependent;
 import dr.math.MathUtils;
+import dr.util.Metric;
 import dr.util.Transform;
 
 /**
@@ -57,6 +58,10 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
     protected final double[] mask;
     protected final Transform transform;
 
+    // the time of each trajectory and of each gradient evaluation, set while live metrics are being collected
+    private volatile Metric trajectoryMetric = null;
+    private volatile Metric gradientMetric = null;
+
     HamiltonianMonteCarloOperator(AdaptationMode mode, double weight, GradientWrtParameterProvider gradientProvider,
                                   Parameter parameter, Transform transform, Parameter mask,
                                   double stepSize, int nSteps,
@@ -140,13 +145,46 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
             preconditioning.updateMass();
         }
 
+        final Metric metric = trajectoryMetric;
+        final long startTime = (metric != null ? System.nanoTime() : 0);
+
         try {
             return leapFrog();
         } catch (NumericInstabilityException e) {
             return Double.NEGATIVE_INFINITY;
+        } finally {
+            if (metric != null) {
+                metric.record(System.nanoTime() - startTime);
+            }
         }
     }
 
+    /**
+     * Times each trajectory and each gradient evaluation within it, or stops timing them if the metrics are null.
+     */
+    public void setTrajectoryMetrics(Metric trajectoryMetric, Metric gradientMetric) {
+        this.trajectoryMetric = trajectoryMetric;
+        this.gradientMetric = gradientMetric;
+    }
+
+    Metric getTrajectoryMetric() {
+        return trajectoryMetric;
+    }
+
+    double[] getMaskedGradient() {
+
+        final Metric metric = gradientMetric;
+        if (metric == null) {
+            return mask(gradientProvider.getGradientLogDensity(), mask);
+        }
+
+        final long startTime = System.nanoTime();
+        final double[] gradient = gradientProvider.getGradientLogDensity();
+        metric.record(System.nanoTime() - startTime);
+
+        return mask(gradient, mask);
+    }
+
     @Override
     public void setPathParameter(double beta) {
         if (gradientProvider instanceof PathGradient) {
@@ -184,7 +222,7 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
                 stepSize *= runtimeOptions.checkStepSizeReductionFactor;
             }
 
-            ReadableVector.Utils.setParameter(initialPosition, parameter);  // Restore initial position
+            ReadableVector.Utils.setAllParameterValues(initialPosition, parameter);  // Restore initial position
             ++iterations;
         }
 
@@ -210,12 +248,12 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
 
                 if (transform == null) {
 
-                    ReadableVector.Utils.setParameter(argument, parameter);
+                    ReadableVector.Utils.setAllParameterValues(argument, parameter);
                     return joint.getLogLikelihood();
                 } else {
 
                     double[] untransformedValue = transform.inverse(argument, 0, argument.length);
-                    ReadableVector.Utils.setParameter(untransformedValue, parameter);
+                    ReadableVector.Utils.setAllParameterValues(untransformedValue, parameter);
                     return joint.getLogLikelihood() - transform.getLogJacobian(untransformedValue, 0, untransformedValue.length);
                 }
             }
@@ -268,7 +306,7 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
             }
         }
 
-        ReadableVector.Utils.setParameter(restoredParameterValue, parameter);
+        ReadableVector.Utils.setAllParameterValues(restoredParameterValue, parameter);
     }
 
 
@@ -361,8 +399,7 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
         final double prop = getKineticEnergy(momentum) +
                 leapFrogEngine.getParameterLogJacobian();
 
-        leapFrogEngine.updateMomentum(position, momentum.getBuffer(),
-                mask(gradientProvider.getGradientLogDensity(), mask), stepSize / 2);
+        leapFrogEngine.updateMomentum(position, momentum.getBuffer(), getMaskedGradient(), stepSize / 2);
 
 
         int nStepsThisLeap = getNumberOfSteps();
@@ -372,13 +409,11 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
             leapFrogEngine.updatePosition(position, momentum, stepSize);
 
             if (i < (nStepsThisLeap - 1)) {
-                leapFrogEngine.updateMomentum(position, momentum.getBuffer(),
-                        mask(gradientProvider.getGradientLogDensity(), mask), stepSize);
+                leapFrogEngine.updateMomentum(position, momentum.getBuffer(), getMaskedGradient(), stepSize);
             }
         }
 
-        leapFrogEngine.updateMomentum(position, momentum.getBuffer(),
-                mask(gradientProvider.getGradientLogDensity(), mask), stepSize / 2);
+        leapFrogEngine.updateMomentum(position, momentum.getBuffer(), getMaskedGradient(), stepSize / 2);
 
         final double res = getKineticEnergy(momentum) +
                 leapFrogEngine.getParameterLogJacobian();
@@ -437,9 +472,10 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
     public void accept(double deviation) {
 
         super.accept(deviation);
+        // the secant is kept, so it is given a copy of the position array that the engine reuses
         preconditioning.storeSecant(
                 new WrappedVector.Raw(leapFrogEngine.getLastGradient()),
-                new WrappedVector.Raw(leapFrogEngine.getLastPosition())
+                new WrappedVector.Raw(leapFrogEngine.getLastPosition().clone())
         );
     }
 
@@ -458,6 +494,9 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
 
     interface LeapFrogEngine {
 
+        /**
+         * @return the current position, in an array that may be overwritten by the next call
+         */
         double[] getInitialPosition();
 
         double getParameterLogJacobian();
@@ -488,6 +527,9 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
             double[] lastGradient;
             double[] lastPosition;
 
+            // the position is read into the same array at the start of every trajectory
+            private double[] initialPosition;
+
             protected Default(Parameter parameter, InstabilityHandler instabilityHandler,
                               MassPreconditioner preconditioning,
                               double[] mask) {
@@ -495,11 +537,19 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
                 this.instabilityHandler = instabilityHandler;
                 this.preconditioning = preconditioning;
                 this.mask = mask;
+                this.initialPosition = new double[parameter.getDimension()];
             }
 
             @Override
             public double[] getInitialPosition() {
-                return parameter.getParameterValues();
+                final int dim = parameter.getDimension();
+                if (initialPosition.length != dim) {
+                    initialPosition = new double[dim];
+                }
+                for (int i = 0; i < dim; ++i) {
+                    initialPosition[i] = parameter.getParameterValue(i);
+                }
+                return initialPosition;
             }
 
             @Override
@@ -543,7 +593,7 @@ public class HamiltonianMonteCarloOperator extends AbstractAdaptableOperator
             }
 
             public void setParameter(double[] position) {
-                ReadableVector.Utils.setParameter(position, parameter); // May not work with MaskedParameter?
+                ReadableVector.Utils.setAllParameterValues(position, parameter); // May not work with MaskedParameter?
             }
         }
 
@@ -33,6 +33,7 @@ import dr.inference.operators.GeneralOperator;
 import dr.inference.operators.GibbsOperator;
 import dr.math.MathUtils;
 import dr.math.matrixAlgebra.WrappedVector;
+import dr.util.Metric;
 import dr.util.Transform;
 
 import java.util.Arrays;
@@ -77,7 +78,11 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
     @Override
     public double doOperation(Likelihood likelihood) {
 
-        final double[] initialPosition = leapFrogEngine.getInitialPosition();
+        final Metric metric = getTrajectoryMetric();
+        final long startTime = (metric != null ? System.nanoTime() : 0);
+
+        // copied as the engine reads the position into the same array each time
+        final double[] initialPosition = Arrays.copyOf(leapFrogEngine.getInitialPosition(), dim);
         final double initialLogLikelihood = gradientProvider.getLikelihood().getLogLikelihood();
 
         if (stepSizeInformation == null) {
@@ -91,6 +96,10 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
         double[] position = takeOneStep(getCount() + 1, initialPosition);
         leapFrogEngine.setParameter(position);
 
+        if (metric != null) {
+            metric.record(System.nanoTime() - startTime);
+        }
+
         return 0.0;
     }
 
@@ -219,11 +228,9 @@ public class NoUTurnOperator extends HamiltonianMonteCarloOperator implements Ge
     private void doLeap(final double[] position,
                         final WrappedVector momentum,
                         final double stepSize) throws NumericInstabilityException {
-        leapFrogEngine.updateMomentum(position, momentum.getBuffer(),
-                mask(gradientProvider.getGradientLogDensity(), mask), stepSize / 2);
+        leapFrogEngine.updateMomentum(position, momentum.getBuffer(), getMaskedGradient(), stepSize / 2);
         leapFrogEngine.updatePosition(position, momentum, stepSize);
-        leapFrogEngine.updateMomentum(position, momentum.getBuffer(),
-                mask(gradientProvider.getGradientLogDensity(), mask), stepSize / 2);
+        leapFrogEngine.updateMomentum(position, momentum.getBuffer(), getMaskedGradient(), stepSize / 2);
     }
 
     private StepSize findReasonableStepSize(double[] initialPosition) {
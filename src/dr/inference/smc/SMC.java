@@ -34,11 +34,10 @@ import dr.inference.mcmc.MCMCCriterion;
 import dr.inference.mcmc.MCMCOptions;
 import dr.inference.model.Likelihood;
 import dr.inference.model.Model;
+import dr.inference.model.Parameter;
 import dr.inference.operators.*;
-import dr.inference.state.Factory;
-import dr.inference.state.StateLoader;
-import dr.inference.state.StateLoaderSaver;
-import dr.inference.state.StateSaver;
+import dr.inference.state.*;
+import dr.math.MathUtils;
 import dr.util.Identifiable;
 import dr.util.NumberFormatter;
 import dr.xml.Spawnable;
@@ -49,11 +48,19 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class that runs short MCMC chains for each of a set of particles as
  * part of a sequential Monte Carlo (SMC) sampler.
  *
+ * The particles are all loaded into memory first. Each is weighted by the ratio of its posterior
+ * under this model to the one it was saved with and, if the effective sample size of the weights
+ * falls below the resampling threshold, the particles are resampled. The chains are then run and
+ * the particles saved. If additional chains (with their own copies of the model) have been added
+ * then the particles are run on these in parallel, in which case they share the random number
+ * generator and the run cannot be reproduced.
+ *
  * @author Andrew Rambaut
  * @version $Id:$
  */
@@ -108,6 +115,18 @@ public class SMC implements Identifiable, Spawnable, Loggable {
         return loggers;
     }
 
+    /**
+     * Adds a chain with its own copy of the model (made by parsing the XML again) to run particles
+     * on in parallel with this one.
+     *
+     * @param markovChain the chain
+     * @param parameters  the parameters of its model
+     * @param models      its models
+     */
+    public void addParticleChain(MarkovChain markovChain, List<Parameter> parameters, List<Model> models) {
+        additionalChains.add(new ParticleChain(markovChain, Factory.INSTANCE.getStateCopier(parameters, models)));
+    }
+
     public OperatorSchedule getOperatorSchedule() {
         return schedule;
     }
@@ -133,17 +152,62 @@ public class SMC implements Identifiable, Spawnable, Loggable {
 
         mc.addMarkovChainListener(chainListener);
 
-        for (StateLoaderSaver particleState : particleStates) {
-            // Don't need the savedLnL - it won't be there
-            particleState.loadState(mc, new double[1]);
+        final List<ParticleChain> particleChains = new ArrayList<ParticleChain>();
+        particleChains.add(new ParticleChain(mc, Factory.INSTANCE.getStateCopier(null, null)));
+        particleChains.addAll(additionalChains);
+
+        final int particleCount = particleStates.size();
+        final SavedState[] particles = new SavedState[particleCount];
+        final double[] logWeights = new double[particleCount];
+
+        // load all the particles into memory, weighting them by the change in their posterior
+        StateCopier copier = particleChains.get(0).copier;
+        for (int i = 0; i < particleCount; i++) {
+            double[] savedLnL = new double[1];
+            particleStates.get(i).loadState(mc, savedLnL);
 
-            // reset the current chain length to 0
-            mc.setCurrentLength(0);
+            mc.getLikelihood().makeDirty();
+            double lnL = mc.evaluate();
+            particles[i] = copier.saveState(mc, 0, lnL);
+            logWeights[i] = lnL - savedLnL[0];
+        }
 
-            mc.runChain(options.getChainLength(), true);
+        boolean resampled = false;
+        if (options.getResampleThreshold() > 0.0) {
+            double ess = getEffectiveSampleSize(logWeights);
+            java.util.logging.Logger.getLogger("dr.inference").info("Particle ESS = " + formatter.format(ess) +
+                    " of " + particleCount);
+            if (ess < options.getResampleThreshold() * particleCount) {
+                resample(particles, logWeights);
+                resampled = true;
+            }
+        }
 
-            // Save state to file...
-            particleState.saveState(mc, mc.getCurrentLength(), mc.getCurrentScore());
+        if (particleChains.size() == 1) {
+            // Each particle is run from the random number state it was saved with (unless some are
+            // copies of others) and saved as soon as it finishes, while the generator still holds
+            // the state that particle has reached.
+            for (int i = 0; i < particleCount; i++) {
+                copier.loadState(mc, particles[i]);
+                if (!resampled && particles[i].getRngState() != null) {
+                    MathUtils.setRandomState(particles[i].getRngState());
+                }
+                runParticle(mc);
+                saveParticle(i, mc.getCurrentLength(), mc.getCurrentScore(), logWeights, resampled);
+            }
+        } else {
+            // The chains share the random number generator so a particle run in parallel has no
+            // random number state of its own: they are neither restored nor saved per particle and
+            // the run is not reproducible. Each particle is saved with the state of the generator
+            // after one draw so that particles run later on a single chain do not all start from
+            // the same state.
+            runParticles(particleChains, particles);
+
+            for (int i = 0; i < particleCount; i++) {
+                copier.loadState(mc, particles[i]);
+                MathUtils.nextInt();
+                saveParticle(i, particles[i].getState(), particles[i].getLnL(), logWeights, resampled);
+            }
         }
 
         mc.terminateChain();
@@ -153,6 +217,149 @@ public class SMC implements Identifiable, Spawnable, Loggable {
         timer.stop();
     }
 
+    /**
+     * Saves a particle, loaded into the first chain, to its file. Any weight that the particle still
+     * carries is taken off the saved posterior so it is included in the weight at the next step.
+     */
+    private void saveParticle(int i, long state, double lnL, double[] logWeights, boolean resampled) {
+        if (options.getResampleThreshold() > 0.0 && !resampled) {
+            lnL -= logWeights[i];
+        }
+        particleStates.get(i).saveState(mc, state, lnL);
+    }
+
+    private void runParticle(MarkovChain markovChain) {
+        // reset the current chain length to 0
+        markovChain.setCurrentLength(0);
+
+        markovChain.runChain(options.getChainLength(), true);
+    }
+
+    /**
+     * Runs each of the particles on the chains, one thread per chain.
+     */
+    private void runParticles(final List<ParticleChain> particleChains, final SavedState[] particles) {
+        final AtomicInteger nextParticle = new AtomicInteger(0);
+        final Throwable[] failure = new Throwable[1];
+
+        Thread[] threads = new Thread[particleChains.size()];
+        for (int k = 0; k < threads.length; k++) {
+            final ParticleChain particleChain = particleChains.get(k);
+            threads[k] = new Thread(new Runnable() {
+                public void run() {
+                    MarkovChain markovChain = particleChain.markovChain;
+                    try {
+                        int i;
+                        while ((i = nextParticle.getAndIncrement()) < particles.length && failure[0] == null) {
+                            particleChain.copier.loadState(markovChain, particles[i]);
+
+                            runParticle(markovChain);
+
+                            particles[i] = particleChain.copier.saveState(markovChain,
+                                    markovChain.getCurrentLength(), markovChain.getCurrentScore());
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failure) {
+                            if (failure[0] == null) {
+                                failure[0] = t;
+                            }
+                        }
+                    }
+                }
+            }, "smc-chain-" + k);
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            // wait doggedly for thread to die
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ie) {
+                    // DO NOTHING
+                }
+            }
+        }
+
+        if (failure[0] instanceof RuntimeException) {
+            throw (RuntimeException) failure[0];
+        } else if (failure[0] != null) {
+            throw new RuntimeException(failure[0].getMessage(), failure[0]);
+        }
+    }
+
+    /**
+     * @return the effective sample size, (sum w)^2 / sum w^2, of the weights
+     */
+    static double getEffectiveSampleSize(double[] logWeights) {
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (double logWeight : logWeights) {
+            maxLogWeight = Math.max(maxLogWeight, logWeight);
+        }
+        if (Double.isInfinite(maxLogWeight)) {
+            return 0.0;
+        }
+
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        for (double logWeight : logWeights) {
+            double weight = Math.exp(logWeight - maxLogWeight);
+            sum += weight;
+            sumOfSquares += weight * weight;
+        }
+        return sum * sum / sumOfSquares;
+    }
+
+    /**
+     * Systematic resampling of the particles in proportion to their weights, which are then reset to
+     * be equal.
+     */
+    static void resample(SavedState[] particles, double[] logWeights) {
+        int n = particles.length;
+
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (double logWeight : logWeights) {
+            maxLogWeight = Math.max(maxLogWeight, logWeight);
+        }
+        double[] cumulative = new double[n];
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            sum += Math.exp(logWeights[i] - maxLogWeight);
+            cumulative[i] = sum;
+        }
+
+        SavedState[] resampled = new SavedState[n];
+        double u = MathUtils.nextDouble() / n;
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            double target = (u + ((double) i) / n) * sum;
+            while (j < n - 1 && cumulative[j] < target) {
+                j++;
+            }
+            resampled[i] = particles[j];
+        }
+
+        System.arraycopy(resampled, 0, particles, 0, n);
+        for (int i = 0; i < n; i++) {
+            logWeights[i] = 0.0;
+        }
+    }
+
+    /**
+     * A chain with its own copy of the model and the means to copy particles in and out of it.
+     */
+    private static class ParticleChain {
+        ParticleChain(MarkovChain markovChain, StateCopier copier) {
+            this.markovChain = markovChain;
+            this.copier = copier;
+        }
+
+        final MarkovChain markovChain;
+        final StateCopier copier;
+    }
+
     @Override
     public LogColumn[] getColumns() {
         return new LogColumn[] { new LogColumn() {
@@ -288,6 +495,7 @@ public class SMC implements Identifiable, Spawnable, Loggable {
     private SMCOptions options;
 
     private final List<StateLoaderSaver> particleStates = new ArrayList<StateLoaderSaver>();
+    private final List<ParticleChain> additionalChains = new ArrayList<ParticleChain>();
     private Logger[] loggers;
     private OperatorSchedule schedule;
 
@@ -34,13 +34,25 @@ package dr.inference.smc;
 public class SMCOptions {
 
     private final long chainLength;
+    private final double resampleThreshold;
 
     /**
      * constructor
      * @param chainLength
      */
     public SMCOptions(long chainLength) {
+        this(chainLength, 0.0);
+    }
+
+    /**
+     * constructor
+     * @param chainLength
+     * @param resampleThreshold the particles are resampled if their effective sample size falls below
+     *                          this proportion of their number (0 to never resample)
+     */
+    public SMCOptions(long chainLength, double resampleThreshold) {
         this.chainLength = chainLength;
+        this.resampleThreshold = resampleThreshold;
     }
 
     /**
@@ -49,4 +61,12 @@ public class SMCOptions {
     public final long getChainLength() {
         return chainLength;
     }
+
+    /**
+     * @return the proportion of the number of particles below which their effective sample size
+     * triggers resampling
+     */
+    public final double getResampleThreshold() {
+        return resampleThreshold;
+    }
 }
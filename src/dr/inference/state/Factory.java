@@ -26,8 +26,11 @@
 package dr.inference.state;
 
 import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
 
 import java.io.File;
+import java.util.List;
 
 public abstract class Factory {
 
@@ -51,6 +54,15 @@ public abstract class Factory {
      */
     public abstract StateLoaderSaver getStateLoaderSaver(File loadFile, File saveFile);
 
+    /**
+     * Get an instance of StateCopier for a chain whose model is made up of the given parameters and
+     * models (such as one of several copies of the model made by parsing the XML again).
+     * @param parameters the parameters of the model or null for all the connected parameters
+     * @param models the models or null for all the connected models
+     * @return the StateCopier
+     */
+    public abstract StateCopier getStateCopier(List<Parameter> parameters, List<Model> models);
+
     // Set this to a concrete instance to provide these classes to the MarkovChain
     public static Factory INSTANCE;
 }
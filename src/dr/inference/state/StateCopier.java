@@ -0,0 +1,43 @@
+/*
+ * StateCopier.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.state;
+
+import dr.inference.markovchain.MarkovChain;
+
+/**
+ * Copies the state of a chain (the parameters, trees and operator tuning) to and from memory, for
+ * example to keep many particles without writing each of them to a file between steps.
+ */
+public interface StateCopier {
+
+    SavedState saveState(MarkovChain markovChain, long state, double lnL);
+
+    /**
+     * Sets the chain's model and operators to the saved state. The random number generator is left
+     * as it is.
+     */
+    void loadState(MarkovChain markovChain, SavedState savedState);
+}
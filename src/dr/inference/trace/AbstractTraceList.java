@@ -25,7 +25,9 @@
 
 package dr.inference.trace;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * @author Alexei Drummond
@@ -63,6 +65,62 @@ public abstract class AbstractTraceList extends FilteredTraceList {
 //        System.out.println("index = " + index + " :  " + trace.getName() + "     " + trace.getTraceType());
     }
 
+    /**
+     * Analyses every trace that has no statistics yet (they are kept until the burn-in or filters change), with a
+     * thread for each processor.
+     */
+    public void analyseTraces() {
+        List<Callable<Object>> analyses = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < getTraceCount(); i++) {
+            if (getTrace(i).getTraceStatistics() == null) {
+                final int index = i;
+                analyses.add(new Callable<Object>() {
+                    public Object call() {
+                        analyseTrace(index);
+                        return null;
+                    }
+                });
+            }
+        }
+
+        int threadCount = Math.min(Runtime.getRuntime().availableProcessors(), analyses.size());
+        if (threadCount <= 1) {
+            for (Callable<Object> analysis : analyses) {
+                try {
+                    analysis.call();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (Future<Object> future : pool.invokeAll(analyses)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    protected void refreshStatistics() {
+        updateFlag();
+        // must update filtered[] before analyseTrace
+        for (int i = 0; i < getTraceCount(); i++) {
+            getTrace(i).setTraceStatistics(null);
+        }
+        analyseTraces();
+    }
+
 //    abstract Trace getTrace(int index);
 
 //    private TraceCorrelation[] traceStatistics = null;
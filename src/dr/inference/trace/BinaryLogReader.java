@@ -0,0 +1,388 @@
+/*
+ * BinaryLogReader.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+import dr.inference.loggers.BinaryLogFormatter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a log written by BinaryLogFormatter. Each block of the file is memory mapped and only the
+ * column chunks that are asked for are decompressed. An incomplete final block is ignored.
+ */
+public class BinaryLogReader {
+
+    /**
+     * @return true if the file starts with the binary log magic number
+     */
+    public static boolean isBinaryLog(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] magic = new byte[BinaryLogFormatter.MAGIC.length];
+            in.readFully(magic);
+            return Arrays.equals(magic, BinaryLogFormatter.MAGIC);
+        } catch (EOFException eofe) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    public BinaryLogReader(File file) throws IOException, TraceException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel channel = randomAccessFile.getChannel();
+
+        try {
+            long size = channel.size();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int headerLength;
+            try {
+                byte[] magic = new byte[BinaryLogFormatter.MAGIC.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, BinaryLogFormatter.MAGIC)) {
+                    throw new TraceException("Not a binary log file.");
+                }
+                int version = in.readInt();
+                if (version != BinaryLogFormatter.VERSION) {
+                    throw new TraceException("Unsupported binary log version: " + version);
+                }
+                headerLength = in.readInt();
+
+                headings = new String[in.readInt()];
+                for (int i = 0; i < headings.length; i++) {
+                    headings[i] = in.readUTF();
+                }
+                labels = new String[in.readInt()];
+                for (int i = 0; i < labels.length; i++) {
+                    labels[i] = in.readUTF();
+                }
+            } catch (EOFException eofe) {
+                throw new TraceException("Binary log file is incomplete.");
+            } finally {
+                in.close();
+            }
+
+            // find the complete blocks and the position of each column chunk within them
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+            long position = BinaryLogFormatter.MAGIC.length + 8 + headerLength;
+            while (position + 4 <= size) {
+                lengthBuffer.clear();
+                channel.read(lengthBuffer, position);
+                lengthBuffer.flip();
+                int length = lengthBuffer.getInt();
+                if (length <= 0 || position + 4 + length > size) {
+                    // an interrupted write
+                    break;
+                }
+                blocks.add(new Block(channel.map(FileChannel.MapMode.READ_ONLY, position + 4, length)));
+                position += 4 + length;
+            }
+        } finally {
+            channel.close();
+            randomAccessFile.close();
+        }
+
+        for (Block block : blocks) {
+            rowCount += block.rowCount;
+        }
+    }
+
+    public String[] getHeadings() {
+        return headings;
+    }
+
+    /**
+     * @return the column labels (not including the state)
+     */
+    public String[] getLabels() {
+        return labels;
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public long[] getStates() {
+        long[] states = new long[rowCount];
+        int offset = 0;
+        for (Block block : blocks) {
+            System.arraycopy(block.states, 0, states, offset, block.rowCount);
+            offset += block.rowCount;
+        }
+        return states;
+    }
+
+    /**
+     * @return INTEGER if every value in the column was an integer, REAL if they were all numbers and
+     * CATEGORICAL otherwise
+     */
+    public TraceType getTraceType(int column) {
+        byte encoding = BinaryLogFormatter.INTEGER_COLUMN;
+        for (Block block : blocks) {
+            encoding = (byte) Math.max(encoding, block.encodings[column]);
+        }
+        switch (encoding) {
+            case BinaryLogFormatter.INTEGER_COLUMN:
+                return TraceType.INTEGER;
+            case BinaryLogFormatter.REAL_COLUMN:
+                return TraceType.REAL;
+            default:
+                return TraceType.CATEGORICAL;
+        }
+    }
+
+    /**
+     * @return the values of a numerical column
+     */
+    public double[] getValues(int column) throws TraceException {
+        double[] values = new double[rowCount];
+        int offset = 0;
+        for (Block block : blocks) {
+            Chunk chunk = block.readChunk(column);
+            if (chunk.numbers == null) {
+                throw new TraceException("Column " + labels[column] + " is not numerical.");
+            }
+            System.arraycopy(chunk.numbers, 0, values, offset, block.rowCount);
+            offset += block.rowCount;
+        }
+        return values;
+    }
+
+    /**
+     * @return the values of any column as they would appear in a tab-delimited log
+     */
+    public String[] getStringValues(int column) throws TraceException {
+        String[] values = new String[rowCount];
+        int offset = 0;
+        for (Block block : blocks) {
+            Chunk chunk = block.readChunk(column);
+            for (int j = 0; j < block.rowCount; j++) {
+                values[offset + j] = chunk.getString(j);
+            }
+            offset += block.rowCount;
+        }
+        return values;
+    }
+
+    /**
+     * @return a reader giving the log in the tab-delimited text format, decoding one block at a time
+     */
+    public Reader getTextReader() {
+        return new TextReader();
+    }
+
+    private class TextReader extends Reader {
+
+        TextReader() {
+            StringBuilder builder = new StringBuilder();
+            for (String heading : headings) {
+                for (String line : heading.split("[\r\n]")) {
+                    builder.append("# ").append(line).append('\n');
+                }
+            }
+            builder.append("state");
+            for (String label : labels) {
+                builder.append('\t').append(label);
+            }
+            builder.append('\n');
+            text = builder.toString();
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            while (position == text.length()) {
+                if (nextBlock == blocks.size()) {
+                    return -1;
+                }
+                try {
+                    text = formatBlock(blocks.get(nextBlock));
+                } catch (TraceException te) {
+                    throw new IOException(te.getMessage());
+                }
+                nextBlock++;
+                position = 0;
+            }
+            int count = Math.min(length, text.length() - position);
+            text.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        private String formatBlock(Block block) throws TraceException {
+            Chunk[] chunks = new Chunk[labels.length];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = block.readChunk(i);
+            }
+            StringBuilder builder = new StringBuilder();
+            for (int j = 0; j < block.rowCount; j++) {
+                builder.append(block.states[j]);
+                for (Chunk chunk : chunks) {
+                    builder.append('\t').append(chunk.getString(j));
+                }
+                builder.append('\n');
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public void close() {
+            // nothing to close - the blocks are mapped
+        }
+
+        private String text;
+        private int position = 0;
+        private int nextBlock = 0;
+    }
+
+    private class Block {
+
+        Block(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+
+            rowCount = buffer.getInt(0);
+            states = new long[rowCount];
+            int position = 4;
+            for (int j = 0; j < rowCount; j++) {
+                states[j] = buffer.getLong(position);
+                position += 8;
+            }
+
+            offsets = new int[labels.length];
+            encodings = new byte[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                offsets[i] = position;
+                encodings[i] = buffer.get(position);
+                int compressedLength = buffer.getInt(position + 5);
+                position += 9 + compressedLength;
+            }
+        }
+
+        Chunk readChunk(int column) throws TraceException {
+            int position = offsets[column];
+            byte encoding = buffer.get(position);
+            int rawLength = buffer.getInt(position + 1);
+            int compressedLength = buffer.getInt(position + 5);
+
+            byte[] compressed = new byte[compressedLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + 9);
+            view.get(compressed);
+
+            byte[] raw = new byte[rawLength];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                int length = 0;
+                while (length < rawLength && !inflater.finished()) {
+                    length += inflater.inflate(raw, length, rawLength - length);
+                }
+            } catch (DataFormatException dfe) {
+                throw new TraceException("Binary log file is corrupt: " + dfe.getMessage());
+            } finally {
+                inflater.end();
+            }
+
+            return new Chunk(encoding, raw, rowCount);
+        }
+
+        private final MappedByteBuffer buffer;
+        private final int rowCount;
+        private final long[] states;
+        private final int[] offsets;
+        private final byte[] encodings;
+    }
+
+    private static class Chunk {
+
+        Chunk(byte encoding, byte[] raw, int rowCount) throws TraceException {
+            this.encoding = encoding;
+            ByteBuffer buffer = ByteBuffer.wrap(raw);
+            if (encoding == BinaryLogFormatter.INTEGER_COLUMN) {
+                numbers = new double[rowCount];
+                for (int j = 0; j < rowCount; j++) {
+                    numbers[j] = buffer.getInt();
+                }
+                categoryLabels = null;
+                categories = null;
+            } else if (encoding == BinaryLogFormatter.REAL_COLUMN) {
+                numbers = new double[rowCount];
+                for (int j = 0; j < rowCount; j++) {
+                    numbers[j] = buffer.getDouble();
+                }
+                categoryLabels = null;
+                categories = null;
+            } else {
+                numbers = null;
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+                try {
+                    categoryLabels = new String[in.readInt()];
+                    for (int k = 0; k < categoryLabels.length; k++) {
+                        categoryLabels[k] = in.readUTF();
+                    }
+                    categories = new int[rowCount];
+                    for (int j = 0; j < rowCount; j++) {
+                        categories[j] = in.readInt();
+                    }
+                } catch (IOException ioe) {
+                    throw new TraceException("Binary log file is corrupt: " + ioe.getMessage());
+                }
+            }
+        }
+
+        String getString(int row) {
+            if (encoding == BinaryLogFormatter.INTEGER_COLUMN) {
+                return Integer.toString((int) numbers[row]);
+            } else if (encoding == BinaryLogFormatter.REAL_COLUMN) {
+                return Double.toString(numbers[row]);
+            } else {
+                return categoryLabels[categories[row]];
+            }
+        }
+
+        private final byte encoding;
+        private final double[] numbers;
+        private final String[] categoryLabels;
+        private final int[] categories;
+    }
+
+    private final String[] headings;
+    private final String[] labels;
+    private final List<Block> blocks = new ArrayList<Block>();
+    private int rowCount = 0;
+}
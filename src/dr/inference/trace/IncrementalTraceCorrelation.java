@@ -0,0 +1,175 @@
+/*
+ * IncrementalTraceCorrelation.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+/**
+ * The autocorrelation time, ESS and standard error of the mean of a numeric trace whose values arrive one at a
+ * time, for example as they are logged during a run. Adding a value costs O(maxLag) and the statistics are worked
+ * out from running sums in O(maxLag) when asked for (and then cached until the next value), so they can be
+ * followed as a chain runs without keeping or rescanning the values.
+ *
+ * The autocovariances are the same as those TraceCorrelation computes from all the values (up to rounding) and
+ * are summed with the same stopping criterion.
+ */
+public class IncrementalTraceCorrelation {
+
+    public IncrementalTraceCorrelation(long stepSize) {
+        this(stepSize, TraceCorrelation.MAX_LAG);
+    }
+
+    /**
+     * @param stepSize the number of states between values
+     * @param maxLag   the largest number of lags summed
+     */
+    public IncrementalTraceCorrelation(long stepSize, int maxLag) {
+        this.stepSize = stepSize;
+        this.maxLag = maxLag;
+        firstValues = new double[maxLag];
+        recentValues = new double[maxLag];
+        lagSums = new double[maxLag];
+    }
+
+    public void add(double value) {
+        if (count == 0) {
+            // the values are shifted by the first so the sums of products don't lose precision
+            shift = value;
+        }
+        final double y = value - shift;
+
+        if (count < maxLag) {
+            firstValues[count] = y;
+        }
+        recentValues[count % maxLag] = y;
+
+        // lagSums[lag] is the sum of y[j] * y[j + lag] over the values so far
+        final int lagCount = Math.min(count + 1, maxLag);
+        for (int lag = 0; lag < lagCount; lag++) {
+            lagSums[lag] += recentValues[(count - lag) % maxLag] * y;
+        }
+
+        sum += y;
+        count++;
+        isUpToDate = false;
+    }
+
+    public int getValueCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count > 0 ? shift + sum / count : Double.NaN;
+    }
+
+    public double getStdErrorOfMean() {
+        update();
+        return stdErrorOfMean;
+    }
+
+    public double getACT() {
+        update();
+        return ACT;
+    }
+
+    public double getESS() {
+        update();
+        return ESS;
+    }
+
+    private void update() {
+        if (isUpToDate) {
+            return;
+        }
+        isUpToDate = true;
+
+        final int samples = count;
+        int lagCount = Math.min(samples - 1, maxLag);
+        if (lagCount < 1) {
+            stdErrorOfMean = Double.NaN;
+            ACT = Double.NaN;
+            ESS = Double.NaN;
+            return;
+        }
+
+        final double mean = sum / samples;
+
+        // the sums of the values without the last lag values and without the first lag values
+        double headSum = sum;
+        double tailSum = sum;
+
+        double gamma0 = 0.0;
+        double previousGamma = 0.0;
+        double varStat = 0.0;
+        for (int lag = 0; lag < lagCount; lag++) {
+            final int terms = samples - lag;
+            final double gamma = (lagSums[lag] - mean * (headSum + tailSum) + terms * mean * mean) / terms;
+
+            if (lag == 0) {
+                gamma0 = gamma;
+                varStat = gamma;
+            } else if (lag % 2 == 0) {
+                // the stopping criterion of TraceCorrelation
+                if (previousGamma + gamma > 0) {
+                    varStat += 2.0 * (previousGamma + gamma);
+                } else {
+                    break;
+                }
+            }
+            previousGamma = gamma;
+
+            headSum -= recentValues[(samples - 1 - lag) % maxLag];
+            tailSum -= firstValues[lag];
+        }
+
+        stdErrorOfMean = Math.sqrt(varStat / samples);
+
+        if (gamma0 == 0) {
+            ACT = 0;
+        } else {
+            ACT = stepSize * varStat / gamma0;
+        }
+
+        if (ACT == 0) {
+            ESS = 1;
+        } else {
+            ESS = (stepSize * samples) / ACT;
+        }
+    }
+
+    private final long stepSize;
+    private final int maxLag;
+
+    private final double[] firstValues;
+    private final double[] recentValues;
+    private final double[] lagSums;
+    private double shift;
+    private double sum = 0.0;
+    private int count = 0;
+
+    private boolean isUpToDate = false;
+    private double stdErrorOfMean;
+    private double ACT;
+    private double ESS;
+}
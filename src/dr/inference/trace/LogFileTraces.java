@@ -26,6 +26,7 @@ package dr.inference.trace;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -199,6 +200,27 @@ public class LogFileTraces extends AbstractTraceList {
         loadTraces(file);
     }
 
+    /**
+     * Load only the traces with the given names from the <code>File</code> defined in the constructor.
+     * For a binary log only these columns are read from the file.
+     *
+     * @param traceNames the names of the traces to load
+     * @throws TraceException
+     * @throws IOException
+     */
+    public void loadTraces(Collection<String> traceNames) throws TraceException, IOException {
+        if (BinaryLogReader.isBinaryLog(file)) {
+            loadBinaryTraces(file, traceNames);
+        } else {
+            loadTraces(file);
+            for (int i = traces.size() - 1; i >= 0; i--) {
+                if (!traceNames.contains(traces.get(i).getName())) {
+                    traces.remove(i);
+                }
+            }
+        }
+    }
+
     /**
      * Read through <code>File</code> created from a log file,
      * fill in <code>traces</code> list, and set <code>TraceType</code>.
@@ -208,6 +230,10 @@ public class LogFileTraces extends AbstractTraceList {
      * @throws IOException
      */
     public void loadTraces(File file) throws TraceException, IOException {
+        if (BinaryLogReader.isBinaryLog(file)) {
+            loadBinaryTraces(file, null);
+            return;
+        }
         final Reader reader = new FileReader(file);
         loadTraces(reader);
         reader.close();
@@ -337,15 +363,67 @@ public class LogFileTraces extends AbstractTraceList {
         if (num_samples == 0)
             throw new TraceException("Incorrect file format, no sample is found !");
 
+        setDefaultBurnIn();
+
+        validateTraceType(lastLine);
+        validateUniqueValues();
+    }
+
+    /**
+     * Read the traces from a log written by BinaryLogFormatter. The type of each trace is
+     * already known from the way its values were stored.
+     *
+     * @param file       the binary log file
+     * @param traceNames the names of the traces to load or null for all of them
+     * @throws TraceException
+     * @throws IOException
+     */
+    private void loadBinaryTraces(File file, Collection<String> traceNames) throws TraceException, IOException {
+        final BinaryLogReader reader = new BinaryLogReader(file);
+
+        long[] states = reader.getStates();
+        if (states.length == 0)
+            throw new TraceException("Incorrect file format, no sample is found !");
+
+        for (int j = 0; j < states.length; j++) {
+            long state = states[j];
+            if (j == 0 && state == 1) state = 0;
+            if (!addState(state, j + 1)) {
+                throw new TraceException("State " + state + " is not consistent with previous spacing (Row " +
+                        (j + 1) + ")");
+            }
+        }
+
+        String[] labels = reader.getLabels();
+        for (int i = 0; i < labels.length; i++) {
+            if (traceNames == null || traceNames.contains(labels[i])) {
+                TraceType type = reader.getTraceType(i);
+                Trace trace = new Trace(labels[i], type);
+                if (type.isCategorical()) {
+                    for (String value : reader.getStringValues(i)) {
+                        trace.add(value);
+                    }
+                } else {
+                    for (double value : reader.getValues(i)) {
+                        trace.add(value);
+                    }
+                }
+                traces.add(trace);
+            }
+        }
+
+        setDefaultBurnIn();
+
+        validateUniqueValues();
+    }
+
+    private void setDefaultBurnIn() {
         burnIn =  lastState / 10;
 
         if (lastState < 0)
             lastState = firstState;
         if (stepSize < 0 && lastState > 0)
             stepSize = lastState;
-
-        validateTraceType(lastLine);
-        validateUniqueValues();
     }
     public static final int MIN_SAMPLE = 5; // used in StatisticsModel
 
@@ -28,7 +28,11 @@ package dr.inference.trace;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * @author Alexei Drummond
@@ -50,9 +54,7 @@ public class TraceAnalysis {
         traces.loadTraces();
         traces.setBurnIn(burnin);
 
-        for (int i = 0; i < traces.getTraceCount(); i++) {
-            traces.analyseTrace(i);
-        }
+        traces.analyseTraces();
         return traces;
     }
 
@@ -66,6 +68,16 @@ public class TraceAnalysis {
 
     public static TraceList report(String fileName, int inBurnin, String likelihoodName, boolean withStdError)
             throws java.io.IOException, TraceException {
+        return report(fileName, inBurnin, likelihoodName, withStdError, null);
+    }
+
+    /**
+     * @param traceNames the names of the traces to report on or null for all of them (for a binary
+     *                   log only these are read from the file)
+     */
+    public static TraceList report(String fileName, int inBurnin, String likelihoodName, boolean withStdError,
+                                   Collection<String> traceNames)
+            throws java.io.IOException, TraceException {
 
 //        int fieldWidth = 14;
 //        int firstField = 25;
@@ -79,7 +91,15 @@ public class TraceAnalysis {
 //        if (traces == null) {
 //            throw new TraceException("Trace file is empty.");
 //        }
-        traces.loadTraces();
+        if (traceNames != null) {
+            Set<String> names = new HashSet<String>(traceNames);
+            if (likelihoodName != null) {
+                names.add(likelihoodName);
+            }
+            traces.loadTraces(names);
+        } else {
+            traces.loadTraces();
+        }
 
 //        traces.addTrace("R0", traces.getTraceIndex("bdss.psi"));
 
@@ -107,9 +127,10 @@ public class TraceAnalysis {
         }
         System.out.println();
 
+        traces.analyseTraces();
+
         int warning = 0;
         for (int i = 0; i < traces.getTraceCount(); i++) {
-            traces.analyseTrace(i);
             TraceCorrelation distribution = traces.getCorrelationStatistics(i);
 
             double ess = distribution.getESS();
@@ -180,7 +201,7 @@ public class TraceAnalysis {
         File file = new File(fileName);
 
         LogFileTraces traces = new LogFileTraces(fileName, file);
-        traces.loadTraces();
+        traces.loadTraces(Collections.singleton(traceName));
         long burnin = inBurnin;
         if (burnin == -1) {
             burnin = traces.getMaxState() / 10;
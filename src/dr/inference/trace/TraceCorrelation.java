@@ -25,6 +25,8 @@
 
 package dr.inference.trace;
 
+import dr.math.FastFourierTransform;
+
 import java.util.List;
 import java.util.Map;
 
@@ -85,7 +87,10 @@ public class TraceCorrelation extends TraceDistribution {
     private double stdErrOfACT;
     private double ESS;
 
-    private static final int MAX_LAG = 2000;
+    static final int MAX_LAG = 2000;
+
+    // the autocovariances beyond this lag are taken from a fast Fourier transform of the whole trace
+    private static final int DIRECT_LAG_COUNT = 200;
 
     private void analyseCorrelation(List<Double> values, long stepSize) {
 //        this.values = values; // move to TraceDistribution(T[] values)
@@ -130,6 +135,7 @@ public class TraceCorrelation extends TraceDistribution {
         int maxLag = Math.min(samples - 1, MAX_LAG);
 
         double[] gammaStat = new double[maxLag];
+        double[] transformedGammaStat = null;
         //double[] varGammaStat = new double[maxLag];
         double varStat = 0.0;
         //double varVarStat = 0.0;
@@ -137,14 +143,22 @@ public class TraceCorrelation extends TraceDistribution {
         //double del1, del2;
 
         for (int lag = 0; lag < maxLag; lag++) {
-            for (int j = 0; j < samples - lag; j++) {
-                final double del1 = values[j] - mean;
-                final double del2 = values[j + lag] - mean;
-                gammaStat[lag] += (del1 * del2);
-                //varGammaStat[lag] += (del1*del1*del2*del2);
-            }
+            if (lag < DIRECT_LAG_COUNT) {
+                // most traces stop within a few lags so these are summed directly
+                for (int j = 0; j < samples - lag; j++) {
+                    final double del1 = values[j] - mean;
+                    final double del2 = values[j + lag] - mean;
+                    gammaStat[lag] += (del1 * del2);
+                    //varGammaStat[lag] += (del1*del1*del2*del2);
+                }
 
-            gammaStat[lag] /= ((double) (samples - lag));
+                gammaStat[lag] /= ((double) (samples - lag));
+            } else {
+                if (transformedGammaStat == null) {
+                    transformedGammaStat = getAutoCovariances(values, mean, maxLag);
+                }
+                gammaStat[lag] = transformedGammaStat[lag];
+            }
             //varGammaStat[lag] /= ((double) samples-lag);
             //varGammaStat[lag] -= (gammaStat[0] * gammaStat[0]);
 
@@ -189,4 +203,40 @@ public class TraceCorrelation extends TraceDistribution {
 //        minEqualToMax = true;
     }
 
+    /**
+     * The autocovariances of the values for lags 0 to maxLag - 1 by the fast Fourier transform of the values
+     * (padded with zeros so they don't wrap around), in O(n log n) rather than O(n maxLag) time.
+     *
+     * @param values the values
+     * @param mean   the mean of the values
+     * @param maxLag the number of lags
+     * @return the sum of (values[j] - mean) * (values[j + lag] - mean) divided by the number of terms, for each lag
+     */
+    static double[] getAutoCovariances(double[] values, double mean, int maxLag) {
+        final int samples = values.length;
+        int length = 1;
+        while (length < samples + maxLag) {
+            length <<= 1;
+        }
+
+        // interleaved real and imaginary parts
+        double[] data = new double[2 * length];
+        for (int j = 0; j < samples; j++) {
+            data[2 * j] = values[j] - mean;
+        }
+
+        FastFourierTransform.fft(data, length, false);
+        for (int k = 0; k < length; k++) {
+            data[2 * k] = data[2 * k] * data[2 * k] + data[2 * k + 1] * data[2 * k + 1];
+            data[2 * k + 1] = 0.0;
+        }
+        FastFourierTransform.fft(data, length, true);
+
+        double[] gammaStat = new double[maxLag];
+        for (int lag = 0; lag < maxLag; lag++) {
+            gammaStat[lag] = data[2 * lag] / length / (samples - lag);
+        }
+        return gammaStat;
+    }
+
 }
\ No newline at end of file
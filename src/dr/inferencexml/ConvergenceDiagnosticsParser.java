@@ -0,0 +1,98 @@
+/*
+ * ConvergenceDiagnosticsParser.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inferencexml;
+
+import dr.inference.loggers.Loggable;
+import dr.inference.mcmc.ConvergenceDiagnostics;
+import dr.xml.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the convergence diagnostics of an MCMC chain, given within the mcmc element.
+ */
+public class ConvergenceDiagnosticsParser extends AbstractXMLObjectParser {
+
+    public static final String CONVERGENCE_DIAGNOSTICS = "convergenceDiagnostics";
+    public static final String SAMPLE_EVERY = "sampleEvery";
+    public static final String MIN_ESS = "minESS";
+    public static final String MAX_R_HAT = "maxRHat";
+    public static final String REPORT_EVERY = "reportEvery";
+
+    public String getParserName() {
+        return CONVERGENCE_DIAGNOSTICS;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+        final long sampleEvery = xo.getLongIntegerAttribute(SAMPLE_EVERY);
+        if (sampleEvery <= 0) {
+            throw new XMLParseException("The " + SAMPLE_EVERY + " attribute must be positive");
+        }
+        final double minESS = xo.getAttribute(MIN_ESS, 0.0);
+        final double maxRHat = xo.getAttribute(MAX_R_HAT, Double.POSITIVE_INFINITY);
+        final long reportEvery = xo.getAttribute(REPORT_EVERY, 0L);
+
+        List<Loggable> loggables = new ArrayList<Loggable>();
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            if (xo.getChild(i) instanceof Loggable) {
+                loggables.add((Loggable) xo.getChild(i));
+            }
+        }
+
+        ConvergenceDiagnostics diagnostics = new ConvergenceDiagnostics(
+                loggables.toArray(new Loggable[loggables.size()]), sampleEvery, minESS, maxRHat, reportEvery);
+        if (diagnostics.getColumnCount() == 0) {
+            throw new XMLParseException("The " + CONVERGENCE_DIAGNOSTICS + " element has no numeric columns to follow");
+        }
+        return diagnostics;
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public String getParserDescription() {
+        return "Follows the batch-means ESS and split R-hat of some statistics while an MCMC chain runs, " +
+                "optionally stopping it once they reach given targets.";
+    }
+
+    public Class getReturnType() {
+        return ConvergenceDiagnostics.class;
+    }
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            AttributeRule.newLongIntegerRule(SAMPLE_EVERY),
+            AttributeRule.newDoubleRule(MIN_ESS, true),
+            AttributeRule.newDoubleRule(MAX_R_HAT, true),
+            AttributeRule.newLongIntegerRule(REPORT_EVERY, true),
+            new ElementRule(Loggable.class, 1, Integer.MAX_VALUE),
+    };
+}
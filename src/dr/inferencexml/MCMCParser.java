@@ -27,6 +27,7 @@ package dr.inferencexml;
 
 import dr.inference.loggers.Logger;
 import dr.inference.markovchain.MarkovChain;
+import dr.inference.mcmc.ConvergenceDiagnostics;
 import dr.inference.mcmc.MCMC;
 import dr.inference.mcmc.MCMCOptions;
 import dr.inference.model.CompoundLikelihood;
@@ -151,6 +152,8 @@ public class MCMCParser extends AbstractXMLObjectParser {
             Object child = xo.getChild(i);
             if (child instanceof Logger) {
                 loggers.add((Logger) child);
+            } else if (child instanceof ConvergenceDiagnostics) {
+                mcmc.addConvergenceDiagnostics((ConvergenceDiagnostics) child);
             }
         }
 
@@ -233,7 +236,12 @@ public class MCMCParser extends AbstractXMLObjectParser {
 
         long chainLength = xo.getLongIntegerAttribute(CHAIN_LENGTH);
 
-        SMCOptions options = new SMCOptions(chainLength);
+        double resampleThreshold = 0.0;
+        if (System.getProperty("smc.resample_threshold") != null) {
+            resampleThreshold = Double.parseDouble(System.getProperty("smc.resample_threshold"));
+        }
+
+        SMCOptions options = new SMCOptions(chainLength, resampleThreshold);
 
         OperatorSchedule opsched = (OperatorSchedule) xo.getChild(OperatorSchedule.class);
         Likelihood likelihood = (Likelihood) xo.getChild(Likelihood.class);
@@ -295,6 +303,7 @@ public class MCMCParser extends AbstractXMLObjectParser {
             new ElementRule(OperatorSchedule.class),
             new ElementRule(Likelihood.class),
             new ElementRule(Logger.class, 1, Integer.MAX_VALUE),
+            new ElementRule(ConvergenceDiagnostics.class, 0, Integer.MAX_VALUE),
     };
 
     public static final String ADAPTATION = "adaptation";
@@ -35,6 +35,7 @@ import dr.xml.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * @author Max Tolkoff
@@ -43,6 +44,7 @@ public class AppendedPotentialDerivativeParser extends AbstractXMLObjectParser {
 
     public final static String SUM_DERIVATIVE = "appendedPotentialDerivative";
     public static final String SUM_DERIVATIVE2 = "compoundGradient";
+    public static final String THREADS = "threads";
 
     @Override
     public String getParserName() {
@@ -98,7 +100,16 @@ public class AppendedPotentialDerivativeParser extends AbstractXMLObjectParser {
             likelihoodList.add(likelihood);
         }
 
-        return new CompoundDerivative(gradList);
+        // the components are computed serially unless a number of threads is given (-1 gives one per component)
+        int threads = xo.getAttribute(THREADS, 0);
+
+        CompoundDerivative compoundDerivative = new CompoundDerivative(gradList, threads);
+        if (compoundDerivative.getThreadCount() > 0) {
+            Logger.getLogger("dr.inference").info("Gradient components of " + xo.getId() +
+                    " are computed using " + compoundDerivative.getThreadCount() + " additional threads.");
+        }
+
+        return compoundDerivative;
     }
 
     @Override
@@ -107,6 +118,7 @@ public class AppendedPotentialDerivativeParser extends AbstractXMLObjectParser {
     }
 
     private final XMLSyntaxRule[] rules = {
+            AttributeRule.newIntegerRule(THREADS, true),
             new ElementRule(GradientWrtParameterProvider.class, 1, Integer.MAX_VALUE),
     };
 
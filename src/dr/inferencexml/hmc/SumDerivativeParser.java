@@ -31,6 +31,7 @@ import dr.xml.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * @author Max Tolkoff
@@ -40,6 +41,7 @@ import java.util.List;
 public class SumDerivativeParser extends AbstractXMLObjectParser{
     public final static String SUM_DERIVATIVE = "sumDerivative";
     public final static String SUM_DERIVATIVE2 = "jointGradient";
+    public final static String THREADS = "threads";
 
 
     @Override
@@ -62,7 +64,16 @@ public class SumDerivativeParser extends AbstractXMLObjectParser{
             derivativeList.add(grad);
         }
 
-        return new SumDerivative(derivativeList);
+        // the components are computed serially unless a number of threads is given (-1 gives one per component)
+        int threads = xo.getAttribute(THREADS, 0);
+
+        SumDerivative sumDerivative = new SumDerivative(derivativeList, threads);
+        if (sumDerivative.getThreadCount() > 0) {
+            Logger.getLogger("dr.inference").info("Gradient components of " + xo.getId() +
+                    " are computed using " + sumDerivative.getThreadCount() + " additional threads.");
+        }
+
+        return sumDerivative;
     }
 
     @Override
@@ -71,6 +82,7 @@ public class SumDerivativeParser extends AbstractXMLObjectParser{
     }
 
     private final XMLSyntaxRule[] rules = {
+            AttributeRule.newIntegerRule(THREADS, true),
             new ElementRule(GradientWrtParameterProvider.class, 1, Integer.MAX_VALUE),
     };
 
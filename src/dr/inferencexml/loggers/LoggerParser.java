@@ -35,6 +35,8 @@ import dr.util.Property;
 import dr.xml.*;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.util.Date;
 
@@ -54,8 +56,11 @@ public class LoggerParser extends AbstractXMLObjectParser {
     public static final String TAB = "tab";
     public static final String HTML = "html";
     public static final String PRETTY = "pretty";
+    public static final String BINARY = "binary";
     public static final String LOG_EVERY = "logEvery";
     public static final String ALLOW_OVERWRITE_LOG = "overwrite";
+    public static final String ASYNCHRONOUS = "asynchronous";
+    public static final String BUFFER_SIZE = "bufferSize";
 
     public static final String COLUMNS = "columns";
     public static final String COLUMN = "column";
@@ -76,9 +81,20 @@ public class LoggerParser extends AbstractXMLObjectParser {
         // You must say how often you want to log
         final int logEvery = xo.getIntegerAttribute(LOG_EVERY);
 
-        final PrintWriter pw = getLogFile(xo, getParserName());
-
-        final LogFormatter formatter = new TabDelimitedFormatter(pw);
+        final LogFormatter formatter;
+        if (xo.getAttribute(FORMAT, TAB).equalsIgnoreCase(BINARY) && xo.hasAttribute(FILE_NAME)) {
+            // a compressed columnar log that LogFileTraces, LogCombiner and LogAnalyser can read
+            final File file = XMLParser.getLogFile(xo, FILE_NAME);
+            try {
+                formatter = new BinaryLogFormatter(new FileOutputStream(file));
+            } catch (FileNotFoundException fnfe) {
+                throw new XMLParseException("File '" + file.getAbsolutePath() +
+                        "' can not be opened for " + getParserName() + " element.");
+            }
+        } else {
+            final PrintWriter pw = getLogFile(xo, getParserName());
+            formatter = new TabDelimitedFormatter(pw);
+        }
 
         boolean performanceReport = false;
 
@@ -87,8 +103,18 @@ public class LoggerParser extends AbstractXMLObjectParser {
             performanceReport = true;
         }
 
-        // added a performance measurement delay to avoid the full evaluation period.
-        final MCLogger logger = new MCLogger(formatter, logEvery, performanceReport, 10000);
+        boolean asynchronous = xo.getAttribute(ASYNCHRONOUS, false) ||
+                Boolean.parseBoolean(System.getProperty("log.asynchronous"));
+
+        final MCLogger logger;
+        if (asynchronous && !performanceReport) {
+            // the values are written to the file on a separate thread
+            int bufferSize = xo.getAttribute(BUFFER_SIZE, AsynchronousMCLogger.DEFAULT_BUFFER_SIZE);
+            logger = new AsynchronousMCLogger(formatter, logEvery, bufferSize);
+        } else {
+            // added a performance measurement delay to avoid the full evaluation period.
+            logger = new MCLogger(formatter, logEvery, performanceReport, 10000);
+        }
 
         String title = null;
         if (xo.hasAttribute(TITLE)) {
@@ -157,9 +183,15 @@ public class LoggerParser extends AbstractXMLObjectParser {
     private final XMLSyntaxRule[] rules = {
             AttributeRule.newIntegerRule(LOG_EVERY),
             AttributeRule.newBooleanRule(ALLOW_OVERWRITE_LOG, true),
+            AttributeRule.newBooleanRule(ASYNCHRONOUS, true,
+                    "Whether to format and write a file log on a separate thread"),
+            AttributeRule.newIntegerRule(BUFFER_SIZE, true,
+                    "The maximum number of logged states waiting to be written when asynchronous"),
             new StringAttributeRule(FILE_NAME,
                     "The name of the file to send log output to. " +
                             "If no file name is specified then log is sent to standard output", true),
+            new StringAttributeRule(FORMAT,
+                    "The format of a file log: 'tab' (the default) or 'binary'", new String[]{TAB, BINARY}, true),
             new StringAttributeRule(TITLE,
                     "The title of the log", true),
             new StringAttributeRule(HEADER,
@@ -38,6 +38,7 @@ import java.util.logging.Logger;
 public class CompoundLikelihoodParser extends AbstractXMLObjectParser {
     public static final String COMPOUND_LIKELIHOOD = "compoundLikelihood";
     public static final String THREADS = "threads";
+    public static final String WORK_STEALING = "workStealing";
     @Deprecated public static final String POSTERIOR = "posterior"; // replaced with JOINT
     public static final String JOINT = "joint";
     public static final String PRIOR = "prior";
@@ -94,18 +95,27 @@ public class CompoundLikelihoodParser extends AbstractXMLObjectParser {
 
         CompoundLikelihood compoundLikelihood;
 
+        // a system property can also switch on the work-stealing evaluation engine
+        boolean workStealing = xo.getAttribute(WORK_STEALING, false) ||
+                Boolean.parseBoolean(System.getProperty("likelihood.work_stealing"));
+
         if (xo.getName().equalsIgnoreCase(LIKELIHOOD)) {
-            compoundLikelihood = new CompoundLikelihood(threads, likelihoods);
-            switch (threads) {
-                case -1:
-                    Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using an auto sizing thread pool.");
-                    break;
-                case 0:
-                    Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using a single thread.");
-                    break;
-                default:
-                    Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using a pool of " + threads + " threads.");
-                    break;
+            compoundLikelihood = new CompoundLikelihood(threads, likelihoods, workStealing);
+            if (compoundLikelihood.isUsingWorkStealing()) {
+                Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using a work-stealing pool of " +
+                        compoundLikelihood.getThreadCount() + " threads (only changed components are recomputed).");
+            } else {
+                switch (threads) {
+                    case -1:
+                        Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using an auto sizing thread pool.");
+                        break;
+                    case 0:
+                        Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using a single thread.");
+                        break;
+                    default:
+                        Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using a pool of " + threads + " threads.");
+                        break;
+                }
             }
         } else {
             compoundLikelihood = new CompoundLikelihood(likelihoods);
@@ -132,6 +142,7 @@ public class CompoundLikelihoodParser extends AbstractXMLObjectParser {
 
     private final XMLSyntaxRule[] rules = {
             AttributeRule.newIntegerRule(THREADS, true),
+            AttributeRule.newBooleanRule(WORK_STEALING, true),
             new ElementRule(Likelihood.class, -1, Integer.MAX_VALUE)
     };
 
@@ -127,6 +127,21 @@ public interface ReadableVector {
             parameter.fireParameterChangedEvent();
         }
 
+        /**
+         * Sets every value of a parameter and signals the change once, as ALL_VALUES_CHANGED, so listeners can
+         * recompute in one go. A Parameter.Default copies the values as a block; other parameters are set
+         * element by element and fire their own bulk event, which for a compound parameter first notifies the
+         * parameters it is made of.
+         */
+        public static void setAllParameterValues(double[] value, Parameter parameter) {
+            if (parameter.getClass() == Parameter.Default.class) {
+                ((Parameter.Default) parameter).setAllParameterValuesQuietly(value, 0);
+                parameter.fireParameterChangedEvent(-1, Parameter.ChangeType.ALL_VALUES_CHANGED);
+            } else {
+                setParameter(value, parameter);
+            }
+        }
+
         public static void setParameter(ReadableVector position, Parameter parameter) {
             for (int j = 0, dim = position.getDim(); j < dim; ++j) {
                 parameter.setParameterValueQuietly(j, position.get(j));
@@ -0,0 +1,142 @@
+/*
+ * TridiagonalCholesky.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+
+package dr.math.matrixAlgebra;
+
+/**
+ * The Cholesky factorisation Q = U'U of a symmetric positive definite tridiagonal matrix, such as the
+ * precision of a GMRF, with solves against the factor. The workspace is allocated once and reused by
+ * each factorisation so repeated solves of the same dimension allocate nothing.
+ */
+public class TridiagonalCholesky {
+
+    public TridiagonalCholesky(int dimension) {
+        this.dimension = dimension;
+        diagonal = new double[dimension];
+        superDiagonal = new double[Math.max(dimension - 1, 0)];
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Factors the matrix with the given diagonal and off-diagonal.
+     *
+     * @param matrixDiagonal    the diagonal of Q
+     * @param matrixOffDiagonal the off-diagonal of Q (dimension - 1 values)
+     * @return false if the matrix is not positive definite, in which case the factor is not usable
+     */
+    public boolean factor(double[] matrixDiagonal, double[] matrixOffDiagonal) {
+        double pivot = matrixDiagonal[0];
+        for (int i = 0; i < dimension; i++) {
+            if (!(pivot > 0.0)) {
+                isFactored = false;
+                return false;
+            }
+            diagonal[i] = Math.sqrt(pivot);
+            if (i < dimension - 1) {
+                superDiagonal[i] = matrixOffDiagonal[i] / diagonal[i];
+                pivot = matrixDiagonal[i + 1] - superDiagonal[i] * superDiagonal[i];
+            }
+        }
+        isFactored = true;
+        return true;
+    }
+
+    public boolean isFactored() {
+        return isFactored;
+    }
+
+    /**
+     * Solves Qx = b. x and b may be the same array.
+     */
+    public void solve(double[] b, double[] x) {
+        solveTranspose(b, x);
+        solveUpper(x, x);
+    }
+
+    /**
+     * Solves U'x = b (forward substitution). x and b may be the same array.
+     */
+    public void solveTranspose(double[] b, double[] x) {
+        x[0] = b[0] / diagonal[0];
+        for (int i = 1; i < dimension; i++) {
+            x[i] = (b[i] - superDiagonal[i - 1] * x[i - 1]) / diagonal[i];
+        }
+    }
+
+    /**
+     * Solves Ux = b (back substitution). x and b may be the same array.
+     */
+    public void solveUpper(double[] b, double[] x) {
+        final int last = dimension - 1;
+        x[last] = b[last] / diagonal[last];
+        for (int i = last - 1; i >= 0; i--) {
+            x[i] = (b[i] - superDiagonal[i] * x[i + 1]) / diagonal[i];
+        }
+    }
+
+    /**
+     * @return the diagonal of the factor U
+     */
+    public double[] getDiagonal() {
+        return diagonal;
+    }
+
+    /**
+     * @return the log determinant of Q
+     */
+    public double getLogDeterminant() {
+        double logDet = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            logDet += Math.log(diagonal[i]);
+        }
+        return 2.0 * logDet;
+    }
+
+    /**
+     * Computes y = Qx for the symmetric tridiagonal matrix Q. y must not be x.
+     */
+    public static void multiply(double[] matrixDiagonal, double[] matrixOffDiagonal, double[] x, double[] y) {
+        final int n = matrixDiagonal.length;
+        for (int i = 0; i < n; i++) {
+            double value = matrixDiagonal[i] * x[i];
+            if (i > 0) {
+                value += matrixOffDiagonal[i - 1] * x[i - 1];
+            }
+            if (i < n - 1) {
+                value += matrixOffDiagonal[i] * x[i + 1];
+            }
+            y[i] = value;
+        }
+    }
+
+    private final int dimension;
+    private final double[] diagonal;
+    private final double[] superDiagonal;
+    private boolean isFactored = false;
+}
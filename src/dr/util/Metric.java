@@ -0,0 +1,168 @@
+/*
+ * Metric.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of the times something has been done (and how often it was accepted or rejected) along with
+ * the total time taken and a histogram of the individual times. The counters are striped (LongAdder)
+ * so they can be updated from many threads at little cost and read from another at any time.
+ *
+ * The histogram has a bin for each power of two microseconds: bin 0 holds times below 1us, bin k times
+ * from 2^(k-1) up to 2^k us and the last bin everything longer.
+ */
+public class Metric implements MetricMBean {
+
+    public static final int HISTOGRAM_BIN_COUNT = 32;
+
+    public Metric(String type, String name) {
+        this.type = type;
+        this.name = name;
+        histogram = new LongAdder[HISTOGRAM_BIN_COUNT];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one occurrence taking the given time.
+     *
+     * @param nanoseconds the time taken
+     */
+    public void record(long nanoseconds) {
+        count.increment();
+        totalTime.add(nanoseconds);
+        histogram[getHistogramBin(nanoseconds)].increment();
+    }
+
+    public void accept() {
+        acceptCount.increment();
+    }
+
+    public void reject() {
+        rejectCount.increment();
+    }
+
+    public void reset() {
+        count.reset();
+        acceptCount.reset();
+        rejectCount.reset();
+        totalTime.reset();
+        for (LongAdder bin : histogram) {
+            bin.reset();
+        }
+    }
+
+    public static int getHistogramBin(long nanoseconds) {
+        long microseconds = nanoseconds / 1000;
+        int bin = 64 - Long.numberOfLeadingZeros(microseconds);
+        return Math.min(bin, HISTOGRAM_BIN_COUNT - 1);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getAcceptCount() {
+        return acceptCount.sum();
+    }
+
+    public long getRejectCount() {
+        return rejectCount.sum();
+    }
+
+    public double getAcceptanceProbability() {
+        long accepted = getAcceptCount();
+        long total = accepted + getRejectCount();
+        return total > 0 ? ((double) accepted) / total : Double.NaN;
+    }
+
+    public double getTotalTimeSeconds() {
+        return totalTime.sum() * 1E-9;
+    }
+
+    public double getMeanTimeMilliseconds() {
+        long n = getCount();
+        return n > 0 ? (totalTime.sum() * 1E-6) / n : Double.NaN;
+    }
+
+    public long[] getTimeHistogram() {
+        long[] counts = new long[histogram.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * @return an estimate of a quantile of the times (the upper limit of the histogram bin it falls in)
+     */
+    public double getTimeQuantileMilliseconds(double quantile) {
+        long[] counts = getTimeHistogram();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return Double.NaN;
+        }
+        long target = (long) Math.ceil(quantile * total);
+        long sum = 0;
+        for (int i = 0; i < counts.length; i++) {
+            sum += counts[i];
+            if (sum >= target && counts[i] > 0) {
+                return (1L << i) * 1E-3;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    public double getMedianTimeMilliseconds() {
+        return getTimeQuantileMilliseconds(0.5);
+    }
+
+    public double getUpperTimeMilliseconds() {
+        return getTimeQuantileMilliseconds(0.99);
+    }
+
+    private final String type;
+    private final String name;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder acceptCount = new LongAdder();
+    private final LongAdder rejectCount = new LongAdder();
+    private final LongAdder totalTime = new LongAdder();
+    private final LongAdder[] histogram;
+}
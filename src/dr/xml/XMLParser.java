@@ -73,7 +73,7 @@ public class XMLParser {
         String[] parserNames = parser.getParserNames();
 
         for (String parserName : parserNames) {
-            XMLObjectParser oldParser = parserStore.get(parserName);
+            XMLObjectParser oldParser = findParser(parserName);
             if (oldParser != null) {
                 if (!canReplace) {
                     throw new IllegalArgumentException("New parser (" + parser.getParserName()
@@ -89,18 +89,57 @@ public class XMLParser {
         return replaced;
     }
 
+    /**
+     * Adds a parser that is only created when an element with the given name is first met. The same
+     * loader should be added for every name of the parser it creates.
+     */
+    public void addXMLObjectParserLoader(String parserName, ParserLoader loader) {
+        parserStore.remove(parserName);
+        parserLoaders.put(parserName, loader);
+    }
+
     public Iterator getParserNames() {
+        loadAllParsers();
         return parserStore.keySet().iterator();
     }
 
     public XMLObjectParser getParser(String name) {
-        return parserStore.get(name);
+        return findParser(name);
     }
 
     public Iterator getParsers() {
+        loadAllParsers();
         return parserStore.values().iterator();
     }
 
+    private XMLObjectParser findParser(String name) {
+        XMLObjectParser parser = parserStore.get(name);
+        if (parser == null && !parserLoaders.isEmpty()) {
+            ParserLoader loader = parserLoaders.remove(name);
+            if (loader != null) {
+                parser = loader.loadParser();
+                if (parser != null) {
+                    parserStore.put(name, parser);
+
+                    // the parser's other names waiting on the same loader
+                    for (String parserName : parser.getParserNames()) {
+                        if (parserLoaders.get(parserName) == loader) {
+                            parserLoaders.remove(parserName);
+                            parserStore.put(parserName, parser);
+                        }
+                    }
+                }
+            }
+        }
+        return parser;
+    }
+
+    private void loadAllParsers() {
+        while (!parserLoaders.isEmpty()) {
+            findParser(parserLoaders.keySet().iterator().next());
+        }
+    }
+
     public Iterator getThreads() {
         return threads.iterator();
     }
@@ -245,7 +284,7 @@ public class XMLParser {
                 throw new XMLParseException("Object with idref=" + idref + " has not been parsed.");
             }
 
-            XMLObjectParser parser = parserStore.get(e.getTagName());
+            XMLObjectParser parser = findParser(e.getTagName());
             boolean classMatch = parser != null && parser.getReturnType().isAssignableFrom(restoredXMLObject.getNativeObject().getClass());
 
             if (!e.getTagName().equals(restoredXMLObject.getName()) && !classMatch) {
@@ -277,7 +316,7 @@ public class XMLParser {
 
             XMLObject xo = new XMLObject(e, parent);
 
-            final XMLObjectParser parser = doParse ? parserStore.get(xo.getName()) : null;
+            final XMLObjectParser parser = doParse ? findParser(xo.getName()) : null;
 
             String id = null;
             NodeList nodes = e.getChildNodes();
@@ -594,6 +633,7 @@ public class XMLParser {
 
     //    private final Hashtable<String, XMLObject> store = new Hashtable<String, XMLObject>();
     private final Map<String, XMLObjectParser> parserStore = new TreeMap<String, XMLObjectParser>(new ParserComparator());
+    private final Map<String, ParserLoader> parserLoaders = new TreeMap<String, ParserLoader>(new ParserComparator());
     private final Map<String, XMLObject> objectStore = new LinkedHashMap<String, XMLObject>();
     private final Map<Pair<String, String>, List<Citation>> citationStore = new LinkedHashMap<Pair<String, String>, List<Citation>>();
     private boolean concurrent = false;
@@ -601,6 +641,17 @@ public class XMLParser {
 
     private boolean verbose = false;
 
+    /**
+     * Creates a parser on demand (see addXMLObjectParserLoader).
+     */
+    public interface ParserLoader {
+
+        /**
+         * @return the parser or null if it could not be created (having reported why)
+         */
+        XMLObjectParser loadParser();
+    }
+
     public static class Utils {
 
         /**
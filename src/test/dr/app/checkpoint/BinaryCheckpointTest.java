@@ -0,0 +1,185 @@
+package test.dr.app.checkpoint;
+
+import dr.app.checkpoint.BinaryCheckpointReader;
+import dr.app.checkpoint.BinaryCheckpointWriter;
+import dr.app.checkpoint.CheckpointState;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests that a binary checkpoint made of a snapshot and deltas replays to the last state saved, and that a
+ * write or a move over the old file that fails is reported.
+ */
+public class BinaryCheckpointTest extends TestCase {
+
+    public BinaryCheckpointTest(String name) {
+        super(name);
+    }
+
+    public void testSnapshotAndDeltas() throws IOException {
+        File file = File.createTempFile("checkpoint", ".bin");
+        file.deleteOnExit();
+
+        BinaryCheckpointWriter writer = new BinaryCheckpointWriter(100);
+
+        CheckpointState state1 = createState(1000, new double[] { 1.0, 2.0, 3.0, 4.0 }, 0.5, 4);
+        writer.write(file, state1);
+
+        // one value and one node height changed
+        CheckpointState state2 = createState(2000, new double[] { 1.0, 2.5, 3.0, 4.0 }, 0.75, 4);
+        writer.write(file, state2);
+
+        // all values changed
+        CheckpointState state3 = createState(3000, new double[] { 5.0, 6.0, 7.0, 8.0 }, 0.25, 4);
+        assertTrue(writer.write(file, state3));
+        assertTrue(writer.flush());
+
+        assertTrue(BinaryCheckpointReader.isBinaryCheckpoint(file));
+        assertStateEquals(state3, BinaryCheckpointReader.read(file));
+
+        // a partly written final record should be ignored
+        long length = file.length();
+        CheckpointState state4 = createState(4000, new double[] { 5.0, 6.0, 7.0, 9.0 }, 0.25, 4);
+        writer.write(file, state4);
+        assertTrue(writer.close());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length + 10);
+        raf.close();
+        assertStateEquals(state3, BinaryCheckpointReader.read(file));
+    }
+
+    public void testSnapshotEvery() throws IOException {
+        File file = File.createTempFile("checkpoint", ".bin");
+        file.deleteOnExit();
+
+        BinaryCheckpointWriter writer = new BinaryCheckpointWriter(1);
+        writer.write(file, createState(1000, new double[] { 1.0, 2.0 }, 0.5, 4));
+        writer.write(file, createState(2000, new double[] { 1.5, 2.0 }, 0.5, 4));
+        writer.flush();
+        long deltaLength = file.length();
+
+        // the third save should start a new file with a snapshot
+        CheckpointState state3 = createState(3000, new double[] { 1.5, 2.5 }, 0.5, 4);
+        writer.write(file, state3);
+        writer.close();
+
+        assertTrue(file.length() < deltaLength);
+        assertStateEquals(state3, BinaryCheckpointReader.read(file));
+    }
+
+    public void testFailedWrite() throws IOException {
+        File directory = File.createTempFile("checkpoint", "");
+        directory.delete();
+        File file = new File(directory, "checkpoint.bin");
+
+        // the directory doesn't exist so the last write fails, which only close can report
+        BinaryCheckpointWriter writer = new BinaryCheckpointWriter(100);
+        assertTrue(writer.write(file, createState(1000, new double[] { 1.0, 2.0 }, 0.5, 4)));
+        assertFalse(writer.close());
+    }
+
+    public void testFailedMove() throws IOException {
+        File file = File.createTempFile("checkpoint", ".bin");
+        file.delete();
+        File child = new File(file, "child");
+        file.mkdir();
+        child.createNewFile();
+        // the files are deleted in the reverse order
+        file.deleteOnExit();
+        child.deleteOnExit();
+        new File(file.getPath() + ".tmp").deleteOnExit();
+
+        // the snapshot is written but can't replace a directory that isn't empty
+        BinaryCheckpointWriter writer = new BinaryCheckpointWriter(100);
+        assertTrue(writer.write(file, createState(1000, new double[] { 1.0, 2.0 }, 0.5, 4)));
+        assertFalse(writer.close());
+        assertTrue(file.isDirectory());
+        assertTrue(child.exists());
+    }
+
+    private CheckpointState createState(long state, double[] values, double height, int taxonCount) {
+        int nodeCount = 2 * taxonCount - 1;
+        String[] taxa = new String[taxonCount];
+        int[] parents = new int[nodeCount];
+        int[] childOrder = new int[nodeCount];
+        double[] heights = new double[nodeCount];
+        double[][] traits = new double[1][nodeCount];
+
+        // a caterpillar tree with the root as the last node
+        for (int i = 0; i < taxonCount; i++) {
+            taxa[i] = "taxon" + i;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            heights[i] = i < taxonCount ? 0.0 : height * (i - taxonCount + 1);
+            traits[0][i] = i * height;
+        }
+        parents[0] = taxonCount;
+        childOrder[0] = 0;
+        for (int i = 1; i < taxonCount; i++) {
+            parents[i] = taxonCount + i - 1;
+            childOrder[i] = 1;
+        }
+        for (int i = taxonCount; i < nodeCount - 1; i++) {
+            parents[i] = i + 1;
+            childOrder[i] = 0;
+        }
+        parents[nodeCount - 1] = -1;
+        childOrder[nodeCount - 1] = -1;
+
+        CheckpointState.TreeState tree = new CheckpointState.TreeState("treeModel", taxa, parents, childOrder,
+                heights, traits);
+
+        return new CheckpointState(state, -100.0 - state, new int[] { 1, 2, 3, (int) state },
+                new String[] { "scale", "slide" }, new long[] { state / 2, state / 4 },
+                new long[] { state / 2, state * 3 / 4 }, new double[] { 0.5, Double.NaN },
+                new String[] { "x", "y" }, new double[][] { values, { height } },
+                new CheckpointState.TreeState[] { tree });
+    }
+
+    private void assertStateEquals(CheckpointState expected, CheckpointState actual) {
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getLnL(), actual.getLnL());
+        assertEquals(expected.getRngState().length, actual.getRngState().length);
+        for (int i = 0; i < expected.getRngState().length; i++) {
+            assertEquals(expected.getRngState()[i], actual.getRngState()[i]);
+        }
+        assertEquals(expected.getOperatorCount(), actual.getOperatorCount());
+        for (int i = 0; i < expected.getOperatorCount(); i++) {
+            assertEquals(expected.getOperatorName(i), actual.getOperatorName(i));
+            assertEquals(expected.getAcceptCount(i), actual.getAcceptCount(i));
+            assertEquals(expected.getRejectCount(i), actual.getRejectCount(i));
+            assertEquals(expected.getAdaptableParameter(i), actual.getAdaptableParameter(i));
+        }
+        assertEquals(expected.getParameterCount(), actual.getParameterCount());
+        for (int i = 0; i < expected.getParameterCount(); i++) {
+            assertEquals(expected.getParameterName(i), actual.getParameterName(i));
+            assertArrayEquals(expected.getParameterValues(i), actual.getParameterValues(i));
+        }
+        assertEquals(expected.getTreeCount(), actual.getTreeCount());
+        for (int i = 0; i < expected.getTreeCount(); i++) {
+            CheckpointState.TreeState expectedTree = expected.getTree(i);
+            CheckpointState.TreeState actualTree = actual.getTree(i);
+            assertEquals(expectedTree.getName(), actualTree.getName());
+            assertEquals(expectedTree.getNodeCount(), actualTree.getNodeCount());
+            for (int node = 0; node < expectedTree.getNodeCount(); node++) {
+                assertEquals(expectedTree.getParents()[node], actualTree.getParents()[node]);
+                assertEquals(expectedTree.getChildOrder()[node], actualTree.getChildOrder()[node]);
+            }
+            assertArrayEquals(expectedTree.getHeights(), actualTree.getHeights());
+            assertArrayEquals(expectedTree.getTraitValues()[0], actualTree.getTraitValues()[0]);
+            for (int j = 0; j < expectedTree.getTaxa().length; j++) {
+                assertEquals(expectedTree.getTaxa()[j], actualTree.getTaxa()[j]);
+            }
+        }
+    }
+
+    private void assertArrayEquals(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+}
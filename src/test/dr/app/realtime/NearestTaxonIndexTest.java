@@ -0,0 +1,164 @@
+package test.dr.app.realtime;
+
+import dr.app.realtime.CheckPointUpdaterApp;
+import dr.app.realtime.NearestTaxonIndex;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxon;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Tests that the nearest taxon index finds the same closest taxon as a scan of the distances, as taxa are added.
+ */
+public class NearestTaxonIndexTest extends TestCase {
+
+    public NearestTaxonIndexTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        // clusters of sequences, each differing from its cluster's at a few sites, with gaps and ambiguities
+        final String states = "ACGT";
+        final int siteCount = 300;
+        alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        char[] common = new char[siteCount];
+        for (int i = 0; i < siteCount; i++) {
+            common[i] = states.charAt(MathUtils.nextInt(4));
+        }
+        for (int c = 0; c < 10; c++) {
+            char[] cluster = mutate(common, 0.1);
+            for (int t = 0; t < 20; t++) {
+                char[] sequence = mutate(cluster, 0.01);
+                for (int i = 0; i < siteCount; i++) {
+                    double u = MathUtils.nextDouble();
+                    if (u < 0.02) {
+                        sequence[i] = '-';
+                    } else if (u < 0.03) {
+                        sequence[i] = 'N';
+                    }
+                }
+                alignment.addSequence(new Sequence(new Taxon("taxon" + c + "_" + t), new String(sequence)));
+            }
+        }
+        patterns = new SitePatterns(alignment, -1, -1, 1);
+    }
+
+    public void testJukesCantor() {
+        checkClosest(CheckPointUpdaterApp.UpdateChoice.JC69DISTANCE);
+    }
+
+    public void testSimple() {
+        checkClosest(CheckPointUpdaterApp.UpdateChoice.SIMPLE);
+    }
+
+    public void testF84() {
+        checkClosest(CheckPointUpdaterApp.UpdateChoice.F84DISTANCE);
+    }
+
+    public void testIdenticalSequences() {
+        // two variants, alternating, as in surveillance data where most new sequences match an existing one
+        final int taxonCount = 20000;
+        SimpleAlignment identical = new SimpleAlignment();
+        identical.setDataType(Nucleotides.INSTANCE);
+        String variant0 = "ACGTACGTACGTACGTACGT";
+        String variant1 = "ACGTACGTACCTACGTACGA";
+        for (int i = 0; i < taxonCount; i++) {
+            identical.addSequence(new Sequence(new Taxon("taxon" + i), (i % 2 == 0 ? variant0 : variant1)));
+        }
+        SitePatterns identicalPatterns = new SitePatterns(identical, -1, -1, 1);
+
+        CheckPointUpdaterApp.UpdateChoice choice = CheckPointUpdaterApp.UpdateChoice.JC69DISTANCE;
+        choice.setPatterns(identicalPatterns);
+        ArrayList<Taxon> taxa = new ArrayList<Taxon>();
+        for (int i = 0; i < taxonCount; i++) {
+            taxa.add(identicalPatterns.getTaxon(i));
+        }
+        NearestTaxonIndex index = choice.createIndex(identicalPatterns, taxa);
+        assertEquals(taxonCount, index.getSize());
+
+        // the lowest index with the same variant, other than the taxon itself
+        assertEquals(2, index.getClosest(0));
+        assertEquals(3, index.getClosest(1));
+        assertEquals(0, index.getClosest(2));
+        assertEquals(1, index.getClosest(taxonCount - 1));
+        for (int i = 0; i < 10; i++) {
+            int taxon = MathUtils.nextInt(taxonCount);
+            assertEquals(choice.getClosestTaxon(identicalPatterns.getTaxon(taxon), taxa),
+                    identicalPatterns.getTaxon(index.getClosest(taxon)));
+        }
+    }
+
+    public void testEquidistantSequences() {
+        // each differs from the first at one site of its own, so no vantage point separates them
+        final int siteCount = 200;
+        SimpleAlignment equidistant = new SimpleAlignment();
+        equidistant.setDataType(Nucleotides.INSTANCE);
+        char[] common = new char[siteCount];
+        for (int i = 0; i < siteCount; i++) {
+            common[i] = 'A';
+        }
+        equidistant.addSequence(new Sequence(new Taxon("taxon"), new String(common)));
+        for (int t = 0; t < siteCount; t++) {
+            char[] sequence = common.clone();
+            sequence[t] = 'C';
+            equidistant.addSequence(new Sequence(new Taxon("taxon" + t), new String(sequence)));
+        }
+        SitePatterns equidistantPatterns = new SitePatterns(equidistant, -1, -1, 1);
+
+        CheckPointUpdaterApp.UpdateChoice choice = CheckPointUpdaterApp.UpdateChoice.SIMPLE;
+        choice.setPatterns(equidistantPatterns);
+        ArrayList<Taxon> taxa = new ArrayList<Taxon>();
+        for (int i = 1; i <= siteCount; i++) {
+            taxa.add(equidistantPatterns.getTaxon(i));
+        }
+        NearestTaxonIndex index = choice.createIndex(equidistantPatterns, taxa);
+
+        for (int i = 0; i <= siteCount; i++) {
+            assertEquals(choice.getClosestTaxon(equidistantPatterns.getTaxon(i), taxa),
+                    equidistantPatterns.getTaxon(index.getClosest(i)));
+        }
+    }
+
+    private void checkClosest(CheckPointUpdaterApp.UpdateChoice choice) {
+        choice.setPatterns(patterns);
+
+        ArrayList<Taxon> taxa = new ArrayList<Taxon>();
+        for (int i = 0; i < 100; i++) {
+            taxa.add(patterns.getTaxon(2 * i));
+        }
+        NearestTaxonIndex index = choice.createIndex(patterns, taxa);
+        assertEquals(taxa.size(), index.getSize());
+
+        for (int i = 0; i < 100; i++) {
+            Taxon taxon = patterns.getTaxon(2 * i + 1);
+            int closest = index.getClosest(2 * i + 1);
+            assertEquals(choice.getClosestTaxon(taxon, taxa), patterns.getTaxon(closest));
+
+            taxa.add(taxon);
+            index.add(2 * i + 1);
+        }
+    }
+
+    private char[] mutate(char[] sequence, double rate) {
+        char[] mutated = sequence.clone();
+        for (int i = 0; i < mutated.length; i++) {
+            if (MathUtils.nextDouble() < rate) {
+                mutated[i] = "ACGT".charAt(MathUtils.nextInt(4));
+            }
+        }
+        return mutated;
+    }
+
+    private SimpleAlignment alignment;
+    private SitePatterns patterns;
+}
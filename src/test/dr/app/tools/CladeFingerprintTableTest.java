@@ -0,0 +1,69 @@
+package test.dr.app.tools;
+
+import dr.app.tools.CladeFingerprintTable;
+import dr.evolution.io.Importer;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+/**
+ * Tests that clade fingerprints depend only on the taxa in a clade and that the table counts them.
+ */
+public class CladeFingerprintTableTest extends TestCase {
+
+    public CladeFingerprintTableTest(String name) {
+        super(name);
+    }
+
+    public void testSameCladesSameFingerprints() throws IOException, Importer.ImportException {
+        Tree tree1 = new NewickImporter("(((A:1,B:1):1,C:2):1,(D:1,E:1):2)").importNextTree();
+        Tree tree2 = new NewickImporter("((E:1,D:1):3,(C:2,(B:1,A:1):1):1)").importNextTree();
+        Tree tree3 = new NewickImporter("(((A:1,C:1):1,B:2):1,(D:1,E:1):2)").importNextTree();
+
+        CladeFingerprintTable.Fingerprinter fingerprinter = new CladeFingerprintTable.Fingerprinter(tree1);
+        CladeFingerprintTable table = new CladeFingerprintTable(2);
+        for (Tree tree : new Tree[] { tree1, tree2, tree3 }) {
+            fingerprinter.fingerprint(tree);
+            for (int i = 0; i < tree.getInternalNodeCount(); i++) {
+                NodeRef node = tree.getInternalNode(i);
+                table.increment(fingerprinter.getHigh(node), fingerprinter.getLow(node), 1);
+            }
+        }
+
+        // ABCDE, DE and ABC are in all three trees, AB in two and AC in one
+        assertEquals(5, table.size());
+
+        CladeFingerprintTable.Fingerprinter copy = fingerprinter.copy();
+        copy.fingerprint(tree1);
+        int total = 0;
+        for (int i = 0; i < tree1.getInternalNodeCount(); i++) {
+            NodeRef node = tree1.getInternalNode(i);
+            total += table.get(copy.getHigh(node), copy.getLow(node));
+        }
+        assertEquals(3 + 3 + 3 + 2, total);
+
+        CladeFingerprintTable merged = new CladeFingerprintTable();
+        merged.addAll(table);
+        merged.addAll(table);
+        assertEquals(5, merged.size());
+        copy.fingerprint(tree3);
+        NodeRef root = tree3.getRoot();
+        assertEquals(6, merged.get(copy.getHigh(root), copy.getLow(root)));
+    }
+
+    public void testUnknownTaxon() throws IOException, Importer.ImportException {
+        Tree tree1 = new NewickImporter("((A:1,B:1):1,C:2)").importNextTree();
+        Tree tree2 = new NewickImporter("((A:1,B:1):1,X:2)").importNextTree();
+
+        CladeFingerprintTable.Fingerprinter fingerprinter = new CladeFingerprintTable.Fingerprinter(tree1);
+        try {
+            fingerprinter.fingerprint(tree2);
+            fail("expected the unknown taxon to be reported");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package test.dr.app.tools;
+
+import dr.app.tools.LogCombiner;
+import junit.framework.TestCase;
+
+import java.io.*;
+
+/**
+ * Tests that combining logs and tree logs with several threads gives the same file as combining them in turn.
+ */
+public class LogCombinerTest extends TestCase {
+
+    public LogCombinerTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        logFiles = new String[3];
+        treeFiles = new String[3];
+        for (int i = 0; i < 3; i++) {
+            logFiles[i] = createFile(".log", createLog(i));
+            treeFiles[i] = createFile(".trees", createTrees(i));
+        }
+    }
+
+    public void testLogs() throws IOException {
+        checkSame(false, new long[]{-1}, -1, false);
+        checkSame(false, new long[]{3000}, -1, false);
+        checkSame(false, new long[]{2000, 0, 5000}, 3000, false);
+        checkSame(false, new long[]{2000}, 2000, true);
+    }
+
+    public void testTrees() throws IOException {
+        checkSame(true, new long[]{-1}, -1, false);
+        checkSame(true, new long[]{4000}, 2000, false);
+        checkSame(true, new long[]{0, 3000}, 3000, true);
+    }
+
+    private void checkSame(boolean trees, long[] burnins, long resample, boolean renumber) throws IOException {
+        String[] inputFiles = (trees ? treeFiles : logFiles);
+        File serial = File.createTempFile("combined", ".out");
+        File concurrent = File.createTempFile("combined", ".out");
+        serial.deleteOnExit();
+        concurrent.deleteOnExit();
+
+        new LogCombiner(burnins, resample, inputFiles, serial.getPath(), trees, false, false, renumber, false, 1.0, 1);
+        new LogCombiner(burnins, resample, inputFiles, concurrent.getPath(), trees, false, false, renumber, false, 1.0, 2);
+
+        String expected = readFile(serial);
+        assertTrue(expected.length() > 0);
+        assertEquals(expected, readFile(concurrent));
+    }
+
+    private static String createLog(int replicate) {
+        StringBuilder sb = new StringBuilder("# BEAST\n");
+        sb.append("state\tposterior\tclock.rate\n");
+        for (int state = 0; state <= 10000; state += 1000) {
+            sb.append(state).append("\t").append(-100.0 - replicate - state / 1000.0).append("\t");
+            if (replicate == 1 && state == 4000) {
+                // a corrupt line that is skipped
+                sb.append("1.0E\n");
+            } else {
+                sb.append(0.001 * (state + 1)).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String createTrees(int replicate) {
+        StringBuilder sb = new StringBuilder("#NEXUS\n\nBegin taxa;\n\tDimensions ntax=3;\n\tTaxlabels\n\t\tA\n\t\tB\n\t\tC\n\t\t;\nEnd;\n\n");
+        sb.append("Begin trees;\n\tTranslate\n\t\t1 A,\n\t\t2 B,\n\t\t3 C\n\t\t;\n");
+        for (int state = 0; state <= 10000; state += 1000) {
+            double height = 1.0 + replicate + state / 10000.0;
+            sb.append("tree STATE_").append(state).append(" [&lnP=").append(-state).append("] = [&R] ((1:")
+                    .append(height).append(",2:").append(height).append("):1.0,3:").append(height + 1.0).append(");\n");
+        }
+        sb.append("End;\n");
+        return sb.toString();
+    }
+
+    private static String createFile(String suffix, String content) throws IOException {
+        File file = File.createTempFile("replicate", suffix);
+        file.deleteOnExit();
+        Writer writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+        return file.getPath();
+    }
+
+    private static String readFile(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line = reader.readLine();
+        while (line != null) {
+            sb.append(line).append("\n");
+            line = reader.readLine();
+        }
+        reader.close();
+        return sb.toString();
+    }
+
+    private String[] logFiles;
+    private String[] treeFiles;
+}
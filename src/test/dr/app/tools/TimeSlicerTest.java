@@ -0,0 +1,186 @@
+package test.dr.app.tools;
+
+import dr.app.tools.TimeSlicer;
+import dr.evolution.io.Importer;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.geo.contouring.ContourMode;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests that the values TimeSlicer collects for each slice, analysing the trees in batches with one thread or
+ * several, are those of the trees taken one at a time in order, and that with a maximum number of samples each
+ * slice keeps a sample of that size, or all the values if there are no more than that.
+ */
+public class TimeSlicerTest extends TestCase {
+
+    private static final int TREE_COUNT = 237;
+    private static final String[] TAXA = {"A", "B", "C", "D", "E", "F"};
+    private static final double[] SLICE_HEIGHTS = {0.5, 1.5, 3.0};
+
+    public TimeSlicerTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+        treeFile = createFile(".trees", createTrees());
+        expected = getSliceValues(treeFile);
+    }
+
+    public void testSameAsTreeByTree() throws IOException {
+        assertSliceValues(expected, runTimeSlicer(1, 0));
+        assertSliceValues(expected, runTimeSlicer(3, 0));
+    }
+
+    public void testMaxSamples() throws IOException {
+        int largest = 0;
+        for (List<String> sliceValues : expected) {
+            largest = Math.max(largest, sliceValues.size());
+        }
+
+        // no more values than the maximum so they are all kept
+        assertSliceValues(expected, runTimeSlicer(1, largest));
+        assertSliceValues(expected, runTimeSlicer(3, largest));
+
+        final int maxSamples = 20;
+        List<List<String>> sampled = runTimeSlicer(1, maxSamples);
+        assertSliceValues(sampled, runTimeSlicer(3, maxSamples));
+        for (int i = 0; i < SLICE_HEIGHTS.length; i++) {
+            assertTrue(expected.get(i).size() > maxSamples);
+            assertEquals(maxSamples, sampled.get(i).size());
+            // every value is distinct so the sample has no value more than once
+            assertEquals(maxSamples, new HashSet<String>(sampled.get(i)).size());
+            assertTrue(expected.get(i).containsAll(sampled.get(i)));
+        }
+    }
+
+    private List<List<String>> runTimeSlicer(int threadCount, int maxSamples) throws IOException {
+        TimeSlicer timeSlicer = new TimeSlicer(treeFile, 0, 1, new String[]{"x"}, SLICE_HEIGHTS, false, false, 0.0,
+                ContourMode.SNYDER, TimeSlicer.SliceMode.BRANCHES, false, false, TimeSlicer.Normalization.NONE,
+                false, false, null, false, TimeSlicer.BranchSet.ALL, null, 200,
+                -Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, null, "none",
+                threadCount, maxSamples);
+
+        File output = File.createTempFile("slices", ".txt");
+        output.deleteOnExit();
+        timeSlicer.output(output.getPath(), false, false, false, false, false, TimeSlicer.OutputFormat.TAB,
+                new double[]{0.8}, null, null);
+
+        List<List<String>> sliceValues = createSliceLists();
+        BufferedReader reader = new BufferedReader(new FileReader(output));
+        assertEquals("slice" + TimeSlicer.sep + "x", reader.readLine());
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] columns = line.split(TimeSlicer.sep);
+            for (int i = 0; i < SLICE_HEIGHTS.length; i++) {
+                if (Double.toString(SLICE_HEIGHTS[i]).equals(columns[0])) {
+                    sliceValues.get(i).add(columns[1]);
+                }
+            }
+        }
+        reader.close();
+        return sliceValues;
+    }
+
+    // the values of the branches crossing each slice, tree by tree and node by node
+    private static List<List<String>> getSliceValues(String fileName) throws IOException {
+        List<List<String>> sliceValues = createSliceLists();
+        NexusImporter importer = new NexusImporter(new FileReader(fileName));
+        try {
+            while (importer.hasTree()) {
+                Tree tree = importer.importNextTree();
+                for (int x = 0; x < tree.getNodeCount(); x++) {
+                    NodeRef node = tree.getNode(x);
+                    if (tree.isRoot(node)) {
+                        continue;
+                    }
+                    double nodeHeight = tree.getNodeHeight(node);
+                    double parentHeight = tree.getNodeHeight(tree.getParent(node));
+                    for (int i = 0; i < SLICE_HEIGHTS.length; i++) {
+                        if (SLICE_HEIGHTS[i] >= nodeHeight && SLICE_HEIGHTS[i] < parentHeight) {
+                            sliceValues.get(i).add(tree.getNodeAttribute(node, "x").toString());
+                        }
+                    }
+                }
+            }
+        } catch (Importer.ImportException e) {
+            throw new IOException(e);
+        }
+        return sliceValues;
+    }
+
+    private static List<List<String>> createSliceLists() {
+        List<List<String>> sliceValues = new ArrayList<List<String>>();
+        for (int i = 0; i < SLICE_HEIGHTS.length; i++) {
+            sliceValues.add(new ArrayList<String>());
+        }
+        return sliceValues;
+    }
+
+    private static void assertSliceValues(List<List<String>> expected, List<List<String>> actual) {
+        for (int i = 0; i < SLICE_HEIGHTS.length; i++) {
+            assertTrue(expected.get(i).size() > 0);
+            assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    // random trees with a distinct value of the trait x on every node
+    private static String createTrees() {
+        StringBuilder sb = new StringBuilder("#NEXUS\n\nBegin taxa;\n\tDimensions ntax=").append(TAXA.length)
+                .append(";\n\tTaxlabels\n");
+        for (String taxon : TAXA) {
+            sb.append("\t\t").append(taxon).append("\n");
+        }
+        sb.append("\t\t;\nEnd;\n\nBegin trees;\n\tTranslate\n");
+        for (int i = 0; i < TAXA.length; i++) {
+            sb.append("\t\t").append(i + 1).append(" ").append(TAXA[i]).append(i < TAXA.length - 1 ? ",\n" : "\n");
+        }
+        sb.append("\t\t;\n");
+
+        int value = 0;
+        for (int t = 0; t < TREE_COUNT; t++) {
+            List<String> subtrees = new ArrayList<String>();
+            List<Double> heights = new ArrayList<Double>();
+            for (int i = 0; i < TAXA.length; i++) {
+                subtrees.add(Integer.toString(i + 1));
+                heights.add(0.0);
+            }
+            double height = 0.0;
+            while (subtrees.size() > 1) {
+                height += MathUtils.nextExponential(1.0);
+                int a = MathUtils.nextInt(subtrees.size());
+                String left = subtrees.remove(a) + "[&x=" + (value++) + ".5]:" + (height - heights.remove(a));
+                int b = MathUtils.nextInt(subtrees.size());
+                String right = subtrees.remove(b) + "[&x=" + (value++) + ".5]:" + (height - heights.remove(b));
+                subtrees.add("(" + left + "," + right + ")");
+                heights.add(height);
+            }
+            sb.append("tree STATE_").append(t).append(" = [&R] ").append(subtrees.get(0))
+                    .append("[&x=").append(value++).append(".5];\n");
+        }
+        sb.append("End;\n");
+        return sb.toString();
+    }
+
+    private static String createFile(String suffix, String content) throws IOException {
+        File file = File.createTempFile("timeslicer", suffix);
+        file.deleteOnExit();
+        Writer writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+        return file.getPath();
+    }
+
+    private String treeFile;
+    private List<List<String>> expected;
+}
@@ -0,0 +1,134 @@
+package test.dr.evolution.alignment;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxon;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests that the hashed (and parallel) compression of site patterns gives the same patterns, in the same order
+ * and with the same weights, as comparing each site with every pattern found before it.
+ */
+public class SitePatternsTest extends TestCase {
+
+    public SitePatternsTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+    }
+
+    public void testPatterns() {
+        checkPatterns(createAlignment(10, 500), null);
+    }
+
+    public void testChunkedPatterns() {
+        String threads = System.getProperty(SitePatterns.THREADS);
+        System.setProperty(SitePatterns.THREADS, "3");
+        try {
+            SimpleAlignment alignment = createAlignment(8, 5000);
+            checkPatterns(alignment, null);
+
+            boolean[] mask = new boolean[alignment.getSiteCount()];
+            for (int i = 0; i < mask.length; i++) {
+                mask[i] = MathUtils.nextBoolean();
+            }
+            checkPatterns(alignment, mask);
+        } finally {
+            if (threads == null) {
+                System.clearProperty(SitePatterns.THREADS);
+            } else {
+                System.setProperty(SitePatterns.THREADS, threads);
+            }
+        }
+    }
+
+    private void checkPatterns(SimpleAlignment alignment, boolean[] mask) {
+        SitePatterns sitePatterns = (mask == null ?
+                new SitePatterns(alignment, -1, -1, 1) : new SitePatterns(alignment, mask));
+
+        List<int[]> patterns = new ArrayList<int[]>();
+        List<Integer> weights = new ArrayList<Integer>();
+        int site = 0;
+        for (int i = 0; i < alignment.getSiteCount(); i++) {
+            if (mask != null && !mask[i]) {
+                continue;
+            }
+            int[] pattern = alignment.getSitePattern(i);
+            int index = -1;
+            if (!isStripped(pattern)) {
+                for (int j = 0; j < patterns.size() && index < 0; j++) {
+                    if (Arrays.equals(patterns.get(j), pattern)) {
+                        index = j;
+                    }
+                }
+                if (index < 0) {
+                    index = patterns.size();
+                    patterns.add(pattern);
+                    weights.add(0);
+                }
+                weights.set(index, weights.get(index) + 1);
+            }
+            assertEquals(index, sitePatterns.getPatternIndex(site));
+            site++;
+        }
+
+        assertEquals(patterns.size(), sitePatterns.getPatternCount());
+        for (int j = 0; j < patterns.size(); j++) {
+            assertTrue(Arrays.equals(patterns.get(j), sitePatterns.getPattern(j)));
+            assertEquals((double) weights.get(j), sitePatterns.getPatternWeight(j));
+        }
+    }
+
+    // constant sites of gaps or ambiguities
+    private boolean isStripped(int[] pattern) {
+        boolean isInvariant = true;
+        boolean isCertain = true;
+        for (int state : pattern) {
+            isInvariant &= (state == pattern[0]);
+            isCertain &= (state < Nucleotides.INSTANCE.getStateCount());
+        }
+        return isInvariant && !isCertain;
+    }
+
+    // sequences that differ from a common one at a few sites, with some gaps and ambiguities
+    private SimpleAlignment createAlignment(int taxonCount, int siteCount) {
+        final String states = "ACGT";
+        char[] common = new char[siteCount];
+        for (int i = 0; i < siteCount; i++) {
+            common[i] = states.charAt(MathUtils.nextInt(4));
+        }
+
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int t = 0; t < taxonCount; t++) {
+            char[] sequence = common.clone();
+            for (int i = 0; i < siteCount; i++) {
+                double u = MathUtils.nextDouble();
+                if (u < 0.05) {
+                    sequence[i] = states.charAt(MathUtils.nextInt(4));
+                } else if (u < 0.06) {
+                    sequence[i] = '-';
+                } else if (u < 0.065) {
+                    sequence[i] = 'R';
+                }
+            }
+            // a few whole columns of gaps that are stripped out
+            for (int i = 0; i < siteCount; i += 100) {
+                sequence[i] = '-';
+            }
+            alignment.addSequence(new Sequence(new Taxon("taxon" + t), new String(sequence)));
+        }
+        return alignment;
+    }
+}
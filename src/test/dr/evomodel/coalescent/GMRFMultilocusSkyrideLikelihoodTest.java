@@ -0,0 +1,134 @@
+package test.dr.evomodel.coalescent;
+
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Date;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.coalescent.GMRFMultilocusSkyrideLikelihood;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import dr.math.matrixAlgebra.TridiagonalCholesky;
+import junit.framework.TestCase;
+import no.uib.cipr.matrix.BandCholesky;
+import no.uib.cipr.matrix.SymmTridiagMatrix;
+import no.uib.cipr.matrix.UpperSPDBandMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that the skygrid likelihood, which only walks the trees that change, matches one set up from scratch
+ * as trees are changed, restored and accepted, and that the tridiagonal Cholesky solves match MTJ.
+ */
+public class GMRFMultilocusSkyrideLikelihoodTest extends TestCase {
+
+    public GMRFMultilocusSkyrideLikelihoodTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        trees = new ArrayList<Tree>();
+        for (int t = 0; t < 6; t++) {
+            Taxa taxa = new Taxa();
+            for (int i = 0; i < 12; i++) {
+                Taxon taxon = new Taxon("taxon" + i);
+                taxon.setDate(new Date(MathUtils.nextDouble(), Units.Type.YEARS, true));
+                taxa.addTaxon(taxon);
+            }
+            ConstantPopulation demographic = new ConstantPopulation(Units.Type.YEARS);
+            demographic.setN0(1.0 + t);
+            trees.add(new TreeModel("tree" + t, new CoalescentSimulator().simulateTree(taxa, demographic)));
+        }
+    }
+
+    public void testChangedTrees() {
+        GMRFMultilocusSkyrideLikelihood likelihood = createLikelihood();
+
+        for (int step = 0; step < 100; step++) {
+            likelihood.storeModelState();
+
+            TreeModel tree = (TreeModel) trees.get(MathUtils.nextInt(trees.size()));
+            NodeRef node = tree.getInternalNode(MathUtils.nextInt(tree.getInternalNodeCount()));
+            double lower = Math.max(tree.getNodeHeight(tree.getChild(node, 0)), tree.getNodeHeight(tree.getChild(node, 1)));
+            double upper = (tree.isRoot(node) ? lower + 1.0 : tree.getNodeHeight(tree.getParent(node)));
+            tree.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+
+            assertEquals(createLikelihood().getLogLikelihood(), likelihood.getLogLikelihood(), 1E-10);
+
+            if (MathUtils.nextBoolean()) {
+                tree.restoreModelState();
+                likelihood.restoreModelState();
+            } else {
+                tree.acceptModelState();
+                likelihood.acceptModelState();
+            }
+
+            assertEquals(createLikelihood().getLogLikelihood(), likelihood.getLogLikelihood(), 1E-10);
+        }
+    }
+
+    public void testTridiagonalCholesky() {
+        final int n = 50;
+        double[] diagonal = new double[n];
+        double[] offDiagonal = new double[n - 1];
+        for (int i = 0; i < n; i++) {
+            diagonal[i] = 2.0 + MathUtils.nextDouble();
+            if (i < n - 1) {
+                offDiagonal[i] = -MathUtils.nextDouble();
+            }
+        }
+        double[] b = new double[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = MathUtils.nextGaussian();
+        }
+
+        TridiagonalCholesky cholesky = new TridiagonalCholesky(n);
+        assertTrue(cholesky.factor(diagonal, offDiagonal));
+
+        double[] x = new double[n];
+        cholesky.solve(b, x);
+        double[] product = new double[n];
+        TridiagonalCholesky.multiply(diagonal, offDiagonal, x, product);
+        for (int i = 0; i < n; i++) {
+            assertEquals(b[i], product[i], 1E-10);
+        }
+
+        BandCholesky bandCholesky = new BandCholesky(n, 1, true);
+        bandCholesky.factor(new UpperSPDBandMatrix(new SymmTridiagMatrix(diagonal, offDiagonal), 1));
+        double logDeterminant = 0.0;
+        for (int i = 0; i < n; i++) {
+            assertEquals(bandCholesky.getU().get(i, i), cholesky.getDiagonal()[i], 1E-12);
+            logDeterminant += 2.0 * Math.log(bandCholesky.getU().get(i, i));
+        }
+        assertEquals(logDeterminant, cholesky.getLogDeterminant(), 1E-10);
+
+        diagonal[n / 2] = -1.0;
+        assertFalse(cholesky.factor(diagonal, offDiagonal));
+    }
+
+    private GMRFMultilocusSkyrideLikelihood createLikelihood() {
+        final int gridPointCount = 20;
+        double[] ploidyFactors = new double[trees.size()];
+        for (int i = 0; i < ploidyFactors.length; i++) {
+            ploidyFactors[i] = (i % 2 == 0 ? 0.5 : 2.0);
+        }
+        Parameter popSizes = new Parameter.Default(gridPointCount + 1, 0.5);
+        for (int i = 0; i < popSizes.getDimension(); i++) {
+            popSizes.setParameterValue(i, 0.1 * i);
+        }
+        return new GMRFMultilocusSkyrideLikelihood(trees, popSizes, null, new Parameter.Default(2.0),
+                new Parameter.Default(1.0), null, null, false, 3.0, gridPointCount, null,
+                new Parameter.Default(ploidyFactors));
+    }
+
+    private List<Tree> trees;
+}
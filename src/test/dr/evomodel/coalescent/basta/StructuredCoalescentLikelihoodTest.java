@@ -0,0 +1,138 @@
+package test.dr.evomodel.coalescent.basta;
+
+import dr.evolution.alignment.SimpleSiteList;
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.datatype.GeneralDataType;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Date;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.coalescent.basta.StructuredCoalescentLikelihood;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.SVSComplexSubstitutionModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that the structured coalescent likelihood, which only walks the intervals above the lowest change, matches
+ * one computed from scratch as node heights, topology and population sizes are changed, restored and accepted.
+ */
+public class StructuredCoalescentLikelihoodTest extends TestCase {
+
+    public StructuredCoalescentLikelihoodTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        final int demes = 3;
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < 20; i++) {
+            Taxon taxon = new Taxon("taxon" + i);
+            taxon.setDate(new Date(MathUtils.nextDouble(), Units.Type.YEARS, true));
+            taxa.addTaxon(taxon);
+        }
+        ConstantPopulation demographic = new ConstantPopulation(Units.Type.YEARS);
+        demographic.setN0(2.0);
+        tree = new TreeModel("tree", new CoalescentSimulator().simulateTree(taxa, demographic));
+
+        List<String> states = new ArrayList<String>();
+        for (int i = 0; i < demes; i++) {
+            states.add("deme" + i);
+        }
+        GeneralDataType dataType = new GeneralDataType(states);
+        patterns = new SimpleSiteList(dataType, taxa);
+        int[] pattern = new int[taxa.getTaxonCount()];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = MathUtils.nextInt(demes);
+        }
+        patterns.addPattern(pattern);
+
+        Parameter rates = new Parameter.Default(demes * (demes - 1));
+        for (int i = 0; i < rates.getDimension(); i++) {
+            rates.setParameterValue(i, 0.5 + MathUtils.nextDouble());
+        }
+        migrationModel = new SVSComplexSubstitutionModel("migrationModel", dataType,
+                new FrequencyModel(dataType, new double[]{1.0 / 3, 1.0 / 3, 1.0 / 3}), rates, null);
+
+        popSizes = new Parameter.Default(demes);
+        for (int i = 0; i < demes; i++) {
+            popSizes.setParameterValue(i, 1.0 + i);
+        }
+    }
+
+    public void testChangedTree() throws Exception {
+        StructuredCoalescentLikelihood likelihood = createLikelihood();
+
+        for (int step = 0; step < 200; step++) {
+            likelihood.storeModelState();
+            tree.storeModelState();
+            popSizes.storeParameterValues();
+
+            double u = MathUtils.nextDouble();
+            if (u < 0.7) {
+                NodeRef node = tree.getInternalNode(MathUtils.nextInt(tree.getInternalNodeCount()));
+                double lower = Math.max(tree.getNodeHeight(tree.getChild(node, 0)), tree.getNodeHeight(tree.getChild(node, 1)));
+                double upper = (tree.isRoot(node) ? lower + 1.0 : tree.getNodeHeight(tree.getParent(node)));
+                tree.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+            } else if (u < 0.9) {
+                exchange(tree.getNode(MathUtils.nextInt(tree.getNodeCount())));
+            } else {
+                popSizes.setParameterValue(MathUtils.nextInt(popSizes.getDimension()), 1.0 + MathUtils.nextDouble());
+            }
+
+            assertEquals(createLikelihood().getLogLikelihood(), likelihood.getLogLikelihood(), 1E-10);
+
+            if (MathUtils.nextBoolean()) {
+                tree.restoreModelState();
+                popSizes.restoreParameterValues();
+                likelihood.restoreModelState();
+            } else {
+                tree.acceptModelState();
+                popSizes.acceptParameterValues();
+                likelihood.acceptModelState();
+            }
+
+            assertEquals(createLikelihood().getLogLikelihood(), likelihood.getLogLikelihood(), 1E-10);
+        }
+    }
+
+    // swaps a node with its parent's sibling, where the heights allow it
+    private void exchange(NodeRef node) {
+        if (tree.isRoot(node) || tree.isRoot(tree.getParent(node))) {
+            return;
+        }
+        NodeRef parent = tree.getParent(node);
+        NodeRef grandParent = tree.getParent(parent);
+        NodeRef uncle = (tree.getChild(grandParent, 0) == parent ? tree.getChild(grandParent, 1) : tree.getChild(grandParent, 0));
+        if (tree.getNodeHeight(uncle) < tree.getNodeHeight(parent)) {
+            tree.beginTreeEdit();
+            tree.removeChild(parent, node);
+            tree.removeChild(grandParent, uncle);
+            tree.addChild(parent, uncle);
+            tree.addChild(grandParent, node);
+            tree.endTreeEdit();
+        }
+    }
+
+    private StructuredCoalescentLikelihood createLikelihood() throws Exception {
+        return new StructuredCoalescentLikelihood(tree, new DefaultBranchRateModel(), popSizes, patterns,
+                migrationModel, 2, null, null);
+    }
+
+    private TreeModel tree;
+    private SimpleSiteList patterns;
+    private SVSComplexSubstitutionModel migrationModel;
+    private Parameter popSizes;
+}
@@ -0,0 +1,88 @@
+package test.dr.evomodel.tree;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
+import dr.evomodel.operators.NNI;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.operators.AdaptationMode;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that a tree model puts back the topology and heights it had at the last store after moves that
+ * change only some of the nodes, and that its flat post-order agrees with a recursive traversal.
+ */
+public class TreeModelStoreRestoreTest extends TestCase {
+
+    public TreeModelStoreRestoreTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        NewickImporter importer = new NewickImporter(
+                "((((A:1.0,B:1.0):1.0,C:2.0):1.0,(D:0.5,E:0.5):2.5):1.0,((F:2.0,G:2.0):1.5,H:3.5):1.5);");
+        tree = importer.importTree(null);
+    }
+
+    public void testRestoreAfterMoves() throws Exception {
+        TreeModel treeModel = new TreeModel("treeModel", tree);
+        NNI nni = new NNI(treeModel, 1.0);
+        SubtreeSlideOperator slide = new SubtreeSlideOperator(treeModel, 1.0, 1.0, true, false, false, false,
+                AdaptationMode.ADAPTATION_OFF, 0.234);
+
+        for (int i = 0; i < 200; i++) {
+            String before = TreeUtils.newick(treeModel);
+            assertPostOrder(treeModel);
+
+            treeModel.storeModelState();
+            try {
+                if (i % 2 == 0) {
+                    nni.doOperation();
+                } else {
+                    slide.doOperation();
+                }
+            } catch (RuntimeException e) {
+                // a move that was not possible still has to be restored
+            }
+            assertPostOrder(treeModel);
+
+            if (i % 3 == 0) {
+                treeModel.acceptModelState();
+            } else {
+                treeModel.restoreModelState();
+                assertEquals(before, TreeUtils.newick(treeModel));
+            }
+        }
+    }
+
+    private static void assertPostOrder(TreeModel treeModel) {
+        List<Integer> expected = new ArrayList<Integer>();
+        addPostOrder(treeModel, treeModel.getRoot(), expected);
+
+        int[] postOrder = treeModel.getPostOrderNodeNumbers();
+        assertEquals(expected.size(), postOrder.length);
+        for (int i = 0; i < postOrder.length; i++) {
+            assertEquals((int) expected.get(i), postOrder[i]);
+            assertEquals(i, treeModel.getPostOrderPosition(postOrder[i]));
+        }
+    }
+
+    private static void addPostOrder(Tree tree, NodeRef node, List<Integer> order) {
+        for (int i = 0; i < tree.getChildCount(node); i++) {
+            addPostOrder(tree, tree.getChild(node, i), order);
+        }
+        order.add(node.getNumber());
+    }
+
+    private Tree tree;
+}
@@ -0,0 +1,167 @@
+package test.dr.evomodel.treedatalikelihood;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchmodel.BranchModel;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.branchratemodel.StrictClockBranchRates;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treedatalikelihood.DataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.JavaDataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
+import dr.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import dr.oldevomodel.sitemodel.GammaSiteModel;
+import dr.oldevomodel.treelikelihood.TreeLikelihood;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the pure Java data likelihood delegate gives the same likelihood as the old TreeLikelihood, with and
+ * without rescaling, on one and several threads and as the substitution model is changed and restored, and that
+ * restoring after a change to a branch length or the rate gives back exactly the same likelihood.
+ */
+public class JavaDataLikelihoodDelegateTest extends TestCase {
+
+    private static final int TAXON_COUNT = 24;
+    private static final int SITE_COUNT = 3000;
+
+    public JavaDataLikelihoodDelegateTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        String bases = "ACGT-R";
+        StringBuilder ancestor = new StringBuilder();
+        for (int j = 0; j < SITE_COUNT; j++) {
+            ancestor.append(bases.charAt(MathUtils.nextInt(4)));
+        }
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            StringBuilder sequence = new StringBuilder(ancestor);
+            for (int j = 0; j < SITE_COUNT; j++) {
+                if (MathUtils.nextDouble() < 0.3) {
+                    sequence.setCharAt(j, bases.charAt(MathUtils.nextInt(bases.length())));
+                }
+            }
+            alignment.addSequence(new Sequence(new Taxon("t" + i), sequence.toString()));
+        }
+        patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        StringBuilder newick = new StringBuilder("t0:0.1");
+        for (int i = 1; i < TAXON_COUNT; i++) {
+            newick.insert(0, "(").append(",t").append(i).append(":").append(0.05 + 0.01 * i).append("):0.02");
+        }
+        Tree tree = new NewickImporter(newick.toString() + ";").importTree(null);
+        treeModel = new TreeModel(tree);
+
+        kappa = new Parameter.Default(2.0);
+        freqs = new Parameter.Default(new double[]{0.2, 0.3, 0.25, 0.25});
+        HKY hky = new HKY(kappa, new FrequencyModel(Nucleotides.INSTANCE, freqs));
+        siteRateModel = new GammaSiteRateModel("gammaModel", 0.5, 4);
+        siteRateModel.setSubstitutionModel(hky);
+        branchModel = new HomogeneousBranchModel(hky, hky.getFrequencyModel());
+    }
+
+    public void testSameAsTreeLikelihood() throws Exception {
+        dr.oldevomodel.substmodel.HKY hky = new dr.oldevomodel.substmodel.HKY(kappa,
+                new dr.oldevomodel.substmodel.FrequencyModel(Nucleotides.INSTANCE, freqs));
+        TreeLikelihood treeLikelihood = new TreeLikelihood(patterns, treeModel, new GammaSiteModel(hky, 0.5, 4),
+                new DefaultBranchRateModel(), null, false, false, true, true, false);
+
+        double expected = treeLikelihood.getLogLikelihood();
+
+        for (PartialsRescalingScheme scheme : new PartialsRescalingScheme[] {
+                PartialsRescalingScheme.NONE, PartialsRescalingScheme.ALWAYS, PartialsRescalingScheme.DYNAMIC }) {
+            for (int threadCount : new int[] { 1, 4 }) {
+                TreeDataLikelihood java = createLikelihood(scheme, threadCount);
+                assertEquals(scheme + " on " + threadCount, expected, java.getLogLikelihood(), 1E-8);
+            }
+        }
+    }
+
+    public void testStoreRestore() throws Exception {
+        TreeDataLikelihood java = createLikelihood(PartialsRescalingScheme.ALWAYS, 4);
+
+        double logL = java.getLogLikelihood();
+
+        java.storeModelState();
+        kappa.setParameterValue(0, 5.0);
+        double changedLogL = java.getLogLikelihood();
+        assertTrue(changedLogL != logL);
+        kappa.setParameterValue(0, 2.0);
+        java.restoreModelState();
+        assertEquals(logL, java.getLogLikelihood(), 1E-10);
+
+        java.makeDirty();
+        assertEquals(logL, java.getLogLikelihood(), 1E-8);
+    }
+
+    public void testRestoreBranchLengthAndRate() throws Exception {
+        Parameter rate = new Parameter.Default(1.0);
+        NodeRef node = treeModel.getInternalNode(TAXON_COUNT / 2);
+        double height = treeModel.getNodeHeight(node);
+        double childHeight = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+
+        for (PartialsRescalingScheme scheme : new PartialsRescalingScheme[] {
+                PartialsRescalingScheme.NONE, PartialsRescalingScheme.ALWAYS, PartialsRescalingScheme.DYNAMIC }) {
+            for (int threadCount : new int[] { 1, 4 }) {
+                TreeDataLikelihood java = createLikelihood(scheme, threadCount, new StrictClockBranchRates(rate));
+                double logL = java.getLogLikelihood();
+
+                java.storeModelState();
+                treeModel.setNodeHeight(node, (height + childHeight) / 2.0);
+                assertTrue(java.getLogLikelihood() != logL);
+                java.restoreModelState();
+                assertEquals(height, treeModel.getNodeHeight(node), 0.0);
+                assertEquals(scheme + " on " + threadCount, logL, java.getLogLikelihood(), 0.0);
+
+                java.storeModelState();
+                rate.setParameterValue(0, 1.5);
+                assertTrue(java.getLogLikelihood() != logL);
+                java.restoreModelState();
+                assertEquals(1.0, rate.getParameterValue(0), 0.0);
+                assertEquals(scheme + " on " + threadCount, logL, java.getLogLikelihood(), 0.0);
+            }
+        }
+    }
+
+    private TreeDataLikelihood createLikelihood(PartialsRescalingScheme scheme, int threadCount)
+            throws DataLikelihoodDelegate.DelegateTypeException {
+        return createLikelihood(scheme, threadCount, new DefaultBranchRateModel());
+    }
+
+    private TreeDataLikelihood createLikelihood(PartialsRescalingScheme scheme, int threadCount,
+                                                BranchRateModel branchRateModel)
+            throws DataLikelihoodDelegate.DelegateTypeException {
+        return new TreeDataLikelihood(
+                new JavaDataLikelihoodDelegate(treeModel, patterns, branchModel, siteRateModel, false,
+                        scheme, false, threadCount),
+                treeModel, branchRateModel);
+    }
+
+    private SimpleAlignment alignment;
+    private SitePatterns patterns;
+    private TreeModel treeModel;
+    private Parameter kappa;
+    private Parameter freqs;
+    private GammaSiteRateModel siteRateModel;
+    private BranchModel branchModel;
+}
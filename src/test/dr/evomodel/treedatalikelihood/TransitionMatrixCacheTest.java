@@ -0,0 +1,159 @@
+package test.dr.evomodel.treedatalikelihood;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchmodel.BranchModel;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treedatalikelihood.BeagleDataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.TransitionMatrixCache;
+import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
+import dr.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Tests the eviction and counts of the transition matrix cache and that a likelihood using it (with the Java
+ * implementation of BEAGLE) stays the same as one without as the model and tree are changed and restored, with
+ * branches of the same length sharing a cached matrix.
+ */
+public class TransitionMatrixCacheTest extends TestCase {
+
+    public TransitionMatrixCacheTest(String name) {
+        super(name);
+    }
+
+    public void testLeastRecentlyUsed() {
+        TransitionMatrixCache cache = new TransitionMatrixCache(2, 4);
+        long version = cache.newVersion();
+        assertTrue(cache.newVersion() != version);
+
+        cache.add(version, 0.1)[0] = 1.0;
+        cache.add(version, 0.2)[0] = 2.0;
+        assertEquals(1.0, cache.get(version, 0.1)[0]);
+
+        // 0.2 is now the least recently used
+        cache.add(version, 0.3)[0] = 3.0;
+        assertNull(cache.get(version, 0.2));
+        assertEquals(1.0, cache.get(version, 0.1)[0]);
+        assertEquals(3.0, cache.get(version, 0.3)[0]);
+        assertNull(cache.get(version + 1, 0.3));
+
+        assertEquals(2, cache.getSize());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    public void testSameLikelihood() throws Exception {
+        String javaOnly = System.getProperty("java.only");
+        System.setProperty("java.only", "true");
+        try {
+            TreeDataLikelihood likelihood = createLikelihood();
+            System.setProperty("beagle.matrix.cache", "100");
+            TreeDataLikelihood cachedLikelihood = createLikelihood();
+            System.clearProperty("beagle.matrix.cache");
+
+            assertEquals(likelihood.getLogLikelihood(), cachedLikelihood.getLogLikelihood(), 1E-10);
+            TransitionMatrixCache cache = ((BeagleDataLikelihoodDelegate) cachedLikelihood.getDataLikelihoodDelegate())
+                    .getTransitionMatrixCache();
+
+            // the tree's 14 branches have only three lengths, so all but one matrix for each length is a hit
+            assertEquals(3, cache.getMissCount());
+            assertEquals(11, cache.getHitCount());
+
+            for (int i = 0; i < 20; i++) {
+                likelihood.storeModelState();
+                cachedLikelihood.storeModelState();
+                treeModel.storeModelState();
+                kappa.storeParameterValues();
+
+                if (i % 2 == 0) {
+                    kappa.setParameterValue(0, 1.0 + MathUtils.nextDouble() * 4.0);
+                } else {
+                    NodeRef node = treeModel.getNode(treeModel.getExternalNodeCount() +
+                            MathUtils.nextInt(treeModel.getInternalNodeCount() - 1));
+                    double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                            treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+                    double upper = treeModel.getNodeHeight(treeModel.getParent(node));
+                    treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+                }
+                assertEquals(likelihood.getLogLikelihood(), cachedLikelihood.getLogLikelihood(), 1E-10);
+
+                if (i % 3 == 0) {
+                    treeModel.restoreModelState();
+                    kappa.restoreParameterValues();
+                    likelihood.restoreModelState();
+                    cachedLikelihood.restoreModelState();
+                    assertEquals(likelihood.getLogLikelihood(), cachedLikelihood.getLogLikelihood(), 1E-10);
+                } else {
+                    treeModel.acceptModelState();
+                    likelihood.acceptModelState();
+                    cachedLikelihood.acceptModelState();
+                }
+            }
+
+            // moving a node keeps the two branches of a cherry the same length, so later updates hit too
+            assertTrue(cache.getHitCount() > 11);
+        } finally {
+            if (javaOnly == null) {
+                System.clearProperty("java.only");
+            } else {
+                System.setProperty("java.only", javaOnly);
+            }
+        }
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        // an ultrametric tree with all the tips at the same height so the branches of each cherry are the same
+        treeModel = new TreeModel(new NewickImporter(
+                "(((t0:1.0,t1:1.0):1.0,(t2:0.5,t3:0.5):1.5):1.0,((t4:1.5,t5:1.5):1.0,(t6:1.0,t7:1.0):1.5):0.5);")
+                .importTree(null));
+
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        String bases = "ACGT";
+        for (int i = 0; i < 8; i++) {
+            StringBuilder sequence = new StringBuilder();
+            for (int j = 0; j < 200; j++) {
+                sequence.append(bases.charAt(MathUtils.nextInt(4)));
+            }
+            alignment.addSequence(new Sequence(new Taxon("t" + i), sequence.toString()));
+        }
+        patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        kappa = new Parameter.Default(2.0);
+        HKY hky = new HKY(kappa, new FrequencyModel(Nucleotides.INSTANCE,
+                new Parameter.Default(new double[]{0.2, 0.3, 0.25, 0.25})));
+        siteRateModel = new GammaSiteRateModel("siteModel");
+        siteRateModel.setSubstitutionModel(hky);
+        branchModel = new HomogeneousBranchModel(hky, hky.getFrequencyModel());
+    }
+
+    private TreeDataLikelihood createLikelihood() {
+        return new TreeDataLikelihood(
+                new BeagleDataLikelihoodDelegate(treeModel, patterns, branchModel, siteRateModel, false,
+                        PartialsRescalingScheme.NONE, false, BeagleDataLikelihoodDelegate.PreOrderSettings.getDefault()),
+                treeModel, new DefaultBranchRateModel());
+    }
+
+    private TreeModel treeModel;
+    private SitePatterns patterns;
+    private Parameter kappa;
+    private GammaSiteRateModel siteRateModel;
+    private BranchModel branchModel;
+}
@@ -0,0 +1,83 @@
+package test.dr.geo;
+
+import dr.geo.Polygon2D;
+import dr.geo.PolygonEdgeIndex;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.awt.geom.Point2D;
+
+/**
+ * Tests that point-in-polygon queries through the edge index agree with a scan of every edge, including for
+ * points on vertices and edges.
+ */
+public class PolygonEdgeIndexTest extends TestCase {
+
+    public PolygonEdgeIndexTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+    }
+
+    public void testRandomPolygon() {
+        Polygon2D polygon = new Polygon2D();
+        final int vertexCount = 500;
+        for (int i = 0; i < vertexCount; i++) {
+            double angle = 2.0 * Math.PI * i / vertexCount;
+            double radius = 10.0 + 10.0 * MathUtils.nextDouble();
+            polygon.addPoint2D(new Point2D.Double(radius * Math.cos(angle), radius * Math.sin(angle)));
+        }
+        checkAgreement(polygon, 25.0);
+    }
+
+    public void testGridPolygon() {
+        // a comb of axis aligned edges with vertices on a coarse grid so many points fall on edges
+        Polygon2D polygon = new Polygon2D();
+        polygon.addPoint2D(new Point2D.Double(0, 0));
+        for (int i = 0; i < 10; i++) {
+            polygon.addPoint2D(new Point2D.Double(2 * i, 10));
+            polygon.addPoint2D(new Point2D.Double(2 * i + 1, 10));
+            polygon.addPoint2D(new Point2D.Double(2 * i + 1, 1));
+            polygon.addPoint2D(new Point2D.Double(2 * i + 2, 1));
+        }
+        polygon.addPoint2D(new Point2D.Double(20, 0));
+        checkAgreement(polygon, 12.0);
+
+        for (int px = -1; px <= 21; px++) {
+            for (int py = -1; py <= 11; py++) {
+                assertEquals(polygon.scanContainsPoint2D(px, py), polygon.containsPoint2D(new Point2D.Double(px, py)));
+            }
+        }
+
+        PolygonEdgeIndex index = polygon.getEdgeIndex();
+        assertEquals(0.0, index.getMinX());
+        assertEquals(20.0, index.getMaxX());
+        assertEquals(0.0, index.getMinY());
+        assertEquals(10.0, index.getMaxY());
+    }
+
+    public void testChangedPolygon() {
+        Polygon2D polygon = new Polygon2D();
+        polygon.addPoint2D(new Point2D.Double(0, 0));
+        polygon.addPoint2D(new Point2D.Double(0, 1));
+        polygon.addPoint2D(new Point2D.Double(1, 1));
+
+        Point2D point = new Point2D.Double(0.9, 0.5);
+        assertFalse(polygon.containsPoint2D(point));
+
+        polygon.addPoint2D(new Point2D.Double(1, 0));
+        assertTrue(polygon.containsPoint2D(point));
+    }
+
+    private void checkAgreement(Polygon2D polygon, double extent) {
+        for (int i = 0; i < 100000; i++) {
+            double px = extent * (2.0 * MathUtils.nextDouble() - 1.0);
+            double py = extent * (2.0 * MathUtils.nextDouble() - 1.0);
+            assertEquals(polygon.scanContainsPoint2D(px, py), polygon.containsPoint2D(new Point2D.Double(px, py)));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package test.dr.inference.loggers;
+
+import dr.inference.loggers.AsynchronousMCLogger;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.loggers.TabDelimitedFormatter;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests that the asynchronous logger writes the same log as MCLogger row for row, including when the chain
+ * thread is interrupted while waiting for the writer, in which case the interrupt is kept.
+ */
+public class AsynchronousMCLoggerTest extends TestCase {
+
+    private static final long STATE_COUNT = 2000;
+    private static final long LOG_EVERY = 10;
+
+    public AsynchronousMCLoggerTest(String name) {
+        super(name);
+    }
+
+    public void testSameAsSynchronous() {
+        Parameter parameter = createParameter();
+        StringWriter expected = new StringWriter();
+        StringWriter actual = new StringWriter();
+        MCLogger synchronous = createLogger(new MCLogger(new TabDelimitedFormatter(new PrintWriter(expected)),
+                LOG_EVERY, false), parameter);
+        MCLogger asynchronous = createLogger(new AsynchronousMCLogger(
+                new TabDelimitedFormatter(new PrintWriter(actual)), LOG_EVERY, 4), parameter);
+
+        runLoggers(parameter, synchronous, asynchronous, -1);
+
+        assertRowsEqual(expected.toString(), actual.toString());
+    }
+
+    public void testInterrupted() {
+        Parameter parameter = createParameter();
+        StringWriter expected = new StringWriter();
+        SlowOutputStream stream = new SlowOutputStream(Thread.currentThread());
+        MCLogger synchronous = createLogger(new MCLogger(new TabDelimitedFormatter(new PrintWriter(expected)),
+                LOG_EVERY, false), parameter);
+        MCLogger asynchronous = createLogger(new AsynchronousMCLogger(
+                new TabDelimitedFormatter(stream), LOG_EVERY, 1), parameter);
+
+        // the writer is slowed down so that the chain is waiting for it when interrupted
+        runLoggers(parameter, synchronous, asynchronous, STATE_COUNT / 2);
+
+        assertTrue(Thread.interrupted());
+        assertRowsEqual(expected.toString(), stream.toString());
+    }
+
+    private static void runLoggers(Parameter parameter, MCLogger synchronous, MCLogger asynchronous,
+                                   long interruptState) {
+        MathUtils.setSeed(666);
+
+        synchronous.startLogging();
+        asynchronous.startLogging();
+        for (long state = 0; state <= STATE_COUNT; state++) {
+            parameter.setParameterValue(0, MathUtils.nextGaussian());
+            parameter.setParameterValue(1, MathUtils.nextDouble() * 1E-4);
+            if (state == interruptState) {
+                Thread.currentThread().interrupt();
+            }
+            synchronous.log(state);
+            asynchronous.log(state);
+        }
+        synchronous.stopLogging();
+        asynchronous.stopLogging();
+    }
+
+    private static void assertRowsEqual(String expected, String actual) {
+        String[] expectedRows = expected.split("\n");
+        String[] actualRows = actual.split("\n");
+        assertEquals(STATE_COUNT / LOG_EVERY + 2, expectedRows.length);
+        assertEquals(expectedRows.length, actualRows.length);
+        for (int i = 0; i < expectedRows.length; i++) {
+            assertEquals(expectedRows[i], actualRows[i]);
+        }
+    }
+
+    private static Parameter createParameter() {
+        return new Parameter.Default("x", 2);
+    }
+
+    // a parameter at full precision, a number column with significant figures and padding, and a column that
+    // is formatted on the chain thread
+    private static MCLogger createLogger(MCLogger logger, final Parameter parameter) {
+        logger.add(parameter);
+
+        NumberColumn rounded = new NumberColumn("rounded") {
+            public double getDoubleValue() {
+                return parameter.getParameterValue(0) * 1000.0;
+            }
+        };
+        rounded.setSignificantFigures(4);
+        rounded.setMinimumWidth(12);
+        logger.addColumn(rounded);
+
+        logger.addColumn(new LogColumn.Abstract("sign") {
+            protected String getFormattedValue() {
+                return parameter.getParameterValue(0) < 0.0 ? "negative" : "positive";
+            }
+        });
+        return logger;
+    }
+
+    /**
+     * Collects the output, sleeping on each write from any thread but the chain's.
+     */
+    private static class SlowOutputStream extends OutputStream {
+        SlowOutputStream(Thread chainThread) {
+            this.chainThread = chainThread;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (Thread.currentThread() != chainThread) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            buffer.append(new String(b, off, len, "UTF-8"));
+        }
+
+        public synchronized String toString() {
+            return buffer.toString();
+        }
+
+        private final Thread chainThread;
+        private final StringBuilder buffer = new StringBuilder();
+    }
+}
@@ -0,0 +1,117 @@
+package test.dr.inference.mcmc;
+
+import dr.inference.loggers.Loggable;
+import dr.inference.mcmc.ConvergenceDiagnostics;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Tests the batch-means ESS and split R-hat of the online convergence diagnostics on independent, autocorrelated
+ * and drifting series, that a column that never changes doesn't keep the chain from converging, and that
+ * statistics shared between threads (as by the chains of MCMCMC) lose no values.
+ */
+public class ConvergenceDiagnosticsTest extends TestCase {
+
+    public ConvergenceDiagnosticsTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+    }
+
+    public void testIndependent() {
+        final int n = 100000;
+        ConvergenceDiagnostics.BatchMeans statistics = new ConvergenceDiagnostics.BatchMeans();
+        for (int i = 0; i < n; i++) {
+            statistics.add(5.0 + 2.0 * MathUtils.nextGaussian());
+        }
+
+        assertEquals(n, statistics.getCount());
+        assertEquals(5.0, statistics.getMean(), 0.05);
+        assertEquals(4.0, statistics.getVariance(), 0.1);
+        assertTrue(statistics.getBatchCount() <= 64);
+
+        // the ESS of independent values is around the sample size (within the error of a few dozen batches)
+        final double sampleSize = (double) statistics.getBatchCount() * statistics.getBatchSize();
+        assertEquals(1.0, statistics.getESS() / sampleSize, 0.5);
+        assertEquals(1.0, statistics.getSplitRHat(), 0.01);
+    }
+
+    public void testAutocorrelated() {
+        final int n = 100000;
+        final double rho = 0.95;
+        ConvergenceDiagnostics.BatchMeans statistics = new ConvergenceDiagnostics.BatchMeans();
+        double x = 0.0;
+        for (int i = 0; i < n; i++) {
+            x = rho * x + MathUtils.nextGaussian();
+            statistics.add(x);
+        }
+
+        // the ESS of an AR(1) series is about n (1 - rho) / (1 + rho)
+        final double sampleSize = (double) statistics.getBatchCount() * statistics.getBatchSize();
+        final double expected = sampleSize * (1.0 - rho) / (1.0 + rho);
+        assertEquals(1.0, statistics.getESS() / expected, 0.5);
+        assertTrue(statistics.getSplitRHat() < 1.05);
+    }
+
+    public void testDrifting() {
+        final int n = 10000;
+        ConvergenceDiagnostics.BatchMeans statistics = new ConvergenceDiagnostics.BatchMeans();
+        for (int i = 0; i < n; i++) {
+            statistics.add(10.0 * i / n + MathUtils.nextGaussian());
+        }
+
+        assertTrue(statistics.getSplitRHat() > 1.5);
+        assertTrue(statistics.getESS() < 0.01 * n);
+    }
+
+    public void testConstantColumn() {
+        Parameter x = new Parameter.Default("x", 0.0);
+        Parameter constant = new Parameter.Default("constant", 1.0);
+        ConvergenceDiagnostics diagnostics = new ConvergenceDiagnostics(new Loggable[] { x, constant }, 1, 100.0,
+                1.1, 0);
+        diagnostics.setStopsChain(false);
+
+        for (int state = 0; state < 10000; state++) {
+            x.setParameterValue(0, MathUtils.nextGaussian());
+            diagnostics.currentState(state, null, null);
+        }
+
+        // the constant column has no ESS or R-hat but doesn't stop the other converging
+        assertTrue(diagnostics.getStatistics(1).isConstant());
+        assertTrue(Double.isNaN(diagnostics.getStatistics(1).getESS()));
+        assertFalse(diagnostics.getStatistics(0).isConstant());
+        assertTrue(diagnostics.isConverged());
+    }
+
+    public void testSharedBetweenThreads() throws InterruptedException {
+        final int threadCount = 4;
+        final int n = 100000;
+        final ConvergenceDiagnostics.BatchMeans statistics = new ConvergenceDiagnostics.BatchMeans();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < n; i++) {
+                        statistics.add(1.0);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threadCount * n, statistics.getCount());
+        assertEquals(1.0, statistics.getMean(), 0.0);
+        // no value is lost from the batches: those not yet in a full batch are fewer than a batch
+        long batched = statistics.getBatchCount() * statistics.getBatchSize();
+        assertTrue(batched <= threadCount * n && threadCount * n - batched < statistics.getBatchSize());
+    }
+}
@@ -0,0 +1,216 @@
+package test.dr.inference.mcmc;
+
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.mcmc.MCMCCriterion;
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Profileable;
+import dr.inference.model.Variable;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.RandomWalkOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.math.MathUtils;
+import dr.util.NumberFormatter;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests that the diagnosis made from a stored snapshot of a CompoundLikelihood is the one that would have been
+ * made at the time, and that sampling the operator profile or testing full evaluations doesn't change the chain
+ * and gives the same calculation counts as profiling every evaluation.
+ */
+public class MarkovChainTest extends TestCase {
+
+    private static final long CHAIN_LENGTH = 1000;
+
+    public MarkovChainTest(String name) {
+        super(name);
+    }
+
+    public void testDiagnosisSnapshot() {
+        Parameter x = createParameter("x", 0.5);
+        Parameter y = createParameter("y", -1.0);
+        Parameter z = createParameter("z", 2.0);
+        CompoundLikelihood inner = new CompoundLikelihood(Arrays.<Likelihood>asList(
+                new NormalLikelihood(y), new NormalLikelihood(z)));
+        CompoundLikelihood likelihood = new CompoundLikelihood(Arrays.<Likelihood>asList(
+                new NormalLikelihood(x), inner));
+
+        double[] snapshot = new double[likelihood.getDiagnosisSize()];
+        likelihood.storeDiagnosis(snapshot, 0);
+        String before = getEagerDiagnosis(likelihood, 0);
+        assertEquals(before, likelihood.getDiagnosis(snapshot));
+        assertEquals(before, likelihood.getDiagnosis());
+
+        // the snapshot still gives the diagnosis of the state it was taken in
+        x.setParameterValue(0, 3.0);
+        z.setParameterValue(0, 0.0);
+        assertEquals(before, likelihood.getDiagnosis(snapshot));
+        assertFalse(before.equals(likelihood.getDiagnosis()));
+        assertEquals(getEagerDiagnosis(likelihood, 0), likelihood.getDiagnosis());
+        assertEquals(getEagerDiagnosis(likelihood, -1), likelihood.getDiagnosis(-1));
+    }
+
+    public void testSampledProfile() {
+        ChainResult eager = runChain(1, 0);
+        ChainResult sampled = runChain(10, 0);
+        ChainResult unprofiled = runChain(0, 0);
+        ChainResult fullEvaluation = runChain(1, CHAIN_LENGTH);
+
+        for (ChainResult result : new ChainResult[] { sampled, unprofiled, fullEvaluation }) {
+            assertEquals(eager.value, result.value, 0.0);
+            assertEquals(eager.score, result.score, 0.0);
+            assertEquals(eager.acceptCount, result.acceptCount);
+        }
+
+        // one calculation per evaluation, which the sampled profile scales up to the same total
+        assertEquals(CHAIN_LENGTH, eager.calculationCount);
+        assertEquals(eager.calculationCount, sampled.calculationCount);
+        assertEquals(eager.calculationCount, fullEvaluation.calculationCount);
+        assertEquals(0, unprofiled.calculationCount);
+    }
+
+    private ChainResult runChain(int profileInterval, long fullEvaluationCount) {
+        MathUtils.setSeed(666);
+
+        Parameter x = createParameter("x", 0.0);
+        CompoundLikelihood likelihood = new CompoundLikelihood(Arrays.<Likelihood>asList(new NormalLikelihood(x)));
+        SimpleOperatorSchedule schedule = new SimpleOperatorSchedule();
+        MCMCOperator operator = new RandomWalkOperator(x, 1.0, RandomWalkOperator.BoundaryCondition.reflecting, 1.0,
+                AdaptationMode.ADAPTATION_OFF);
+        schedule.addOperator(operator);
+
+        MarkovChain chain = new MarkovChain(likelihood, schedule, new MCMCCriterion(), fullEvaluationCount, 1,
+                MarkovChain.EVALUATION_TEST_THRESHOLD, false, false);
+        chain.setProfileInterval(profileInterval);
+        chain.runChain(CHAIN_LENGTH, true);
+
+        ChainResult result = new ChainResult();
+        result.value = x.getParameterValue(0);
+        result.score = chain.getCurrentScore();
+        result.acceptCount = operator.getAcceptCount();
+        result.calculationCount = operator.getTotalCalculationCount();
+        return result;
+    }
+
+    private static class ChainResult {
+        double value;
+        double score;
+        long acceptCount;
+        long calculationCount;
+    }
+
+    private static Parameter createParameter(String name, double value) {
+        return new Parameter.Default(name, value, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    // the diagnosis as it was made before snapshots, reading each component's log likelihood as it goes
+    private static String getEagerDiagnosis(CompoundLikelihood compound, int indent) {
+        String message = "";
+        boolean first = true;
+
+        final NumberFormatter nf = new NumberFormatter(6);
+
+        for (Likelihood lik : compound.getLikelihoods()) {
+
+            if (!first) {
+                message += ", ";
+            } else {
+                first = false;
+            }
+
+            if (indent >= 0) {
+                message += "\n";
+                for (int i = 0; i < indent; i++) {
+                    message += " ";
+                }
+            }
+            message += lik.prettyName() + "=";
+
+            if (lik instanceof CompoundLikelihood) {
+                final String d = getEagerDiagnosis((CompoundLikelihood) lik, indent < 0 ? -1 : indent + 2);
+                if (d != null && d.length() > 0) {
+                    message += "(" + d;
+
+                    if (indent >= 0) {
+                        message += "\n";
+                        for (int i = 0; i < indent; i++) {
+                            message += " ";
+                        }
+                    }
+                    message += ")";
+                }
+            } else {
+                message += nf.formatDecimal(lik.getLogLikelihood(), 4);
+            }
+        }
+        message += "\n";
+        for (int i = 0; i < indent; i++) {
+            message += " ";
+        }
+        message += "Total = " + compound.getLogLikelihood();
+
+        return message;
+    }
+
+    /**
+     * A standard normal density on a parameter that counts its calculations.
+     */
+    private static class NormalLikelihood extends AbstractModelLikelihood implements Profileable {
+        NormalLikelihood(Parameter parameter) {
+            super("normal");
+            this.parameter = parameter;
+            addVariable(parameter);
+        }
+
+        protected void handleModelChangedEvent(Model model, Object object, int index) {
+        }
+
+        protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+            likelihoodKnown = false;
+            fireModelChanged();
+        }
+
+        protected void storeState() {
+        }
+
+        protected void restoreState() {
+            likelihoodKnown = false;
+        }
+
+        protected void acceptState() {
+        }
+
+        public Model getModel() {
+            return this;
+        }
+
+        public double getLogLikelihood() {
+            if (!likelihoodKnown) {
+                double x = parameter.getParameterValue(0);
+                logLikelihood = -0.5 * (x * x + Math.log(2 * Math.PI));
+                likelihoodKnown = true;
+                calculationCount++;
+            }
+            return logLikelihood;
+        }
+
+        public void makeDirty() {
+            likelihoodKnown = false;
+        }
+
+        public long getTotalCalculationCount() {
+            return calculationCount;
+        }
+
+        private final Parameter parameter;
+        private double logLikelihood;
+        private boolean likelihoodKnown = false;
+        private long calculationCount = 0;
+    }
+}
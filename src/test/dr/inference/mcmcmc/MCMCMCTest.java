@@ -0,0 +1,155 @@
+package test.dr.inference.mcmcmc;
+
+import dr.inference.loggers.LogFormatter;
+import dr.inference.loggers.Logger;
+import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.mcmcmc.MCMCMC;
+import dr.inference.mcmcmc.MCMCMCOptions;
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.RandomWalkOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests that in the asynchronous mode the chains swap temperatures, so that the cold chain's log is written by
+ * more than one chain, and that the log still has every logged state once and in order.
+ */
+public class MCMCMCTest extends TestCase {
+
+    private static final double[] TEMPERATURES = { 1.0, 0.8, 0.6 };
+    private static final long CHAIN_LENGTH = 20000;
+    private static final int SWAP_EVERY = 10;
+    private static final long LOG_EVERY = 10;
+
+    public MCMCMCTest(String name) {
+        super(name);
+    }
+
+    public void testAsynchronousSwaps() {
+        MathUtils.setSeed(666);
+
+        RecordingFormatter formatter = new RecordingFormatter();
+        MCMC[] mcmcs = new MCMC[TEMPERATURES.length];
+        for (int i = 0; i < mcmcs.length; i++) {
+            // only the cold chain's formatters are used and they move with the cold chain
+            mcmcs[i] = createMCMC(i, i == 0 ? formatter : new RecordingFormatter());
+        }
+
+        MCMCMC mc3 = new MCMCMC(mcmcs, new MCMCMCOptions(TEMPERATURES, SWAP_EVERY, true, false));
+        mc3.run();
+
+        // every state from 0 to the last one the chains reached (MC3 doesn't log the chain length itself)
+        assertEquals(CHAIN_LENGTH / LOG_EVERY, formatter.rows.size());
+        Set<String> loggingChains = new HashSet<String>();
+        for (int i = 0; i < formatter.rows.size(); i++) {
+            String[] row = formatter.rows.get(i);
+            assertEquals(Long.toString(i * LOG_EVERY), row[0]);
+            loggingChains.add(row[1]);
+        }
+
+        // the cold chain's log has been written by more than one chain so the cold chain has been swapped
+        assertTrue(loggingChains.size() > 1);
+    }
+
+    private static MCMC createMCMC(final int chain, LogFormatter formatter) {
+        Parameter x = new Parameter.Default("x", 0.0, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        Likelihood likelihood = new CompoundLikelihood(Collections.<Likelihood>singletonList(
+                new NormalLikelihood(x)));
+
+        SimpleOperatorSchedule schedule = new SimpleOperatorSchedule();
+        schedule.addOperator(new RandomWalkOperator(x, 1.0, RandomWalkOperator.BoundaryCondition.reflecting, 1.0,
+                AdaptationMode.ADAPTATION_OFF));
+
+        MCLogger logger = new MCLogger(formatter, LOG_EVERY, false);
+        logger.addColumn(new NumberColumn("chain") {
+            public double getDoubleValue() {
+                return chain;
+            }
+        });
+        logger.add(x);
+
+        MCMC mcmc = new MCMC("mcmc" + chain);
+        mcmc.init(new MCMCOptions(CHAIN_LENGTH), likelihood, schedule, new Logger[] { logger });
+        return mcmc;
+    }
+
+    private static class RecordingFormatter implements LogFormatter {
+        public void startLogging(String title) {
+        }
+
+        public void logHeading(String heading) {
+        }
+
+        public void logLine(String line) {
+        }
+
+        public void logLabels(String[] labels) {
+        }
+
+        public void logValues(String[] values) {
+            rows.add(values.clone());
+        }
+
+        public void stopLogging() {
+        }
+
+        final List<String[]> rows = new ArrayList<String[]>();
+    }
+
+    /**
+     * A standard normal density on a parameter that, as a model, restores it when a move is rejected.
+     */
+    private static class NormalLikelihood extends AbstractModelLikelihood {
+        NormalLikelihood(Parameter parameter) {
+            super("normal");
+            this.parameter = parameter;
+            addVariable(parameter);
+        }
+
+        protected void handleModelChangedEvent(Model model, Object object, int index) {
+        }
+
+        protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+            fireModelChanged();
+        }
+
+        protected void storeState() {
+        }
+
+        protected void restoreState() {
+        }
+
+        protected void acceptState() {
+        }
+
+        public Model getModel() {
+            return this;
+        }
+
+        public double getLogLikelihood() {
+            double x = parameter.getParameterValue(0);
+            return -0.5 * (x * x + Math.log(2 * Math.PI));
+        }
+
+        public void makeDirty() {
+        }
+
+        private final Parameter parameter;
+    }
+}
@@ -0,0 +1,208 @@
+package test.dr.inference.model;
+
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.distribution.NormalDistributionModel;
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.TrackableLikelihood;
+import dr.inference.model.Variable;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Tests that a CompoundLikelihood evaluated by the work-stealing engine gives exactly the log likelihood
+ * of one evaluated serially as its components are changed, stored and restored, with some of them computed
+ * in the pool, and that a component whose data are not part of its model is evaluated after only the data have
+ * changed.
+ */
+public class ForkJoinLikelihoodEngineTest extends TestCase {
+
+    private static final int COMPONENT_COUNT = 6;
+    private static final int DIMENSION = 100000;
+
+    public ForkJoinLikelihoodEngineTest(String name) {
+        super(name);
+    }
+
+    public void testSameAsSerial() {
+        MathUtils.setSeed(666);
+
+        // each compound likelihood has its own components so that neither finds the other's cached values
+        List<Likelihood> serialComponents = new ArrayList<Likelihood>();
+        List<Likelihood> engineComponents = new ArrayList<Likelihood>();
+        List<Parameter> parameters = new ArrayList<Parameter>();
+        for (int k = 0; k < COMPONENT_COUNT; k++) {
+            Parameter parameter = new Parameter.Default("x" + k, DIMENSION);
+            for (int i = 0; i < DIMENSION; i++) {
+                parameter.setParameterValue(i, MathUtils.nextGaussian());
+            }
+            parameters.add(parameter);
+            serialComponents.add(new NormalLikelihood(parameter));
+            engineComponents.add(new NormalLikelihood(parameter));
+        }
+
+        CompoundLikelihood serial = new CompoundLikelihood(serialComponents);
+        CompoundLikelihood workStealing = new CompoundLikelihood(3, engineComponents, true);
+        assertTrue(workStealing.isUsingWorkStealing());
+
+        double logLikelihood = serial.getLogLikelihood();
+        assertEquals(logLikelihood, workStealing.getLogLikelihood(), 0.0);
+
+        for (int iteration = 0; iteration < 50; iteration++) {
+            storeModelState(serialComponents);
+            storeModelState(engineComponents);
+
+            int changes = 1 + MathUtils.nextInt(3);
+            for (int c = 0; c < changes; c++) {
+                Parameter parameter = parameters.get(MathUtils.nextInt(COMPONENT_COUNT));
+                parameter.setParameterValue(MathUtils.nextInt(DIMENSION), MathUtils.nextGaussian());
+            }
+            double proposed = serial.getLogLikelihood();
+            assertEquals(proposed, workStealing.getLogLikelihood(), 0.0);
+
+            if (MathUtils.nextBoolean()) {
+                restoreModelState(serialComponents);
+            restoreModelState(engineComponents);
+                assertEquals(logLikelihood, serial.getLogLikelihood(), 0.0);
+                assertEquals(logLikelihood, workStealing.getLogLikelihood(), 0.0);
+            } else {
+                acceptModelState(serialComponents);
+            acceptModelState(engineComponents);
+                logLikelihood = proposed;
+            }
+        }
+
+        workStealing.makeDirty();
+        assertEquals(logLikelihood, workStealing.getLogLikelihood(), 0.0);
+
+        assertTrue(NormalLikelihood.evaluatedInPool);
+    }
+
+    public void testDataOutsideModel() {
+        MathUtils.setSeed(666);
+
+        Parameter data = new Parameter.Default("data", DIMENSION);
+        Parameter parameter = new Parameter.Default("x", DIMENSION);
+        for (int i = 0; i < DIMENSION; i++) {
+            data.setParameterValue(i, MathUtils.nextGaussian());
+            parameter.setParameterValue(i, MathUtils.nextGaussian());
+        }
+
+        CompoundLikelihood serial = new CompoundLikelihood(createComponents(data, parameter));
+        CompoundLikelihood workStealing = new CompoundLikelihood(3, createComponents(data, parameter), true);
+        assertTrue(workStealing.isUsingWorkStealing());
+
+        double logLikelihood = serial.getLogLikelihood();
+        assertEquals(logLikelihood, workStealing.getLogLikelihood(), 0.0);
+
+        for (int iteration = 0; iteration < 10; iteration++) {
+            data.setParameterValue(MathUtils.nextInt(DIMENSION), MathUtils.nextGaussian());
+            double proposed = serial.getLogLikelihood();
+            assertTrue(proposed != logLikelihood);
+            assertEquals(proposed, workStealing.getLogLikelihood(), 0.0);
+            logLikelihood = proposed;
+        }
+    }
+
+    private static List<Likelihood> createComponents(Parameter data, Parameter parameter) {
+        // the data parameter is read by the likelihood but isn't in the graph of its model
+        DistributionLikelihood distributionLikelihood = new DistributionLikelihood(new NormalDistributionModel(
+                new Parameter.Default(0.0), new Parameter.Default(1.0), false));
+        distributionLikelihood.addData(data);
+
+        List<Likelihood> components = new ArrayList<Likelihood>();
+        components.add(distributionLikelihood);
+        components.add(new NormalLikelihood(parameter));
+        return components;
+    }
+
+    private static void storeModelState(List<Likelihood> components) {
+        for (Likelihood component : components) {
+            component.getModel().storeModelState();
+        }
+    }
+
+    private static void restoreModelState(List<Likelihood> components) {
+        for (Likelihood component : components) {
+            component.getModel().restoreModelState();
+        }
+    }
+
+    private static void acceptModelState(List<Likelihood> components) {
+        for (Likelihood component : components) {
+            component.getModel().acceptModelState();
+        }
+    }
+
+    /**
+     * Independent standard normals, summed afresh when the parameter changes (so that the component is
+     * expensive enough to be sent to the pool) and put back from the stored value on a restore.
+     */
+    private static class NormalLikelihood extends AbstractModelLikelihood implements TrackableLikelihood {
+        NormalLikelihood(Parameter parameter) {
+            super("normal");
+            this.parameter = parameter;
+            addVariable(parameter);
+        }
+
+        protected void handleModelChangedEvent(Model model, Object object, int index) {
+        }
+
+        protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+            likelihoodKnown = false;
+            fireModelChanged();
+        }
+
+        protected void storeState() {
+            storedLogLikelihood = logLikelihood;
+            storedLikelihoodKnown = likelihoodKnown;
+        }
+
+        protected void restoreState() {
+            logLikelihood = storedLogLikelihood;
+            likelihoodKnown = storedLikelihoodKnown;
+        }
+
+        protected void acceptState() {
+        }
+
+        public Model getModel() {
+            return this;
+        }
+
+        public double getLogLikelihood() {
+            if (!likelihoodKnown) {
+                if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+                    evaluatedInPool = true;
+                }
+                double sum = 0.0;
+                for (int i = 0; i < parameter.getDimension(); i++) {
+                    double x = parameter.getParameterValue(i);
+                    sum -= 0.5 * (x * x + Math.log(2 * Math.PI));
+                }
+                logLikelihood = sum;
+                likelihoodKnown = true;
+            }
+            return logLikelihood;
+        }
+
+        public void makeDirty() {
+            likelihoodKnown = false;
+        }
+
+        static volatile boolean evaluatedInPool = false;
+
+        private final Parameter parameter;
+        private double logLikelihood;
+        private double storedLogLikelihood;
+        private boolean likelihoodKnown = false;
+        private boolean storedLikelihoodKnown = false;
+    }
+}
@@ -0,0 +1,120 @@
+package test.dr.inference.model;
+
+import dr.inference.model.Bounds;
+import dr.inference.model.Parameter;
+import junit.framework.TestCase;
+
+/**
+ * Tests that a parameter restores the values, and the dimension of its bounds, it had at the last store however
+ * it was changed since.
+ */
+public class ParameterStoreRestoreTest extends TestCase {
+
+    public ParameterStoreRestoreTest(String name) {
+        super(name);
+    }
+
+    public void testRestoreChangedDimensions() {
+        Parameter parameter = new Parameter.Default(new double[] { 0.0, 1.0, 2.0, 3.0 });
+
+        parameter.storeParameterValues();
+        parameter.setParameterValue(1, 10.0);
+        parameter.setParameterValueQuietly(1, 11.0);
+        parameter.setParameterValueNotifyChangedAll(3, 13.0);
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0, 1.0, 2.0, 3.0);
+
+        parameter.storeParameterValues();
+        parameter.setParameterValue(2, 12.0);
+        parameter.acceptParameterValues();
+        assertValues(parameter, 0.0, 1.0, 12.0, 3.0);
+
+        // the dimension accepted above must be stored again
+        parameter.storeParameterValues();
+        parameter.setParameterValue(2, 22.0);
+        parameter.setParameterValue(0, 20.0);
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0, 1.0, 12.0, 3.0);
+    }
+
+    public void testRestoreWholeArray() {
+        Parameter.Default parameter = new Parameter.Default(new double[] { 0.0, 1.0, 2.0 });
+
+        parameter.storeParameterValues();
+        parameter.setParameterValue(0, 10.0);
+        parameter.setAllParameterValuesQuietly(new double[] { 7.0, 5.0, 6.0, 7.0 }, 1);
+        assertValues(parameter, 5.0, 6.0, 7.0);
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0, 1.0, 2.0);
+
+        parameter.storeParameterValues();
+        parameter.setParameterValue(1, 11.0);
+        parameter.addDimension(3, 3.0);
+        parameter.setParameterValue(3, 13.0);
+        assertEquals(4, parameter.getDimension());
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0, 1.0, 2.0);
+
+        parameter.storeParameterValues();
+        parameter.adoptParameterValues(new Parameter.Default(new double[] { 4.0, 5.0, 6.0 }));
+        parameter.storeParameterValues();
+        parameter.setParameterValue(0, 14.0);
+        parameter.restoreParameterValues();
+        assertValues(parameter, 4.0, 5.0, 6.0);
+    }
+
+    public void testRestoreDimension() {
+        Parameter parameter = new Parameter.Default(new double[] { 0.0, 1.0, 2.0 });
+
+        parameter.storeParameterValues();
+        parameter.setParameterValue(1, 11.0);
+        parameter.setDimension(5);
+        assertValues(parameter, 0.0, 11.0, 2.0, 0.0, 0.0);
+        parameter.setParameterValue(4, 14.0);
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0, 1.0, 2.0);
+
+        parameter.storeParameterValues();
+        parameter.setDimension(2);
+        parameter.acceptParameterValues();
+        assertValues(parameter, 0.0, 1.0);
+    }
+
+    public void testRestoreBoundsDimension() {
+        Parameter parameter = new Parameter.Default(new double[] { 0.0, 1.0, 2.0 });
+        parameter.addBounds(new Parameter.DefaultBounds(10.0, -10.0, 3));
+
+        parameter.storeParameterValues();
+        parameter.setDimension(5);
+        parameter.setDimension(4);
+        assertBounds(parameter, 4, -10.0, 10.0);
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0, 1.0, 2.0);
+        assertBounds(parameter, 3, -10.0, 10.0);
+        assertTrue(parameter.isWithinBounds());
+
+        parameter.storeParameterValues();
+        parameter.setDimension(2);
+        parameter.acceptParameterValues();
+        parameter.storeParameterValues();
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0, 1.0);
+        assertBounds(parameter, 2, -10.0, 10.0);
+    }
+
+    private static void assertBounds(Parameter parameter, int dimension, double lower, double upper) {
+        Bounds<Double> bounds = parameter.getBounds();
+        assertEquals(dimension, bounds.getBoundsDimension());
+        for (int i = 0; i < dimension; i++) {
+            assertEquals(lower, bounds.getLowerLimit(i));
+            assertEquals(upper, bounds.getUpperLimit(i));
+        }
+    }
+
+    private static void assertValues(Parameter parameter, double... values) {
+        assertEquals(values.length, parameter.getDimension());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], parameter.getParameterValue(i));
+        }
+    }
+}
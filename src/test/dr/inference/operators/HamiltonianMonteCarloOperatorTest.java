@@ -0,0 +1,177 @@
+package test.dr.inference.operators;
+
+import dr.inference.hmc.CompoundGradient;
+import dr.inference.hmc.GradientWrtParameterProvider;
+import dr.inference.hmc.SumDerivative;
+import dr.inference.model.DummyLikelihood;
+import dr.inference.model.GradientProvider;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.inference.model.VariableListener;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.hmc.HamiltonianMonteCarloOperator;
+import dr.inference.operators.hmc.MassPreconditioner;
+import dr.math.MathUtils;
+import dr.util.Metric;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that a leapfrog trajectory of the HMC operator on a Gaussian target matches one computed by hand, sets the
+ * parameter with a single ALL_VALUES_CHANGED event each step, and that gradient components computed in parallel
+ * give the same gradients as computed serially.
+ */
+public class HamiltonianMonteCarloOperatorTest extends TestCase {
+
+    private static final int DIMENSION = 50;
+
+    public HamiltonianMonteCarloOperatorTest(String name) {
+        super(name);
+    }
+
+    public void testTrajectory() {
+        Parameter parameter = new Parameter.Default("x", DIMENSION);
+        double[] means = new double[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            parameter.setParameterValue(i, i * 0.1);
+            means[i] = 1.0 - i * 0.05;
+        }
+
+        final int nSteps = 5;
+        final double stepSize = 0.1;
+        HamiltonianMonteCarloOperator operator = new HamiltonianMonteCarloOperator(AdaptationMode.ADAPTATION_OFF, 1.0,
+                createGradient(parameter, means), parameter, null, null,
+                new HamiltonianMonteCarloOperator.Options(stepSize, nSteps, 0.0, 0, 0, 0, 1E-3, 10, 0.1),
+                MassPreconditioner.Type.NONE);
+        Metric trajectoryMetric = new Metric("Trajectory", "hmc");
+        Metric gradientMetric = new Metric("Gradient", "hmc");
+        operator.setTrajectoryMetrics(trajectoryMetric, gradientMetric);
+
+        // the same trajectory by hand, from the momentum the operator will draw
+        MathUtils.setSeed(666);
+        double[] position = parameter.getParameterValues();
+        double[] momentum = new double[DIMENSION];
+        double kinetic = 0.0;
+        for (int i = 0; i < DIMENSION; i++) {
+            momentum[i] = MathUtils.nextGaussian();
+            kinetic += momentum[i] * momentum[i] / 2.0;
+        }
+        for (int i = 0; i < DIMENSION; i++) {
+            momentum[i] -= stepSize / 2 * (position[i] - means[i]);
+        }
+        for (int step = 0; step < nSteps; step++) {
+            for (int i = 0; i < DIMENSION; i++) {
+                position[i] += stepSize * momentum[i];
+            }
+            double factor = (step < nSteps - 1 ? stepSize : stepSize / 2);
+            for (int i = 0; i < DIMENSION; i++) {
+                momentum[i] -= factor * (position[i] - means[i]);
+            }
+        }
+        for (int i = 0; i < DIMENSION; i++) {
+            kinetic -= momentum[i] * momentum[i] / 2.0;
+        }
+
+        final List<Parameter.ChangeType> events = new ArrayList<Parameter.ChangeType>();
+        parameter.addParameterListener(new VariableListener() {
+            public void variableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+                events.add(type);
+            }
+        });
+
+        MathUtils.setSeed(666);
+        double hastingsRatio = operator.doOperation(null);
+
+        assertEquals(kinetic, hastingsRatio, 1E-12);
+        for (int i = 0; i < DIMENSION; i++) {
+            assertEquals(position[i], parameter.getParameterValue(i), 1E-12);
+        }
+
+        assertEquals(nSteps, events.size());
+        for (Parameter.ChangeType type : events) {
+            assertEquals(Parameter.ChangeType.ALL_VALUES_CHANGED, type);
+        }
+
+        assertEquals(1, trajectoryMetric.getCount());
+        assertEquals(nSteps + 1, gradientMetric.getCount());
+    }
+
+    public void testParallelSumDerivative() {
+        Parameter parameter = new Parameter.Default("x", DIMENSION);
+        for (int i = 0; i < DIMENSION; i++) {
+            parameter.setParameterValue(i, MathUtils.nextDouble());
+        }
+
+        List<GradientWrtParameterProvider> components = new ArrayList<GradientWrtParameterProvider>();
+        for (int k = 0; k < 4; k++) {
+            double[] means = new double[DIMENSION];
+            for (int i = 0; i < DIMENSION; i++) {
+                means[i] = MathUtils.nextGaussian();
+            }
+            components.add(createGradient(parameter, means));
+        }
+
+        SumDerivative serial = new SumDerivative(components);
+        SumDerivative parallel = new SumDerivative(components, -1);
+        assertEquals(0, serial.getThreadCount());
+        assertEquals(3, parallel.getThreadCount());
+
+        for (int repeat = 0; repeat < 10; repeat++) {
+            parameter.setParameterValue(MathUtils.nextInt(DIMENSION), MathUtils.nextGaussian());
+            assertArrayEquals(serial.getGradientLogDensity(), parallel.getGradientLogDensity());
+        }
+    }
+
+    public void testParallelCompoundGradient() {
+        List<GradientWrtParameterProvider> components = new ArrayList<GradientWrtParameterProvider>();
+        List<Parameter> parameters = new ArrayList<Parameter>();
+        for (int k = 0; k < 3; k++) {
+            Parameter parameter = new Parameter.Default("x" + k, DIMENSION + k);
+            double[] means = new double[DIMENSION + k];
+            for (int i = 0; i < means.length; i++) {
+                parameter.setParameterValue(i, MathUtils.nextDouble());
+                means[i] = MathUtils.nextGaussian();
+            }
+            parameters.add(parameter);
+            components.add(createGradient(parameter, means));
+        }
+
+        CompoundGradient serial = new CompoundGradient(components);
+        CompoundGradient parallel = new CompoundGradient(components, 2);
+        assertEquals(2, parallel.getThreadCount());
+
+        for (int repeat = 0; repeat < 10; repeat++) {
+            Parameter parameter = parameters.get(MathUtils.nextInt(parameters.size()));
+            parameter.setParameterValue(MathUtils.nextInt(parameter.getDimension()), MathUtils.nextGaussian());
+            assertArrayEquals(serial.getGradientLogDensity(), parallel.getGradientLogDensity());
+        }
+    }
+
+    private static void assertArrayEquals(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], 0.0);
+        }
+    }
+
+    // the gradient of independent standard normals centred on the given means
+    private static GradientWrtParameterProvider createGradient(Parameter parameter, final double[] means) {
+        GradientProvider provider = new GradientProvider() {
+            public int getDimension() {
+                return means.length;
+            }
+
+            public double[] getGradientLogDensity(Object x) {
+                double[] values = (double[]) x;
+                double[] gradient = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    gradient[i] = means[i] - values[i];
+                }
+                return gradient;
+            }
+        };
+        return new GradientWrtParameterProvider.ParameterWrapper(provider, parameter, new DummyLikelihood(null));
+    }
+}
@@ -0,0 +1,261 @@
+package test.dr.inference.smc;
+
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.mcmc.MCMCCriterion;
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.RandomWalkOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.inference.smc.SMC;
+import dr.inference.smc.SMCOptions;
+import dr.inference.state.Factory;
+import dr.inference.state.SavedState;
+import dr.inference.state.StateCopier;
+import dr.inference.state.StateLoader;
+import dr.inference.state.StateLoaderSaver;
+import dr.math.MathUtils;
+import dr.math.distributions.NormalDistribution;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that a particle run on a single chain is saved with the random number state it reached, so
+ * that it ends in the same state whether it is run alone or with other particles, and that particles
+ * run in parallel are all saved.
+ */
+public class SMCTest extends TestCase {
+
+    private static final int PARTICLE_COUNT = 5;
+    private static final long CHAIN_LENGTH = 100;
+    private static final NormalDistribution DISTRIBUTION = new NormalDistribution(0.0, 1.0);
+
+    private Factory savedFactory;
+
+    public SMCTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        savedFactory = Factory.INSTANCE;
+        Factory.INSTANCE = new TestFactory();
+    }
+
+    public void tearDown() throws Exception {
+        Factory.INSTANCE = savedFactory;
+        super.tearDown();
+    }
+
+    public void testParticlesRoundTrip() {
+        List<Particle> particles = createParticles();
+
+        TestModel model = createModel();
+        runSMC(model, particles, null, null);
+
+        for (int i = 0; i < PARTICLE_COUNT; i++) {
+            Particle alone = createParticles().get(i);
+            runSMC(createModel(), Collections.singletonList(alone), null, null);
+
+            assertEquals(alone.value, particles.get(i).value, 0.0);
+            assertEquals(alone.lnL, particles.get(i).lnL, 0.0);
+            assertTrue(Arrays.equals(alone.rngState, particles.get(i).rngState));
+        }
+    }
+
+    public void testParallelParticles() {
+        List<Particle> particles = createParticles();
+        double[] initialValues = new double[PARTICLE_COUNT];
+        for (int i = 0; i < PARTICLE_COUNT; i++) {
+            initialValues[i] = particles.get(i).value;
+        }
+
+        TestModel copy = createModel();
+        MarkovChain copyChain = new MarkovChain(copy.likelihood, copy.schedule, new MCMCCriterion(),
+                0, 0, 0, false, false);
+        runSMC(createModel(), particles, copyChain, copy.parameter);
+
+        for (int i = 0; i < PARTICLE_COUNT; i++) {
+            Particle particle = particles.get(i);
+            assertFalse(particle.value == initialValues[i]);
+            assertEquals(DISTRIBUTION.logPdf(particle.value), particle.lnL, 1E-12);
+            for (int j = 0; j < i; j++) {
+                assertFalse(Arrays.equals(particle.rngState, particles.get(j).rngState));
+            }
+        }
+    }
+
+    private void runSMC(TestModel model, List<Particle> particles, MarkovChain copyChain, Parameter copyParameter) {
+        ((TestFactory) Factory.INSTANCE).parameter = model.parameter;
+
+        SMC smc = new SMC("smc", new ArrayList<StateLoaderSaver>(particles));
+        smc.init(new SMCOptions(CHAIN_LENGTH), model.likelihood, model.schedule, null);
+        if (copyChain != null) {
+            smc.addParticleChain(copyChain, Collections.singletonList(copyParameter),
+                    Collections.<dr.inference.model.Model>emptyList());
+        }
+        smc.run();
+    }
+
+    private static List<Particle> createParticles() {
+        List<Particle> particles = new ArrayList<Particle>();
+        for (int i = 0; i < PARTICLE_COUNT; i++) {
+            MathUtils.setSeed(i + 1);
+            particles.add(new Particle(i * 0.5 - 1.0, MathUtils.getRandomState()));
+        }
+        return particles;
+    }
+
+    private static TestModel createModel() {
+        TestModel model = new TestModel();
+        model.parameter = new Parameter.Default("x", 0.0, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        model.likelihood = new CompoundLikelihood(Collections.<Likelihood>singletonList(
+                new NormalLikelihood(model.parameter)));
+        model.schedule = new SimpleOperatorSchedule();
+        model.schedule.addOperator(new RandomWalkOperator(model.parameter, 1.0,
+                RandomWalkOperator.BoundaryCondition.reflecting, 1.0, AdaptationMode.ADAPTATION_OFF));
+        return model;
+    }
+
+    private static class TestModel {
+        Parameter parameter;
+        Likelihood likelihood;
+        OperatorSchedule schedule;
+    }
+
+    /**
+     * A standard normal density on a parameter that, as a model, restores it when a move is rejected.
+     */
+    private static class NormalLikelihood extends AbstractModelLikelihood {
+        NormalLikelihood(Parameter parameter) {
+            super("normal");
+            this.parameter = parameter;
+            addVariable(parameter);
+        }
+
+        protected void handleModelChangedEvent(dr.inference.model.Model model, Object object, int index) {
+        }
+
+        protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+            fireModelChanged();
+        }
+
+        protected void storeState() {
+        }
+
+        protected void restoreState() {
+        }
+
+        protected void acceptState() {
+        }
+
+        public dr.inference.model.Model getModel() {
+            return this;
+        }
+
+        public double getLogLikelihood() {
+            return DISTRIBUTION.logPdf(parameter.getParameterValue(0));
+        }
+
+        public void makeDirty() {
+        }
+
+        private final Parameter parameter;
+    }
+
+    /**
+     * A particle held in memory that, like a state file, carries the random number state.
+     */
+    private static class Particle implements StateLoaderSaver {
+        Particle(double value, int[] rngState) {
+            this.value = value;
+            this.rngState = rngState;
+        }
+
+        public boolean saveState(MarkovChain markovChain, long state, double lnL) {
+            value = ((TestFactory) Factory.INSTANCE).parameter.getParameterValue(0);
+            this.lnL = lnL;
+            rngState = MathUtils.getRandomState();
+            return true;
+        }
+
+        public long loadState(MarkovChain markovChain, double[] savedLnL) {
+            ((TestFactory) Factory.INSTANCE).parameter.setParameterValue(0, value);
+            savedLnL[0] = lnL;
+            MathUtils.setRandomState(rngState);
+            return 0;
+        }
+
+        public void checkLoadState(double savedLnL, double lnL) {
+        }
+
+        double value;
+        double lnL = 0.0;
+        int[] rngState;
+    }
+
+    private static class TestFactory extends Factory {
+        Parameter parameter;
+
+        public StateLoader getInitialStateLoader() {
+            return null;
+        }
+
+        public MarkovChainListener[] getStateSaverChainListeners() {
+            return new MarkovChainListener[0];
+        }
+
+        public StateLoaderSaver getStateLoaderSaver(File loadFile, File saveFile) {
+            throw new UnsupportedOperationException();
+        }
+
+        public StateCopier getStateCopier(List<Parameter> parameters, List<dr.inference.model.Model> models) {
+            final Parameter copied = (parameters != null ? parameters.get(0) : parameter);
+            return new StateCopier() {
+                public SavedState saveState(MarkovChain markovChain, long state, double lnL) {
+                    return new CopiedState(state, lnL, MathUtils.getRandomState(), copied.getParameterValue(0));
+                }
+
+                public void loadState(MarkovChain markovChain, SavedState savedState) {
+                    copied.setParameterValue(0, ((CopiedState) savedState).value);
+                }
+            };
+        }
+    }
+
+    private static class CopiedState implements SavedState {
+        CopiedState(long state, double lnL, int[] rngState, double value) {
+            this.state = state;
+            this.lnL = lnL;
+            this.rngState = rngState;
+            this.value = value;
+        }
+
+        public long getState() {
+            return state;
+        }
+
+        public double getLnL() {
+            return lnL;
+        }
+
+        public int[] getRngState() {
+            return rngState;
+        }
+
+        final long state;
+        final double lnL;
+        final int[] rngState;
+        final double value;
+    }
+}
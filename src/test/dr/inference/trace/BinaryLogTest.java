@@ -0,0 +1,173 @@
+package test.dr.inference.trace;
+
+import dr.inference.loggers.AsynchronousMCLogger;
+import dr.inference.loggers.BinaryLogFormatter;
+import dr.inference.loggers.LogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.loggers.TabDelimitedFormatter;
+import dr.inference.trace.BinaryLogReader;
+import dr.inference.trace.LogFileTraces;
+import dr.inference.trace.TraceException;
+import dr.inference.trace.TraceType;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Tests that a binary log loads into the same traces as the equivalent tab-delimited log, and that the values
+ * of number columns logged by an MCLogger keep their full precision whatever the columns' formatting.
+ */
+public class BinaryLogTest extends TestCase {
+
+    private static final String[] LABELS = { "state", "count", "rate", "model", "mixed" };
+
+    // 'mixed' is a number in the first block (of 3 rows) and becomes categorical in the second
+    private static final String[][] ROWS = {
+            { "0", "1", "0.5", "HKY", "1" },
+            { "10", "2", "0.25", "GTR", "2" },
+            { "20", "2", "1.0E-4", "HKY", "3" },
+            { "30", "-3", "12.0", "HKY", "a" },
+            { "40", "5", "0.125", "GTR", "b" }
+    };
+
+    public BinaryLogTest(String name) {
+        super(name);
+    }
+
+    public void testSameAsText() throws IOException, TraceException {
+        File textFile = writeLog(false);
+        File binaryFile = writeLog(true);
+
+        assertTrue(BinaryLogReader.isBinaryLog(binaryFile));
+        assertFalse(BinaryLogReader.isBinaryLog(textFile));
+
+        LogFileTraces textTraces = new LogFileTraces("text", textFile);
+        textTraces.loadTraces();
+        LogFileTraces binaryTraces = new LogFileTraces("binary", binaryFile);
+        binaryTraces.loadTraces();
+
+        assertEquals(textTraces.getTraceCount(), binaryTraces.getTraceCount());
+        assertEquals(textTraces.getMaxState(), binaryTraces.getMaxState());
+        assertEquals(textTraces.getStepSize(), binaryTraces.getStepSize());
+
+        for (int i = 0; i < textTraces.getTraceCount(); i++) {
+            assertEquals(textTraces.getTraceName(i), binaryTraces.getTraceName(i));
+            assertEquals(textTraces.getTrace(i).getTraceType(), binaryTraces.getTrace(i).getTraceType());
+            for (int j = 0; j < ROWS.length; j++) {
+                assertEquals(textTraces.getTrace(i).getValue(j), binaryTraces.getTrace(i).getValue(j), 0.0);
+            }
+        }
+
+        assertEquals(TraceType.INTEGER, binaryTraces.getTrace(0).getTraceType());
+        assertEquals(TraceType.REAL, binaryTraces.getTrace(1).getTraceType());
+        assertEquals(TraceType.CATEGORICAL, binaryTraces.getTrace(2).getTraceType());
+        assertEquals("GTR", binaryTraces.getTrace(2).getCategoryLabel(1));
+        assertEquals(TraceType.CATEGORICAL, binaryTraces.getTrace(3).getTraceType());
+        assertEquals("b", binaryTraces.getTrace(3).getCategoryLabel(4));
+    }
+
+    public void testSelectedColumns() throws IOException, TraceException {
+        File binaryFile = writeLog(true);
+
+        LogFileTraces traces = new LogFileTraces("binary", binaryFile);
+        traces.loadTraces(Arrays.asList("rate", "model"));
+
+        assertEquals(2, traces.getTraceCount());
+        assertEquals("rate", traces.getTraceName(0));
+        assertEquals("model", traces.getTraceName(1));
+        assertEquals(1.0E-4, traces.getTrace(0).getValue(2), 0.0);
+    }
+
+    public void testTextReaderAndTruncation() throws IOException, TraceException {
+        File binaryFile = writeLog(true);
+
+        BufferedReader reader = new BufferedReader(new BinaryLogReader(binaryFile).getTextReader());
+        assertEquals("# test log", reader.readLine());
+        assertEquals("state\tcount\trate\tmodel\tmixed", reader.readLine());
+        assertEquals("0\t1\t0.5\tHKY\t1", reader.readLine());
+        assertEquals("20\t2\t1.0E-4\tHKY\t3", skipLine(reader));
+        assertEquals("40\t5\t0.125\tGTR\tb", skipLine(reader));
+        assertNull(reader.readLine());
+        reader.close();
+
+        // cut into the second block which should then be ignored
+        RandomAccessFile raf = new RandomAccessFile(binaryFile, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        BinaryLogReader binaryReader = new BinaryLogReader(binaryFile);
+        assertEquals(3, binaryReader.getRowCount());
+        assertEquals(TraceType.INTEGER, binaryReader.getTraceType(3));
+    }
+
+    public void testNumberColumnPrecision() throws IOException, TraceException {
+        assertNumberColumnPrecision(false);
+        assertNumberColumnPrecision(true);
+    }
+
+    private static void assertNumberColumnPrecision(boolean asynchronous) throws IOException, TraceException {
+        File file = File.createTempFile("binaryLogTest", ".blog");
+        file.deleteOnExit();
+
+        final long[] state = new long[1];
+        NumberColumn third = new NumberColumn("third") {
+            public double getDoubleValue() {
+                return (state[0] + 1) / 3.0;
+            }
+        };
+        third.setSignificantFigures(4);
+        NumberColumn count = new NumberColumn("count") {
+            public double getDoubleValue() {
+                return state[0] / 10;
+            }
+        };
+        count.setDecimalPlaces(0);
+
+        BinaryLogFormatter formatter = new BinaryLogFormatter(new FileOutputStream(file), 3);
+        MCLogger logger = asynchronous ?
+                new AsynchronousMCLogger(formatter, 10, 2) : new MCLogger(formatter, 10, false);
+        logger.addColumn(third);
+        logger.addColumn(count);
+        logger.startLogging();
+        for (state[0] = 0; state[0] < 100; state[0]++) {
+            logger.log(state[0]);
+        }
+        logger.stopLogging();
+
+        BinaryLogReader reader = new BinaryLogReader(file);
+        assertEquals(10, reader.getRowCount());
+        assertEquals(TraceType.REAL, reader.getTraceType(0));
+        assertEquals(TraceType.INTEGER, reader.getTraceType(1));
+        double[] thirds = reader.getValues(0);
+        double[] counts = reader.getValues(1);
+        for (int j = 0; j < 10; j++) {
+            assertEquals((j * 10 + 1) / 3.0, thirds[j], 0.0);
+            assertEquals(j, counts[j], 0.0);
+        }
+    }
+
+    private static String skipLine(BufferedReader reader) throws IOException {
+        reader.readLine();
+        return reader.readLine();
+    }
+
+    private File writeLog(boolean binary) throws IOException {
+        File file = File.createTempFile("binaryLogTest", binary ? ".blog" : ".log");
+        file.deleteOnExit();
+
+        LogFormatter formatter = binary ?
+                new BinaryLogFormatter(new FileOutputStream(file), 3) :
+                new TabDelimitedFormatter(new PrintWriter(new FileWriter(file)), true);
+
+        formatter.startLogging("test log");
+        formatter.logHeading("test log");
+        formatter.logLabels(LABELS);
+        for (String[] row : ROWS) {
+            formatter.logValues(row);
+        }
+        formatter.stopLogging();
+        return file;
+    }
+}
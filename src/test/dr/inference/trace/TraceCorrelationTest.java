@@ -0,0 +1,101 @@
+package test.dr.inference.trace;
+
+import dr.inference.trace.IncrementalTraceCorrelation;
+import dr.inference.trace.TraceCorrelation;
+import dr.inference.trace.TraceType;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the ESS of slowly mixing traces (whose autocovariances come from a Fourier transform) against a direct
+ * sum, and the incremental ESS against that of the whole trace.
+ */
+public class TraceCorrelationTest extends TestCase {
+
+    public TraceCorrelationTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+    }
+
+    public void testSlowlyMixing() {
+        for (double phi : new double[]{0.5, 0.99, 0.999}) {
+            List<Double> values = createTrace(20000, phi);
+            TraceCorrelation correlation = new TraceCorrelation(values, TraceType.REAL, 100);
+
+            double[] expected = getDirectESS(values, 100);
+            assertEquals(expected[0], correlation.getESS(), 1E-9 * expected[0]);
+            assertEquals(expected[1], correlation.getStdErrorOfMean(), 1E-9 * expected[1]);
+        }
+    }
+
+    public void testIncremental() {
+        List<Double> values = createTrace(5000, 0.95);
+        IncrementalTraceCorrelation incremental = new IncrementalTraceCorrelation(10);
+        assertTrue(Double.isNaN(incremental.getESS()));
+
+        for (int i = 0; i < values.size(); i++) {
+            incremental.add(values.get(i));
+            if (i == 1 || i == 99 || i == 2500 || i == values.size() - 1) {
+                TraceCorrelation correlation = new TraceCorrelation(values.subList(0, i + 1), TraceType.REAL, 10);
+                assertEquals(i + 1, incremental.getValueCount());
+                assertEquals(correlation.getMean(), incremental.getMean(), 1E-9);
+                assertEquals(correlation.getESS(), incremental.getESS(), 1E-6 * correlation.getESS());
+                assertEquals(correlation.getACT(), incremental.getACT(), 1E-6 * correlation.getACT());
+                assertEquals(correlation.getStdErrorOfMean(), incremental.getStdErrorOfMean(),
+                        1E-6 * correlation.getStdErrorOfMean());
+            }
+        }
+    }
+
+    // an autoregressive trace a long way from zero
+    private static List<Double> createTrace(int length, double phi) {
+        List<Double> values = new ArrayList<Double>(length);
+        double x = 0.0;
+        for (int i = 0; i < length; i++) {
+            x = phi * x + MathUtils.nextGaussian();
+            values.add(-1000.0 + x);
+        }
+        return values;
+    }
+
+    // the ESS and standard error of the mean summing every autocovariance directly
+    private static double[] getDirectESS(List<Double> values, long stepSize) {
+        final int samples = values.size();
+        double mean = 0.0;
+        for (double value : values) {
+            mean += value;
+        }
+        mean /= samples;
+
+        int maxLag = Math.min(samples - 1, 2000);
+        double[] gammaStat = new double[maxLag];
+        double varStat = 0.0;
+        for (int lag = 0; lag < maxLag; lag++) {
+            for (int j = 0; j < samples - lag; j++) {
+                gammaStat[lag] += (values.get(j) - mean) * (values.get(j + lag) - mean);
+            }
+            gammaStat[lag] /= (samples - lag);
+
+            if (lag == 0) {
+                varStat = gammaStat[0];
+            } else if (lag % 2 == 0) {
+                if (gammaStat[lag - 1] + gammaStat[lag] > 0) {
+                    varStat += 2.0 * (gammaStat[lag - 1] + gammaStat[lag]);
+                } else {
+                    break;
+                }
+            }
+        }
+
+        double act = stepSize * varStat / gammaStat[0];
+        return new double[]{(stepSize * samples) / act, Math.sqrt(varStat / samples)};
+    }
+}
@@ -0,0 +1,206 @@
+package test.dr.multidimensionalscaling;
+
+import dr.inference.multidimensionalscaling.MultiDimensionalScalingCore;
+import dr.inference.multidimensionalscaling.MultiDimensionalScalingCoreImpl;
+import dr.inference.multidimensionalscaling.ParallelMultiDimensionalScalingCoreImpl;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the parallel Java MDS core gives the same likelihood as the original core as locations are moved,
+ * stored and restored, that missing observations are left out of the likelihood and that its gradient matches
+ * finite differences.
+ */
+public class ParallelMDSCoreTest extends TestCase {
+
+    private static final int LOCATION_COUNT = 150;
+    private static final int DIMENSION = 2;
+
+    public ParallelMDSCoreTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        observations = new double[LOCATION_COUNT * LOCATION_COUNT];
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            for (int j = i + 1; j < LOCATION_COUNT; j++) {
+                observations[i * LOCATION_COUNT + j] = observations[j * LOCATION_COUNT + i] =
+                        1.0 + 4.0 * MathUtils.nextDouble();
+            }
+        }
+
+        locations = new double[LOCATION_COUNT * DIMENSION];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = 5.0 * MathUtils.nextDouble();
+        }
+    }
+
+    public void testSameAsOriginalCore() {
+        checkSameAsOriginalCore(0);
+    }
+
+    public void testSameAsOriginalCoreTruncated() {
+        checkSameAsOriginalCore(MultiDimensionalScalingCore.LEFT_TRUNCATION);
+    }
+
+    public void testMissingObservations() {
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            for (int j = i + 1; j < LOCATION_COUNT; j++) {
+                if (MathUtils.nextDouble() < 0.2) {
+                    observations[i * LOCATION_COUNT + j] = observations[j * LOCATION_COUNT + i] = Double.NaN;
+                }
+            }
+        }
+
+        final double precision = 2.0;
+        MultiDimensionalScalingCore core = createCore(new ParallelMultiDimensionalScalingCoreImpl(), 0, precision);
+        assertEquals(getLogLikelihood(precision), core.calculateLogLikelihood(), 1E-8);
+
+        double[] location = new double[DIMENSION];
+        for (int iteration = 0; iteration < 20; iteration++) {
+            core.storeState();
+            int index = MathUtils.nextInt(LOCATION_COUNT);
+            double[] stored = new double[DIMENSION];
+            System.arraycopy(locations, index * DIMENSION, stored, 0, DIMENSION);
+            for (int k = 0; k < DIMENSION; k++) {
+                location[k] = 5.0 * MathUtils.nextDouble();
+            }
+            core.updateLocation(index, location);
+            System.arraycopy(location, 0, locations, index * DIMENSION, DIMENSION);
+            assertEquals(getLogLikelihood(precision), core.calculateLogLikelihood(), 1E-8);
+
+            if (MathUtils.nextBoolean()) {
+                core.restoreState();
+                System.arraycopy(stored, 0, locations, index * DIMENSION, DIMENSION);
+            } else {
+                core.acceptState();
+            }
+            assertEquals(getLogLikelihood(precision), core.calculateLogLikelihood(), 1E-8);
+        }
+    }
+
+    public void testGradient() {
+        for (long flags : new long[] { 0, MultiDimensionalScalingCore.LEFT_TRUNCATION }) {
+            MultiDimensionalScalingCore core = createCore(new ParallelMultiDimensionalScalingCoreImpl(), flags, 1.5);
+
+            double[] gradient = new double[locations.length];
+            core.getGradient(gradient);
+
+            final double h = 1E-6;
+            for (int k = 0; k < locations.length; k += 37) {
+                double[] location = new double[DIMENSION];
+                int index = k / DIMENSION;
+
+                System.arraycopy(locations, index * DIMENSION, location, 0, DIMENSION);
+                location[k % DIMENSION] += h;
+                core.updateLocation(index, location);
+                double upper = core.calculateLogLikelihood();
+
+                location[k % DIMENSION] -= 2 * h;
+                core.updateLocation(index, location);
+                double lower = core.calculateLogLikelihood();
+
+                location[k % DIMENSION] += h;
+                core.updateLocation(index, location);
+
+                assertEquals((upper - lower) / (2 * h), gradient[k], 1E-4);
+            }
+        }
+    }
+
+    private void checkSameAsOriginalCore(long flags) {
+        System.setProperty("mds.threads", "3");
+        MultiDimensionalScalingCore core = createCore(new ParallelMultiDimensionalScalingCoreImpl(), flags, 2.0);
+        System.clearProperty("mds.threads");
+        MultiDimensionalScalingCore original = createCore(new MultiDimensionalScalingCoreImpl(), flags, 2.0);
+
+        assertEquals(original.calculateLogLikelihood(), core.calculateLogLikelihood(), 1E-8);
+
+        double[] location = new double[DIMENSION];
+        for (int iteration = 0; iteration < 100; iteration++) {
+            original.storeState();
+            core.storeState();
+
+            if (iteration % 10 == 9) {
+                double[] all = new double[locations.length];
+                for (int i = 0; i < all.length; i++) {
+                    all[i] = locations[i] + MathUtils.nextGaussian() * 0.1;
+                }
+                original.updateLocation(-1, all);
+                core.updateLocation(-1, all);
+            } else if (iteration % 10 == 5) {
+                double[] precision = new double[] { 1.0 + MathUtils.nextDouble() };
+                original.setParameters(precision);
+                core.setParameters(precision);
+            } else {
+                // move a few locations, evaluating in between some of the time
+                int moves = 1 + MathUtils.nextInt(3);
+                for (int m = 0; m < moves; m++) {
+                    int index = MathUtils.nextInt(LOCATION_COUNT);
+                    for (int k = 0; k < DIMENSION; k++) {
+                        location[k] = 5.0 * MathUtils.nextDouble();
+                    }
+                    original.updateLocation(index, location);
+                    core.updateLocation(index, location);
+                    if (MathUtils.nextBoolean()) {
+                        assertEquals(original.calculateLogLikelihood(), core.calculateLogLikelihood(), 1E-8);
+                    }
+                }
+            }
+            assertEquals(original.calculateLogLikelihood(), core.calculateLogLikelihood(), 1E-8);
+
+            if (MathUtils.nextBoolean()) {
+                original.restoreState();
+                core.restoreState();
+            } else {
+                original.acceptState();
+                core.acceptState();
+            }
+            assertEquals(original.calculateLogLikelihood(), core.calculateLogLikelihood(), 1E-8);
+
+            if (iteration % 10 == 0) {
+                // the increments kept must also agree with a full re-computation
+                core.makeDirty();
+                assertEquals(original.calculateLogLikelihood(), core.calculateLogLikelihood(), 1E-8);
+            }
+        }
+    }
+
+    // the likelihood of the observations that aren't missing
+    private double getLogLikelihood(double precision) {
+        int observationCount = 0;
+        double sumOfSquares = 0.0;
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            for (int j = i + 1; j < LOCATION_COUNT; j++) {
+                double observation = observations[i * LOCATION_COUNT + j];
+                if (!Double.isNaN(observation)) {
+                    double distance = 0.0;
+                    for (int k = 0; k < DIMENSION; k++) {
+                        double difference = locations[i * DIMENSION + k] - locations[j * DIMENSION + k];
+                        distance += difference * difference;
+                    }
+                    double residual = observation - Math.sqrt(distance);
+                    sumOfSquares += residual * residual;
+                    observationCount++;
+                }
+            }
+        }
+        return 0.5 * (Math.log(precision) - Math.log(2 * Math.PI)) * observationCount - 0.5 * precision * sumOfSquares;
+    }
+
+    private MultiDimensionalScalingCore createCore(MultiDimensionalScalingCore core, long flags, double precision) {
+        core.initialize(DIMENSION, LOCATION_COUNT, flags);
+        core.setPairwiseData(observations);
+        core.setParameters(new double[] { precision });
+        core.updateLocation(-1, locations);
+        core.makeDirty();
+        return core;
+    }
+
+    private double[] observations;
+    private double[] locations;
+}
@@ -0,0 +1,61 @@
+package test.dr.util;
+
+import dr.util.Metric;
+import junit.framework.TestCase;
+
+/**
+ * Tests the counts and time histogram of a Metric, including when it is updated from several threads.
+ */
+public class MetricTest extends TestCase {
+
+    public MetricTest(String name) {
+        super(name);
+    }
+
+    public void testHistogramBins() {
+        assertEquals(0, Metric.getHistogramBin(999));
+        assertEquals(1, Metric.getHistogramBin(1000));
+        assertEquals(2, Metric.getHistogramBin(3999));
+        assertEquals(3, Metric.getHistogramBin(4000));
+        assertEquals(Metric.HISTOGRAM_BIN_COUNT - 1, Metric.getHistogramBin(Long.MAX_VALUE));
+    }
+
+    public void testConcurrentRecording() throws InterruptedException {
+        final Metric metric = new Metric("Operator", "test");
+        Thread[] threads = new Thread[4];
+        for (int k = 0; k < threads.length; k++) {
+            threads[k] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        metric.record(i % 2 == 0 ? 500 : 3000000);
+                        if (i % 4 == 0) {
+                            metric.accept();
+                        } else {
+                            metric.reject();
+                        }
+                    }
+                }
+            });
+            threads[k].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, metric.getCount());
+        assertEquals(10000, metric.getAcceptCount());
+        assertEquals(30000, metric.getRejectCount());
+        assertEquals(0.25, metric.getAcceptanceProbability(), 1E-12);
+        assertEquals(20000L * (500 + 3000000) * 1E-9, metric.getTotalTimeSeconds(), 1E-9);
+
+        long[] histogram = metric.getTimeHistogram();
+        assertEquals(20000, histogram[0]);
+        assertEquals(20000, histogram[Metric.getHistogramBin(3000000)]);
+        assertEquals(0.001, metric.getMedianTimeMilliseconds(), 1E-12);
+        assertEquals(4.096, metric.getUpperTimeMilliseconds(), 1E-12);
+
+        metric.reset();
+        assertEquals(0, metric.getCount());
+        assertTrue(Double.isNaN(metric.getMeanTimeMilliseconds()));
+    }
+}
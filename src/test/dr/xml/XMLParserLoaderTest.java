@@ -0,0 +1,109 @@
+package test.dr.xml;
+
+import dr.xml.*;
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tests that parsers added with loaders are only created when their elements are met, once for all their names.
+ */
+public class XMLParserLoaderTest extends TestCase {
+
+    public XMLParserLoaderTest(String name) {
+        super(name);
+    }
+
+    public void testLoadedOnDemand() throws Exception {
+        XMLParser parser = new XMLParser(false, false, false, null);
+
+        CountingLoader wordLoader = new CountingLoader("word", "synonym");
+        CountingLoader unusedLoader = new CountingLoader("unused");
+        parser.addXMLObjectParserLoader("word", wordLoader);
+        parser.addXMLObjectParserLoader("synonym", wordLoader);
+        parser.addXMLObjectParserLoader("unused", unusedLoader);
+
+        Map<String, XMLObject> store = parser.parse(new StringReader(
+                "<beast><word id=\"a\" value=\"x\"/><Synonym id=\"b\" value=\"y\"/></beast>"), false);
+
+        assertEquals("x", store.get("a").getNativeObject());
+        assertEquals("y", store.get("b").getNativeObject());
+        assertEquals(1, wordLoader.count);
+        assertEquals(0, unusedLoader.count);
+        assertSame(parser.getParser("word"), parser.getParser("synonym"));
+
+        boolean found = false;
+        Iterator iterator = parser.getParserNames();
+        while (iterator.hasNext()) {
+            found |= iterator.next().equals("unused");
+        }
+        assertTrue(found);
+        assertEquals(1, unusedLoader.count);
+    }
+
+    public void testReplaced() throws Exception {
+        XMLParser parser = new XMLParser(false, false, false, null);
+
+        CountingLoader loader = new CountingLoader("word");
+        parser.addXMLObjectParserLoader("word", loader);
+
+        XMLObjectParser replacement = new WordParser("word");
+        assertTrue(parser.addXMLObjectParser(replacement, true));
+        assertSame(replacement, parser.getParser("word"));
+
+        try {
+            parser.addXMLObjectParser(new WordParser("word"), false);
+            fail("Duplicate parser added");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    private static class CountingLoader implements XMLParser.ParserLoader {
+        CountingLoader(String... names) {
+            this.names = names;
+        }
+
+        public XMLObjectParser loadParser() {
+            count++;
+            return new WordParser(names);
+        }
+
+        private final String[] names;
+        int count = 0;
+    }
+
+    private static class WordParser extends AbstractXMLObjectParser {
+        WordParser(String... names) {
+            this.names = names;
+        }
+
+        public String getParserName() {
+            return names[0];
+        }
+
+        public String[] getParserNames() {
+            return names;
+        }
+
+        public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+            return xo.getStringAttribute("value");
+        }
+
+        public XMLSyntaxRule[] getSyntaxRules() {
+            return new XMLSyntaxRule[]{AttributeRule.newStringRule("value")};
+        }
+
+        public String getParserDescription() {
+            return "A word.";
+        }
+
+        public Class getReturnType() {
+            return String.class;
+        }
+
+        private final String[] names;
+    }
+}